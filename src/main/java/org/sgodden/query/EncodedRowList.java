@@ -0,0 +1,201 @@
+package org.sgodden.query;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * A read-only list of result set rows held in byte buffers, which are
+ * allocated by the subclass.
+ * <p>
+ * The rows are encoded in blocks, each of which has its own string
+ * dictionary, using the same compact format as the serialized form of a
+ * {@link ResultSetRow}, and the position of each block is held in an index.  A
+ * block is decoded when one of its rows is read, and the most recently
+ * decoded block is kept, so that reading the rows in order decodes each
+ * block once.
+ * </p>
+ * <p>
+ * The list is not serializable, as copying the rows back onto the heap
+ * would defeat its purpose; a {@link ResultSet} holding one leaves its rows
+ * out when serialized and fetches them again when they are next read.
+ * </p>
+ * @author sgodden
+ */
+abstract class EncodedRowList extends AbstractList<ResultSetRow> implements
+        RandomAccess {
+
+    /**
+     * The number of rows encoded together.
+     */
+    private static final int BLOCK_SIZE = 64;
+
+    private int size = 0;
+
+    private final List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+
+    /**
+     * The chunk, offset and length of each block.
+     */
+    private int[] blockChunks = new int[16];
+    private int[] blockOffsets = new int[16];
+    private int[] blockLengths = new int[16];
+    private int blockCount = 0;
+
+    private long encodedSize = 0;
+
+    /**
+     * The rows appended since the last block was encoded.
+     */
+    private final List<ResultSetRow> pendingRows = new ArrayList<ResultSetRow>();
+
+    /**
+     * The most recently decoded block.
+     */
+    private volatile DecodedBlock lastBlock;
+
+    /**
+     * Allocates a buffer into which blocks are written.
+     * @param minimumSize the size of the block to be written.
+     * @return the buffer, of at least the passed size.
+     * @throws IOException if the buffer could not be allocated.
+     */
+    protected abstract ByteBuffer allocateChunk(int minimumSize) throws IOException;
+
+    /**
+     * Appends a row, which is encoded once its block is full.
+     * @param row the row.
+     */
+    void append(ResultSetRow row) {
+        pendingRows.add(row);
+        size++;
+        if (pendingRows.size() == BLOCK_SIZE) {
+            flush();
+        }
+    }
+
+    /**
+     * Encodes the rows appended since the last block was encoded.
+     */
+    void flush() {
+        if (pendingRows.isEmpty()) {
+            return;
+        }
+        byte[] block = encode(pendingRows);
+        ByteBuffer chunk = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+        if (chunk == null || chunk.remaining() < block.length) {
+            try {
+                chunk = allocateChunk(block.length);
+            } catch (IOException e) {
+                throw new Error(e);
+            }
+            chunks.add(chunk);
+        }
+        if (blockCount == blockChunks.length) {
+            blockChunks = grow(blockChunks);
+            blockOffsets = grow(blockOffsets);
+            blockLengths = grow(blockLengths);
+        }
+        blockChunks[blockCount] = chunks.size() - 1;
+        blockOffsets[blockCount] = chunk.position();
+        blockLengths[blockCount] = block.length;
+        blockCount++;
+        chunk.put(block);
+        encodedSize += block.length;
+        pendingRows.clear();
+    }
+
+    @Override
+    public ResultSetRow get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Row " + index + " of " + size);
+        }
+        int blockIndex = index / BLOCK_SIZE;
+        if (blockIndex == blockCount) {
+            return pendingRows.get(index % BLOCK_SIZE);
+        }
+        DecodedBlock block = lastBlock;
+        if (block == null || block.index != blockIndex) {
+            block = new DecodedBlock(blockIndex, decode(blockIndex));
+            lastBlock = block;
+        }
+        return block.rows[index % BLOCK_SIZE];
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the number of bytes taken by the encoded rows.
+     * @return the encoded size.
+     */
+    public long getEncodedSize() {
+        return encodedSize;
+    }
+
+    private static int[] grow(int[] values) {
+        int[] ret = new int[values.length * 2];
+        System.arraycopy(values, 0, ret, 0, values.length);
+        return ret;
+    }
+
+    private static byte[] encode(List<ResultSetRow> rows) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream out = new ObjectOutputStream(bytes);
+            HashMap<String, Integer> dictionary = new HashMap<String, Integer>();
+            for (ResultSetRow row : rows) {
+                SerializationUtils.writeRow(out, row, dictionary);
+            }
+            out.close();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new Error(e);
+        }
+    }
+
+    private ResultSetRow[] decode(int blockIndex) {
+        byte[] bytes = new byte[blockLengths[blockIndex]];
+        // a duplicate, so that concurrent reads do not share a position
+        ByteBuffer chunk = chunks.get(blockChunks[blockIndex]).duplicate();
+        chunk.position(blockOffsets[blockIndex]);
+        chunk.get(bytes);
+
+        ResultSetRow[] ret = new ResultSetRow[Math.min(BLOCK_SIZE,
+                size - blockIndex * BLOCK_SIZE)];
+        try {
+            ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+            List<String> dictionary = new ArrayList<String>();
+            for (int i = 0; i < ret.length; i++) {
+                ret[i] = SerializationUtils.readRow(in, dictionary);
+            }
+        } catch (IOException e) {
+            throw new Error(e);
+        } catch (ClassNotFoundException e) {
+            throw new Error(e);
+        }
+        return ret;
+    }
+
+    private static class DecodedBlock {
+
+        private final int index;
+        private final ResultSetRow[] rows;
+
+        DecodedBlock(int index, ResultSetRow[] rows) {
+            this.index = index;
+            this.rows = rows;
+        }
+    }
+
+}
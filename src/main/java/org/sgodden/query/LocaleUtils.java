@@ -16,31 +16,51 @@
 # ================================================================= */
 package org.sgodden.query;
 
+import java.beans.IntrospectionException;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.lang.ref.SoftReference;
+import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
-
-import org.apache.commons.beanutils.PropertyUtils;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Utility methods related to locale processing.
+ * <p/>
+ * The property read methods of each class and the hierarchy of each locale
+ * are looked up once and cached, since descriptions are typically rendered
+ * for every row of large lists.
  * 
  * @author goddens
  *
  */
 public class LocaleUtils {
 	
+	/**
+	 * The property read methods, keyed by class and then by property name.
+	 * The classes are weakly held so that they may be unloaded, and the
+	 * methods softly held, as they refer to their class.
+	 */
+	private static final Map<Class<?>, SoftReference<Map<String, Method>>> READ_METHODS = 
+		Collections.synchronizedMap(new WeakHashMap<Class<?>, SoftReference<Map<String, Method>>>());
+	
+	/**
+	 * The locale hierarchies, keyed by most specific locale.
+	 */
+	private static final Map<Locale, LocaleHierarchy> HIERARCHIES = 
+		new ConcurrentHashMap<Locale, LocaleHierarchy>();
+	
+	private static final LocaleHierarchy NULL_HIERARCHY = new LocaleHierarchy(null);
+	
 	public static String getDescription(Object object, Locale locale){
 		Object localeData = getLocaleData(object, locale);
-		String ret;
-		
-		try {
-			ret = (String) PropertyUtils.getProperty(localeData, "description");
-		} catch (Exception e) {
-			throw new Error(e);
-		} 
-		
-		return ret;
+		return (String) getProperty(localeData, "description");
 	}
 	
 	/**
@@ -52,24 +72,31 @@ public class LocaleUtils {
 	 */
     @SuppressWarnings("unchecked")
 	public static Object getLocaleData(Object object, Locale locale){
-		try {
-			Set l = (Set) PropertyUtils.getProperty(object, "localeData");
-			Locale[] locales = getLocaleHierarchy(locale);
-			for (Locale loc : locales){
-				for(Object o : l){
-					String localeString = (String) PropertyUtils.getProperty(o, "locale");
-					if (	(loc == null && localeString == null) 
-							|| (loc != null && loc.toString().equals(localeString))
-						){
-						return o;
-					}
-				}				
+		Set l = (Set) getProperty(object, "localeData");
+		LocaleHierarchy hierarchy = getCachedLocaleHierarchy(locale);
+		
+		/*
+		 * A single pass over the locale data, keeping the entry whose
+		 * locale comes earliest in the hierarchy.
+		 */
+		Object ret = null;
+		int bestRank = Integer.MAX_VALUE;
+		for (Object o : l){
+			int rank = hierarchy.getRank((String) getProperty(o, "locale"));
+			if (rank < bestRank){
+				ret = o;
+				bestRank = rank;
+				if (rank == 0){
+					break;
+				}
 			}
-		} catch (Exception e) {
-			throw new Error(e);
 		}
 		
-		throw new Error("Did not find locale");
+		if (ret == null){
+			throw new Error("Did not find locale");
+		}
+		
+		return ret;
 	}
 	
 	/**
@@ -89,6 +116,22 @@ public class LocaleUtils {
 	 * ending with the <code>null</code> (default) locale.
 	 */
 	public static Locale[] getLocaleHierarchy(Locale locale){
+		return getCachedLocaleHierarchy(locale).locales.clone();
+	}
+	
+	private static LocaleHierarchy getCachedLocaleHierarchy(Locale locale){
+		if (locale == null){
+			return NULL_HIERARCHY;
+		}
+		LocaleHierarchy ret = HIERARCHIES.get(locale);
+		if (ret == null){
+			ret = new LocaleHierarchy(locale);
+			HIERARCHIES.put(locale, ret);
+		}
+		return ret;
+	}
+	
+	private static Locale[] buildLocaleHierarchy(Locale locale){
 		ArrayList<Locale> ret = new ArrayList<Locale>();
 		
 		Locale currentLocale = locale;
@@ -118,4 +161,80 @@ public class LocaleUtils {
 		return (Locale[])ret.toArray(new Locale[ret.size()]);
 	}
 	
+	/**
+	 * Returns the value of the named property of the passed object, using
+	 * the cached read method for its class.
+	 */
+	private static Object getProperty(Object object, String propertyName){
+		Method method = getReadMethods(object.getClass()).get(propertyName);
+		if (method == null){
+			throw new Error("No readable property '" + propertyName 
+					+ "' on class " + object.getClass().getName());
+		}
+		try {
+			return method.invoke(object);
+		} catch (Exception e) {
+			throw new Error(e);
+		}
+	}
+	
+	private static Map<String, Method> getReadMethods(Class<?> clazz){
+		SoftReference<Map<String, Method>> ref = READ_METHODS.get(clazz);
+		Map<String, Method> ret = ref == null ? null : ref.get();
+		if (ret == null){
+			ret = new HashMap<String, Method>();
+			PropertyDescriptor[] descriptors;
+			try {
+				descriptors = Introspector.getBeanInfo(clazz).getPropertyDescriptors();
+			} catch (IntrospectionException e) {
+				throw new Error(e);
+			}
+			for (PropertyDescriptor descriptor : descriptors){
+				Method method = descriptor.getReadMethod();
+				if (method != null){
+					method.setAccessible(true);
+					ret.put(descriptor.getName(), method);
+				}
+			}
+			READ_METHODS.put(clazz, new SoftReference<Map<String, Method>>(ret));
+		}
+		return ret;
+	}
+	
+	/**
+	 * A locale hierarchy, together with an index from locale string to
+	 * position in the hierarchy.
+	 */
+	private static class LocaleHierarchy {
+		
+		private final Locale[] locales;
+		private final Map<String, Integer> ranks = new HashMap<String, Integer>();
+		private final int nullRank;
+		
+		LocaleHierarchy(Locale locale){
+			locales = buildLocaleHierarchy(locale);
+			int nullRank = Integer.MAX_VALUE;
+			for (int i = locales.length - 1; i >= 0; i--){
+				if (locales[i] == null){
+					nullRank = i;
+				} else {
+					ranks.put(locales[i].toString(), i);
+				}
+			}
+			this.nullRank = nullRank;
+		}
+		
+		/**
+		 * Returns the position of the passed locale string in this
+		 * hierarchy, or {@link Integer#MAX_VALUE} if it is not part of it.
+		 */
+		int getRank(String localeString){
+			if (localeString == null){
+				return nullRank;
+			}
+			Integer ret = ranks.get(localeString);
+			return ret == null ? Integer.MAX_VALUE : ret;
+		}
+	}
+	
 }
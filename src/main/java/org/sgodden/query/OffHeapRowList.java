@@ -0,0 +1,42 @@
+package org.sgodden.query;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * A read-only list of result set rows which are held outside the java heap,
+ * in direct byte buffers, so that long-lived cached rows do not add to the
+ * objects which the garbage collector has to trace and copy.
+ * <p>
+ * The rows are encoded in blocks using the same compact format as the
+ * serialized form of a {@link ResultSetRow}, and decoded a block at a time when
+ * they are read.  The memory is released when the list is garbage
+ * collected, and is limited by the <code>-XX:MaxDirectMemorySize</code>
+ * option of the virtual machine rather than by the heap size.
+ * </p>
+ * @author sgodden
+ */
+public class OffHeapRowList extends EncodedRowList {
+
+    /**
+     * The size of the buffers into which the blocks are packed.
+     */
+    private static final int CHUNK_SIZE = 1024 * 1024;
+
+    /**
+     * Creates a new list holding copies of the passed rows.
+     * @param rows the rows.
+     */
+    public OffHeapRowList(List<ResultSetRow> rows) {
+        for (ResultSetRow row : rows) {
+            append(row);
+        }
+        flush();
+    }
+
+    @Override
+    protected ByteBuffer allocateChunk(int minimumSize) {
+        return ByteBuffer.allocateDirect(Math.max(CHUNK_SIZE, minimumSize));
+    }
+
+}
@@ -16,7 +16,11 @@
 # ================================================================= */
 package org.sgodden.query;
 
-import java.io.Serializable;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
@@ -33,13 +37,18 @@ import java.util.Locale;
  *
  */
 public class Query 
-	implements Serializable, Cloneable {
+	implements Externalizable, Cloneable {
 	
 	/**
      * Serial version UID.
      */
     private static final long serialVersionUID = 20080909L;
     
+    /**
+     * The version of the external form.
+     */
+    private static final int EXTERNAL_VERSION = 1;
+    
     private String objectClass;
 	private List<QueryColumn> queryColumns = new ArrayList<QueryColumn>(); 
 	private Restriction filterCriterion;
@@ -52,6 +61,10 @@ public class Query
 	private SortData[] sortData;
 	private boolean includeId = true;
 	private boolean distinctId = false;
+	private boolean existsForCollections = false;
+	private boolean idFirstPaging = false;
+	private boolean snapshotPaging = false;
+	private boolean holdCursor = false;
 	
 	/**
 	 * Constructs a new query.
@@ -353,4 +366,198 @@ public class Query
 		}
 		distinctId = distinct;
     }
+
+    /**
+     * @return whether restrictions through collection-valued associations
+     * should be rendered as correlated EXISTS sub-queries.
+     */
+    public boolean getExistsForCollections() {
+        return existsForCollections;
+    }
+
+    /**
+     * Sets whether restrictions on attribute paths which pass through a
+     * collection-valued association (e.g. <code>orders.lines.sku</code>) should
+     * be rendered as correlated EXISTS sub-queries, rather than as LEFT OUTER
+     * JOINs in the main query.
+     * <p/>
+     * This avoids the multiplication of result rows by the collection, and
+     * hence the need for {@link #setDistinctId(boolean)}.  Collections are
+     * detected from the hibernate mapping metadata.  Paths which are also
+     * selected as columns, and locale data paths, are still joined.
+     * 
+     * @param exists
+     * @return this query.
+     */
+    public Query setExistsForCollections(boolean exists) {
+        existsForCollections = exists;
+        return this;
+    }
+
+    /**
+     * @return whether a page of rows is fetched by first selecting only
+     * their ids.
+     */
+    public boolean getIdFirstPaging() {
+        return idFirstPaging;
+    }
+
+    /**
+     * Sets whether a page of rows (see {@link #setRowOffset(int)},
+     * {@link #setFetchSize(int)} and {@link #setMaxRows(int)}) should be
+     * fetched in two phases: first the ids of the rows in the page are
+     * selected, joining only what the filter and the sorted columns need,
+     * and then all the columns are selected for just those ids.
+     * <p/>
+     * This helps wide queries with many joined columns, where the database
+     * would otherwise join every row it skips to reach a deep page.  Rows
+     * which are equal in all the sorted columns are ordered by id, rather
+     * than by the remaining columns.  Queries without sort data, and those
+     * which do not include the id, are run as a single query.
+     *
+     * @param idFirst
+     * @return this query.
+     */
+    public Query setIdFirstPaging(boolean idFirst) {
+        idFirstPaging = idFirst;
+        return this;
+    }
+
+    /**
+     * @return whether the ids of all the rows are captured when the query
+     * is first run, and later pages fetched by id.
+     */
+    public boolean getSnapshotPaging() {
+        return snapshotPaging;
+    }
+
+    /**
+     * Sets whether a query with a fetch size should capture the ordered ids
+     * of all its rows when it is first run, so that the {@link ResultSet}
+     * fetches each later page by looking up the ids of its rows, rather
+     * than by running the query again with a new offset.
+     * <p/>
+     * Paging is then stable, as rows inserted or changed since the query
+     * was run do not move rows from one page to another, and fetching a
+     * page does not repeat the filter or the sort.  The row count is that of
+     * the captured ids, and rows deleted since then are returned with no
+     * column values.  The ids are held as a <code>long[]</code>, so the
+     * query is run as normal if they are not integers, or if the query does
+     * not include the id.
+     *
+     * @param snapshot
+     * @return this query.
+     */
+    public Query setSnapshotPaging(boolean snapshot) {
+        snapshotPaging = snapshot;
+        return this;
+    }
+
+    /**
+     * @return whether a cursor is held open for reading later pages.
+     */
+    public boolean getHoldCursor() {
+        return holdCursor;
+    }
+
+    /**
+     * Sets whether a query with a fetch size should keep a cursor open on
+     * its rows after the first page has been read, so that the
+     * {@link ResultSet} reads each following page by going on reading the
+     * cursor, rather than by running the query again with a new offset.
+     * <p/>
+     * This suits walking through all the rows in order, for instance in
+     * batch processing.  The cursor is held on a session of its own,
+     * which has the filters of the query's session but is outside its
+     * transaction, and is closed once it has been read to the end, when
+     * {@link ResultSet#closeCursor()} is called, or when it has not been
+     * read for a while or has been open too long.  Reading a page which
+     * the cursor cannot read, because it has been closed or has passed it,
+     * runs the query again, holding a new cursor from that page.
+     *
+     * @param hold
+     * @return this query.
+     */
+    public Query setHoldCursor(boolean hold) {
+        holdCursor = hold;
+        return this;
+    }
+
+    /**
+     * Writes the query in a compact form.
+     * @param out the stream to write to.
+     */
+    public void writeExternal(ObjectOutput out) throws IOException {
+        out.writeByte(EXTERNAL_VERSION);
+        out.writeObject(objectClass);
+        SerializationUtils.writeVarInt(out, queryColumns.size());
+        for (QueryColumn col : queryColumns) {
+            out.writeObject(col.getAttributePath());
+            SerializationUtils.writeVarInt(out, col.getAggregateFunction() == null ? -1
+                    : col.getAggregateFunction().ordinal());
+        }
+        out.writeObject(filterCriterion);
+        out.writeObject(locale);
+        SerializationUtils.writeVarInt(out, fetchSize);
+        SerializationUtils.writeVarInt(out, maxRows);
+        SerializationUtils.writeVarInt(out, rowOffset);
+        SerializationUtils.writeVarInt(out, bailOutSize);
+        SerializationUtils.writeVarInt(out, sortData == null ? -1 : sortData.length);
+        if (sortData != null) {
+            for (SortData sort : sortData) {
+                SerializationUtils.writeVarInt(out, sort == null ? -1 : sort.getColumnIndex());
+                if (sort != null) {
+                    out.writeBoolean(sort.getAscending());
+                }
+            }
+        }
+        out.writeByte((calculateRowCount ? 1 : 0) | (includeId ? 2 : 0)
+                | (distinctId ? 4 : 0) | (existsForCollections ? 8 : 0)
+                | (idFirstPaging ? 16 : 0) | (snapshotPaging ? 32 : 0)
+                | (holdCursor ? 64 : 0));
+    }
+
+    /**
+     * Reads a query written by {@link #writeExternal(ObjectOutput)}.
+     * @param in the stream to read from.
+     */
+    public void readExternal(ObjectInput in) throws IOException,
+            ClassNotFoundException {
+        int version = in.readUnsignedByte();
+        if (version != EXTERNAL_VERSION) {
+            throw new InvalidClassException(Query.class.getName(),
+                    "Unknown external version " + version);
+        }
+        objectClass = (String) in.readObject();
+        int columnCount = SerializationUtils.readVarInt(in);
+        queryColumns = new ArrayList<QueryColumn>(columnCount);
+        for (int i = 0; i < columnCount; i++) {
+            String attributePath = (String) in.readObject();
+            int aggregateFunction = SerializationUtils.readVarInt(in);
+            queryColumns.add(new QueryColumn(attributePath, aggregateFunction < 0 ? null
+                    : AggregateFunction.values()[aggregateFunction]));
+        }
+        filterCriterion = (Restriction) in.readObject();
+        locale = (Locale) in.readObject();
+        fetchSize = SerializationUtils.readVarInt(in);
+        maxRows = SerializationUtils.readVarInt(in);
+        rowOffset = SerializationUtils.readVarInt(in);
+        bailOutSize = SerializationUtils.readVarInt(in);
+        int sortCount = SerializationUtils.readVarInt(in);
+        sortData = sortCount < 0 ? null : new SortData[sortCount];
+        for (int i = 0; i < sortCount; i++) {
+            int columnIndex = SerializationUtils.readVarInt(in);
+            if (columnIndex >= 0) {
+                sortData[i] = new SortData(columnIndex, in.readBoolean());
+            }
+        }
+        int flags = in.readUnsignedByte();
+        calculateRowCount = (flags & 1) != 0;
+        includeId = (flags & 2) != 0;
+        distinctId = (flags & 4) != 0;
+        existsForCollections = (flags & 8) != 0;
+        idFirstPaging = (flags & 16) != 0;
+        snapshotPaging = (flags & 32) != 0;
+        holdCursor = (flags & 64) != 0;
+    }
 }
@@ -0,0 +1,134 @@
+package org.sgodden.query;
+
+import java.io.Serializable;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Describes how a query would be run against the database: the generated
+ * HQL and SQL, the bound parameters and the database execution plan, for
+ * both the count query and the main query.
+ * 
+ * @author sgodden
+ */
+public class QueryExplanation implements Serializable {
+
+    private static final long serialVersionUID = 20101019L;
+
+    private Statement countStatement;
+    private Statement mainStatement;
+
+    /**
+     * Returns the explanation of the query which counts the matches.
+     * @return the count statement, or <code>null</code> if the filter
+     * criteria can never match, in which case no query is run.
+     */
+    public Statement getCountStatement() {
+        return countStatement;
+    }
+
+    public void setCountStatement(Statement countStatement) {
+        this.countStatement = countStatement;
+    }
+
+    /**
+     * Returns the explanation of the query which selects the rows.
+     * @return the main statement, or <code>null</code> if the filter
+     * criteria can never match, in which case no query is run.
+     */
+    public Statement getMainStatement() {
+        return mainStatement;
+    }
+
+    public void setMainStatement(Statement mainStatement) {
+        this.mainStatement = mainStatement;
+    }
+
+    @Override
+    public String toString() {
+        return "Count query:\n" + countStatement + "\nMain query:\n" + mainStatement;
+    }
+
+    /**
+     * The explanation of a single statement.
+     */
+    public static class Statement implements Serializable {
+
+        private static final long serialVersionUID = 20101019L;
+
+        private String hql;
+        private String sql;
+        private Map<String, Object> parameters;
+        private List<String> plan;
+
+        /**
+         * Returns the HQL query string.
+         * @return the HQL, or <code>null</code> if the query was compiled
+         * directly into SQL.
+         */
+        public String getHql() {
+            return hql;
+        }
+
+        public void setHql(String hql) {
+            this.hql = hql;
+        }
+
+        /**
+         * Returns the SQL that hibernate translated the HQL into, or the SQL
+         * of a query compiled directly into SQL.
+         * @return the SQL.
+         */
+        public String getSql() {
+            return sql;
+        }
+
+        public void setSql(String sql) {
+            this.sql = sql;
+        }
+
+        /**
+         * Returns the values of the named parameters of the query.
+         * @return the parameter values, keyed by parameter name.
+         */
+        public Map<String, Object> getParameters() {
+            return parameters;
+        }
+
+        public void setParameters(Map<String, Object> parameters) {
+            this.parameters = parameters;
+        }
+
+        /**
+         * Returns the execution plan reported by the database, one line per
+         * row returned by the explain statement, with columns separated by
+         * tabs.
+         * @return the plan, or <code>null</code> if it could not be obtained
+         * for the database in use.
+         */
+        public List<String> getPlan() {
+            return plan;
+        }
+
+        public void setPlan(List<String> plan) {
+            this.plan = plan;
+        }
+
+        @Override
+        public String toString() {
+            StringBuffer buf = new StringBuffer();
+            if (hql != null) {
+                buf.append("HQL: " + hql + "\n");
+            }
+            buf.append("SQL: " + sql + "\n");
+            buf.append("Parameters: " + parameters + "\n");
+            if (plan != null) {
+                for (String line : plan) {
+                    buf.append(line + "\n");
+                }
+            }
+            return buf.toString();
+        }
+    }
+
+}
@@ -0,0 +1,460 @@
+package org.sgodden.query;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * Evaluates a {@link Restriction} against rows of query results held in
+ * memory, so that results which are already cached can be filtered without
+ * going back to the database.
+ * <p>
+ * Restrictions are compiled using {@link #compile(Restriction, Query, DataType[])},
+ * which returns <code>null</code> if the restriction cannot be evaluated
+ * with the same result as the database would give.  This is the case for
+ * arbitrary restrictions, restrictions on attributes which are not selected
+ * as plain (non-aggregated) columns, the EMPTY and NOT_EMPTY operators,
+ * restrictions on date columns (which hold formatted values), and ordering
+ * comparisons of strings (which depend on the database collation).  String
+ * comparisons are otherwise case-sensitive unless the restriction ignores
+ * case, and nulls are treated as in SQL.
+ * </p>
+ *
+ * @author sgodden
+ */
+public class RestrictionEvaluator {
+
+    private final Node root;
+
+    private RestrictionEvaluator(Node root) {
+        this.root = root;
+    }
+
+    /**
+     * Compiles the passed restriction.
+     * @param restriction the restriction, which may be <code>null</code> to
+     * match all rows.
+     * @param query the query whose results will be evaluated.
+     * @param columnTypes the data types of the query columns.
+     * @return the evaluator, or <code>null</code> if the restriction cannot
+     * be evaluated in memory.
+     */
+    public static RestrictionEvaluator compile(Restriction restriction,
+            Query query, DataType[] columnTypes) {
+        if (restriction == null) {
+            return new RestrictionEvaluator(null);
+        }
+        Node root = new Compiler(query, columnTypes).compile(restriction);
+        return root == null ? null : new RestrictionEvaluator(root);
+    }
+
+    /**
+     * Returns whether the row with the passed column values matches the
+     * restriction.
+     * @param values the column values, in query column order.
+     * @return whether the row matches.
+     */
+    public boolean matches(Object[] values) {
+        return root == null || Boolean.TRUE.equals(root.evaluate(values));
+    }
+
+    /**
+     * Returns whether every row which matches the first restriction must
+     * also match the second, meaning that the first only narrows the second.
+     * This is a conservative test: <code>false</code> may be returned even
+     * when that is the case.
+     * @param restriction the new restriction, or <code>null</code> for none.
+     * @param previous the previous restriction, or <code>null</code> for none.
+     * @return whether the new restriction implies the previous one.
+     */
+    public static boolean implies(Restriction restriction, Restriction previous) {
+        if (previous == null) {
+            return true;
+        }
+        if (restriction == null) {
+            return false;
+        }
+        if (same(restriction, previous)) {
+            return true;
+        }
+        if (previous instanceof AndRestriction) {
+            for (Restriction child : ((AndRestriction) previous).getRestrictions()) {
+                if (child != null && !implies(restriction, child)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (restriction instanceof OrRestriction) {
+            for (Restriction child : ((OrRestriction) restriction).getRestrictions()) {
+                if (child != null && !implies(child, previous)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (restriction instanceof AndRestriction) {
+            for (Restriction child : ((AndRestriction) restriction).getRestrictions()) {
+                if (child != null && implies(child, previous)) {
+                    return true;
+                }
+            }
+        }
+        if (previous instanceof OrRestriction) {
+            for (Restriction child : ((OrRestriction) previous).getRestrictions()) {
+                if (child != null && implies(restriction, child)) {
+                    return true;
+                }
+            }
+        }
+        if (restriction instanceof SimpleRestriction && previous instanceof SimpleRestriction) {
+            return implies((SimpleRestriction) restriction, (SimpleRestriction) previous);
+        }
+        return false;
+    }
+
+    /**
+     * Handles a longer search string for the same text search, and an IN
+     * list which is a subset of the previous one.
+     */
+    private static boolean implies(SimpleRestriction restriction, SimpleRestriction previous) {
+        if (!restriction.getAttributePath().equals(previous.getAttributePath())
+                || restriction.getIgnoreCase() != previous.getIgnoreCase()
+                || restriction.getValues() == null || previous.getValues() == null) {
+            return false;
+        }
+        Operator operator = restriction.getOperator();
+        if (operator == Operator.IN && previous.getOperator() == Operator.IN) {
+            return Arrays.asList(previous.getValues()).containsAll(
+                    Arrays.asList(restriction.getValues()));
+        }
+        if (operator != previous.getOperator()
+                || !(restriction.getValues()[0] instanceof String)
+                || !(previous.getValues()[0] instanceof String)) {
+            return false;
+        }
+        String value = (String) restriction.getValues()[0];
+        String previousValue = (String) previous.getValues()[0];
+        if (restriction.getIgnoreCase()) {
+            value = value.toUpperCase(Locale.ENGLISH);
+            previousValue = previousValue.toUpperCase(Locale.ENGLISH);
+        }
+        switch (operator) {
+        case CONTAINS:
+            return value.indexOf(previousValue) != -1;
+        case STARTS_WITH:
+            return value.startsWith(previousValue);
+        case ENDS_WITH:
+            return value.endsWith(previousValue);
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Returns whether the two restrictions are structurally identical.
+     */
+    private static boolean same(Restriction a, Restriction b) {
+        if (a == b) {
+            return true;
+        }
+        if (a == null || b == null || a.getClass() != b.getClass()) {
+            return false;
+        }
+        if (a instanceof SimpleRestriction) {
+            SimpleRestriction sa = (SimpleRestriction) a;
+            SimpleRestriction sb = (SimpleRestriction) b;
+            return sa.getAttributePath().equals(sb.getAttributePath())
+                    && sa.getOperator() == sb.getOperator()
+                    && sa.getIgnoreCase() == sb.getIgnoreCase()
+                    && Arrays.equals(sa.getValues(), sb.getValues());
+        }
+        if (a instanceof ArbitraryRestriction) {
+            ArbitraryRestriction aa = (ArbitraryRestriction) a;
+            ArbitraryRestriction ab = (ArbitraryRestriction) b;
+            return aa.getRestrictionText().equals(ab.getRestrictionText())
+                    && Arrays.equals(aa.getValues(), ab.getValues());
+        }
+        if (a instanceof NotRestriction) {
+            return same(((NotRestriction) a).getChild(), ((NotRestriction) b).getChild());
+        }
+        if (a instanceof CompositeRestriction) {
+            List<Restriction> ca = ((CompositeRestriction) a).getRestrictions();
+            List<Restriction> cb = ((CompositeRestriction) b).getRestrictions();
+            if (ca.size() != cb.size()) {
+                return false;
+            }
+            for (int i = 0; i < ca.size(); i++) {
+                if (!same(ca.get(i), cb.get(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * A compiled restriction, evaluating to {@link Boolean#TRUE},
+     * {@link Boolean#FALSE} or <code>null</code> for unknown, as in SQL.
+     */
+    private static abstract class Node {
+        abstract Boolean evaluate(Object[] values);
+    }
+
+    private static class Compiler {
+
+        private final Query query;
+        private final DataType[] columnTypes;
+
+        Compiler(Query query, DataType[] columnTypes) {
+            this.query = query;
+            this.columnTypes = columnTypes;
+        }
+
+        Node compile(Restriction restriction) {
+            if (restriction instanceof SimpleRestriction) {
+                return compileSimple((SimpleRestriction) restriction);
+            }
+            else if (restriction instanceof NotRestriction) {
+                final Node child = compile(((NotRestriction) restriction).getChild());
+                if (child == null) {
+                    return null;
+                }
+                return new Node() {
+                    Boolean evaluate(Object[] values) {
+                        Boolean ret = child.evaluate(values);
+                        return ret == null ? null : !ret;
+                    }
+                };
+            }
+            else if (restriction instanceof CompositeRestriction) {
+                final List<Node> children = new ArrayList<Node>();
+                for (Restriction child : ((CompositeRestriction) restriction).getRestrictions()) {
+                    if (child == null) {
+                        continue;
+                    }
+                    Node node = compile(child);
+                    if (node == null) {
+                        return null;
+                    }
+                    children.add(node);
+                }
+                final boolean and = restriction instanceof AndRestriction;
+                return new Node() {
+                    Boolean evaluate(Object[] values) {
+                        Boolean ret = and;
+                        for (Node child : children) {
+                            Boolean value = child.evaluate(values);
+                            if (value == null) {
+                                ret = null;
+                            }
+                            else if (value != and) {
+                                return value;
+                            }
+                        }
+                        return ret;
+                    }
+                };
+            }
+            return null;
+        }
+
+        private Node compileSimple(SimpleRestriction restriction) {
+            final int column = getColumnIndex(restriction.getAttributePath());
+            if (column == -1) {
+                return null;
+            }
+            DataType type = columnTypes[column];
+            final Object[] operands = restriction.getValues();
+            final Operator operator = restriction.getOperator();
+
+            // IS NULL and IS NOT NULL
+            if ((operator == Operator.EQUALS || operator == Operator.NOT_EQUALS)
+                    && (operands == null || operands[0] == null)) {
+                return new Node() {
+                    Boolean evaluate(Object[] values) {
+                        return (values[column] == null) == (operator == Operator.EQUALS);
+                    }
+                };
+            }
+
+            if (operator == Operator.EMPTY || operator == Operator.NOT_EMPTY) {
+                return null;
+            }
+            for (Object operand : operands) {
+                if (operand != null && !isComparable(type, operand)) {
+                    return null;
+                }
+            }
+
+            final boolean ignoreCase = restriction.getIgnoreCase() && type == DataType.STRING;
+            final Locale locale = query.getLocale();
+            final Object[] normalized = new Object[operands.length];
+            for (int i = 0; i < operands.length; i++) {
+                normalized[i] = normalize(operands[i], ignoreCase, locale);
+            }
+
+            switch (operator) {
+            case CONTAINS:
+            case STARTS_WITH:
+            case ENDS_WITH:
+                if (type != DataType.STRING) {
+                    return null;
+                }
+                final Pattern pattern = makeLikePattern(operator, (String) normalized[0]);
+                return new Node() {
+                    Boolean evaluate(Object[] values) {
+                        Object value = values[column];
+                        if (value == null) {
+                            return null;
+                        }
+                        return pattern.matcher(normalize(value, ignoreCase, locale).toString()).matches();
+                    }
+                };
+            case EQUALS:
+            case NOT_EQUALS:
+            case IN:
+            case NOT_IN:
+                final boolean negate = operator == Operator.NOT_EQUALS || operator == Operator.NOT_IN;
+                return new Node() {
+                    Boolean evaluate(Object[] values) {
+                        Object value = values[column];
+                        if (value == null) {
+                            return null;
+                        }
+                        value = normalize(value, ignoreCase, locale);
+                        boolean hasNull = false;
+                        for (Object operand : normalized) {
+                            if (operand == null) {
+                                hasNull = true;
+                            }
+                            else if (compare(value, operand) == 0) {
+                                return !negate;
+                            }
+                        }
+                        return hasNull ? null : negate;
+                    }
+                };
+            default:
+                if (type == DataType.STRING) {
+                    // ordering depends on the database collation
+                    return null;
+                }
+                return new Node() {
+                    Boolean evaluate(Object[] values) {
+                        Object value = values[column];
+                        if (value == null) {
+                            return null;
+                        }
+                        for (Object operand : normalized) {
+                            if (operand == null) {
+                                return null;
+                            }
+                        }
+                        switch (operator) {
+                        case LESS_THAN:
+                            return compare(value, normalized[0]) < 0;
+                        case LESS_THAN_OR_EQUALS:
+                            return compare(value, normalized[0]) <= 0;
+                        case GREATER_THAN:
+                            return compare(value, normalized[0]) > 0;
+                        case GREATER_THAN_OR_EQUALS:
+                            return compare(value, normalized[0]) >= 0;
+                        case BETWEEN:
+                            return compare(value, normalized[0]) >= 0
+                                    && compare(value, normalized[1]) <= 0;
+                        case NOT_BETWEEN:
+                            return compare(value, normalized[0]) < 0
+                                    || compare(value, normalized[1]) > 0;
+                        default:
+                            throw new IllegalArgumentException("Unsupported operator: " + operator);
+                        }
+                    }
+                };
+            }
+        }
+
+        /**
+         * Returns the index of the plain column with the passed attribute
+         * path, or -1 if there is none.
+         */
+        private int getColumnIndex(String attributePath) {
+            List<QueryColumn> columns = query.getColumns();
+            for (int i = 0; i < columns.size(); i++) {
+                QueryColumn column = columns.get(i);
+                if (column.getAttributePath().equals(attributePath)
+                        && column.getAggregateFunction() == null) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private boolean isComparable(DataType type, Object operand) {
+            switch (type) {
+            case STRING:
+                return operand instanceof String;
+            case INTEGER:
+            case LONG:
+                return operand instanceof Number;
+            case BOOLEAN:
+                return operand instanceof Boolean;
+            default:
+                return false;
+            }
+        }
+
+        private Object normalize(Object value, boolean ignoreCase, Locale locale) {
+            if (ignoreCase && value instanceof String) {
+                return ((String) value).toUpperCase(locale);
+            }
+            return value;
+        }
+
+        /**
+         * Builds a regular expression equivalent to the LIKE pattern which
+         * the database would use, honouring any wildcards in the value.
+         */
+        private Pattern makeLikePattern(Operator operator, String value) {
+            StringBuffer buf = new StringBuffer();
+            if (operator != Operator.STARTS_WITH) {
+                buf.append(".*");
+            }
+            StringBuffer literal = new StringBuffer();
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '%' || c == '_') {
+                    if (literal.length() > 0) {
+                        buf.append(Pattern.quote(literal.toString()));
+                        literal.setLength(0);
+                    }
+                    buf.append(c == '%' ? ".*" : ".");
+                }
+                else {
+                    literal.append(c);
+                }
+            }
+            if (literal.length() > 0) {
+                buf.append(Pattern.quote(literal.toString()));
+            }
+            if (operator != Operator.ENDS_WITH) {
+                buf.append(".*");
+            }
+            return Pattern.compile(buf.toString(), Pattern.DOTALL);
+        }
+
+        @SuppressWarnings("unchecked")
+        private int compare(Object value, Object operand) {
+            if (value instanceof Number && operand instanceof Number) {
+                return new BigDecimal(value.toString()).compareTo(
+                        new BigDecimal(operand.toString()));
+            }
+            return ((Comparable) value).compareTo(operand);
+        }
+    }
+
+}
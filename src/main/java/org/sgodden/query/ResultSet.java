@@ -1,241 +1,562 @@
-/* =================================================================
-# This library is free software; you can redistribute it and/or
-# modify it under the terms of the GNU Lesser General Public
-# License as published by the Free Software Foundation; either
-# version 2.1 of the License, or (at your option) any later version.
-#
-# This library is distributed in the hope that it will be useful,
-# but WITHOUT ANY WARRANTY; without even the implied warranty of
-# MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
-# Lesser General Public License for more details.
-#
-# You should have received a copy of the GNU Lesser General Public
-# License along with this library; if not, write to the Free Software
-# Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
-#
-# ================================================================= */
-package org.sgodden.query;
-
-import java.io.Serializable;
-import java.util.List;
-
-import org.apache.commons.logging.Log;
-import org.apache.commons.logging.LogFactory;
-import org.sgodden.query.service.QueryService;
-
-/**
- * Encapsulates the results of running a query.  This implementation retrieves
- * results in pages, the size of which is determined by the value of the fetch
- * size set in the query.
- * <p/>
- * Only the current page is retained in memory.  This
- * allows for constant memory usage regardless of result set size, but at the
- * expense of running an extra query every time the cursor moves out of the
- * range of the current page.
- * <p/>
- * FIXME - this class currently combines the public interface required by both
- * consumers and producers of result set objects.  This needs to be refactored.
- * 
- * @author Simon Godden
- *
- */
-public class ResultSet implements Serializable {
-    
-	private static final long serialVersionUID = 1L;
-	/**
-     * The log.
-     */
-    private static final transient Log log = LogFactory.getLog(ResultSet.class);
-    /**
-     * The result set rows for the currently cached page.
-     */
-    private List<ResultSetRow> cachedPageRows;
-    /**
-     * The page index of the currently cached page.
-     */
-	private int currentPageIndex = -1;
-    /**
-     * The query service used to fetch result pages.
-     */
-	private QueryService queryService;
-    /**
-     * Whether the query bailed out due to too many results.
-     */
-	private boolean queryBailedOut = false;
-	/**
-	 * The total number of rows matching the query criteria (regardless of
-	 * the setting of {@link Query#setMaxRows(int)}).
-	 */
-	private int rowCount;
-    /**
-     * The query that caused this result set to be created.
-     */
-	private Query query;
-
-    /**
-     * Creates a new result set.
-     */
-	public ResultSet(){}
-
-	/**
-	 * Returns the number of rows currently cached.
-	 * @return the number of rows currently cached.
-	 */
-    public int getCachedRowCount() {
-        return cachedPageRows.size();
-    }
-
-	/**
-	 * Returns the query that was used to produce this
-	 * result set.
-	 * 
-	 * @return
-	 */
-	public Query getQuery() {
-		return query;
-	}
-
-	/**
-	 * Returns the total number of rows that matched the query.
-	 * 
-	 * @return the number of rows in this result set.
-	 * @see #getTotalRowCount()
-	 */
-	public int getRowCount() {
-		return rowCount;
-	}
-	
-	/**
-	 * Returns the cached result set rows.
-	 * @return the cached result set rows.
-	 */
-	public List<ResultSetRow> getCachedPageRows(){
-		return cachedPageRows;
-	}
-	
-	/**
-	 * Returns the row at the specified index,
-     * causing a fetch of the appropriate page if necessary.
-	 * @param rowIndex the index of the required row.
-	 * @return the specified row.
-	 * @throws IllegalArgumentException if the row index is out of range.
-	 */
-	public ResultSetRow getRow(int rowIndex){
-		maybeGetPage(rowIndex);
-		
-		int pageRowIndex = rowIndex;
-		if (query.getFetchSize() > 0){
-			pageRowIndex = rowIndex % query.getFetchSize();	
-		}
-		
-		return cachedPageRows.get(pageRowIndex);
-	}
-	
-	/**
-	 * Returns the (zero-indexed) index of the page containing the requested row.
-	 * @param rowIndex the requested row index.
-	 * @return the index of the page containing that row.
-	 */
-	private int getPageIndex(int rowIndex){
-		int ret=0;
-		if (query.getFetchSize() > 0){
-			ret = rowIndex / query.getFetchSize();
-			/*
-			 * Because we are zero-indexing, we don't need to
-			 * check for remainder and increment.
-			 */
-		}
-		return ret;
-	}
-
-	/**
-	 * Returns whether the query bailed out and did not return
-	 * any rows due to there being too many rows in the result set.
-	 * @return whether the query bailed out.
-	 */
-	public boolean getQueryBailedOut() {
-		return queryBailedOut;
-	}
-
-	/**
-	 * Retrieves the page containing the specified row index, if it is not
-     * already with the current page.
-	 * @param rowIndex the row index.
-	 */
-	private void maybeGetPage(int rowIndex){
-
-		int requestedPageIndex = getPageIndex(rowIndex);
-
-		if (currentPageIndex != requestedPageIndex){
-			log.debug("Retrieving page " + (requestedPageIndex + 1));
-			// We need to re-run a copy of the query to fetch the next block
-			Query nextFetch = query.makeClone();
-            /*
-             * We already know exactly what we are doing, so no need to
-             * specify bail out, or to calculate a row count.
-             */
-			nextFetch.setBailOutSize(0);
-            nextFetch.setCalculateRowCount(false);
-			/*
-			 * The offset is the page index (zero-indexed) multiplied by the fetch size.
-			 * i.e. if we wanted page 2 (the third page), and the fetch size was 100,
-			 * then the offset would be 200.
-			 */
-			nextFetch.setRowOffset(requestedPageIndex * query.getFetchSize());
-
-			ResultSet nextFetchResults = queryService.executeQuery(nextFetch);
-			cachedPageRows = nextFetchResults.getCachedPageRows();
-            currentPageIndex = requestedPageIndex;
-		}
-	}
-
-	/**
-	 * Sets the cached result set rows.
-	 * @param rows the result set rows.
-	 */
-	public void setCachedPageRows(List<ResultSetRow> rows) {
-        this.cachedPageRows = rows;
-        // we must be on page 0 now
-        this.currentPageIndex = 0;
-	}
-
-	/**
-	 * Sets the query that was used to produce this
-	 * result set.
-	 * @param query
-	 */
-	public void setQuery(Query query) {
-		this.query = query;
-	}
-
-	/**
-	 * Sets whether the query bailed out and did not return
-	 * any rows due to there being too many rows in the result set.
-	 * <p/>
-	 * FIXME - this should not be on the public interface.
-	 * @param queryBailedOut whether the query bailed out.
-	 */
-	public void setQueryBailedOut(boolean queryBailedOut) {
-		this.queryBailedOut = queryBailedOut;
-	}
-	
-	/**
-	 * Sets the query service that will be used to retrieve further pages
-	 * of this result set.
-	 * 
-	 * @param queryService
-	 */
-	public void setQueryService(QueryService queryService) {
-		this.queryService = queryService;
-	}
-
-	/**
-	 * Sets the total number of rows in the result set.
-	 * @param rowCount the total number of rows in the result set.
-	 */
-	public void setRowCount(int rowCount) {
-        log.debug("Total rows: " + rowCount);
-        this.rowCount = rowCount;
-	}
-
+/* =================================================================
+# This library is free software; you can redistribute it and/or
+# modify it under the terms of the GNU Lesser General Public
+# License as published by the Free Software Foundation; either
+# version 2.1 of the License, or (at your option) any later version.
+#
+# This library is distributed in the hope that it will be useful,
+# but WITHOUT ANY WARRANTY; without even the implied warranty of
+# MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+# Lesser General Public License for more details.
+#
+# You should have received a copy of the GNU Lesser General Public
+# License along with this library; if not, write to the Free Software
+# Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+#
+# ================================================================= */
+package org.sgodden.query;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.sgodden.query.service.QueryService;
+
+/**
+ * Encapsulates the results of running a query.  This implementation retrieves
+ * results in pages, the size of which is determined by the value of the fetch
+ * size set in the query.
+ * <p/>
+ * Only the current page is retained in memory.  This
+ * allows for constant memory usage regardless of result set size, but at the
+ * expense of running an extra query every time the cursor moves out of the
+ * range of the current page.  If the ids of all the rows were captured when
+ * the query was first run (see {@link Query#setSnapshotPaging(boolean)}),
+ * that query looks the rows of the page up by id.
+ * <p/>
+ * FIXME - this class currently combines the public interface required by both
+ * consumers and producers of result set objects.  This needs to be refactored.
+ * 
+ * @author Simon Godden
+ *
+ */
+public class ResultSet implements Externalizable {
+    
+	private static final long serialVersionUID = 1L;
+	/**
+	 * The version of the external form.
+	 */
+	private static final int EXTERNAL_VERSION = 2;
+	/**
+     * The log.
+     */
+    private static final transient Log log = LogFactory.getLog(ResultSet.class);
+    /**
+     * The result set rows for the currently cached page.
+     */
+    private List<ResultSetRow> cachedPageRows;
+    /**
+     * The page index of the currently cached page.
+     */
+	private int currentPageIndex = -1;
+    /**
+     * The query service used to fetch result pages.
+     */
+	private QueryService queryService;
+    /**
+     * Whether the query bailed out due to too many results.
+     */
+	private boolean queryBailedOut = false;
+    /**
+     * Whether the cached pages are held outside the java heap.
+     */
+	private boolean offHeapPages = false;
+    /**
+     * The ids of all the rows, in order, captured when the query was first
+     * run, or <code>null</code> if the query is run again for each page.
+     */
+	private long[] snapshotIds;
+    /**
+     * Whether the captured ids are integers rather than longs.
+     */
+	private boolean snapshotIntegerIds;
+    /**
+     * The cursor held open for reading the following pages, which is not
+     * serialized.
+     */
+	private transient ResultSetCursor cursor;
+    /**
+     * Whether the cursor was closed by the client, so that no other is held.
+     */
+	private transient boolean cursorClosed = false;
+    /**
+     * Whether the rows of the current page were left out when this result
+     * set was serialized, so that they are fetched again when first read.
+     */
+	private transient boolean pageDiscarded = false;
+	/**
+	 * The total number of rows matching the query criteria (regardless of
+	 * the setting of {@link Query#setMaxRows(int)}).
+	 */
+	private int rowCount;
+    /**
+     * The query that caused this result set to be created.
+     */
+	private Query query;
+
+    /**
+     * Creates a new result set.
+     */
+	public ResultSet(){}
+
+	/**
+	 * Returns the number of rows currently cached.
+	 * @return the number of rows currently cached.
+	 */
+    public int getCachedRowCount() {
+        restorePage();
+        return cachedPageRows.size();
+    }
+
+	/**
+	 * Returns the query that was used to produce this
+	 * result set.
+	 * 
+	 * @return
+	 */
+	public Query getQuery() {
+		return query;
+	}
+
+	/**
+	 * Returns the total number of rows that matched the query.
+	 * 
+	 * @return the number of rows in this result set.
+	 * @see #getTotalRowCount()
+	 */
+	public int getRowCount() {
+		return rowCount;
+	}
+	
+	/**
+	 * Returns the cached result set rows.
+	 * @return the cached result set rows.
+	 */
+	public List<ResultSetRow> getCachedPageRows(){
+		restorePage();
+		return cachedPageRows;
+	}
+	
+	/**
+	 * Returns the row at the specified index,
+     * causing a fetch of the appropriate page if necessary.
+	 * @param rowIndex the index of the required row.
+	 * @return the specified row.
+	 * @throws IllegalArgumentException if the row index is out of range.
+	 */
+	public ResultSetRow getRow(int rowIndex){
+		maybeGetPage(rowIndex);
+		
+		int pageRowIndex = rowIndex;
+		if (query.getFetchSize() > 0){
+			pageRowIndex = rowIndex % query.getFetchSize();	
+		}
+		
+		return cachedPageRows.get(pageRowIndex);
+	}
+	
+	/**
+	 * Returns the (zero-indexed) index of the page containing the requested row.
+	 * @param rowIndex the requested row index.
+	 * @return the index of the page containing that row.
+	 */
+	private int getPageIndex(int rowIndex){
+		int ret=0;
+		if (query.getFetchSize() > 0){
+			ret = rowIndex / query.getFetchSize();
+			/*
+			 * Because we are zero-indexing, we don't need to
+			 * check for remainder and increment.
+			 */
+		}
+		return ret;
+	}
+
+	/**
+	 * Returns whether the query bailed out and did not return
+	 * any rows due to there being too many rows in the result set.
+	 * @return whether the query bailed out.
+	 */
+	public boolean getQueryBailedOut() {
+		return queryBailedOut;
+	}
+
+	/**
+	 * Retrieves the page containing the specified row index, if it is not
+     * already with the current page.
+	 * @param rowIndex the row index.
+	 */
+	private void maybeGetPage(int rowIndex){
+
+		if (pageDiscarded) {
+			if (queryService == null) {
+				throw new IllegalStateException(
+						"A deserialized result set needs a query service to fetch its rows");
+			}
+			pageDiscarded = false;
+			currentPageIndex = -1;
+		}
+
+		int requestedPageIndex = getPageIndex(rowIndex);
+
+		if (currentPageIndex != requestedPageIndex && cursor != null){
+			List<ResultSetRow> rows = cursor.readRows(
+					requestedPageIndex * query.getFetchSize(), query.getFetchSize() + 1);
+			if (rows != null) {
+				log.debug("Read page " + (requestedPageIndex + 1) + " from the cursor");
+				replacePageRows(toPageRows(rows));
+				currentPageIndex = requestedPageIndex;
+			}
+			else {
+				log.debug("The cursor cannot read page " + (requestedPageIndex + 1));
+				cursor.close();
+				cursor = null;
+			}
+		}
+
+		if (currentPageIndex != requestedPageIndex && snapshotIds != null){
+			log.debug("Retrieving page " + (requestedPageIndex + 1) + " by id");
+			replacePageRows(toPageRows(fetchSnapshotPage(requestedPageIndex)));
+			currentPageIndex = requestedPageIndex;
+		}
+		else if (currentPageIndex != requestedPageIndex){
+			log.debug("Retrieving page " + (requestedPageIndex + 1));
+			// We need to re-run a copy of the query to fetch the next block
+			Query nextFetch = query.makeClone();
+            /*
+             * We already know exactly what we are doing, so no need to
+             * specify bail out, or to calculate a row count.
+             */
+			nextFetch.setBailOutSize(0);
+            nextFetch.setCalculateRowCount(false);
+			/*
+			 * The offset is the page index (zero-indexed) multiplied by the fetch size.
+			 * i.e. if we wanted page 2 (the third page), and the fetch size was 100,
+			 * then the offset would be 200.
+			 */
+			nextFetch.setRowOffset(requestedPageIndex * query.getFetchSize());
+			if (cursorClosed) {
+				nextFetch.setHoldCursor(false);
+			}
+
+			ResultSet nextFetchResults = queryService.executeQuery(nextFetch);
+			replacePageRows(toPageRows(nextFetchResults.getCachedPageRows()));
+			// a cursor held for the new page is read from for the pages after it
+			cursor = nextFetchResults.cursor;
+            currentPageIndex = requestedPageIndex;
+		}
+	}
+
+	/**
+	 * Fetches the rows of the current page again if they were left out when
+	 * this result set was serialized.
+	 */
+	private void restorePage() {
+		if (pageDiscarded) {
+			log.debug("Fetching page " + (currentPageIndex + 1) + " again after deserialization");
+			maybeGetPage(Math.max(currentPageIndex, 0) * query.getFetchSize());
+		}
+	}
+
+	/**
+	 * Fetches the rows of a page by their captured ids, in the captured
+	 * order.  Rows which have been deleted since the ids were captured are
+	 * returned with no column values.
+	 * @param pageIndex the page index.
+	 * @return the rows of the page.
+	 */
+	private List<ResultSetRow> fetchSnapshotPage(int pageIndex) {
+		int from = Math.min(snapshotIds.length, pageIndex * query.getFetchSize());
+		int to = Math.min(snapshotIds.length, from + query.getFetchSize());
+		Object[] ids = new Object[to - from];
+		for (int i = 0; i < ids.length; i++) {
+			long id = snapshotIds[from + i];
+			ids[i] = snapshotIntegerIds ? (Object) Integer.valueOf((int) id) : Long.valueOf(id);
+		}
+		List<ResultSetRow> ret = new ArrayList<ResultSetRow>(ids.length);
+		if (ids.length == 0) {
+			return ret;
+		}
+
+		/*
+		 * The ids already satisfy the filter and are in order, so the page
+		 * is selected by id alone, and put into the order of the ids.
+		 */
+		Query nextFetch = query.makeClone()
+				.setFilterCriterion(new SimpleRestriction("id", Operator.IN, ids))
+				.setSnapshotPaging(false)
+				.setBailOutSize(0)
+				.setCalculateRowCount(false)
+				.setRowOffset(0)
+				.setFetchSize(0);
+		Map<String, ResultSetRow> rowsById = new HashMap<String, ResultSetRow>();
+		for (ResultSetRow row : queryService.executeQuery(nextFetch).getCachedPageRows()) {
+			if (!rowsById.containsKey(row.getId())) {
+				rowsById.put(row.getId(), row);
+			}
+		}
+		for (Object id : ids) {
+			ResultSetRow row = rowsById.get(id.toString());
+			if (row == null) {
+				row = new ResultSetRow();
+				row.setId(id.toString());
+				ResultSetColumn[] columns = new ResultSetColumn[query.getColumns().size()];
+				for (int i = 0; i < columns.length; i++) {
+					columns[i] = new ResultSetColumn();
+				}
+				row.setColumns(columns);
+			}
+			ret.add(row);
+		}
+		return ret;
+	}
+
+	/**
+	 * Sets the cached result set rows.
+	 * @param rows the result set rows.
+	 */
+	public void setCachedPageRows(List<ResultSetRow> rows) {
+        this.pageDiscarded = false;
+        replacePageRows(toPageRows(rows));
+        // we must be on page 0 now
+        this.currentPageIndex = 0;
+	}
+
+	/**
+	 * Sets the query that was used to produce this
+	 * result set.
+	 * @param query
+	 */
+	public void setQuery(Query query) {
+		this.query = query;
+	}
+
+	/**
+	 * Sets whether the query bailed out and did not return
+	 * any rows due to there being too many rows in the result set.
+	 * <p/>
+	 * FIXME - this should not be on the public interface.
+	 * @param queryBailedOut whether the query bailed out.
+	 */
+	public void setQueryBailedOut(boolean queryBailedOut) {
+		this.queryBailedOut = queryBailedOut;
+	}
+	
+	/**
+	 * Sets whether the cached rows, and each page of rows fetched from now
+	 * on, are held outside the java heap in an {@link OffHeapRowList}, and
+	 * decoded when they are read.  This suits result sets which are held
+	 * for a long time, for instance by table models.
+	 * @param offHeapPages whether to hold the pages outside the heap.
+	 */
+	public void setOffHeapPages(boolean offHeapPages) {
+		this.offHeapPages = offHeapPages;
+		cachedPageRows = toPageRows(cachedPageRows);
+	}
+
+	/**
+	 * @see #setOffHeapPages(boolean)
+	 * @return whether the pages are held outside the heap.
+	 */
+	public boolean getOffHeapPages() {
+		return offHeapPages;
+	}
+
+	/**
+	 * Sets the ids of all the rows, in order, so that each later page is
+	 * fetched by the ids of its rows.
+	 * <p/>
+	 * FIXME - this should not be on the public interface.
+	 * @param ids the ids, or <code>null</code> to run the query again for
+	 * each page.
+	 * @param integerIds whether the ids are integers rather than longs.
+	 * @see Query#setSnapshotPaging(boolean)
+	 */
+	public void setSnapshotIds(long[] ids, boolean integerIds) {
+		this.snapshotIds = ids;
+		this.snapshotIntegerIds = integerIds;
+	}
+
+	/**
+	 * @see #setSnapshotIds(long[], boolean)
+	 * @return the captured ids, or <code>null</code>.
+	 */
+	public long[] getSnapshotIds() {
+		return snapshotIds;
+	}
+
+	/**
+	 * @see #setSnapshotIds(long[], boolean)
+	 * @return whether the captured ids are integers.
+	 */
+	public boolean getSnapshotIntegerIds() {
+		return snapshotIntegerIds;
+	}
+
+	/**
+	 * Sets the cursor held open for reading the following pages.
+	 * <p/>
+	 * FIXME - this should not be on the public interface.
+	 * @param cursor the cursor, or <code>null</code>.
+	 * @see Query#setHoldCursor(boolean)
+	 */
+	public void setCursor(ResultSetCursor cursor) {
+		this.cursor = cursor;
+	}
+
+	/**
+	 * Closes the cursor held open for reading the following pages, if there
+	 * is one, so that its database resources are released without waiting
+	 * for it to time out.  Later pages are fetched by running the query
+	 * again, without holding another cursor.
+	 */
+	public void closeCursor() {
+		cursorClosed = true;
+		if (cursor != null) {
+			cursor.close();
+			cursor = null;
+		}
+	}
+
+	/**
+	 * Releases the resources held for the rows of the current page and any
+	 * held cursor.  The rows of the page may still be read, but any other
+	 * page is fetched by running the query again.
+	 */
+	public void release() {
+		closeCursor();
+		releasePageRows(null);
+	}
+
+	/**
+	 * Replaces the rows of the current page, releasing the file holding the
+	 * previous rows if they were moved to one.
+	 */
+	private void replacePageRows(List<ResultSetRow> rows) {
+		releasePageRows(rows);
+		cachedPageRows = rows;
+	}
+
+	private void releasePageRows(List<ResultSetRow> replacement) {
+		if (cachedPageRows instanceof SpillableRowList && cachedPageRows != replacement) {
+			((SpillableRowList) cachedPageRows).release();
+		}
+	}
+
+	private List<ResultSetRow> toPageRows(List<ResultSetRow> rows) {
+		// rows which are already encoded are not copied again
+		if (!offHeapPages || rows == null || rows instanceof EncodedRowList) {
+			return rows;
+		}
+		return new OffHeapRowList(rows);
+	}
+
+	/**
+	 * Sets the query service that will be used to retrieve further pages
+	 * of this result set.
+	 * 
+	 * @param queryService
+	 */
+	public void setQueryService(QueryService queryService) {
+		this.queryService = queryService;
+	}
+
+	/**
+	 * Sets the total number of rows in the result set.
+	 * @param rowCount the total number of rows in the result set.
+	 */
+	public void setRowCount(int rowCount) {
+        log.debug("Total rows: " + rowCount);
+        this.rowCount = rowCount;
+	}
+
+	/**
+	 * Writes the result set in a compact form, without the rows of the
+	 * current page, which are fetched again by the query service when they
+	 * are first read after deserialization.
+	 * @param out the stream to write to.
+	 */
+	public void writeExternal(ObjectOutput out) throws IOException {
+		out.writeByte(EXTERNAL_VERSION);
+		out.writeObject(query);
+		out.writeObject(queryService);
+		boolean hasPage = cachedPageRows != null || pageDiscarded;
+		out.writeByte((queryBailedOut ? 1 : 0) | (offHeapPages ? 2 : 0)
+				| (snapshotIds != null ? 4 : 0) | (snapshotIntegerIds ? 8 : 0)
+				| (hasPage ? 16 : 0));
+		SerializationUtils.writeVarInt(out, rowCount);
+		SerializationUtils.writeVarInt(out, currentPageIndex);
+		if (snapshotIds != null) {
+			// ids are usually close to their neighbours, so their differences are short
+			SerializationUtils.writeVarInt(out, snapshotIds.length);
+			long previous = 0;
+			for (long id : snapshotIds) {
+				SerializationUtils.writeVarLong(out, id - previous);
+				previous = id;
+			}
+		}
+	}
+
+	/**
+	 * Reads a result set written by {@link #writeExternal(ObjectOutput)}.
+	 * @param in the stream to read from.
+	 */
+	public void readExternal(ObjectInput in) throws IOException,
+			ClassNotFoundException {
+		int version = in.readUnsignedByte();
+		if (version != EXTERNAL_VERSION && version != 1) {
+			throw new InvalidClassException(ResultSet.class.getName(),
+					"Unknown external version " + version);
+		}
+		query = (Query) in.readObject();
+		queryService = (QueryService) in.readObject();
+		int flags = in.readUnsignedByte();
+		queryBailedOut = (flags & 1) != 0;
+		offHeapPages = (flags & 2) != 0;
+		rowCount = SerializationUtils.readVarInt(in);
+		currentPageIndex = SerializationUtils.readVarInt(in);
+		if (version == 1) {
+			// the first version wrote the rows of the page
+			int cachedRowCount = SerializationUtils.readVarInt(in);
+			if (cachedRowCount >= 0) {
+				cachedPageRows = new ArrayList<ResultSetRow>(cachedRowCount);
+				List<String> dictionary = new ArrayList<String>();
+				for (int i = 0; i < cachedRowCount; i++) {
+					cachedPageRows.add(SerializationUtils.readRow(in, dictionary));
+				}
+				cachedPageRows = toPageRows(cachedPageRows);
+			}
+		}
+		else {
+			pageDiscarded = (flags & 16) != 0;
+		}
+		snapshotIntegerIds = (flags & 8) != 0;
+		if ((flags & 4) != 0) {
+			snapshotIds = new long[SerializationUtils.readVarInt(in)];
+			long previous = 0;
+			for (int i = 0; i < snapshotIds.length; i++) {
+				previous += SerializationUtils.readVarLong(in);
+				snapshotIds[i] = previous;
+			}
+		}
+	}
+
 }
\ No newline at end of file
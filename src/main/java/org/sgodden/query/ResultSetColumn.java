@@ -16,7 +16,12 @@
 # ================================================================= */
 package org.sgodden.query;
 
-import java.io.Serializable;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.ArrayList;
+import java.util.HashMap;
 
 /**
  * Encapsulates a column in the result set.
@@ -27,7 +32,7 @@ import java.io.Serializable;
  */
 @SuppressWarnings("serial")
 public class ResultSetColumn 
-		implements Serializable {
+		implements Externalizable {
 	
 	private DataType dataType;
 	private Object value;
@@ -61,6 +66,25 @@ public class ResultSetColumn
 		this.value = value;
 	}
 	
+	/**
+	 * Writes the column in a compact form.
+	 * @param out the stream to write to.
+	 */
+	public void writeExternal(ObjectOutput out) throws IOException {
+		SerializationUtils.writeColumn(out, this, new HashMap<String, Integer>());
+	}
+
+	/**
+	 * Reads a column written by {@link #writeExternal(ObjectOutput)}.
+	 * @param in the stream to read from.
+	 */
+	public void readExternal(ObjectInput in) throws IOException,
+			ClassNotFoundException {
+		ResultSetColumn column = SerializationUtils.readColumn(in, new ArrayList<String>());
+		dataType = column.dataType;
+		value = column.value;
+	}
+
 	@Override
 	public String toString(){
 		return super.toString()+ "{DataType=" + dataType + ", Value=" + value + "}";
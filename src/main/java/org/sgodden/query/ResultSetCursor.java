@@ -0,0 +1,31 @@
+package org.sgodden.query;
+
+import java.util.List;
+
+/**
+ * A cursor held open on the rows of a query, from which a {@link ResultSet}
+ * reads its pages in sequence, rather than running the query again for
+ * each page.
+ *
+ * @author sgodden
+ * @see Query#setHoldCursor(boolean)
+ */
+public interface ResultSetCursor {
+
+    /**
+     * Reads rows from the cursor.  The rows of the previous read from its
+     * first row onwards may be read again, and rows after them are skipped.
+     * @param firstRow the index of the first row to read.
+     * @param rowCount the maximum number of rows to read.
+     * @return the rows, which are fewer than requested once the cursor is
+     * exhausted, or <code>null</code> if the cursor cannot read them, as it
+     * has been closed or has already passed the first row.
+     */
+    public List<ResultSetRow> readRows(int firstRow, int rowCount);
+
+    /**
+     * Closes the cursor, releasing its database resources.
+     */
+    public void close();
+
+}
@@ -16,7 +16,12 @@
 # ================================================================= */
 package org.sgodden.query;
 
-import java.io.Serializable;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.ArrayList;
+import java.util.HashMap;
 
 /**
  * Encapsulates a row in a result set.
@@ -27,7 +32,7 @@ import java.io.Serializable;
  */
 @SuppressWarnings("serial")
 public class ResultSetRow 
-		implements Serializable {
+		implements Externalizable {
 	
 	private String id;
 	private ResultSetColumn[] columns;
@@ -67,4 +72,23 @@ public class ResultSetRow
 	public void setColumns(ResultSetColumn[] columns) {
 		this.columns = columns;
 	}
+
+	/**
+	 * Writes the row in a compact form.
+	 * @param out the stream to write to.
+	 */
+	public void writeExternal(ObjectOutput out) throws IOException {
+		SerializationUtils.writeRow(out, this, new HashMap<String, Integer>());
+	}
+
+	/**
+	 * Reads a row written by {@link #writeExternal(ObjectOutput)}.
+	 * @param in the stream to read from.
+	 */
+	public void readExternal(ObjectInput in) throws IOException,
+			ClassNotFoundException {
+		ResultSetRow row = SerializationUtils.readRow(in, new ArrayList<String>());
+		id = row.id;
+		columns = row.columns;
+	}
 }
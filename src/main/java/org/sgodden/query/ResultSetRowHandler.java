@@ -0,0 +1,21 @@
+package org.sgodden.query;
+
+/**
+ * Receives the rows of a query as they are read, so that they can be
+ * stored in some other form without first being collected into a
+ * {@link ResultSet}.
+ *
+ * @author sgodden
+ * @see org.sgodden.query.service.QueryService#executeQuery(Query, ResultSetRowHandler)
+ */
+public interface ResultSetRowHandler {
+
+    /**
+     * Handles the next row of the results.
+     * @param row the row.
+     * @return whether to go on reading rows; if <code>false</code>, the
+     * query is closed and no more rows are passed.
+     */
+    public boolean handleRow(ResultSetRow row);
+
+}
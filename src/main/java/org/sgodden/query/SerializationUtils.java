@@ -0,0 +1,269 @@
+package org.sgodden.query;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The compact encoding shared by the externalizable result classes.
+ * <p>
+ * Integers are written as variable length quantities, seven bits to a byte,
+ * so that small values such as ids and counts take one or two bytes.
+ * Strings are written once and then referred to by their index in a
+ * dictionary built up as the stream is written, and each column value is
+ * preceded by a single byte holding both its data type and the type of the
+ * value.
+ * </p>
+ * @author sgodden
+ */
+final class SerializationUtils {
+
+    private static final int NULL = 0;
+    private static final int NEW_STRING = 1;
+    private static final int STRING_REFERENCE = 2;
+    private static final int INTEGER = 3;
+    private static final int LONG = 4;
+    private static final int TRUE = 5;
+    private static final int FALSE = 6;
+    private static final int OBJECT = 7;
+
+    /**
+     * Marks a column which is itself null, rather than having a null value.
+     */
+    private static final int NULL_COLUMN = 0xff;
+
+    private SerializationUtils() {
+    }
+
+    /**
+     * Writes a long, zig-zag encoded so that small negative values are also
+     * short.
+     */
+    static void writeVarLong(ObjectOutput out, long value) throws IOException {
+        long zigzag = (value << 1) ^ (value >> 63);
+        while ((zigzag & ~0x7fL) != 0) {
+            out.writeByte((int) ((zigzag & 0x7f) | 0x80));
+            zigzag >>>= 7;
+        }
+        out.writeByte((int) zigzag);
+    }
+
+    static long readVarLong(ObjectInput in) throws IOException {
+        long zigzag = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.readUnsignedByte();
+            zigzag |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+
+    static void writeVarInt(ObjectOutput out, int value) throws IOException {
+        writeVarLong(out, value);
+    }
+
+    static int readVarInt(ObjectInput in) throws IOException {
+        return (int) readVarLong(in);
+    }
+
+    /**
+     * Writes a string, or a reference to it if it has been written before.
+     * @param dictionary the indexes of the strings written so far.
+     */
+    static void writeString(ObjectOutput out, String value,
+            Map<String, Integer> dictionary) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+            return;
+        }
+        Integer index = dictionary.get(value);
+        if (index != null) {
+            out.writeByte(STRING_REFERENCE);
+            writeVarInt(out, index);
+        }
+        else {
+            out.writeByte(NEW_STRING);
+            writeUtf(out, value);
+            dictionary.put(value, dictionary.size());
+        }
+    }
+
+    /**
+     * Reads a string written by
+     * {@link #writeString(ObjectOutput, String, Map)}.
+     * @param dictionary the strings read so far, in order.
+     */
+    static String readString(ObjectInput in, List<String> dictionary)
+            throws IOException {
+        int tag = in.readUnsignedByte();
+        return (String) readValue(in, tag, dictionary);
+    }
+
+    /**
+     * Writes a row id, as a number where that does not change its string
+     * form.
+     */
+    static void writeId(ObjectOutput out, String id,
+            Map<String, Integer> dictionary) throws IOException {
+        if (id != null) {
+            try {
+                long number = Long.parseLong(id);
+                if (Long.toString(number).equals(id)) {
+                    out.writeByte(LONG);
+                    writeVarLong(out, number);
+                    return;
+                }
+            } catch (NumberFormatException e) {
+                // not numeric
+            }
+        }
+        writeString(out, id, dictionary);
+    }
+
+    static String readId(ObjectInput in, List<String> dictionary)
+            throws IOException {
+        int tag = in.readUnsignedByte();
+        if (tag == LONG) {
+            return Long.toString(readVarLong(in));
+        }
+        return (String) readValue(in, tag, dictionary);
+    }
+
+    /**
+     * Writes a column, as its data type and value.
+     */
+    static void writeColumn(ObjectOutput out, ResultSetColumn column,
+            Map<String, Integer> dictionary) throws IOException {
+        if (column == null) {
+            out.writeByte(NULL_COLUMN);
+            return;
+        }
+        // the data type in the upper four bits, plus one so that null is zero
+        int type = column.getDataType() == null ? 0 : column.getDataType().ordinal() + 1;
+        Object value = column.getValue();
+        if (value instanceof String) {
+            Integer index = dictionary.get(value);
+            if (index != null) {
+                out.writeByte(type << 4 | STRING_REFERENCE);
+                writeVarInt(out, index);
+            }
+            else {
+                out.writeByte(type << 4 | NEW_STRING);
+                writeUtf(out, (String) value);
+                dictionary.put((String) value, dictionary.size());
+            }
+        }
+        else if (value instanceof Integer) {
+            out.writeByte(type << 4 | INTEGER);
+            writeVarInt(out, (Integer) value);
+        }
+        else if (value instanceof Long) {
+            out.writeByte(type << 4 | LONG);
+            writeVarLong(out, (Long) value);
+        }
+        else if (value instanceof Boolean) {
+            out.writeByte(type << 4 | ((Boolean) value ? TRUE : FALSE));
+        }
+        else if (value == null) {
+            out.writeByte(type << 4 | NULL);
+        }
+        else {
+            out.writeByte(type << 4 | OBJECT);
+            out.writeObject(value);
+        }
+    }
+
+    static ResultSetColumn readColumn(ObjectInput in, List<String> dictionary)
+            throws IOException, ClassNotFoundException {
+        int tag = in.readUnsignedByte();
+        if (tag == NULL_COLUMN) {
+            return null;
+        }
+        ResultSetColumn ret = new ResultSetColumn();
+        int type = tag >> 4;
+        ret.setDataType(type == 0 ? null : DataType.values()[type - 1]);
+        int valueTag = tag & 0x0f;
+        if (valueTag == OBJECT) {
+            ret.setValue(in.readObject());
+        }
+        else {
+            ret.setValue(readValue(in, valueTag, dictionary));
+        }
+        return ret;
+    }
+
+    /**
+     * Writes a row, as its id, number of columns and columns.
+     */
+    static void writeRow(ObjectOutput out, ResultSetRow row,
+            Map<String, Integer> dictionary) throws IOException {
+        writeId(out, row.getId(), dictionary);
+        ResultSetColumn[] columns = row.getColumns();
+        writeVarInt(out, columns == null ? -1 : columns.length);
+        if (columns != null) {
+            for (ResultSetColumn column : columns) {
+                writeColumn(out, column, dictionary);
+            }
+        }
+    }
+
+    static ResultSetRow readRow(ObjectInput in, List<String> dictionary)
+            throws IOException, ClassNotFoundException {
+        ResultSetRow ret = new ResultSetRow();
+        ret.setId(readId(in, dictionary));
+        int columnCount = readVarInt(in);
+        if (columnCount >= 0) {
+            ResultSetColumn[] columns = new ResultSetColumn[columnCount];
+            for (int i = 0; i < columnCount; i++) {
+                columns[i] = readColumn(in, dictionary);
+            }
+            ret.setColumns(columns);
+        }
+        return ret;
+    }
+
+    /**
+     * Writes a string as UTF-8, which unlike
+     * {@link ObjectOutput#writeUTF(String)} allows any length.
+     */
+    private static void writeUtf(ObjectOutput out, String value) throws IOException {
+        byte[] bytes = value.getBytes("UTF-8");
+        writeVarInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readUtf(ObjectInput in) throws IOException {
+        byte[] bytes = new byte[readVarInt(in)];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private static Object readValue(ObjectInput in, int tag, List<String> dictionary)
+            throws IOException {
+        switch (tag) {
+        case NULL:
+            return null;
+        case NEW_STRING:
+            String value = readUtf(in);
+            dictionary.add(value);
+            return value;
+        case STRING_REFERENCE:
+            return dictionary.get(readVarInt(in));
+        case INTEGER:
+            return readVarInt(in);
+        case LONG:
+            return readVarLong(in);
+        case TRUE:
+            return Boolean.TRUE;
+        case FALSE:
+            return Boolean.FALSE;
+        default:
+            throw new IOException("Unknown value tag " + tag);
+        }
+    }
+
+}
@@ -0,0 +1,177 @@
+package org.sgodden.query;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A read-only list of result set rows which are held in memory until their
+ * estimated size exceeds a threshold, and are then moved to a temporary
+ * file, which is memory-mapped so that reading a row is little slower than
+ * reading it from memory.
+ * <p>
+ * The rows are filled one at a time as a {@link ResultSetRowHandler}, and
+ * {@link #complete()} must be called once all have been appended.  Once
+ * spilled, they are encoded in blocks using the same compact format as the
+ * serialized form of a {@link ResultSetRow}, with the position of each block
+ * held in an index in memory, and decoded a block at a time when they are
+ * read.  The file is deleted as soon as it is opened where the operating
+ * system allows it, and otherwise when the virtual machine exits, and its
+ * space is reclaimed once the list has been released or garbage collected.
+ * </p>
+ * @author sgodden
+ */
+public class SpillableRowList extends EncodedRowList implements ResultSetRowHandler {
+
+    private static final transient Log log = LogFactory.getLog(SpillableRowList.class);
+
+    /**
+     * The size of the regions of the file which are mapped at a time.
+     */
+    private static final int CHUNK_SIZE = 16 * 1024 * 1024;
+
+    private final long threshold;
+    private final File directory;
+
+    /**
+     * The rows, until they are spilled.
+     */
+    private List<ResultSetRow> heapRows = new ArrayList<ResultSetRow>();
+    private long heapSize = 0;
+
+    private RandomAccessFile file;
+    private long mappedSize = 0;
+
+    /**
+     * Creates a new, empty list.
+     * @param threshold the estimated size in bytes of the rows, above which
+     * they are moved to a file, or zero to move them at once.
+     * @param directory the directory in which to create the file, or
+     * <code>null</code> for the default temporary directory.
+     */
+    public SpillableRowList(long threshold, File directory) {
+        this.threshold = threshold;
+        this.directory = directory;
+    }
+
+    /**
+     * Appends a row.
+     * @param row the row.
+     * @return <code>true</code>, to go on reading rows.
+     */
+    public boolean handleRow(ResultSetRow row) {
+        if (heapRows == null) {
+            append(row);
+            return true;
+        }
+        heapRows.add(row);
+        heapSize += estimateSize(row);
+        if (heapSize > threshold) {
+            spill();
+        }
+        return true;
+    }
+
+    /**
+     * Completes the filling of the list, encoding any rows which are not
+     * yet encoded.
+     */
+    public void complete() {
+        if (heapRows == null) {
+            flush();
+        }
+    }
+
+    /**
+     * Returns whether the rows have been moved to a file.
+     * @return whether the rows are spilled.
+     */
+    public boolean isSpilled() {
+        return heapRows == null;
+    }
+
+    /**
+     * Closes the file, whose space is reclaimed once the list is garbage
+     * collected.  The rows may still be read, since the mapped regions do
+     * not depend on the file being open, but no more may be appended.
+     */
+    public void release() {
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                log.warn("Error closing spill file", e);
+            }
+            file = null;
+        }
+    }
+
+    @Override
+    public ResultSetRow get(int index) {
+        return heapRows == null ? super.get(index) : heapRows.get(index);
+    }
+
+    @Override
+    public int size() {
+        return heapRows == null ? super.size() : heapRows.size();
+    }
+
+    @Override
+    protected ByteBuffer allocateChunk(int minimumSize) throws IOException {
+        if (file == null) {
+            File spillFile = File.createTempFile("query", ".rows", directory);
+            file = new RandomAccessFile(spillFile, "rw");
+            if (!spillFile.delete()) {
+                spillFile.deleteOnExit();
+            }
+            log.debug("Spilling rows to " + spillFile);
+        }
+        int size = Math.max(CHUNK_SIZE, minimumSize);
+        ByteBuffer ret = file.getChannel().map(FileChannel.MapMode.READ_WRITE,
+                mappedSize, size);
+        mappedSize += size;
+        return ret;
+    }
+
+    private void spill() {
+        log.info("Rows exceed " + threshold + " bytes, moving them to a file");
+        List<ResultSetRow> rows = heapRows;
+        heapRows = null;
+        for (ResultSetRow row : rows) {
+            append(row);
+        }
+    }
+
+    /**
+     * Estimates the heap size of a row, with its columns and their values.
+     */
+    private static long estimateSize(ResultSetRow row) {
+        long ret = 32 + estimateSize(row.getId());
+        ResultSetColumn[] columns = row.getColumns();
+        if (columns != null) {
+            ret += 16 + 4 * columns.length;
+            for (ResultSetColumn column : columns) {
+                ret += column == null ? 0 : 24 + estimateSize(column.getValue());
+            }
+        }
+        return ret;
+    }
+
+    private static long estimateSize(Object value) {
+        if (value == null) {
+            return 0;
+        }
+        if (value instanceof String) {
+            return 40 + 2 * ((String) value).length();
+        }
+        return value instanceof Number || value instanceof Boolean ? 16 : 32;
+    }
+
+}
@@ -16,27 +16,20 @@ package org.sgodden.query.models;
 
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
-import java.util.Set;
 
 import nextapp.echo.app.table.AbstractTableModel;
 import nextapp.echo.app.table.TableModel;
 
 import org.sgodden.query.AggregateFunction;
-import org.sgodden.query.AndRestriction;
-import org.sgodden.query.Operator;
-import org.sgodden.query.OrRestriction;
 import org.sgodden.query.Query;
 import org.sgodden.query.QueryServiceProvider;
-import org.sgodden.query.Restriction;
 import org.sgodden.query.ResultSet;
 import org.sgodden.query.ResultSetColumn;
 import org.sgodden.query.ResultSetRow;
-import org.sgodden.query.SimpleRestriction;
 import org.sgodden.query.SortData;
+import org.sgodden.query.SpillableRowList;
 import org.sgodden.query.service.QueryService;
 
 /**
@@ -66,9 +59,10 @@ public abstract class AbstractQueryTableModel extends AbstractTableModel
     private List < ModelListener > listeners = new ArrayList < ModelListener >();
 
     /**
-     * The result set returned from the query service.
+     * The result set returned from the query service, which is not
+     * serialized but fetched again when next needed.
      */
-    private ResultSet rs;
+    private transient ResultSet rs;
     
     /**
      * Whether the query is grouping by the first column in the sorting sequence
@@ -78,12 +72,28 @@ public abstract class AbstractQueryTableModel extends AbstractTableModel
     /**
      * The counts of the distinct values in the grouped column
      */
-    private Map<Object, Long> groupCounts = null;
+    private transient Map<Object, Long> groupCounts = null;
     
     /**
      * The query sort data
      */
     private SortData[] sortData = new SortData[0];
+    
+    /**
+     * Whether a refresh notifies listeners of only the rows which changed.
+     */
+    private boolean incrementalRefresh = false;
+    
+    /**
+     * The maximum number of row ranges notified by an incremental refresh,
+     * beyond which the whole table is notified as changed.
+     */
+    private static final int MAX_INCREMENTAL_RANGES = 32;
+    
+    /**
+     * Whether the fetched rows are held outside the java heap.
+     */
+    private boolean offHeapPages = false;
 
     /**
      * Constructs a new abstract query table model.
@@ -157,11 +167,148 @@ public abstract class AbstractQueryTableModel extends AbstractTableModel
      * @param query the query to (re)execute.
      */
     protected void doRefresh(Query query) {
+        doRefresh(query, incrementalRefresh ? getHeldRows() : null);
+    }
+
+    /**
+     * Performs the model refresh, notifying listeners of only the rows which
+     * changed if the previous rows are passed and can be compared with the
+     * new ones.
+     * @param query the query to (re)execute.
+     * @param previousRows all the rows before the refresh, in the order
+     * shown, or <code>null</code> to notify that all the data changed.
+     */
+    protected void doRefresh(Query query, List<ResultSetRow> previousRows) {
         groupCounts = null;
         rs = getQueryService().executeQuery(query);
+        rs.setOffHeapPages(offHeapPages);
         if (isGrouping)
             updateGroupCounts(query);
-        fireTableDataChanged();
+        fireRowChanges(previousRows);
+    }
+
+    /**
+     * Completes a refresh whose query was run elsewhere, for instance in the
+     * background by a {@link RefreshScheduler}.
+     * @param sortData the sort data which the query was run with, or
+     * <code>null</code> if the sort was not changed.
+     * @param rs the result set of the query.
+     */
+    protected void completeRefresh(SortData[] sortData, ResultSet rs) {
+        completeRefresh(sortData, rs, incrementalRefresh ? getHeldRows() : null);
+    }
+
+    /**
+     * Completes a refresh whose query was run elsewhere, notifying
+     * listeners of only the rows which changed if the previous rows are
+     * passed.
+     * @param sortData the sort data which the query was run with, or
+     * <code>null</code> if the sort was not changed.
+     * @param rs the result set of the query.
+     * @param previousRows all the rows before the refresh, in the order
+     * shown, or <code>null</code> to notify that all the data changed.
+     */
+    protected void completeRefresh(SortData[] sortData, ResultSet rs,
+            List<ResultSetRow> previousRows) {
+        if (sortData != null) {
+            setSortData(sortData);
+            getQuery().setSortDatas(sortData);
+        }
+        rs.setOffHeapPages(offHeapPages);
+        setResultSet(rs, previousRows);
+    }
+
+    /**
+     * Refreshes the model without running a query, if that is possible, as
+     * {@link #refresh()} or {@link #refresh(SortData...)} would.  This
+     * implementation never can.
+     * @param sortData the new sort data, or <code>null</code> to refresh
+     * with the current sort.
+     * @return whether the model was refreshed.
+     */
+    protected boolean refreshInMemory(SortData[] sortData) {
+        return false;
+    }
+
+    /**
+     * Notifies listeners of the rows which changed from the passed ones, or
+     * that all the data changed.
+     */
+    private void fireRowChanges(List<ResultSetRow> previousRows) {
+        List<ResultSetRow> rows = previousRows == null ? null : getHeldRows();
+        RowDiff diff = rows == null ? null : RowDiff.compute(previousRows, rows);
+        if (diff == null || diff.getRangeCount() > MAX_INCREMENTAL_RANGES) {
+            fireTableDataChanged();
+            return;
+        }
+        for (int[] range : diff.getDeletedRanges()) {
+            fireTableRowsDeleted(range[0], range[1]);
+        }
+        for (int[] range : diff.getInsertedRanges()) {
+            fireTableRowsInserted(range[0], range[1]);
+        }
+        for (int[] range : diff.getUpdatedRanges()) {
+            fireTableRowsUpdated(range[0], range[1]);
+        }
+    }
+
+    /**
+     * Returns all the rows of the result set, in the order shown, if they
+     * are all held in memory.
+     * @return the rows, or <code>null</code> if they are not all held, or
+     * have been spilled to a file.
+     */
+    protected List<ResultSetRow> getHeldRows() {
+        if (rs == null || rs.getQueryBailedOut() || rs.getCachedPageRows() == null
+                || rs.getCachedPageRows().size() != rs.getRowCount()) {
+            return null;
+        }
+        if (rs.getCachedPageRows() instanceof SpillableRowList
+                && ((SpillableRowList) rs.getCachedPageRows()).isSpilled()) {
+            return null;
+        }
+        return rs.getCachedPageRows();
+    }
+
+    /**
+     * Sets whether a refresh compares the new rows with the previous ones by
+     * row id and column values, and notifies listeners of only the ranges of
+     * rows inserted, deleted and updated rather than that all the data
+     * changed.  The rows are only compared if they are all held, both
+     * before and after the refresh, and the query includes the id.
+     * @param incrementalRefresh whether to notify only the changed rows.
+     */
+    public void setIncrementalRefresh(boolean incrementalRefresh) {
+        this.incrementalRefresh = incrementalRefresh;
+    }
+
+    /**
+     * @see #setIncrementalRefresh(boolean)
+     * @return whether a refresh notifies only the changed rows.
+     */
+    public boolean getIncrementalRefresh() {
+        return incrementalRefresh;
+    }
+
+    /**
+     * Sets whether the rows fetched by this model are held outside the java
+     * heap, and decoded when they are read, so that the rows of models held
+     * for a long time, for instance in many user sessions, do not add to the
+     * work of the garbage collector.  This takes effect when the rows are
+     * next fetched.
+     * @param offHeapPages whether to hold the rows outside the heap.
+     * @see ResultSet#setOffHeapPages(boolean)
+     */
+    public void setOffHeapPages(boolean offHeapPages) {
+        this.offHeapPages = offHeapPages;
+    }
+
+    /**
+     * @see #setOffHeapPages(boolean)
+     * @return whether the rows are held outside the heap.
+     */
+    public boolean getOffHeapPages() {
+        return offHeapPages;
     }
 
     /**
@@ -193,12 +340,44 @@ public abstract class AbstractQueryTableModel extends AbstractTableModel
         if (rs == null) {
             groupCounts = null;
             rs = getQueryService().executeQuery(getQuery());
+            rs.setOffHeapPages(offHeapPages);
             if (isGrouping)
                 updateGroupCounts(getQuery());
         }
         return rs;
     }
 
+    /**
+     * Replaces the result set, for instance with one which was filtered in
+     * memory, and notifies listeners.
+     * @param rs the new result set.
+     */
+    protected void setResultSet(ResultSet rs) {
+        setResultSet(rs, null);
+    }
+
+    /**
+     * Replaces the result set, notifying listeners of only the rows which
+     * changed if the previous rows are passed.
+     * @param rs the new result set.
+     * @param previousRows all the rows before the result set was replaced,
+     * in the order shown, or <code>null</code> to notify that all the data
+     * changed.
+     * @see #doRefresh(Query, List)
+     */
+    protected void setResultSet(ResultSet rs, List<ResultSetRow> previousRows) {
+        ResultSet previous = this.rs;
+        groupCounts = null;
+        this.rs = rs;
+        if (isGrouping)
+            updateGroupCounts(getQuery());
+        fireRowChanges(previousRows);
+        if (previous != null && previous != rs) {
+            // its cursor and spill file, which the previous rows no longer need
+            previous.release();
+        }
+    }
+
     /**
      * See {@link TableModel#getValueAt(int, int)}.
      * @see TableModel#getValueAt(int, int)
@@ -254,7 +433,11 @@ public abstract class AbstractQueryTableModel extends AbstractTableModel
         return getResultSet().getQueryBailedOut();
     }
     
-    private QueryService getQueryService() {
+    /**
+     * Returns the query service which runs the queries.
+     * @return the query service.
+     */
+    protected QueryService getQueryService() {
         if (serviceProvider == null) {
             throw new NullPointerException("QueryService is null - did you forget to set it?");
         }
@@ -370,54 +553,42 @@ public abstract class AbstractQueryTableModel extends AbstractTableModel
         refresh(sDatas);
     }
     
+    /**
+     * Recalculates the number of rows for each distinct value of the grouped
+     * (primary sort) column.  If all the rows are already held, they are
+     * counted in memory, otherwise a single aggregate query is run over the
+     * same filter.
+     * @param query the query whose results are grouped.
+     */
     public void updateGroupCounts(Query query) {
         groupCounts = new HashMap<Object, Long>();
         
         SortData groupingCol = query.getSortData()[0];
         
-        Restriction r = query.getFilterCriterion();
-        Locale l = query.getLocale();
-        String className = query.getObjectClassName();
-        Set<Object> values = new HashSet<Object>();
-        boolean hasNull = false;
-        for (int i = 0; i < getRowCount(); i++) {
-            Object value = getValueAt(groupingCol.getColumnIndex(), i);
-            if (value == null)
-                hasNull = true;
-            else
-                values.add(value);
+        if (rs != null && !rs.getQueryBailedOut()
+                && rs.getCachedPageRows().size() == rs.getRowCount()) {
+            for (ResultSetRow row : rs.getCachedPageRows()) {
+                Object value = row.getColumns()[groupingCol.getColumnIndex()].getValue();
+                Long count = groupCounts.get(value);
+                groupCounts.put(value, count == null ? 1L : count + 1);
+            }
+            return;
         }
-        String attributePath = query.getColumns().get(groupingCol.getColumnIndex()).getAttributePath();
-        
-        AndRestriction andR = new AndRestriction();
-        andR.and(r);
         
-        if (!hasNull) {
-            SimpleRestriction sr = new SimpleRestriction(attributePath, Operator.IN, values.toArray());
-            andR.and(sr);
-        } else {
-            SimpleRestriction sr = new SimpleRestriction(attributePath, Operator.IN, values.toArray());
-            SimpleRestriction sr2 = new SimpleRestriction(attributePath, Operator.EQUALS, new Object[] {null});
-            
-            OrRestriction orR = new OrRestriction(sr, sr2);
-            andR.and(orR);
-        }
+        String attributePath = query.getColumns().get(groupingCol.getColumnIndex()).getAttributePath();
         
         Query q = new Query();
-        q.setObjectClassName(className);
-        q.setLocale(l);
+        q.setObjectClassName(query.getObjectClassName());
+        q.setLocale(query.getLocale());
         q.setSortData(new SortData(0, groupingCol.getAscending()));
-        q.setFilterCriterion(andR);
+        q.setFilterCriterion(query.getFilterCriterion());
         q.addColumn(attributePath);
         q.addColumn("*", AggregateFunction.COUNT);
-        q.setCalculateRowCount(true);
         q.setIncludeId(false);
         
         ResultSet results = getQueryService().executeQuery(q);
         
-        int rows = results.getRowCount();
-        for (int i = 0; i < rows; i++) {
-            ResultSetRow rsr = results.getRow(i);
+        for (ResultSetRow rsr : results.getCachedPageRows()) {
             ResultSetColumn[] cols = rsr.getColumns();
             Object value = cols[0].getValue();
             Long count = ((Number)cols[1].getValue()).longValue();
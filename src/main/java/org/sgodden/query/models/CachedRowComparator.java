@@ -0,0 +1,389 @@
+package org.sgodden.query.models;
+
+import java.text.Collator;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Calendar;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+import org.sgodden.query.DataType;
+import org.sgodden.query.SortData;
+
+/**
+ * Compares the rows of a {@link ColumnarCache} in the same order as the
+ * ORDER BY clause generated for the sort data would, so that a fully cached
+ * table model can be re-sorted without running the query again.
+ * <p>
+ * The sort keys of each column are extracted once, straight from the
+ * columns of the cache: integers, longs and booleans as the primitive
+ * values held, and strings as the rank of their dictionary code, found by
+ * collating just the distinct values.  Dates and timestamps, which the
+ * query service formats, are parsed with the short formats of the locale,
+ * again once per distinct value.  The row indexes are then sorted as an
+ * array of primitive ints, so that comparing two rows allocates nothing.
+ * Nulls sort before other values when ascending.
+ * </p>
+ * @author sgodden
+ */
+class CachedRowComparator {
+
+    /**
+     * The number of rows below which a range is sorted by insertion.
+     */
+    private static final int INSERTION_SORT_SIZE = 8;
+
+    private final List<Key> keys = new ArrayList<Key>();
+
+    private CachedRowComparator() {
+    }
+
+    /**
+     * Creates a comparator for the rows of the passed cache and sort data.
+     * @param cache the cache, whose rows must all include their id.
+     * @param sortData the sort data.
+     * @param locale the locale used to collate strings and parse dates, or
+     * <code>null</code> for the default locale.
+     * @return the comparator, or <code>null</code> if the rows cannot be
+     * sorted in memory, for instance because a column holds values of
+     * different types, or dates which cannot be parsed.
+     */
+    static CachedRowComparator create(ColumnarCache cache, SortData[] sortData,
+            Locale locale) {
+        CachedRowComparator ret = new CachedRowComparator();
+        if (cache.getRowCount() == 0) {
+            return ret;
+        }
+        if (locale == null) {
+            locale = Locale.getDefault();
+        }
+        int columnCount = cache.getColumnCount();
+        Collator collator = Collator.getInstance(locale);
+
+        // the same sequence as QueryStringBuilder.appendOrderByClause
+        boolean[] sorted = new boolean[columnCount];
+        for (SortData sort : sortData) {
+            Key key = makeColumnKey(cache, sort.getColumnIndex(), sort.getAscending(),
+                    collator, locale);
+            if (key == null) {
+                return null;
+            }
+            ret.keys.add(key);
+            sorted[sort.getColumnIndex()] = true;
+        }
+        if (sortData.length <= 1) {
+            for (int i = 0; i < columnCount; i++) {
+                if (!sorted[i]) {
+                    Key key = makeColumnKey(cache, i, true, collator, locale);
+                    if (key == null) {
+                        return null;
+                    }
+                    ret.keys.add(key);
+                }
+            }
+        }
+        ret.keys.add(makeIdKey(cache));
+        return ret;
+    }
+
+    /**
+     * Compares two rows.
+     * @param row1 the index of the first row.
+     * @param row2 the index of the second row.
+     * @return less than, equal to or greater than zero as the first row
+     * sorts before, with or after the second.
+     */
+    int compare(int row1, int row2) {
+        for (Key key : keys) {
+            int ret = key.compare(row1, row2);
+            if (ret != 0) {
+                return ret;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Sorts the row indexes, keeping the existing order of rows which
+     * compare equal.
+     * @param rowCount the number of rows.
+     * @return the row order, where element <code>i</code> is the index of
+     * the cached row to be shown at row <code>i</code>.
+     */
+    int[] sort(int rowCount) {
+        int[] ret = new int[rowCount];
+        for (int i = 0; i < rowCount; i++) {
+            ret[i] = i;
+        }
+        mergeSort(ret, new int[rowCount], 0, rowCount);
+        return ret;
+    }
+
+    /**
+     * Sorts a range of the row indexes with a stable merge sort.
+     */
+    private void mergeSort(int[] rows, int[] work, int from, int to) {
+        if (to - from < INSERTION_SORT_SIZE) {
+            for (int i = from + 1; i < to; i++) {
+                int row = rows[i];
+                int j = i;
+                while (j > from && compare(rows[j - 1], row) > 0) {
+                    rows[j] = rows[j - 1];
+                    j--;
+                }
+                rows[j] = row;
+            }
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        mergeSort(rows, work, from, middle);
+        mergeSort(rows, work, middle, to);
+        if (compare(rows[middle - 1], rows[middle]) <= 0) {
+            // already in order
+            return;
+        }
+        System.arraycopy(rows, from, work, from, to - from);
+        int left = from;
+        int right = middle;
+        int i = from;
+        while (left < middle && right < to) {
+            // the left row is taken when equal, keeping the sort stable
+            rows[i++] = compare(work[right], work[left]) < 0 ? work[right++] : work[left++];
+        }
+        while (left < middle) {
+            rows[i++] = work[left++];
+        }
+        while (right < to) {
+            rows[i++] = work[right++];
+        }
+    }
+
+    private static Key makeColumnKey(ColumnarCache cache, int column, boolean ascending,
+            Collator collator, Locale locale) {
+        DataType dataType = cache.getDataType(column);
+        BitSet nulls = cache.getNulls(column);
+
+        long[] longs = cache.getLongValues(column);
+        if (longs != null) {
+            return new LongKey(longs, nulls, ascending);
+        }
+
+        int[] codes = cache.getStringCodes(column);
+        if (codes != null) {
+            long[] codeKeys = makeDictionaryKeys(cache.getStringDictionary(column), dataType,
+                    collator, locale);
+            if (codeKeys == null) {
+                return null;
+            }
+            long[] values = new long[cache.getRowCount()];
+            for (int i = 0; i < values.length; i++) {
+                if (!nulls.get(i)) {
+                    values[i] = codeKeys[codes[i]];
+                }
+            }
+            return new LongKey(values, nulls, ascending);
+        }
+
+        return makeObjectKey(cache, column, dataType, nulls, ascending, collator, locale);
+    }
+
+    /**
+     * Returns the sort key of each distinct string of a column, as its
+     * rank among the others or as the time of the date it formats.
+     */
+    private static long[] makeDictionaryKeys(List<String> dictionary, DataType dataType,
+            Collator collator, Locale locale) {
+        long[] ret = new long[dictionary.size()];
+        if (dataType == DataType.DATE || dataType == DataType.TIMESTAMP) {
+            DateFormat format = makeDateFormat(dataType, locale);
+            for (int i = 0; i < ret.length; i++) {
+                Long time = toTime(dictionary.get(i), format);
+                if (time == null) {
+                    return null;
+                }
+                ret[i] = time;
+            }
+            return ret;
+        }
+
+        // strings of unknown type are compared as the query service would have
+        final Comparable<?>[] values = new Comparable[ret.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = dataType == DataType.STRING ? collator.getCollationKey(dictionary.get(i))
+                    : dictionary.get(i);
+        }
+        Integer[] order = new Integer[ret.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Comparator<Integer> comparator = new Comparator<Integer>() {
+            @SuppressWarnings("unchecked")
+            public int compare(Integer code1, Integer code2) {
+                return ((Comparable<Object>) values[code1]).compareTo(values[code2]);
+            }
+        };
+        Arrays.sort(order, comparator);
+        // values which compare equal share a rank
+        long rank = 0;
+        for (int i = 0; i < order.length; i++) {
+            if (i > 0 && comparator.compare(order[i - 1], order[i]) != 0) {
+                rank++;
+            }
+            ret[order[i]] = rank;
+        }
+        return ret;
+    }
+
+    /**
+     * Extracts the sort keys of a column holding boxed values, which must
+     * all be of the same type.
+     */
+    private static Key makeObjectKey(ColumnarCache cache, int column, DataType dataType,
+            BitSet nulls, boolean ascending, Collator collator, Locale locale) {
+        int rowCount = cache.getRowCount();
+        if (dataType == DataType.DATE || dataType == DataType.TIMESTAMP) {
+            DateFormat format = makeDateFormat(dataType, locale);
+            long[] times = new long[rowCount];
+            for (int i = 0; i < rowCount; i++) {
+                if (!nulls.get(i)) {
+                    Long time = toTime(cache.getValue(column, i), format);
+                    if (time == null) {
+                        return null;
+                    }
+                    times[i] = time;
+                }
+            }
+            return new LongKey(times, nulls, ascending);
+        }
+
+        Comparable<?>[] comparables = new Comparable[rowCount];
+        Class<?> valueClass = null;
+        for (int i = 0; i < rowCount; i++) {
+            if (nulls.get(i)) {
+                continue;
+            }
+            Object value = cache.getValue(column, i);
+            if (!(value instanceof Comparable)
+                    || (valueClass != null && valueClass != value.getClass())) {
+                return null;
+            }
+            valueClass = value.getClass();
+            comparables[i] = dataType == DataType.STRING && value instanceof String
+                    ? collator.getCollationKey((String) value) : (Comparable<?>) value;
+        }
+        return new ComparableKey(comparables, nulls, ascending);
+    }
+
+    /**
+     * The id is the final sort column, and is numeric unless the ids are
+     * not all numbers.
+     */
+    private static Key makeIdKey(ColumnarCache cache) {
+        BitSet nulls = cache.getNulls(ColumnarCache.ID_COLUMN);
+        long[] longs = cache.getLongValues(ColumnarCache.ID_COLUMN);
+        if (longs != null) {
+            return new LongKey(longs, nulls, true);
+        }
+        String[] ids = new String[cache.getRowCount()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = cache.getId(i);
+        }
+        return new ComparableKey(ids, nulls, true);
+    }
+
+    /**
+     * Returns the formats with which the query service formats dates and
+     * timestamps.
+     */
+    private static DateFormat makeDateFormat(DataType dataType, Locale locale) {
+        if (dataType == DataType.DATE) {
+            return DateFormat.getDateInstance(DateFormat.SHORT, locale);
+        }
+        return DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.SHORT, locale);
+    }
+
+    /**
+     * Returns the time of a date value, or <code>null</code> if it is not
+     * a date or cannot be parsed as one.
+     */
+    private static Long toTime(Object value, DateFormat format) {
+        if (value instanceof Date) {
+            return ((Date) value).getTime();
+        }
+        if (value instanceof Calendar) {
+            return ((Calendar) value).getTimeInMillis();
+        }
+        if (value instanceof String) {
+            try {
+                return format.parse((String) value).getTime();
+            } catch (ParseException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The sort key of a single column.
+     */
+    private static abstract class Key {
+
+        private final BitSet nulls;
+        private final boolean ascending;
+
+        Key(BitSet nulls, boolean ascending) {
+            this.nulls = nulls;
+            this.ascending = ascending;
+        }
+
+        int compare(int row1, int row2) {
+            boolean null1 = nulls.get(row1);
+            boolean null2 = nulls.get(row2);
+            int ret;
+            if (null1 || null2) {
+                ret = null1 == null2 ? 0 : (null1 ? -1 : 1);
+            }
+            else {
+                ret = compareValues(row1, row2);
+            }
+            return ascending ? ret : -ret;
+        }
+
+        abstract int compareValues(int row1, int row2);
+    }
+
+    private static class LongKey extends Key {
+
+        private final long[] values;
+
+        LongKey(long[] values, BitSet nulls, boolean ascending) {
+            super(nulls, ascending);
+            this.values = values;
+        }
+
+        int compareValues(int row1, int row2) {
+            return values[row1] < values[row2] ? -1 : (values[row1] == values[row2] ? 0 : 1);
+        }
+    }
+
+    private static class ComparableKey extends Key {
+
+        private final Comparable<?>[] values;
+
+        ComparableKey(Comparable<?>[] values, BitSet nulls, boolean ascending) {
+            super(nulls, ascending);
+            this.values = values;
+        }
+
+        @SuppressWarnings("unchecked")
+        int compareValues(int row1, int row2) {
+            return ((Comparable<Object>) values[row1]).compareTo(values[row2]);
+        }
+    }
+
+}
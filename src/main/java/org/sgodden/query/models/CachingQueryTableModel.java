@@ -20,7 +20,9 @@ public interface CachingQueryTableModel {
     public void invalidateCache();
     
     /**
-     * @return the cache data array - cache[column][row]
+     * @return the cache data array - cache[column][row], which may be a copy
+     * @deprecated use {@link #getValueFromCacheAt(int, int)} instead.
      */
+    @Deprecated
     public Object[][] getCache();
 }
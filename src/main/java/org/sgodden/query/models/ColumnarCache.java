@@ -0,0 +1,945 @@
+package org.sgodden.query.models;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.WeakHashMap;
+
+import org.sgodden.query.DataType;
+import org.sgodden.query.ResultSetColumn;
+import org.sgodden.query.ResultSetRow;
+import org.sgodden.query.ResultSetRowHandler;
+
+/**
+ * Holds the rows of a query column by column, in primitive arrays where the
+ * values allow it: integers, longs and booleans are stored unboxed, strings
+ * (including formatted dates) are dictionary-encoded so that each distinct
+ * string is held once, and nulls are recorded in a bitmap per column.
+ * <p>
+ * The cache is filled one row at a time as a {@link ResultSetRowHandler},
+ * so that the rows never need to be held as {@link ResultSetRow} objects.
+ * Filling stops, and {@link #isOverBudget()} returns <code>true</code>, if
+ * the estimated size exceeds either the budget of this cache or the global
+ * budget shared by all caches.
+ * </p>
+ * <p>
+ * A cache may also be created off-heap, in which case completing it moves
+ * the integer, long and string values into direct buffers outside the java
+ * heap, where they are decoded when read, so that a long-lived cache does
+ * not add to the work of the garbage collector.  Values of other types stay
+ * on the heap.
+ * </p>
+ * @author sgodden
+ */
+public class ColumnarCache implements ResultSetRowHandler, Serializable {
+
+    private static final long serialVersionUID = 20101019L;
+
+    /**
+     * The number of rows appended between checks of the budgets.
+     */
+    private static final int BUDGET_CHECK_INTERVAL = 1024;
+
+    /**
+     * The column index which refers to the ids, in the methods which return
+     * the values of a column for sorting.
+     */
+    static final int ID_COLUMN = -1;
+
+    /**
+     * The maximum estimated size of all the caches, or zero for no limit.
+     */
+    private static volatile long globalMemoryBudget = 0;
+
+    /**
+     * The caches which have not been released or garbage collected.
+     */
+    private static final Map<ColumnarCache, Boolean> LIVE_CACHES = Collections
+            .synchronizedMap(new WeakHashMap<ColumnarCache, Boolean>());
+
+    private final int columnCount;
+    private final long memoryBudget;
+    private final boolean offHeap;
+    private final boolean globalBudgetExempt;
+
+    private Column[] columns;
+    private DataType[] dataTypes;
+    private Column ids;
+
+    private int rowCount = 0;
+    private int capacity;
+    private boolean overBudget = false;
+
+    /**
+     * Creates a new, empty cache.
+     * @param columnCount the number of columns.
+     * @param expectedRowCount the number of rows expected, used to size the
+     * arrays.
+     * @param memoryBudget the maximum estimated size of this cache in bytes,
+     * or zero for no limit other than the global budget.
+     */
+    public ColumnarCache(int columnCount, int expectedRowCount, long memoryBudget) {
+        this(columnCount, expectedRowCount, memoryBudget, false);
+    }
+
+    /**
+     * Creates a new, empty cache, which may hold its values off the heap
+     * once completed.
+     * @param columnCount the number of columns.
+     * @param expectedRowCount the number of rows expected, used to size the
+     * arrays.
+     * @param memoryBudget the maximum estimated size of this cache in bytes,
+     * or zero for no limit other than the global budget.
+     * @param offHeap whether to move the values outside the heap when the
+     * cache is completed.
+     */
+    public ColumnarCache(int columnCount, int expectedRowCount, long memoryBudget,
+            boolean offHeap) {
+        this(columnCount, expectedRowCount, memoryBudget, offHeap, false);
+    }
+
+    /**
+     * Creates a new, empty cache, which may be exempt from the global
+     * budget.  An exempt cache still counts towards the global estimated
+     * size, so that other caches stay within the budget, but is never
+     * itself stopped by it, which suits caches whose size is already
+     * bounded, such as the blocks of a window.
+     * @param columnCount the number of columns.
+     * @param expectedRowCount the number of rows expected, used to size the
+     * arrays.
+     * @param memoryBudget the maximum estimated size of this cache in bytes,
+     * or zero for no limit other than the global budget.
+     * @param offHeap whether to move the values outside the heap when the
+     * cache is completed.
+     * @param globalBudgetExempt whether the global budget is not checked.
+     */
+    ColumnarCache(int columnCount, int expectedRowCount, long memoryBudget,
+            boolean offHeap, boolean globalBudgetExempt) {
+        this.columnCount = columnCount;
+        this.memoryBudget = memoryBudget;
+        this.offHeap = offHeap;
+        this.globalBudgetExempt = globalBudgetExempt;
+        this.capacity = Math.max(expectedRowCount, 16);
+        this.columns = new Column[columnCount];
+        this.dataTypes = new DataType[columnCount];
+        LIVE_CACHES.put(this, Boolean.TRUE);
+    }
+
+    /**
+     * Sets the maximum estimated size, in bytes, of all the caches taken
+     * together.
+     * @param bytes the global budget, or zero for no limit.
+     */
+    public static void setGlobalMemoryBudget(long bytes) {
+        globalMemoryBudget = bytes;
+    }
+
+    /**
+     * @see #setGlobalMemoryBudget(long)
+     * @return the global budget.
+     */
+    public static long getGlobalMemoryBudget() {
+        return globalMemoryBudget;
+    }
+
+    /**
+     * Returns the estimated size, in bytes, of all the caches which are still
+     * in use.
+     * @return the estimated size of all the caches.
+     */
+    public static long getGlobalEstimatedSize() {
+        long ret = 0;
+        synchronized (LIVE_CACHES) {
+            for (ColumnarCache cache : LIVE_CACHES.keySet()) {
+                ret += cache.getEstimatedSize();
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Appends a row to the cache.
+     * @param row the row.
+     * @return whether the cache is still within its budgets.
+     */
+    public boolean handleRow(ResultSetRow row) {
+        if (overBudget) {
+            return false;
+        }
+        if (rowCount == capacity) {
+            grow(capacity * 2);
+        }
+
+        ResultSetColumn[] rowColumns = row.getColumns();
+        for (int i = 0; i < columnCount; i++) {
+            ResultSetColumn col = rowColumns[i];
+            if (col != null && dataTypes[i] == null) {
+                dataTypes[i] = col.getDataType();
+            }
+            columns[i] = set(columns[i], rowCount, col == null ? null : col.getValue());
+        }
+        ids = set(ids, rowCount, row.getId() == null ? null : toIdValue(row.getId()));
+        rowCount++;
+
+        if (rowCount % BUDGET_CHECK_INTERVAL == 0 && !checkBudgets()) {
+            overBudget = true;
+        }
+        return !overBudget;
+    }
+
+    /**
+     * Completes the filling of the cache, discarding the structures only
+     * needed while appending and checking the budgets a final time.
+     * @return whether the cache is within its budgets.
+     */
+    public boolean complete() {
+        for (Column column : columns) {
+            if (column != null) {
+                column.complete();
+            }
+        }
+        if (ids != null) {
+            ids.complete();
+        }
+        if (!overBudget && !checkBudgets()) {
+            overBudget = true;
+        }
+        if (offHeap && !overBudget) {
+            for (Column column : columns) {
+                if (column != null) {
+                    column.moveOffHeap(rowCount);
+                }
+            }
+            if (ids != null) {
+                ids.moveOffHeap(rowCount);
+            }
+        }
+        return !overBudget;
+    }
+
+    /**
+     * Returns whether filling was stopped because the cache exceeded a
+     * budget, in which case it holds only some of the rows.
+     * @return whether the cache is over budget.
+     */
+    public boolean isOverBudget() {
+        return overBudget;
+    }
+
+    /**
+     * Releases the cache, so that it no longer counts towards the global
+     * budget.
+     */
+    public void release() {
+        LIVE_CACHES.remove(this);
+    }
+
+    /**
+     * Returns the number of columns.
+     * @return the number of columns.
+     */
+    public int getColumnCount() {
+        return columnCount;
+    }
+
+    /**
+     * Returns the number of rows held.
+     * @return the number of rows.
+     */
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * Returns the value at the passed position.
+     * @param colIndex the column index.
+     * @param rowIndex the row index.
+     * @return the value, boxed.
+     */
+    public Object getValue(int colIndex, int rowIndex) {
+        if (rowIndex >= rowCount) {
+            throw new IndexOutOfBoundsException("Row " + rowIndex + " of " + rowCount);
+        }
+        return get(columns[colIndex], rowIndex);
+    }
+
+    /**
+     * Returns the id of the passed row.
+     * @param rowIndex the row index.
+     * @return the id, or <code>null</code> if the query did not include it.
+     */
+    public String getId(int rowIndex) {
+        Object ret = get(ids, rowIndex);
+        return ret == null ? null : ret.toString();
+    }
+
+    /**
+     * Returns the passed row, as a newly created result set row.
+     * @param rowIndex the row index.
+     * @return the row.
+     */
+    public ResultSetRow getRow(int rowIndex) {
+        ResultSetRow ret = new ResultSetRow();
+        ret.setId(getId(rowIndex));
+        ResultSetColumn[] rowColumns = new ResultSetColumn[columnCount];
+        for (int i = 0; i < columnCount; i++) {
+            rowColumns[i] = new ResultSetColumn();
+            rowColumns[i].setDataType(dataTypes[i]);
+            rowColumns[i].setValue(getValue(i, rowIndex));
+        }
+        ret.setColumns(rowColumns);
+        return ret;
+    }
+
+    /**
+     * Returns a read-only view of the rows, each of which is created when it
+     * is retrieved.
+     * @return the rows.
+     */
+    public List<ResultSetRow> getRows() {
+        return new RowList();
+    }
+
+    /**
+     * Returns whether the passed list is a view of the rows of this cache,
+     * as returned by {@link #getRows()}.
+     * @param rows the list.
+     * @return whether the list is a view of this cache.
+     */
+    boolean isView(List<ResultSetRow> rows) {
+        return rows instanceof RowList && ((RowList) rows).getCache() == this;
+    }
+
+    /**
+     * Returns the data type of the passed column, as reported by the first
+     * row which had a value for it.
+     * @param colIndex the column index, or {@link #ID_COLUMN}.
+     * @return the data type, or <code>null</code> if unknown.
+     */
+    DataType getDataType(int colIndex) {
+        return colIndex == ID_COLUMN ? null : dataTypes[colIndex];
+    }
+
+    /**
+     * Returns the rows whose value in the passed column is null.
+     * @param colIndex the column index, or {@link #ID_COLUMN}.
+     * @return a copy of the null bitmap of the column.
+     */
+    BitSet getNulls(int colIndex) {
+        Column column = getColumn(colIndex);
+        if (column == null) {
+            BitSet ret = new BitSet(rowCount);
+            ret.set(0, rowCount);
+            return ret;
+        }
+        return (BitSet) column.nulls.clone();
+    }
+
+    /**
+     * Returns the values of a column of integers, longs or booleans as
+     * longs, with booleans as zero or one, without boxing them.
+     * @param colIndex the column index, or {@link #ID_COLUMN}.
+     * @return the values, of which those of null rows are undefined, or
+     * <code>null</code> if the column holds values of other types.
+     */
+    long[] getLongValues(int colIndex) {
+        Column column = getColumn(colIndex);
+        return column == null ? null : column.toLongs(rowCount);
+    }
+
+    /**
+     * Returns the dictionary code of the value of each row of a column of
+     * strings.
+     * @param colIndex the column index, or {@link #ID_COLUMN}.
+     * @return the codes, indexing {@link #getStringDictionary(int)}, of
+     * which those of null rows are undefined, or <code>null</code> if the
+     * column holds values of other types.
+     */
+    int[] getStringCodes(int colIndex) {
+        Column column = getColumn(colIndex);
+        return column instanceof StringColumn ? ((StringColumn) column).getCodes() : null;
+    }
+
+    /**
+     * Returns the distinct values of a column of strings.
+     * @param colIndex the column index, or {@link #ID_COLUMN}.
+     * @return the values, indexed by their dictionary code, or
+     * <code>null</code> if the column holds values of other types.
+     */
+    List<String> getStringDictionary(int colIndex) {
+        Column column = getColumn(colIndex);
+        if (!(column instanceof StringColumn)) {
+            return null;
+        }
+        StringColumn strings = (StringColumn) column;
+        List<String> ret = new ArrayList<String>(strings.getDictionarySize());
+        for (int code = 0; code < strings.getDictionarySize(); code++) {
+            ret.add(strings.getDictionaryValue(code));
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the values as an array of boxed values.
+     * @return the values, indexed by column and then by row.
+     */
+    public Object[][] toArray() {
+        Object[][] ret = new Object[columnCount][rowCount];
+        for (int i = 0; i < columnCount; i++) {
+            for (int j = 0; j < rowCount; j++) {
+                ret[i][j] = get(columns[i], j);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the estimated size of the cache in bytes.
+     * @return the estimated size.
+     */
+    public long getEstimatedSize() {
+        long ret = 0;
+        for (Column column : columns) {
+            if (column != null) {
+                ret += column.getEstimatedSize(capacity);
+            }
+        }
+        if (ids != null) {
+            ret += ids.getEstimatedSize(capacity);
+        }
+        return ret;
+    }
+
+    private boolean checkBudgets() {
+        if (memoryBudget > 0 && getEstimatedSize() > memoryBudget) {
+            return false;
+        }
+        long global = globalMemoryBudget;
+        return global <= 0 || globalBudgetExempt || getGlobalEstimatedSize() <= global;
+    }
+
+    private void grow(int newCapacity) {
+        for (Column column : columns) {
+            if (column != null) {
+                column.grow(newCapacity);
+            }
+        }
+        if (ids != null) {
+            ids.grow(newCapacity);
+        }
+        capacity = newCapacity;
+    }
+
+    /**
+     * Sets a value in the column, creating the column or widening it to hold
+     * boxed values where necessary.
+     * @return the column, which may be a new one.
+     */
+    private Column set(Column column, int rowIndex, Object value) {
+        if (value == null) {
+            if (column != null) {
+                column.nulls.set(rowIndex);
+            }
+            return column;
+        }
+        if (column == null) {
+            column = makeColumn(value);
+            // all the rows so far were null
+            column.nulls.set(0, rowIndex);
+        }
+        else if (!column.accepts(value)) {
+            column = new ObjectColumn(column, rowIndex, capacity);
+        }
+        column.set(rowIndex, value);
+        return column;
+    }
+
+    /**
+     * Numeric ids are held as longs, where that does not change their
+     * string form.
+     */
+    private static Object toIdValue(String id) {
+        try {
+            Long ret = Long.valueOf(id);
+            if (ret.toString().equals(id)) {
+                return ret;
+            }
+        } catch (NumberFormatException e) {
+            // not numeric
+        }
+        return id;
+    }
+
+    private Column getColumn(int colIndex) {
+        return colIndex == ID_COLUMN ? ids : columns[colIndex];
+    }
+
+    private Object get(Column column, int rowIndex) {
+        if (column == null || column.nulls.get(rowIndex)) {
+            return null;
+        }
+        return column.get(rowIndex);
+    }
+
+    private Column makeColumn(Object value) {
+        if (value instanceof Integer) {
+            return new IntColumn(capacity);
+        }
+        else if (value instanceof Long) {
+            return new LongColumn(capacity);
+        }
+        else if (value instanceof Boolean) {
+            return new BooleanColumn();
+        }
+        else if (value instanceof String) {
+            return new StringColumn(capacity);
+        }
+        else {
+            return new ObjectColumn(capacity);
+        }
+    }
+
+    private static IntBuffer toDirectBuffer(int[] values, int length) {
+        IntBuffer ret = ByteBuffer.allocateDirect(4 * length)
+                .order(ByteOrder.nativeOrder()).asIntBuffer();
+        ret.put(values, 0, length);
+        return ret;
+    }
+
+    private static int[] toArray(IntBuffer buffer) {
+        int[] ret = new int[buffer.capacity()];
+        IntBuffer copy = buffer.duplicate();
+        copy.clear();
+        copy.get(ret);
+        return ret;
+    }
+
+    private class RowList extends AbstractList<ResultSetRow> implements RandomAccess {
+
+        ColumnarCache getCache() {
+            return ColumnarCache.this;
+        }
+
+        @Override
+        public ResultSetRow get(int index) {
+            return getRow(index);
+        }
+
+        @Override
+        public int size() {
+            return rowCount;
+        }
+    }
+
+    /**
+     * The values of a single column.
+     */
+    private static abstract class Column implements Serializable {
+
+        private static final long serialVersionUID = 20101019L;
+
+        final BitSet nulls = new BitSet();
+
+        /**
+         * Returns whether the column can hold the passed (non-null) value.
+         */
+        abstract boolean accepts(Object value);
+
+        abstract void set(int rowIndex, Object value);
+
+        abstract Object get(int rowIndex);
+
+        abstract void grow(int capacity);
+
+        void complete() {
+        }
+
+        /**
+         * Moves the values outside the heap, if the type of the column
+         * allows it.  No more values may be set afterwards.
+         */
+        void moveOffHeap(int rowCount) {
+        }
+
+        /**
+         * Returns the values as longs, if the type of the column allows it,
+         * and otherwise <code>null</code>.
+         */
+        long[] toLongs(int rowCount) {
+            return null;
+        }
+
+        long getEstimatedSize(int capacity) {
+            return capacity / 8;
+        }
+    }
+
+    private static class IntColumn extends Column {
+
+        private static final long serialVersionUID = 20101019L;
+
+        private int[] values;
+
+        /**
+         * The values, once moved off the heap.
+         */
+        private transient IntBuffer direct;
+
+        IntColumn(int capacity) {
+            values = new int[capacity];
+        }
+
+        boolean accepts(Object value) {
+            return value instanceof Integer;
+        }
+
+        void set(int rowIndex, Object value) {
+            values[rowIndex] = (Integer) value;
+        }
+
+        Object get(int rowIndex) {
+            return direct == null ? values[rowIndex] : direct.get(rowIndex);
+        }
+
+        @Override
+        void moveOffHeap(int rowCount) {
+            direct = toDirectBuffer(values, rowCount);
+            values = null;
+        }
+
+        @Override
+        long[] toLongs(int rowCount) {
+            long[] ret = new long[rowCount];
+            for (int i = 0; i < rowCount; i++) {
+                ret[i] = direct == null ? values[i] : direct.get(i);
+            }
+            return ret;
+        }
+
+        private void writeObject(ObjectOutputStream out) throws IOException {
+            if (direct != null) {
+                values = toArray(direct);
+            }
+            out.defaultWriteObject();
+            if (direct != null) {
+                values = null;
+            }
+        }
+
+        void grow(int capacity) {
+            int[] newValues = new int[capacity];
+            System.arraycopy(values, 0, newValues, 0, values.length);
+            values = newValues;
+        }
+
+        long getEstimatedSize(int capacity) {
+            return super.getEstimatedSize(capacity) + 4L * capacity;
+        }
+    }
+
+    private static class LongColumn extends Column {
+
+        private static final long serialVersionUID = 20101019L;
+
+        private long[] values;
+
+        /**
+         * The values, once moved off the heap.
+         */
+        private transient LongBuffer direct;
+
+        LongColumn(int capacity) {
+            values = new long[capacity];
+        }
+
+        boolean accepts(Object value) {
+            return value instanceof Long;
+        }
+
+        void set(int rowIndex, Object value) {
+            values[rowIndex] = (Long) value;
+        }
+
+        Object get(int rowIndex) {
+            return direct == null ? values[rowIndex] : direct.get(rowIndex);
+        }
+
+        @Override
+        void moveOffHeap(int rowCount) {
+            direct = ByteBuffer.allocateDirect(8 * rowCount)
+                    .order(ByteOrder.nativeOrder()).asLongBuffer();
+            direct.put(values, 0, rowCount);
+            values = null;
+        }
+
+        @Override
+        long[] toLongs(int rowCount) {
+            long[] ret = new long[rowCount];
+            if (direct == null) {
+                System.arraycopy(values, 0, ret, 0, rowCount);
+            }
+            else {
+                LongBuffer copy = direct.duplicate();
+                copy.clear();
+                copy.get(ret);
+            }
+            return ret;
+        }
+
+        private void writeObject(ObjectOutputStream out) throws IOException {
+            if (direct != null) {
+                values = new long[direct.capacity()];
+                LongBuffer copy = direct.duplicate();
+                copy.clear();
+                copy.get(values);
+            }
+            out.defaultWriteObject();
+            if (direct != null) {
+                values = null;
+            }
+        }
+
+        void grow(int capacity) {
+            long[] newValues = new long[capacity];
+            System.arraycopy(values, 0, newValues, 0, values.length);
+            values = newValues;
+        }
+
+        long getEstimatedSize(int capacity) {
+            return super.getEstimatedSize(capacity) + 8L * capacity;
+        }
+    }
+
+    private static class BooleanColumn extends Column {
+
+        private static final long serialVersionUID = 20101019L;
+
+        private final BitSet values = new BitSet();
+
+        boolean accepts(Object value) {
+            return value instanceof Boolean;
+        }
+
+        void set(int rowIndex, Object value) {
+            values.set(rowIndex, (Boolean) value);
+        }
+
+        Object get(int rowIndex) {
+            return values.get(rowIndex);
+        }
+
+        @Override
+        long[] toLongs(int rowCount) {
+            long[] ret = new long[rowCount];
+            for (int i = values.nextSetBit(0); i >= 0 && i < rowCount; i = values.nextSetBit(i + 1)) {
+                ret[i] = 1;
+            }
+            return ret;
+        }
+
+        void grow(int capacity) {
+        }
+
+        long getEstimatedSize(int capacity) {
+            return super.getEstimatedSize(capacity) + capacity / 8;
+        }
+    }
+
+    /**
+     * Holds the index of each value in a dictionary of the distinct values.
+     */
+    private static class StringColumn extends Column {
+
+        private static final long serialVersionUID = 20101019L;
+
+        private int[] codes;
+        private List<String> dictionary = new ArrayList<String>();
+        private Map<String, Integer> codesByValue = new HashMap<String, Integer>();
+        private long dictionarySize = 0;
+
+        /**
+         * The codes, and the UTF-8 encoded dictionary with the offset of
+         * each of its strings, once moved off the heap.
+         */
+        private transient IntBuffer directCodes;
+        private transient ByteBuffer directDictionary;
+        private transient IntBuffer directOffsets;
+
+        StringColumn(int capacity) {
+            codes = new int[capacity];
+        }
+
+        boolean accepts(Object value) {
+            return value instanceof String && codesByValue != null;
+        }
+
+        void set(int rowIndex, Object value) {
+            Integer code = codesByValue.get(value);
+            if (code == null) {
+                code = dictionary.size();
+                dictionary.add((String) value);
+                codesByValue.put((String) value, code);
+                // the string, and its dictionary and map entries
+                dictionarySize += 40 + 2 * ((String) value).length() + 48;
+            }
+            codes[rowIndex] = code;
+        }
+
+        Object get(int rowIndex) {
+            return getDictionaryValue(directCodes == null ? codes[rowIndex]
+                    : directCodes.get(rowIndex));
+        }
+
+        int[] getCodes() {
+            return directCodes == null ? codes : toArray(directCodes);
+        }
+
+        int getDictionarySize() {
+            return directOffsets == null ? dictionary.size() : directOffsets.capacity() - 1;
+        }
+
+        String getDictionaryValue(int code) {
+            if (directOffsets == null) {
+                return dictionary.get(code);
+            }
+            int offset = directOffsets.get(code);
+            byte[] bytes = new byte[directOffsets.get(code + 1) - offset];
+            // a duplicate, so that concurrent reads do not share a position
+            ByteBuffer copy = directDictionary.duplicate();
+            copy.position(offset);
+            copy.get(bytes);
+            try {
+                return new String(bytes, "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new Error(e);
+            }
+        }
+
+        @Override
+        void moveOffHeap(int rowCount) {
+            try {
+                int[] offsets = new int[dictionary.size() + 1];
+                byte[][] encoded = new byte[dictionary.size()][];
+                for (int i = 0; i < encoded.length; i++) {
+                    encoded[i] = dictionary.get(i).getBytes("UTF-8");
+                    offsets[i + 1] = offsets[i] + encoded[i].length;
+                }
+                directDictionary = ByteBuffer.allocateDirect(offsets[encoded.length]);
+                for (byte[] bytes : encoded) {
+                    directDictionary.put(bytes);
+                }
+                directOffsets = toDirectBuffer(offsets, offsets.length);
+            } catch (UnsupportedEncodingException e) {
+                throw new Error(e);
+            }
+            directCodes = toDirectBuffer(codes, rowCount);
+            codes = null;
+            dictionary = null;
+        }
+
+        private void writeObject(ObjectOutputStream out) throws IOException {
+            if (directCodes != null) {
+                codes = toArray(directCodes);
+                dictionary = new ArrayList<String>();
+                for (int i = 0; i < directOffsets.capacity() - 1; i++) {
+                    dictionary.add(null);
+                }
+                for (int i = 0; i < codes.length; i++) {
+                    if (!nulls.get(i) && dictionary.get(codes[i]) == null) {
+                        dictionary.set(codes[i], (String) get(i));
+                    }
+                }
+            }
+            out.defaultWriteObject();
+            if (directCodes != null) {
+                codes = null;
+                dictionary = null;
+            }
+        }
+
+        void grow(int capacity) {
+            int[] newCodes = new int[capacity];
+            System.arraycopy(codes, 0, newCodes, 0, codes.length);
+            codes = newCodes;
+        }
+
+        @Override
+        void complete() {
+            if (codesByValue != null) {
+                codesByValue = null;
+                dictionarySize -= 48L * dictionary.size();
+            }
+        }
+
+        long getEstimatedSize(int capacity) {
+            return super.getEstimatedSize(capacity) + 4L * capacity + dictionarySize;
+        }
+    }
+
+    /**
+     * Holds boxed values, where they are of no other supported type or the
+     * types within the column differ.
+     */
+    private static class ObjectColumn extends Column {
+
+        private static final long serialVersionUID = 20101019L;
+
+        private Object[] values;
+        private int nonNullCount = 0;
+
+        ObjectColumn(int capacity) {
+            values = new Object[capacity];
+        }
+
+        /**
+         * Creates a column holding the values of the passed column, up to
+         * the passed row.
+         */
+        ObjectColumn(Column column, int rowCount, int capacity) {
+            this(capacity);
+            nulls.or(column.nulls);
+            for (int i = 0; i < rowCount; i++) {
+                if (!nulls.get(i)) {
+                    set(i, column.get(i));
+                }
+            }
+        }
+
+        boolean accepts(Object value) {
+            return true;
+        }
+
+        void set(int rowIndex, Object value) {
+            values[rowIndex] = value;
+            nonNullCount++;
+        }
+
+        Object get(int rowIndex) {
+            return values[rowIndex];
+        }
+
+        void grow(int capacity) {
+            Object[] newValues = new Object[capacity];
+            System.arraycopy(values, 0, newValues, 0, values.length);
+            values = newValues;
+        }
+
+        long getEstimatedSize(int capacity) {
+            return super.getEstimatedSize(capacity) + 4L * capacity + 32L * nonNullCount;
+        }
+    }
+
+}
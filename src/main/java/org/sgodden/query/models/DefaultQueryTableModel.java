@@ -15,16 +15,26 @@
 package org.sgodden.query.models;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.sgodden.query.AggregateFunction;
+import org.sgodden.query.AndRestriction;
+import org.sgodden.query.DataType;
+import org.sgodden.query.Operator;
 import org.sgodden.query.Query;
 import org.sgodden.query.QueryColumn;
 import org.sgodden.query.Restriction;
+import org.sgodden.query.RestrictionEvaluator;
 import org.sgodden.query.ResultSet;
 import org.sgodden.query.ResultSetColumn;
 import org.sgodden.query.ResultSetRow;
+import org.sgodden.query.SimpleRestriction;
+import org.sgodden.query.SortData;
+import org.sgodden.query.SpillableRowList;
 
 /**
  * A default implementation of a query table model, which allows simple queries
@@ -42,10 +52,98 @@ public class DefaultQueryTableModel extends AbstractQueryTableModel implements C
     private static final transient Log log = LogFactory.getLog(DefaultQueryTableModel.class);
     
     /**
+     * Not serialized, but filled again when next read.  This was an
+     * <code>Object[][]</code> indexed by column and then row; subclasses
+     * reading it directly should use {@link #getValueFromCacheAt(int, int)}
+     * instead.
      * @See getValueFromCacheAt
-     * cache[column][row]
      */
-    protected Object[][]cache;
+    protected transient ColumnarCache cache;
+    
+    /**
+     * The maximum estimated size of the cache in bytes, or zero for no limit
+     * other than the global one.
+     * @see ColumnarCache#setGlobalMemoryBudget(long)
+     */
+    private long cacheMemoryBudget = 0;
+    
+    /**
+     * Whether the cache could not be filled within its budget, since the
+     * last refresh.
+     */
+    private boolean cacheOverBudget = false;
+    
+    /**
+     * Whether rows which would exceed the budget of the cache are moved to
+     * a file instead.
+     */
+    private boolean cacheSpillToDisk = false;
+    
+    /**
+     * The rows moved to a file, since the last refresh.
+     */
+    private transient SpillableRowList spilledRows;
+    
+    /**
+     * The number of rows in each block of the windowed cache, or zero if
+     * the windowed cache is not used.
+     */
+    private int cacheWindowBlockSize = 0;
+    
+    /**
+     * The maximum number of blocks held by the windowed cache.
+     */
+    private int cacheWindowMaxBlocks = 0;
+    
+    /**
+     * The windowed cache, created when first read after a refresh.
+     */
+    private transient WindowedRowCache window;
+    
+    /**
+     * The path of the version or last-modified attribute used to fetch only
+     * the changed rows on refresh, or <code>null</code> to re-run the query.
+     */
+    private String deltaRefreshAttributePath;
+    
+    /**
+     * The greatest value of the delta refresh attribute when the rows were
+     * last fetched.
+     */
+    private Object deltaRefreshWatermark;
+    
+    /**
+     * Whether a narrower filter may be applied to the cache in memory.
+     */
+    private boolean clientSideFiltering = false;
+    
+    /**
+     * Whether the filter has been replaced since the last refresh.
+     */
+    private boolean restrictionReplaced = false;
+    
+    /**
+     * The filter which the current results satisfy, if it has since been
+     * replaced.
+     */
+    private Restriction previousRestriction;
+    
+    /**
+     * Whether the cache may be re-sorted in memory.
+     */
+    private boolean clientSideSorting = false;
+    
+    /**
+     * The order in which the cached rows are shown, following an in-memory
+     * sort, or <code>null</code> if they are shown in the order fetched.
+     */
+    private transient int[] rowOrder;
+    
+    /**
+     * The number of held ids looked up by each query, when rows have been
+     * deleted since the last delta refresh.
+     */
+    private static final int ID_BATCH_SIZE = 500;
         
     /**
      * Creates a new DefaultQueryTableModel instance with the specified
@@ -87,65 +185,88 @@ public class DefaultQueryTableModel extends AbstractQueryTableModel implements C
 
     /**
      * Downloads all the data if it hasn't already been, and cache it.
+     * If the cache would exceed its memory budget, the value is read from
+     * the result set instead.
      * @return the Object required from the local cache
      */
     public Object getValueFromCacheAt(int colIndex, int rowIndex) {
 	
+	if (cacheWindowBlockSize > 0) {
+	    return getWindow().getValue(colIndex, rowIndex);
+	}
+	
 	// do we need to download the database
-	if (cache == null) {
-	    
-	    // make the cache the right size
-	    cache = new Object[getColumnCount()][getRowCount()];
-	    log.debug("Created cache sized[cols][rows ["+ getColumnCount() + "],[" + getRowCount() + "]"); 
-	    
-	    // fill it
-	    ResultSet rs = getResultSet();
-	    Query query = rs.getQuery();
-	    // Allow max rows to be set for the purpose of list view download, whilst retaining fetch size setting.
-	    int originalFetchSize = query.getFetchSize();
-	    int originalMaxRows = query.getMaxRows();
-	    query.setFetchSize(0);
-	    query.setMaxRows(getRowCount());
-	    	    
-	    log.trace("next, running refresh");	    
-	    doRefresh(rs.getQuery());
-
-            // Ensure we have reference to up-to-date result set
-	    rs = getResultSet();
-	    log.debug("refresh run, fetch size is "+ query.getFetchSize() + " and max rows is " + query.getMaxRows());
-	    
-	    int rowCounter=0, colCounter;
-	    for(ResultSetRow row : rs.getCachedPageRows()) {
-		colCounter = 0;
-		String debugOutput = "", COMMA="";
-		for (ResultSetColumn col : row.getColumns()){
-		    cache[colCounter][rowCounter] = col.getValue();
-		    try {
-			debugOutput += COMMA + String.valueOf(colCounter) + ":" + col.getValue().toString();
-		    } catch (NullPointerException notInterested) {
-		        debugOutput += COMMA + "NULL";
-		    }
-		    COMMA = ", ";
-		    colCounter++;
-		}
-		
-		log.trace("row = " + debugOutput);
-		rowCounter++;
-	    }
-  	    // Restore original fetch size and max rows settings
-	    query.setFetchSize(originalFetchSize);
-	    query.setMaxRows(originalMaxRows);
+	if (cache == null && !cacheOverBudget) {
+	    fillCache();
 	} else {
 	    log.trace("getting value from cache");
 	}
 	
-	// return the value
-	try {
-	    //log.trace("Returning col : "+ colIndex + ", row : " + rowIndex + " = " + cache[colIndex][rowIndex].toString());
-	    return cache[colIndex][rowIndex];
-	} catch(NullPointerException npe) {
-	    //log.trace("Returning col : "+ colIndex + ", row : " + rowIndex + " = NULL");
-	    return null;
+	if (cache == null) {
+	    return getValueAt(colIndex, rowIndex);
+	}
+	return cache.getValue(colIndex, getCachedRowIndex(rowIndex));
+    }
+    
+    /**
+     * Runs a copy of the query for all the rows, storing each row in the
+     * cache as it is read, and then holds the cached rows as the result set.
+     */
+    private void fillCache() {
+	ResultSet rs = getResultSet();
+	// Allow max rows to be set for the purpose of list view download, whilst retaining fetch size setting.
+	// A copy is run, so that the result set goes on holding all the rows rather than fetching pages.
+	Query query = rs.getQuery().makeClone();
+	query.setFetchSize(0);
+	query.setMaxRows(getRowCount());
+	
+	ColumnarCache newCache = new ColumnarCache(getColumnCount(), getRowCount(), cacheMemoryBudget,
+		getOffHeapPages());
+	log.trace("next, running query to fill the cache");
+	ResultSet filled = getQueryService().executeQuery(query, newCache);
+	if (!newCache.complete()) {
+	    newCache.release();
+	    cacheOverBudget = true;
+	    if (cacheSpillToDisk) {
+	        spillCache(query);
+	    }
+	    else {
+	        log.warn("Not caching " + getRowCount() + " rows, as the cache would exceed its memory budget");
+	    }
+	    return;
+	}
+	log.debug("Cached " + newCache.getRowCount() + " rows of " + getColumnCount()
+		+ " columns, estimated size " + newCache.getEstimatedSize() + " bytes");
+	
+	cache = newCache;
+	rowOrder = null;
+	restrictionReplaced = false;
+	previousRestriction = null;
+	ResultSet held = makeHeldResultSet(cache.getRows());
+	held.setQueryBailedOut(filled.getQueryBailedOut());
+	setResultSet(held);
+    }
+    
+    /**
+     * Runs the passed query again, moving all the rows to a file, and holds
+     * them as the result set.
+     */
+    private void spillCache(Query query) {
+	log.info("Moving " + getRowCount() + " rows to a file, as the cache would exceed its memory budget");
+	SpillableRowList rows = new SpillableRowList(0, null);
+	ResultSet filled = getQueryService().executeQuery(query, rows);
+	rows.complete();
+	releaseSpilledRows();
+	spilledRows = rows;
+	ResultSet held = makeHeldResultSet(rows);
+	held.setQueryBailedOut(filled.getQueryBailedOut());
+	setResultSet(held);
+    }
+    
+    private void releaseSpilledRows() {
+	if (spilledRows != null) {
+	    spilledRows.release();
+	    spilledRows = null;
 	}
     }
     
@@ -155,14 +276,145 @@ public class DefaultQueryTableModel extends AbstractQueryTableModel implements C
      * @See getValueFromCacheAt
      */
     public void invalidateCache() {
+	if (cache != null) {
+	    cache.release();
+	}
 	cache = null;
+	releaseWindow();
+	releaseSpilledRows();
+	cacheOverBudget = false;
+	rowOrder = null;
     }
     
     /**
-     * @return the cache data array - cache[column][row]
+     * Returns a copy of the cached values, so changes to the returned array
+     * are not seen by the model.
+     * @return the cache data array - cache[column][row], with the rows in
+     * the order fetched, see {@link #getCachedRowIndex(int)}, or
+     * <code>null</code> if nothing is cached.
+     * @deprecated this boxes every cached value on each call, so use
+     * {@link #getValueFromCacheAt(int, int)} instead.
      */
+    @Deprecated
     public Object[][] getCache() {
-	return cache;
+	return cache == null ? null : cache.toArray();
+    }
+    
+    /**
+     * Sets the maximum estimated size of the cache of this model.  If
+     * filling the cache would exceed either this or the global budget, the
+     * rows are not cached.
+     * @param bytes the budget in bytes, or zero for no limit other than the
+     * global one.
+     * @see ColumnarCache#setGlobalMemoryBudget(long)
+     */
+    public void setCacheMemoryBudget(long bytes) {
+        this.cacheMemoryBudget = bytes;
+    }
+    
+    /**
+     * @see #setCacheMemoryBudget(long)
+     * @return the budget in bytes.
+     */
+    public long getCacheMemoryBudget() {
+        return cacheMemoryBudget;
+    }
+    
+    /**
+     * Sets whether, when the rows would exceed the memory budget of the
+     * cache, they are moved to a memory-mapped temporary file and read from
+     * there, rather than being read a page at a time from the database.
+     * The spilled rows cannot be sorted or filtered in memory.
+     * @param cacheSpillToDisk whether to move the rows to a file.
+     * @see SpillableRowList
+     */
+    public void setCacheSpillToDisk(boolean cacheSpillToDisk) {
+        this.cacheSpillToDisk = cacheSpillToDisk;
+    }
+    
+    /**
+     * @see #setCacheSpillToDisk(boolean)
+     * @return whether the rows are moved to a file.
+     */
+    public boolean getCacheSpillToDisk() {
+        return cacheSpillToDisk;
+    }
+    
+    /**
+     * Sets the model to cache only a window of rows around those most
+     * recently read, instead of downloading all the rows, so that the
+     * memory used is bounded however many rows match.  Rows are fetched a
+     * block at a time, the next block in the direction of scrolling is
+     * prefetched, and the blocks furthest away are evicted.  The query
+     * should calculate its row count.
+     * @param blockSize the number of rows fetched at a time, or zero to
+     * cache all the rows.
+     * @param maxBlocks the maximum number of blocks held, at least three.
+     */
+    public void setCacheWindow(int blockSize, int maxBlocks) {
+        invalidateCache();
+        this.cacheWindowBlockSize = blockSize;
+        this.cacheWindowMaxBlocks = maxBlocks;
+    }
+    
+    /**
+     * @see #setCacheWindow(int, int)
+     * @return the number of rows in each block of the window, or zero if
+     * all the rows are cached.
+     */
+    public int getCacheWindowBlockSize() {
+        return cacheWindowBlockSize;
+    }
+    
+    /**
+     * @see #setCacheWindow(int, int)
+     * @return the maximum number of blocks held.
+     */
+    public int getCacheWindowMaxBlocks() {
+        return cacheWindowMaxBlocks;
+    }
+    
+    private WindowedRowCache getWindow() {
+        if (window == null) {
+            window = new WindowedRowCache(getQueryService(),
+                    getResultSet().getQuery().makeClone(), getRowCount(),
+                    cacheWindowBlockSize, cacheWindowMaxBlocks);
+        }
+        return window;
+    }
+    
+    private void releaseWindow() {
+        if (window != null) {
+            window.release();
+            window = null;
+        }
+    }
+    
+    /**
+     * Returns the index in the cache of the passed row, which differs when
+     * the cache has been sorted in memory.
+     * @param rowIndex the row index, as shown.
+     * @return the row index in the cache data array.
+     * @see #setClientSideSorting(boolean)
+     */
+    public int getCachedRowIndex(int rowIndex) {
+        return rowOrder == null ? rowIndex : rowOrder[rowIndex];
+    }
+    
+    @Override
+    public Object getValueAt(int colIndex, int rowIndex) {
+        if (cacheWindowBlockSize > 0) {
+            return getWindow().getValue(colIndex, rowIndex);
+        }
+        return super.getValueAt(colIndex, getCachedRowIndex(rowIndex));
+    }
+    
+    @Override
+    public String getIdForRow(int row) {
+        if (cacheWindowBlockSize > 0) {
+            return getWindow().getId(row);
+        }
+        return super.getIdForRow(getCachedRowIndex(row));
     }
     
     /**
@@ -170,6 +422,486 @@ public class DefaultQueryTableModel extends AbstractQueryTableModel implements C
      * @see org.sgodden.query.models.QueryTableModel#replaceQueryRestriction(org.sgodden.query.Restriction)
      */
     public void replaceQueryRestriction(Restriction r) {
+        if (!restrictionReplaced) {
+            previousRestriction = query.getFilterCriterion();
+            restrictionReplaced = true;
+        }
     	this.query.setFilterCriterion(r);
     }
+    
+    /**
+     * Sets whether, when all rows are cached and the filter has been replaced
+     * with one which only narrows it, the next call to {@link #refresh()}
+     * filters the cached rows in memory instead of re-running the query.
+     * Note that changes made in the database since the rows were cached
+     * will then not be seen.
+     * @param clientSideFiltering whether to filter the cache in memory.
+     * @see RestrictionEvaluator
+     */
+    public void setClientSideFiltering(boolean clientSideFiltering) {
+        this.clientSideFiltering = clientSideFiltering;
+    }
+    
+    /**
+     * @see #setClientSideFiltering(boolean)
+     * @return whether the cache may be filtered in memory.
+     */
+    public boolean getClientSideFiltering() {
+        return clientSideFiltering;
+    }
+    
+    @Override
+    public void refresh() {
+        if (filterInMemory()) {
+            return;
+        }
+        if (!restrictionReplaced && deltaRefresh()) {
+            return;
+        }
+        super.refresh();
+    }
+    
+    /**
+     * Sets the path of an attribute which increases whenever an object
+     * changes, such as a version number or a last-modified timestamp.
+     * When it is set and all the rows are held, {@link #refresh()} fetches
+     * only the rows whose attribute is at least its greatest value at the
+     * previous refresh, with the ids of all the rows changed since then to
+     * find those which no longer match, and merges them into the held rows.
+     * The matching rows are then counted, and only if that shows that held
+     * rows have been deleted are the ids of the held rows looked up, so that
+     * the work done depends on the number of rows changed rather than the
+     * number held.
+     * <p>
+     * The merged rows are held in the cache and sorted in memory, in the
+     * same way as described for {@link #setClientSideSorting(boolean)}.  Changes committed with an
+     * attribute value lower than one already seen, for instance by a long
+     * transaction, are not fetched.  Attributes mapped as calendars cannot
+     * be used, since the query service formats their values.
+     * </p>
+     * @param deltaRefreshAttributePath the attribute path, or
+     * <code>null</code> to re-run the whole query on refresh.
+     */
+    public void setDeltaRefreshAttributePath(String deltaRefreshAttributePath) {
+        this.deltaRefreshAttributePath = deltaRefreshAttributePath;
+        this.deltaRefreshWatermark = null;
+    }
+    
+    /**
+     * @see #setDeltaRefreshAttributePath(String)
+     * @return the attribute path, or <code>null</code>.
+     */
+    public String getDeltaRefreshAttributePath() {
+        return deltaRefreshAttributePath;
+    }
+    
+    /**
+     * Sets whether, when all rows are cached, sorting re-orders the cached
+     * rows in memory instead of re-running the query.  Strings are then
+     * ordered using a collator for the query locale, which may not match the
+     * database collation exactly, dates and timestamps are ordered by
+     * parsing their formatted values, so timestamps only to the minute, and
+     * nulls come first when ascending.
+     * @param clientSideSorting whether to sort the cache in memory.
+     */
+    public void setClientSideSorting(boolean clientSideSorting) {
+        this.clientSideSorting = clientSideSorting;
+    }
+    
+    /**
+     * @see #setClientSideSorting(boolean)
+     * @return whether the cache may be sorted in memory.
+     */
+    public boolean getClientSideSorting() {
+        return clientSideSorting;
+    }
+    
+    @Override
+    public void refresh(SortData... sortData) {
+        if (sortInMemory(sortData)) {
+            return;
+        }
+        super.refresh(sortData);
+    }
+    
+    @Override
+    protected boolean refreshInMemory(SortData[] sortData) {
+        return sortData == null ? filterInMemory() : sortInMemory(sortData);
+    }
+    
+    private boolean filterInMemory() {
+        if (restrictionReplaced && clientSideFiltering && filterCache()) {
+            restrictionReplaced = false;
+            previousRestriction = null;
+            return true;
+        }
+        return false;
+    }
+    
+    private boolean sortInMemory(SortData[] sortData) {
+        return clientSideSorting && !restrictionReplaced && sortCache(sortData);
+    }
+    
+    @Override
+    protected void doRefresh(Query query) {
+        List<ResultSetRow> previousRows = resetForRefresh();
+        deltaRefreshWatermark = deltaRefreshAttributePath == null ? null : getDeltaRefreshWatermark();
+        super.doRefresh(query, previousRows);
+    }
+    
+    @Override
+    protected void completeRefresh(SortData[] sortData, ResultSet rs) {
+        List<ResultSetRow> previousRows = resetForRefresh();
+        // the watermark was not read before the rows, so the next refresh runs the whole query
+        deltaRefreshWatermark = null;
+        super.completeRefresh(sortData, rs, previousRows);
+    }
+    
+    /**
+     * Discards the state which depends on the current rows.
+     * @return the rows before the refresh, if incremental refresh is on.
+     */
+    private List<ResultSetRow> resetForRefresh() {
+        // taken before the in-memory sort order is discarded
+        List<ResultSetRow> ret = getIncrementalRefresh() ? getHeldRows() : null;
+        restrictionReplaced = false;
+        previousRestriction = null;
+        rowOrder = null;
+        cacheOverBudget = false;
+        releaseWindow();
+        releaseSpilledRows();
+        return ret;
+    }
+    
+    @Override
+    protected List<ResultSetRow> getHeldRows() {
+        List<ResultSetRow> ret = super.getHeldRows();
+        if (ret == null || rowOrder == null) {
+            return ret;
+        }
+        List<ResultSetRow> ordered = new ArrayList<ResultSetRow>(ret.size());
+        for (int i = 0; i < ret.size(); i++) {
+            ordered.add(ret.get(rowOrder[i]));
+        }
+        return ordered;
+    }
+    
+    /**
+     * Re-orders the cached rows, if they are all held and can be compared
+     * in memory.
+     * @return whether the cache was sorted.
+     */
+    private boolean sortCache(SortData[] sortData) {
+        if (cache == null || sortData == null || sortData.length == 0) {
+            return false;
+        }
+        ResultSet rs = getResultSet();
+        List<ResultSetRow> rows = rs.getCachedPageRows();
+        if (rs.getQueryBailedOut() || query.getMaxRows() > 0
+                || rows.size() != rs.getRowCount() || !cache.isView(rows)) {
+            return false;
+        }
+        CachedRowComparator comparator = CachedRowComparator.create(cache, sortData,
+                query.getLocale());
+        if (comparator == null) {
+            log.debug("Cached rows cannot be sorted in memory, re-running the query");
+            return false;
+        }
+        
+        setSortData(sortData);
+        query.setSortDatas(sortData);
+        rowOrder = comparator.sort(cache.getRowCount());
+        setResultSet(makeHeldResultSet(rows));
+        return true;
+    }
+    
+    /**
+     * Returns a result set which holds all the passed rows, so that it
+     * never tries to fetch another page.
+     */
+    private ResultSet makeHeldResultSet(List<ResultSetRow> rows) {
+        ResultSet ret = new ResultSet();
+        ret.setQuery(query.makeClone().setFetchSize(0));
+        ret.setCachedPageRows(rows);
+        ret.setRowCount(rows.size());
+        return ret;
+    }
+    
+    /**
+     * Copies the passed rows into a new cache.
+     * @return the cache, or <code>null</code> if the rows would exceed the
+     * budget of this model or the global budget, in which case the new
+     * cache has been released.
+     */
+    private ColumnarCache makeCache(List<ResultSetRow> rows) {
+        ColumnarCache ret = new ColumnarCache(getColumnCount(), rows.size(), cacheMemoryBudget,
+                getOffHeapPages());
+        for (ResultSetRow row : rows) {
+            if (!ret.handleRow(row)) {
+                break;
+            }
+        }
+        if (!ret.complete()) {
+            ret.release();
+            return null;
+        }
+        return ret;
+    }
+    
+    /**
+     * Fetches the rows changed since the last refresh and merges them into
+     * the held rows.
+     * @return whether the rows were merged.
+     */
+    private boolean deltaRefresh() {
+        if (deltaRefreshWatermark == null || query.getMaxRows() > 0) {
+            return false;
+        }
+        List<ResultSetRow> previousRows = getHeldRows();
+        if (previousRows == null) {
+            return false;
+        }
+        Object watermark = getDeltaRefreshWatermark();
+        if (watermark == null) {
+            return false;
+        }
+        
+        Query changedQuery = query.makeClone();
+        changedQuery.setFetchSize(0);
+        changedQuery.setBailOutSize(0);
+        changedQuery.setCalculateRowCount(false);
+        Restriction changedRestriction = new SimpleRestriction(deltaRefreshAttributePath,
+                Operator.GREATER_THAN_OR_EQUALS, deltaRefreshWatermark);
+        changedQuery.setFilterCriterion(query.getFilterCriterion() == null ? changedRestriction
+                : new AndRestriction(query.getFilterCriterion(), changedRestriction));
+        List<ResultSetRow> changedRows = getQueryService().executeQuery(changedQuery)
+                .getCachedPageRows();
+        
+        // including the rows changed so that they no longer match the filter
+        Query changedIdQuery = new Query();
+        changedIdQuery.setObjectClassName(query.getObjectClassName());
+        changedIdQuery.setFilterCriterion(changedRestriction);
+        Set<String> changedIds = new HashSet<String>();
+        for (ResultSetRow row : getQueryService().executeQuery(changedIdQuery).getCachedPageRows()) {
+            changedIds.add(row.getId());
+        }
+        for (ResultSetRow row : changedRows) {
+            changedIds.add(row.getId());
+        }
+        List<ResultSetRow> unchangedRows = new ArrayList<ResultSetRow>();
+        for (ResultSetRow row : previousRows) {
+            if (!changedIds.contains(row.getId())) {
+                unchangedRows.add(row);
+            }
+        }
+        
+        // deleted rows leave nothing to select, but are missing from the count
+        long matchCount = countMatches();
+        if (changedRows.size() + unchangedRows.size() != matchCount) {
+            unchangedRows = selectRemainingRows(unchangedRows);
+            if (unchangedRows == null
+                    || changedRows.size() + unchangedRows.size() != matchCount) {
+                log.debug("Matching rows were neither held nor changed, re-running the query");
+                return false;
+            }
+        }
+        List<ResultSetRow> merged = new ArrayList<ResultSetRow>(changedRows);
+        merged.addAll(unchangedRows);
+        
+        ColumnarCache mergedCache = makeCache(merged);
+        if (mergedCache == null) {
+            log.debug("Merged rows exceed the cache budget, re-running the query");
+            return false;
+        }
+        SortData[] sortData = query.getSortData() == null ? new SortData[0] : query.getSortData();
+        CachedRowComparator comparator = CachedRowComparator.create(mergedCache, sortData,
+                query.getLocale());
+        if (comparator == null) {
+            log.debug("Merged rows cannot be sorted in memory, re-running the query");
+            mergedCache.release();
+            return false;
+        }
+        log.debug("Merged " + changedRows.size() + " changed rows with "
+                + unchangedRows.size() + " of " + previousRows.size() + " held rows");
+        
+        if (cache != null) {
+            cache.release();
+        }
+        cache = mergedCache;
+        deltaRefreshWatermark = watermark;
+        rowOrder = comparator.sort(cache.getRowCount());
+        setResultSet(makeHeldResultSet(cache.getRows()),
+                getIncrementalRefresh() ? previousRows : null);
+        return true;
+    }
+    
+    /**
+     * Counts the rows which match the filter.
+     */
+    private long countMatches() {
+        Query countQuery = new Query();
+        countQuery.setObjectClassName(query.getObjectClassName());
+        countQuery.setFilterCriterion(query.getFilterCriterion());
+        countQuery.addColumn("id", AggregateFunction.COUNT);
+        countQuery.setIncludeId(false);
+        List<ResultSetRow> rows = getQueryService().executeQuery(countQuery).getCachedPageRows();
+        Object ret = rows.isEmpty() ? null : rows.get(0).getColumns()[0].getValue();
+        return ret == null ? 0 : ((Number) ret).longValue();
+    }
+    
+    /**
+     * Returns those of the passed rows which still match the filter, looking
+     * their ids up a batch at a time.
+     * @return the rows, or <code>null</code> if the ids cannot be looked up.
+     */
+    private List<ResultSetRow> selectRemainingRows(List<ResultSetRow> rows) {
+        Class<?> idClass = getIdClass();
+        if (idClass == null) {
+            return null;
+        }
+        log.debug("Held rows have been deleted, looking up the ids of " + rows.size() + " rows");
+        
+        Set<String> remainingIds = new HashSet<String>();
+        for (int from = 0; from < rows.size(); from += ID_BATCH_SIZE) {
+            List<ResultSetRow> batch = rows.subList(from,
+                    Math.min(rows.size(), from + ID_BATCH_SIZE));
+            Object[] ids = new Object[batch.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = toIdValue(batch.get(i).getId(), idClass);
+                if (ids[i] == null) {
+                    return null;
+                }
+            }
+            Restriction idRestriction = new SimpleRestriction("id", Operator.IN, ids);
+            Query idQuery = new Query();
+            idQuery.setObjectClassName(query.getObjectClassName());
+            idQuery.setFilterCriterion(query.getFilterCriterion() == null ? idRestriction
+                    : new AndRestriction(query.getFilterCriterion(), idRestriction));
+            for (ResultSetRow row : getQueryService().executeQuery(idQuery).getCachedPageRows()) {
+                remainingIds.add(row.getId());
+            }
+        }
+        
+        List<ResultSetRow> ret = new ArrayList<ResultSetRow>(remainingIds.size());
+        for (ResultSetRow row : rows) {
+            if (remainingIds.contains(row.getId())) {
+                ret.add(row);
+            }
+        }
+        return ret;
+    }
+    
+    /**
+     * Returns the class of the ids, as selected by the query service, so
+     * that held ids can be passed back to it, or <code>null</code> if
+     * there are no rows.
+     */
+    private Class<?> getIdClass() {
+        Query idClassQuery = new Query();
+        idClassQuery.setObjectClassName(query.getObjectClassName());
+        idClassQuery.addColumn("id");
+        idClassQuery.setIncludeId(false);
+        idClassQuery.setMaxRows(1);
+        List<ResultSetRow> rows = getQueryService().executeQuery(idClassQuery)
+                .getCachedPageRows();
+        Object id = rows.isEmpty() ? null : rows.get(0).getColumns()[0].getValue();
+        return id == null ? null : id.getClass();
+    }
+    
+    /**
+     * Converts a held id to the passed class, returning <code>null</code>
+     * if it cannot be.
+     */
+    private static Object toIdValue(String id, Class<?> idClass) {
+        try {
+            if (idClass == Long.class) {
+                return Long.valueOf(id);
+            }
+            if (idClass == Integer.class) {
+                return Integer.valueOf(id);
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return idClass == String.class ? id : null;
+    }
+    
+    /**
+     * Returns the greatest value of the delta refresh attribute, read before
+     * the rows so that changes made meanwhile are fetched next time.
+     */
+    private Object getDeltaRefreshWatermark() {
+        Query watermarkQuery = new Query();
+        watermarkQuery.setObjectClassName(query.getObjectClassName());
+        watermarkQuery.addColumn(deltaRefreshAttributePath, AggregateFunction.MAXIMUM);
+        watermarkQuery.setIncludeId(false);
+        List<ResultSetRow> rows = getQueryService().executeQuery(watermarkQuery)
+                .getCachedPageRows();
+        Object ret = rows.isEmpty() ? null : rows.get(0).getColumns()[0].getValue();
+        if (ret instanceof String) {
+            log.warn("Values of " + deltaRefreshAttributePath
+                    + " are formatted, so cannot be used for delta refresh");
+            return null;
+        }
+        return ret;
+    }
+    
+    /**
+     * Applies the replaced filter to the cached rows, if they are all held
+     * and the new filter can be evaluated in memory.
+     * @return whether the cache was filtered.
+     */
+    private boolean filterCache() {
+        if (cache == null) {
+            return false;
+        }
+        ResultSet rs = getResultSet();
+        List<ResultSetRow> rows = rs.getCachedPageRows();
+        if (rs.getQueryBailedOut() || query.getMaxRows() > 0
+                || rows.size() != rs.getRowCount()
+                || !RestrictionEvaluator.implies(query.getFilterCriterion(), previousRestriction)) {
+            return false;
+        }
+        
+        List<ResultSetRow> matches = new ArrayList<ResultSetRow>();
+        if (rows.size() > 0) {
+            ResultSetColumn[] columns = rows.get(0).getColumns();
+            DataType[] columnTypes = new DataType[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                columnTypes[i] = columns[i].getDataType();
+            }
+            RestrictionEvaluator evaluator = RestrictionEvaluator.compile(
+                    query.getFilterCriterion(), query, columnTypes);
+            if (evaluator == null) {
+                log.debug("Filter cannot be evaluated in memory, re-running the query");
+                return false;
+            }
+            
+            Object[] values = new Object[columns.length];
+            for (int i = 0; i < rows.size(); i++) {
+                // keep any in-memory sort order
+                ResultSetRow row = rows.get(getCachedRowIndex(i));
+                columns = row.getColumns();
+                for (int col = 0; col < columns.length; col++) {
+                    values[col] = columns[col].getValue();
+                }
+                if (evaluator.matches(values)) {
+                    matches.add(row);
+                }
+            }
+        }
+        log.debug("Filtered " + rows.size() + " cached rows to " + matches.size());
+        
+        ColumnarCache filtered = makeCache(matches);
+        if (filtered == null) {
+            log.debug("Filtered rows exceed the cache budget, re-running the query");
+            return false;
+        }
+        cache.release();
+        cache = filtered;
+        
+        rowOrder = null;
+        setResultSet(makeHeldResultSet(cache.getRows()));
+        return true;
+    }
 }
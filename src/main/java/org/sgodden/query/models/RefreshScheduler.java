@@ -0,0 +1,275 @@
+package org.sgodden.query.models;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.sgodden.query.Query;
+import org.sgodden.query.ResultSet;
+import org.sgodden.query.SortData;
+import org.sgodden.query.service.BackgroundQueryService;
+import org.sgodden.query.service.BackgroundQueryService.PreparedQuery;
+import org.sgodden.query.service.QueryService;
+
+/**
+ * Refreshes a table model in the background, so that rapid requests such as
+ * sort clicks and filter typing do not each run a query while the user
+ * waits.
+ * <p>
+ * A refresh is only started once no further request has been made for the
+ * debounce delay, and each request supersedes the refresh before it: if
+ * that is still running its query is cancelled, and its results are
+ * discarded.  The results of the latest refresh are applied to the model by
+ * the passed executor, which must run them in the thread which owns the
+ * model.  For an Echo application this enqueues a task for the application
+ * instance:
+ * </p>
+ * <pre>
+ * final TaskQueueHandle handle = app.createTaskQueue();
+ * RefreshScheduler scheduler = new RefreshScheduler(model, 300, new Executor() {
+ *     public void execute(Runnable command) {
+ *         app.enqueueTask(handle, command);
+ *     }
+ * });
+ * </pre>
+ * <p>
+ * Refreshes which the model can do without running a query, such as
+ * sorting the cached rows of a {@link DefaultQueryTableModel} in memory,
+ * are done at once in the calling thread.
+ * </p>
+ * <p>
+ * The queries are run in another thread, so a query service whose
+ * sessions are bound to the thread which owns the model, such as
+ * {@link org.sgodden.query.service.QueryServiceImpl}, must implement
+ * {@link BackgroundQueryService}, and each query is prepared in the model's
+ * thread when the refresh is requested.  Other query services must be safe
+ * to use from any thread.
+ * </p>
+ * @author sgodden
+ */
+public class RefreshScheduler {
+
+    private static final transient Log log = LogFactory.getLog(RefreshScheduler.class);
+
+    /**
+     * Waits out the debounce delays of all the schedulers.
+     */
+    private static final ScheduledExecutorService timer =
+        Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("refresh-timer"));
+
+    /**
+     * Runs the queries of all the schedulers.
+     */
+    private static final ExecutorService queryRunner =
+        Executors.newCachedThreadPool(new DaemonThreadFactory("refresh-query"));
+
+    private final AbstractQueryTableModel model;
+    private final long delayMillis;
+    private final Executor modelExecutor;
+
+    /**
+     * Incremented by each request, so that superseded refreshes can be
+     * recognised.
+     */
+    private final AtomicLong generation = new AtomicLong();
+
+    /**
+     * The refresh waiting for the debounce delay to pass.
+     */
+    private ScheduledFuture<?> pendingRefresh;
+
+    /**
+     * The query prepared for the refresh waiting for the debounce delay,
+     * which is discarded if the refresh is superseded before it starts.
+     */
+    private PreparedQuery pendingPreparedQuery;
+
+    /**
+     * The query of the refresh being run, and the service running it.
+     */
+    private Query runningQuery;
+    private QueryService runningQueryService;
+
+    /**
+     * Creates a new refresh scheduler.
+     * @param model the model to refresh.
+     * @param delayMillis the time in milliseconds for which no further
+     * request must be made before a refresh is started.
+     * @param modelExecutor runs the tasks which apply the results to the
+     * model, in the thread which owns the model.
+     */
+    public RefreshScheduler(AbstractQueryTableModel model, long delayMillis,
+            Executor modelExecutor) {
+        this.model = model;
+        this.delayMillis = delayMillis;
+        this.modelExecutor = modelExecutor;
+    }
+
+    /**
+     * Requests a refresh of the model with its current query and sort, as
+     * {@link AbstractQueryTableModel#refresh()} would do.  This must be
+     * called in the thread which owns the model.
+     */
+    public void requestRefresh() {
+        schedule(null);
+    }
+
+    /**
+     * Requests a refresh of the model with the passed sort, as
+     * {@link AbstractQueryTableModel#refresh(SortData...)} would do.  This
+     * must be called in the thread which owns the model.
+     * @param sortData the sort data to use.
+     */
+    public void requestRefresh(SortData... sortData) {
+        schedule(sortData);
+    }
+
+    /**
+     * Cancels the refresh waiting or running, if there is one.
+     */
+    public synchronized void cancel() {
+        generation.incrementAndGet();
+        cancelCurrent();
+    }
+
+    private synchronized void schedule(final SortData[] sortData) {
+        final long requestGeneration = generation.incrementAndGet();
+        cancelCurrent();
+        if (model.refreshInMemory(sortData)) {
+            log.debug("Refreshed in memory");
+            return;
+        }
+
+        // the query is copied now, as the model goes on changing it
+        final Query query = model.getQuery().makeClone();
+        if (sortData != null) {
+            query.setSortDatas(sortData);
+        }
+        final QueryService queryService = model.getQueryService();
+        // prepared now, as the service's session may be bound to this thread
+        final PreparedQuery preparedQuery = queryService instanceof BackgroundQueryService
+                ? ((BackgroundQueryService) queryService).prepareBackgroundQuery(query) : null;
+        pendingPreparedQuery = preparedQuery;
+        pendingRefresh = timer.schedule(new Runnable() {
+            public void run() {
+                start(requestGeneration, sortData, query, queryService, preparedQuery);
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Cancels the refresh waiting for the debounce delay, and the query of
+     * the refresh running.
+     */
+    private void cancelCurrent() {
+        if (pendingRefresh != null) {
+            // if it has already started, start() discards the prepared query instead
+            if (pendingRefresh.cancel(false) && pendingPreparedQuery != null) {
+                pendingPreparedQuery.discard();
+            }
+            pendingRefresh = null;
+            pendingPreparedQuery = null;
+        }
+        if (runningQuery != null) {
+            log.debug("Cancelling the query of a superseded refresh");
+            runningQueryService.cancelQuery(runningQuery);
+            runningQuery = null;
+            runningQueryService = null;
+        }
+    }
+
+    private void start(final long requestGeneration, final SortData[] sortData,
+            final Query query, final QueryService queryService,
+            final PreparedQuery preparedQuery) {
+        synchronized (this) {
+            if (generation.get() != requestGeneration) {
+                if (preparedQuery != null) {
+                    preparedQuery.discard();
+                }
+                return;
+            }
+            pendingRefresh = null;
+            pendingPreparedQuery = null;
+            runningQuery = query;
+            runningQueryService = queryService;
+        }
+        queryRunner.execute(new Runnable() {
+            public void run() {
+                runQuery(requestGeneration, sortData, query, queryService, preparedQuery);
+            }
+        });
+    }
+
+    private void runQuery(final long requestGeneration, final SortData[] sortData,
+            Query query, QueryService queryService, PreparedQuery preparedQuery) {
+        ResultSet rs = null;
+        Throwable failure = null;
+        try {
+            rs = preparedQuery != null ? preparedQuery.execute() : queryService.executeQuery(query);
+        } catch (RuntimeException e) {
+            failure = e;
+        } catch (Error e) {
+            failure = e;
+        } finally {
+            synchronized (this) {
+                if (runningQuery == query) {
+                    runningQuery = null;
+                    runningQueryService = null;
+                }
+            }
+        }
+
+        if (generation.get() != requestGeneration) {
+            log.debug("Discarding the results of a superseded refresh");
+            return;
+        }
+
+        final ResultSet result = rs;
+        final Throwable resultFailure = failure;
+        modelExecutor.execute(new Runnable() {
+            public void run() {
+                // a later request may have been made while this was queued
+                if (generation.get() != requestGeneration) {
+                    return;
+                }
+                // the failure is thrown where a synchronous refresh would have thrown it
+                if (resultFailure instanceof RuntimeException) {
+                    throw (RuntimeException) resultFailure;
+                }
+                if (resultFailure instanceof Error) {
+                    throw (Error) resultFailure;
+                }
+                model.completeRefresh(sortData, result);
+            }
+        });
+    }
+
+    /**
+     * Creates daemon threads, so that the schedulers do not prevent the
+     * application from stopping.
+     */
+    private static class DaemonThreadFactory implements ThreadFactory {
+
+        private final String name;
+        private final AtomicLong count = new AtomicLong();
+
+        DaemonThreadFactory(String name) {
+            this.name = name;
+        }
+
+        public Thread newThread(Runnable runnable) {
+            Thread ret = new Thread(runnable, name + "-" + count.incrementAndGet());
+            ret.setDaemon(true);
+            return ret;
+        }
+
+    }
+
+}
@@ -0,0 +1,188 @@
+package org.sgodden.query.models;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.sgodden.query.ResultSetColumn;
+import org.sgodden.query.ResultSetRow;
+
+/**
+ * The differences between two lists of result rows, matched by row id, as
+ * the ranges of rows deleted, inserted and updated.
+ * <p>
+ * The ranges are given in the order in which they should be applied: the
+ * deletions in descending order of their index in the old rows, then the
+ * insertions in ascending order of their index in the new rows, and then
+ * the updates, also indexed in the new rows.  Rows which are in both lists
+ * but in a different order are treated as deleted and re-inserted, keeping
+ * as many rows in place as possible.
+ * </p>
+ * @author sgodden
+ */
+class RowDiff {
+
+    private final List<int[]> deletedRanges = new ArrayList<int[]>();
+    private final List<int[]> insertedRanges = new ArrayList<int[]>();
+    private final List<int[]> updatedRanges = new ArrayList<int[]>();
+
+    private RowDiff() {
+    }
+
+    /**
+     * Compares the passed rows.
+     * @param oldRows the old rows.
+     * @param newRows the new rows.
+     * @return the differences, or <code>null</code> if the rows cannot be
+     * matched because they do not all have distinct ids.
+     */
+    static RowDiff compute(List<ResultSetRow> oldRows, List<ResultSetRow> newRows) {
+        Map<String, Integer> oldIndexes = new HashMap<String, Integer>();
+        for (int i = 0; i < oldRows.size(); i++) {
+            String id = oldRows.get(i).getId();
+            if (id == null || oldIndexes.put(id, i) != null) {
+                return null;
+            }
+        }
+
+        int[] oldIndexOfNew = new int[newRows.size()];
+        Map<String, Integer> newIndexes = new HashMap<String, Integer>();
+        for (int i = 0; i < newRows.size(); i++) {
+            String id = newRows.get(i).getId();
+            if (id == null || newIndexes.put(id, i) != null) {
+                return null;
+            }
+            Integer oldIndex = oldIndexes.get(id);
+            oldIndexOfNew[i] = oldIndex == null ? -1 : oldIndex;
+        }
+
+        boolean[] keptNew = getLongestIncreasingSubsequence(oldIndexOfNew);
+        boolean[] keptOld = new boolean[oldRows.size()];
+        for (int i = 0; i < keptNew.length; i++) {
+            if (keptNew[i]) {
+                keptOld[oldIndexOfNew[i]] = true;
+            }
+        }
+
+        RowDiff ret = new RowDiff();
+        for (int i = keptOld.length - 1; i >= 0; i--) {
+            if (!keptOld[i]) {
+                addDescending(ret.deletedRanges, i);
+            }
+        }
+        for (int i = 0; i < keptNew.length; i++) {
+            if (!keptNew[i]) {
+                addAscending(ret.insertedRanges, i);
+            }
+            else if (!sameValues(oldRows.get(oldIndexOfNew[i]), newRows.get(i))) {
+                addAscending(ret.updatedRanges, i);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @return the ranges of deleted rows, as first and last index.
+     */
+    List<int[]> getDeletedRanges() {
+        return deletedRanges;
+    }
+
+    /**
+     * @return the ranges of inserted rows, as first and last index.
+     */
+    List<int[]> getInsertedRanges() {
+        return insertedRanges;
+    }
+
+    /**
+     * @return the ranges of updated rows, as first and last index.
+     */
+    List<int[]> getUpdatedRanges() {
+        return updatedRanges;
+    }
+
+    /**
+     * @return the total number of ranges.
+     */
+    int getRangeCount() {
+        return deletedRanges.size() + insertedRanges.size() + updatedRanges.size();
+    }
+
+    private static void addAscending(List<int[]> ranges, int index) {
+        int[] last = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+        if (last != null && last[1] == index - 1) {
+            last[1] = index;
+        }
+        else {
+            ranges.add(new int[] {index, index});
+        }
+    }
+
+    private static void addDescending(List<int[]> ranges, int index) {
+        int[] last = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+        if (last != null && last[0] == index + 1) {
+            last[0] = index;
+        }
+        else {
+            ranges.add(new int[] {index, index});
+        }
+    }
+
+    private static boolean sameValues(ResultSetRow oldRow, ResultSetRow newRow) {
+        ResultSetColumn[] oldColumns = oldRow.getColumns();
+        ResultSetColumn[] newColumns = newRow.getColumns();
+        if (oldColumns.length != newColumns.length) {
+            return false;
+        }
+        for (int i = 0; i < oldColumns.length; i++) {
+            Object oldValue = oldColumns[i] == null ? null : oldColumns[i].getValue();
+            Object newValue = newColumns[i] == null ? null : newColumns[i].getValue();
+            if (oldValue == null ? newValue != null : !oldValue.equals(newValue)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Finds the longest strictly increasing subsequence of the non-negative
+     * values, which are the rows that can stay where they are.
+     * @return whether each value is in the subsequence.
+     */
+    private static boolean[] getLongestIncreasingSubsequence(int[] values) {
+        // tails[k] is the index of the smallest value ending a subsequence of length k + 1
+        int[] tails = new int[values.length];
+        int[] predecessors = new int[values.length];
+        int length = 0;
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] < 0) {
+                continue;
+            }
+            int low = 0;
+            int high = length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (values[tails[mid]] < values[i]) {
+                    low = mid + 1;
+                }
+                else {
+                    high = mid;
+                }
+            }
+            predecessors[i] = low > 0 ? tails[low - 1] : -1;
+            tails[low] = i;
+            if (low == length) {
+                length++;
+            }
+        }
+
+        boolean[] ret = new boolean[values.length];
+        for (int i = length > 0 ? tails[length - 1] : -1; i >= 0; i = predecessors[i]) {
+            ret[i] = true;
+        }
+        return ret;
+    }
+
+}
@@ -0,0 +1,164 @@
+package org.sgodden.query.models;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.sgodden.query.Query;
+import org.sgodden.query.service.QueryService;
+
+/**
+ * Caches a sliding window of the rows of a query around the rows most
+ * recently read, so that the memory used does not depend on the size of the
+ * result.
+ * <p>
+ * The rows are fetched in blocks of a fixed size.  When a read comes near
+ * the end of a block in the direction of scrolling, the next block in that
+ * direction is fetched as well, and when more than the maximum number of
+ * blocks are held, the blocks furthest from the current row are evicted.
+ * </p>
+ * <p>
+ * Since the number of rows held is bounded, the blocks are not limited by
+ * the global budget of the columnar caches, though they count towards it.
+ * </p>
+ * @author sgodden
+ */
+class WindowedRowCache {
+
+    private static final transient Log log = LogFactory.getLog(WindowedRowCache.class);
+
+    private final QueryService queryService;
+    private final Query query;
+    private final int rowCount;
+    private final int blockSize;
+    private final int maxBlocks;
+
+    /**
+     * The cached blocks, keyed by block index.
+     */
+    private final Map<Integer, ColumnarCache> blocks = new HashMap<Integer, ColumnarCache>();
+
+    private int lastRowIndex = -1;
+
+    /**
+     * Creates a new windowed cache.
+     * @param queryService the query service used to fetch the blocks.
+     * @param query the query whose rows are cached, which is not modified.
+     * @param rowCount the total number of rows.
+     * @param blockSize the number of rows fetched at a time.
+     * @param maxBlocks the maximum number of blocks held, at least three so
+     * that the blocks either side of the current one can be held.
+     */
+    WindowedRowCache(QueryService queryService, Query query, int rowCount,
+            int blockSize, int maxBlocks) {
+        this.queryService = queryService;
+        this.query = query;
+        this.rowCount = rowCount;
+        this.blockSize = blockSize;
+        this.maxBlocks = Math.max(maxBlocks, 3);
+    }
+
+    /**
+     * Returns the value at the passed position, fetching its block if
+     * necessary.
+     * @param colIndex the column index.
+     * @param rowIndex the row index.
+     * @return the value.
+     */
+    Object getValue(int colIndex, int rowIndex) {
+        return getBlock(rowIndex).getValue(colIndex, rowIndex % blockSize);
+    }
+
+    /**
+     * Returns the id of the passed row, fetching its block if necessary.
+     * @param rowIndex the row index.
+     * @return the id.
+     */
+    String getId(int rowIndex) {
+        return getBlock(rowIndex).getId(rowIndex % blockSize);
+    }
+
+    /**
+     * Releases all the blocks.
+     */
+    void release() {
+        for (ColumnarCache block : blocks.values()) {
+            block.release();
+        }
+        blocks.clear();
+    }
+
+    private ColumnarCache getBlock(int rowIndex) {
+        if (rowIndex < 0 || rowIndex >= rowCount) {
+            throw new IndexOutOfBoundsException("Row " + rowIndex + " of " + rowCount);
+        }
+        int blockIndex = rowIndex / blockSize;
+        ColumnarCache ret = loadBlock(blockIndex);
+
+        // prefetch when the read is in the last quarter of the block, in the
+        // direction of scrolling
+        int offset = rowIndex % blockSize;
+        if (lastRowIndex >= 0 && rowIndex > lastRowIndex
+                && offset >= blockSize - blockSize / 4) {
+            loadBlock(blockIndex + 1);
+        }
+        else if (lastRowIndex >= 0 && rowIndex < lastRowIndex
+                && offset < blockSize / 4) {
+            loadBlock(blockIndex - 1);
+        }
+        lastRowIndex = rowIndex;
+
+        evict(blockIndex);
+        return ret;
+    }
+
+    private ColumnarCache loadBlock(int blockIndex) {
+        ColumnarCache ret = blocks.get(blockIndex);
+        if (ret != null || blockIndex < 0 || blockIndex * blockSize >= rowCount) {
+            return ret;
+        }
+
+        log.debug("Fetching rows " + blockIndex * blockSize + " to "
+                + Math.min((blockIndex + 1) * blockSize, rowCount));
+        Query blockQuery = query.makeClone();
+        /*
+         * We already know exactly what we are doing, so no need to
+         * specify bail out, or to calculate a row count.
+         */
+        blockQuery.setBailOutSize(0);
+        blockQuery.setCalculateRowCount(false);
+        blockQuery.setFetchSize(0);
+        blockQuery.setRowOffset(blockIndex * blockSize);
+        blockQuery.setMaxRows(blockSize);
+
+        ret = new ColumnarCache(query.getColumns().size(), blockSize, 0, false, true);
+        queryService.executeQuery(blockQuery, ret);
+        if (!ret.complete()) {
+            // not expected, as the block has no budget of its own
+            ret.release();
+            throw new IllegalStateException("Rows from " + blockIndex * blockSize
+                    + " could not be cached");
+        }
+        blocks.put(blockIndex, ret);
+        return ret;
+    }
+
+    /**
+     * Evicts the blocks furthest from the current one, until no more than
+     * the maximum number are held.
+     */
+    private void evict(int currentBlockIndex) {
+        while (blocks.size() > maxBlocks) {
+            int furthest = currentBlockIndex;
+            for (Integer blockIndex : blocks.keySet()) {
+                if (Math.abs(blockIndex - currentBlockIndex) > Math.abs(furthest - currentBlockIndex)) {
+                    furthest = blockIndex;
+                }
+            }
+            log.debug("Evicting rows from " + furthest * blockSize);
+            blocks.remove(furthest).release();
+        }
+    }
+
+}
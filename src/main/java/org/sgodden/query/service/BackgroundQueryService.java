@@ -0,0 +1,43 @@
+package org.sgodden.query.service;
+
+import org.sgodden.query.Query;
+import org.sgodden.query.ResultSet;
+
+/**
+ * A query service whose queries can be prepared in one thread and run in
+ * another, for services whose sessions are bound to the thread which
+ * requests the query.
+ * @author sgodden
+ */
+public interface BackgroundQueryService extends QueryService {
+
+	/**
+	 * Prepares the passed query to be executed in another thread, taking
+	 * from the calling thread whatever the execution needs from it, such
+	 * as its session.
+	 * @param query the query.
+	 * @return the prepared query, which must be either executed or
+	 * discarded.
+	 */
+	public PreparedQuery prepareBackgroundQuery(Query query);
+
+	/**
+	 * A query prepared to be executed in another thread.
+	 */
+	public interface PreparedQuery {
+
+		/**
+		 * Executes the query, as {@link QueryService#executeQuery(Query)}
+		 * would, and releases what was taken for it.
+		 * @return the results of the query.
+		 */
+		public ResultSet execute();
+
+		/**
+		 * Releases what was taken for the query without executing it.
+		 */
+		public void discard();
+
+	}
+
+}
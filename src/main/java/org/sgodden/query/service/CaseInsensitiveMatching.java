@@ -0,0 +1,106 @@
+package org.sgodden.query.service;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Configures, per attribute path, how restrictions which ignore case
+ * are rendered.
+ * <p>
+ * By default the column is wrapped in <code>UPPER(...)</code>, which
+ * prevents the database from using an ordinary index on it.  For frequently
+ * searched columns, one of the other strategies may be configured:
+ * <ul>
+ * <li>{@link Strategy#SHADOW_PROPERTY} - the restriction is applied to a
+ * sibling property which holds an upper-cased copy of the value, and which
+ * can be indexed;</li>
+ * <li>{@link Strategy#COLLATION} - the column is compared as-is, relying on
+ * a case-insensitive collation defined for the column in the database.</li>
+ * </ul>
+ * </p>
+ * @author sgodden
+ */
+public class CaseInsensitiveMatching implements Serializable {
+
+    private static final long serialVersionUID = 20101019L;
+
+    /**
+     * The ways in which a case-insensitive restriction may be rendered.
+     */
+    public enum Strategy {
+        /**
+         * Upper-cases both the column and the value.
+         */
+        UPPER,
+        /**
+         * Compares the upper-cased value with a pre-normalized shadow property.
+         */
+        SHADOW_PROPERTY,
+        /**
+         * Compares the value with the column unchanged, relying on a
+         * case-insensitive database collation.
+         */
+        COLLATION
+    }
+
+    private Map<String, Strategy> strategies = new HashMap<String, Strategy>();
+    private Map<String, String> shadowProperties = new HashMap<String, String>();
+
+    /**
+     * Specifies that case-insensitive restrictions on the passed attribute
+     * path should rely on a case-insensitive database collation.
+     * @param className the name of the class against which queries are run.
+     * @param attributePath the (potentially nested) attribute path.
+     * @return this object.
+     */
+    public CaseInsensitiveMatching useCollation(String className, String attributePath) {
+        strategies.put(makeKey(className, attributePath), Strategy.COLLATION);
+        return this;
+    }
+
+    /**
+     * Specifies that case-insensitive restrictions on the passed attribute
+     * path should instead be applied to a sibling property, which the
+     * application maintains as an upper-cased copy of the original.
+     * @param className the name of the class against which queries are run.
+     * @param attributePath the (potentially nested) attribute path.
+     * @param shadowPropertyName the name of the upper-cased property, on the
+     * same entity as the final attribute in the path.
+     * @return this object.
+     */
+    public CaseInsensitiveMatching useShadowProperty(String className,
+            String attributePath, String shadowPropertyName) {
+        String key = makeKey(className, attributePath);
+        strategies.put(key, Strategy.SHADOW_PROPERTY);
+        shadowProperties.put(key, shadowPropertyName);
+        return this;
+    }
+
+    /**
+     * Returns the strategy for the passed attribute path.
+     * @param className the name of the class against which the query is run.
+     * @param attributePath the (potentially nested) attribute path.
+     * @return the strategy, {@link Strategy#UPPER} if none was configured.
+     */
+    public Strategy getStrategy(String className, String attributePath) {
+        Strategy ret = strategies.get(makeKey(className, attributePath));
+        return ret == null ? Strategy.UPPER : ret;
+    }
+
+    /**
+     * Returns the name of the shadow property for the passed attribute path.
+     * @param className the name of the class against which the query is run.
+     * @param attributePath the (potentially nested) attribute path.
+     * @return the shadow property name, or <code>null</code> if none was
+     * configured.
+     */
+    public String getShadowPropertyName(String className, String attributePath) {
+        return shadowProperties.get(makeKey(className, attributePath));
+    }
+
+    private String makeKey(String className, String attributePath) {
+        return className + '#' + attributePath;
+    }
+
+}
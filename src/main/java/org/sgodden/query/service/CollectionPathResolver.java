@@ -0,0 +1,94 @@
+package org.sgodden.query.service;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.type.Type;
+import org.sgodden.query.ObjectUtils;
+import org.sgodden.query.Query;
+import org.sgodden.query.QueryColumn;
+
+/**
+ * Determines which restriction attribute paths pass through a
+ * collection-valued association, and so should be rendered as
+ * correlated EXISTS sub-queries rather than joined into the main query.
+ * <p/>
+ * This class is not thread-safe.
+ *
+ * @author sgodden
+ */
+class CollectionPathResolver {
+
+    private Query query;
+    private SessionFactory sessionFactory;
+
+    /**
+     * Cache of attribute path to the collection path, or to the empty
+     * string if the path does not go through a collection.
+     */
+    private Map<String, String> collectionPaths = new HashMap<String, String>();
+
+    CollectionPathResolver(Query query, SessionFactory sessionFactory) {
+        this.query = query;
+        this.sessionFactory = sessionFactory;
+    }
+
+    /**
+     * Returns the leading part of the relation path of the passed attribute
+     * path, up to and including the first collection-valued association, or
+     * <code>null</code> if the restriction should be joined as normal.
+     * <p/>
+     * For instance, given <code>orders.lines.sku</code> where
+     * <code>orders</code> is a collection, this returns <code>orders</code>.
+     *
+     * @param attributePath the restriction attribute path.
+     * @return the collection path, or <code>null</code>.
+     */
+    String getCollectionPath(String attributePath) {
+        String ret = collectionPaths.get(attributePath);
+        if (ret == null) {
+            ret = findCollectionPath(attributePath);
+            collectionPaths.put(attributePath, ret);
+        }
+        return "".equals(ret) ? null : ret;
+    }
+
+    private String findCollectionPath(String attributePath) {
+        // the locale where clauses rely on the localeData joins
+        if (!QueryUtil.isRelatedColumn(attributePath)
+                || attributePath.contains("localeData")) {
+            return "";
+        }
+
+        String[] pathElements = QueryUtil.getRelationName(attributePath).split("\\.");
+        String currentPath = "";
+        for (int i = 0; i < pathElements.length; i++) {
+            if (i > 0) {
+                currentPath += ".";
+            }
+            currentPath += pathElements[i];
+            Type type = ObjectUtils.getPropertyClass(query.getObjectClassName(),
+                    currentPath, sessionFactory);
+            if (type.isCollectionType()) {
+                return isSelected(currentPath) ? "" : currentPath;
+            }
+        }
+        return "";
+    }
+
+    /**
+     * Returns whether any selected column goes through the passed relation
+     * path, in which case the collection is joined anyway and restrictions on
+     * it must continue to filter the joined rows.
+     */
+    private boolean isSelected(String relationPath) {
+        for (QueryColumn col : query.getColumns()) {
+            if (col.getAttributePath().startsWith(relationPath + ".")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
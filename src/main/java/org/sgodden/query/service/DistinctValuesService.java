@@ -0,0 +1,366 @@
+package org.sgodden.query.service;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.SessionFactory;
+import org.hibernate.cfg.Configuration;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.hibernate.event.EventListeners;
+import org.hibernate.event.PostDeleteEvent;
+import org.hibernate.event.PostDeleteEventListener;
+import org.hibernate.event.PostInsertEvent;
+import org.hibernate.event.PostInsertEventListener;
+import org.hibernate.event.PostUpdateEvent;
+import org.hibernate.event.PostUpdateEventListener;
+import org.hibernate.type.AssociationType;
+import org.hibernate.type.Type;
+import org.sgodden.query.AggregateFunction;
+import org.sgodden.query.ObjectUtils;
+import org.sgodden.query.Query;
+import org.sgodden.query.ResultSetRow;
+
+/**
+ * Provides the distinct values of an attribute, for instance to populate
+ * filter drop-downs and type-ahead fields, from a sorted in-memory index
+ * which is loaded using the query service the first time the values of an
+ * attribute are requested in a locale.
+ * <p>
+ * The indexes are kept up to date by registering this object as a hibernate
+ * post-commit-insert, post-commit-update and post-commit-delete event
+ * listener, for instance using {@link #register(Configuration)}: any
+ * committed change to an entity along an indexed attribute path discards
+ * the index, which is then reloaded on the next request.  Uncommitted
+ * changes must not discard the index, as it could be reloaded before the
+ * change is committed and so never see it.
+ * </p>
+ * <p>
+ * Null values are not included.
+ * </p>
+ * @author sgodden
+ */
+public class DistinctValuesService implements
+        PostInsertEventListener, PostUpdateEventListener, PostDeleteEventListener {
+
+    private static final long serialVersionUID = 20101019L;
+
+    private static final transient Log log = LogFactory.getLog(DistinctValuesService.class);
+
+    /**
+     * Stands for any entity, where the entities along a path could not be
+     * determined.
+     */
+    private static final String ANY_ENTITY = "*";
+
+    private transient QueryService queryService;
+
+    private transient SessionFactory sessionFactory;
+
+    /**
+     * The indexes, keyed by class name, attribute path and locale.
+     */
+    private Map<String, ValueIndex> indexes = new ConcurrentHashMap<String, ValueIndex>();
+
+    /**
+     * Incremented on every invalidation, so that an index which was being
+     * loaded at the time is not kept.
+     */
+    private AtomicLong invalidations = new AtomicLong();
+
+    /**
+     * Sets the query service used to load the values.
+     * @param queryService the query service.
+     */
+    public void setQueryService(QueryService queryService) {
+        this.queryService = queryService;
+    }
+
+    /**
+     * Sets the session factory, used to determine which entities the value
+     * of an attribute path depends on.  If it is not set, every entity event
+     * discards all the indexes.
+     * @param sessionFactory the hibernate session factory.
+     */
+    public void setSessionFactory(SessionFactory sessionFactory) {
+        this.sessionFactory = sessionFactory;
+    }
+
+    /**
+     * Returns all the distinct values of the attribute.
+     * @param className the name of the class.
+     * @param attributePath the (potentially nested) attribute path.
+     * @param locale the locale, used for locale data attributes and to
+     * compare strings regardless of case.
+     * @return the values, in order.
+     */
+    public List<Object> getValues(String className, String attributePath, Locale locale) {
+        return Collections.unmodifiableList(Arrays.asList(
+                getIndex(className, attributePath, locale).values));
+    }
+
+    /**
+     * Returns the distinct values of the attribute whose string
+     * representation starts with the passed prefix, regardless of case.
+     * @param className the name of the class.
+     * @param attributePath the (potentially nested) attribute path.
+     * @param locale the locale, used for locale data attributes and to
+     * compare strings regardless of case.
+     * @param prefix the prefix.
+     * @param maxResults the maximum number of values to return, or zero for
+     * no limit.
+     * @return the matching values, in order.
+     */
+    public List<Object> findValues(String className, String attributePath,
+            Locale locale, String prefix, int maxResults) {
+        return getIndex(className, attributePath, locale).find(prefix, maxResults);
+    }
+
+    /**
+     * Registers this object as a post-commit insert, update and delete
+     * listener in the passed configuration, before the session factory is
+     * built.
+     * @param configuration the hibernate configuration.
+     */
+    public void register(Configuration configuration) {
+        EventListeners listeners = configuration.getEventListeners();
+        listeners.setPostCommitInsertEventListeners(QueryUtil.appendListener(
+                listeners.getPostCommitInsertEventListeners(), (PostInsertEventListener) this));
+        listeners.setPostCommitUpdateEventListeners(QueryUtil.appendListener(
+                listeners.getPostCommitUpdateEventListeners(), (PostUpdateEventListener) this));
+        listeners.setPostCommitDeleteEventListeners(QueryUtil.appendListener(
+                listeners.getPostCommitDeleteEventListeners(), (PostDeleteEventListener) this));
+    }
+
+    /**
+     * Discards all the indexes.
+     */
+    public void invalidateAll() {
+        invalidations.incrementAndGet();
+        indexes.clear();
+    }
+
+    public void onPostInsert(PostInsertEvent event) {
+        invalidate(event.getPersister().getEntityName(), event.getSession().getFactory());
+    }
+
+    public void onPostUpdate(PostUpdateEvent event) {
+        invalidate(event.getPersister().getEntityName(), event.getSession().getFactory());
+    }
+
+    public void onPostDelete(PostDeleteEvent event) {
+        invalidate(event.getPersister().getEntityName(), event.getSession().getFactory());
+    }
+
+    /**
+     * Discards the indexes which depend on the passed entity.
+     */
+    private void invalidate(String entityName, SessionFactoryImplementor factory) {
+        invalidations.incrementAndGet();
+        for (Iterator<Map.Entry<String, ValueIndex>> it = indexes.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<String, ValueIndex> entry = it.next();
+            if (entry.getValue().dependsOn(entityName, factory)) {
+                log.debug("Discarding distinct values " + entry.getKey());
+                it.remove();
+            }
+        }
+    }
+
+    private ValueIndex getIndex(String className, String attributePath, Locale locale) {
+        if (locale == null) {
+            locale = Locale.getDefault();
+        }
+        String key = className + '#' + attributePath + '#' + locale;
+        ValueIndex ret = indexes.get(key);
+        if (ret == null) {
+            long invalidationsBefore = invalidations.get();
+            ret = load(className, attributePath, locale);
+            if (invalidations.get() == invalidationsBefore) {
+                indexes.put(key, ret);
+            }
+        }
+        return ret;
+    }
+
+    private ValueIndex load(String className, String attributePath, Locale locale) {
+        if (queryService == null) {
+            throw new NullPointerException("The query service is null - did you forget to set it?");
+        }
+
+        Query query = new Query();
+        query.setObjectClassName(className);
+        query.setLocale(locale);
+        if (attributePath.contains("localeData")) {
+            // the nearest locale value can only be selected per object
+            query.addColumn(attributePath, AggregateFunction.LOCALE);
+        }
+        else {
+            query.addColumn(attributePath);
+            query.addColumn("id", AggregateFunction.COUNT);
+            query.setIncludeId(false);
+        }
+
+        Set<Object> values = new LinkedHashSet<Object>();
+        for (ResultSetRow row : queryService.executeQuery(query).getCachedPageRows()) {
+            Object value = row.getColumns()[0].getValue();
+            if (value != null) {
+                values.add(value);
+            }
+        }
+        log.debug("Loaded " + values.size() + " distinct values of "
+                + className + "." + attributePath);
+
+        return new ValueIndex(values, locale, getDependencies(className, attributePath));
+    }
+
+    /**
+     * Returns the names of the entities along the attribute path.
+     */
+    private Set<String> getDependencies(String className, String attributePath) {
+        Set<String> ret = new HashSet<String>();
+        ret.add(className);
+        if (sessionFactory == null) {
+            ret.add(ANY_ENTITY);
+            return ret;
+        }
+        try {
+            String[] pathElements = attributePath.split("\\.");
+            String currentPath = "";
+            for (int i = 0; i < pathElements.length - 1; i++) {
+                currentPath += (i > 0 ? "." : "") + pathElements[i];
+                Type type = ObjectUtils.getPropertyClass(className, currentPath, sessionFactory);
+                ret.add(((AssociationType) type).getAssociatedEntityName(
+                        (SessionFactoryImplementor) sessionFactory));
+            }
+        } catch (Exception e) {
+            log.debug("Could not determine the entities of " + attributePath, e);
+            ret.add(ANY_ENTITY);
+        }
+        return ret;
+    }
+
+    /**
+     * The sorted distinct values of a single attribute.
+     */
+    private static class ValueIndex implements Serializable {
+
+        private static final long serialVersionUID = 20101019L;
+
+        private final Object[] values;
+
+        /**
+         * The upper-cased string representations of the values, in the
+         * same order, if the values are strings.
+         */
+        private final String[] keys;
+
+        private final Locale locale;
+
+        private final Set<String> dependencies;
+
+        ValueIndex(Set<Object> values, final Locale locale, Set<String> dependencies) {
+            this.locale = locale;
+            this.dependencies = dependencies;
+            this.values = values.toArray();
+
+            boolean strings = true;
+            for (Object value : this.values) {
+                if (!(value instanceof String)) {
+                    strings = false;
+                    break;
+                }
+            }
+
+            if (strings) {
+                Arrays.sort(this.values, new Comparator<Object>() {
+                    public int compare(Object o1, Object o2) {
+                        int ret = ((String) o1).toUpperCase(locale).compareTo(
+                                ((String) o2).toUpperCase(locale));
+                        return ret != 0 ? ret : ((String) o1).compareTo((String) o2);
+                    }
+                });
+                keys = new String[this.values.length];
+                for (int i = 0; i < keys.length; i++) {
+                    keys[i] = ((String) this.values[i]).toUpperCase(locale);
+                }
+            }
+            else {
+                try {
+                    Arrays.sort(this.values);
+                } catch (ClassCastException e) {
+                    // not mutually comparable, so leave in the order loaded
+                }
+                keys = null;
+            }
+        }
+
+        List<Object> find(String prefix, int maxResults) {
+            String prefixKey = prefix.toUpperCase(locale);
+            List<Object> ret = new ArrayList<Object>();
+            if (keys != null) {
+                // the matches are contiguous, starting at the insertion point
+                int i = Arrays.binarySearch(keys, prefixKey);
+                if (i < 0) {
+                    i = -i - 1;
+                }
+                else {
+                    while (i > 0 && keys[i - 1].equals(prefixKey)) {
+                        i--;
+                    }
+                }
+                for (; i < keys.length && keys[i].startsWith(prefixKey); i++) {
+                    if (maxResults > 0 && ret.size() == maxResults) {
+                        break;
+                    }
+                    ret.add(values[i]);
+                }
+            }
+            else {
+                for (Object value : values) {
+                    if (maxResults > 0 && ret.size() == maxResults) {
+                        break;
+                    }
+                    if (value.toString().toUpperCase(locale).startsWith(prefixKey)) {
+                        ret.add(value);
+                    }
+                }
+            }
+            return ret;
+        }
+
+        /**
+         * Returns whether a change to the passed entity may change the
+         * values of this index.
+         */
+        boolean dependsOn(String entityName, SessionFactoryImplementor factory) {
+            if (dependencies.contains(ANY_ENTITY) || dependencies.contains(entityName)) {
+                return true;
+            }
+            // the entity may be a subclass of one along the path
+            for (String dependency : dependencies) {
+                try {
+                    if (factory.getEntityPersister(dependency).isSubclassEntityName(entityName)) {
+                        return true;
+                    }
+                } catch (Exception e) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+}
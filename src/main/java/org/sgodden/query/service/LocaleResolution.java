@@ -0,0 +1,27 @@
+package org.sgodden.query.service;
+
+import org.sgodden.query.AggregateFunction;
+import org.sgodden.query.LocaleUtils;
+
+/**
+ * The ways in which columns having the {@link AggregateFunction#LOCALE}
+ * function may be resolved to the value for the nearest locale.
+ * @author sgodden
+ */
+public enum LocaleResolution {
+
+    /**
+     * Selects the maximum of the locale concatenated with the value, and
+     * strips the locale off again.  This requires the whole result to be
+     * grouped, and string manipulation of every value.
+     */
+    AGGREGATE,
+
+    /**
+     * Ranks the locales of the {@link LocaleUtils#getLocaleHierarchy(java.util.Locale)}
+     * numerically, and only joins the locale data having the best rank, using
+     * a correlated sub-query.  No grouping is required.
+     */
+    RANKED
+
+}
@@ -0,0 +1,443 @@
+package org.sgodden.query.service;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.Hibernate;
+import org.hibernate.HibernateException;
+import org.hibernate.SQLQuery;
+import org.hibernate.Session;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.hibernate.engine.SessionImplementor;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.persister.entity.SingleTableEntityPersister;
+import org.hibernate.type.EntityType;
+import org.hibernate.type.Type;
+import org.sgodden.query.AndRestriction;
+import org.sgodden.query.CompositeRestriction;
+import org.sgodden.query.NotRestriction;
+import org.sgodden.query.Operator;
+import org.sgodden.query.OrRestriction;
+import org.sgodden.query.Query;
+import org.sgodden.query.QueryColumn;
+import org.sgodden.query.Restriction;
+import org.sgodden.query.SimpleRestriction;
+
+/**
+ * Compiles a query directly into SQL using the hibernate mapping metadata,
+ * so that hibernate does not need to parse and translate HQL.
+ * <p>
+ * Only a subset of queries can be compiled: the selected columns and
+ * restrictions may only use single-column properties of single-table
+ * entities, reached through many-to-one associations, and may not use
+ * aggregate functions, arbitrary restrictions or collections.  For any other
+ * query the build methods return <code>null</code>, and the HQL query
+ * should be used instead.
+ * </p>
+ * <p>
+ * This class is not thread-safe.
+ * </p>
+ * @author sgodden
+ */
+class NativeSqlBuilder {
+
+    private static final transient Log log = LogFactory.getLog(NativeSqlBuilder.class);
+
+    private Session session;
+    private Query query;
+    private SessionFactoryImplementor factory;
+    private CaseInsensitiveMatching caseInsensitiveMatching;
+
+    /**
+     * The table alias for each joined relation path, the empty path being
+     * the queried entity.
+     */
+    private Map<String, String> aliases;
+    private Map<String, AbstractEntityPersister> persisters;
+    private StringBuffer joins;
+    private Map<String, Object> parameters;
+    private Map<String, Type> parameterTypes;
+
+    NativeSqlBuilder(Session session, Query query, CaseInsensitiveMatching caseInsensitiveMatching) {
+        this.session = session;
+        this.query = query;
+        this.factory = (SessionFactoryImplementor) session.getSessionFactory();
+        this.caseInsensitiveMatching = caseInsensitiveMatching;
+    }
+
+    /**
+     * Builds the SQL query which selects the rows of the query.
+     * @return the SQL query, or <code>null</code> if the query cannot be
+     * compiled to SQL.
+     */
+    SQLQuery buildQuery() {
+        try {
+            init();
+            Map<String, Type> scalars = new LinkedHashMap<String, Type>();
+            StringBuffer select = new StringBuffer("SELECT ");
+            if (query.getDistinctId()) {
+                select.append("DISTINCT ");
+            }
+            if (query.getIncludeId()) {
+                select.append(getColumn("id") + " AS c0");
+                scalars.put("c0", persisters.get("").getIdentifierType());
+            }
+            for (int i = 0; i < query.getColumns().size(); i++) {
+                QueryColumn col = query.getColumns().get(i);
+                if (col.getAggregateFunction() != null) {
+                    throw new UnsupportedQueryException("aggregate function " + col.getAggregateFunction());
+                }
+                String alias = "c" + (i + 1);
+                if (scalars.size() > 0) {
+                    select.append(", ");
+                }
+                select.append(getColumn(col.getAttributePath()) + " AS " + alias);
+                scalars.put(alias, getType(col.getAttributePath()));
+            }
+
+            StringBuffer buf = new StringBuffer(select);
+            appendFromAndWhere(buf);
+            QueryStringBuilder.appendOrderByClause(query, buf);
+
+            SQLQuery ret = createQuery(buf.toString());
+            for (Map.Entry<String, Type> entry : scalars.entrySet()) {
+                ret.addScalar(entry.getKey(), entry.getValue());
+            }
+            return ret;
+        } catch (UnsupportedQueryException e) {
+            log.debug("Query cannot be compiled to SQL: " + e.getMessage());
+            return null;
+        } catch (HibernateException e) {
+            log.debug("Query cannot be compiled to SQL: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Builds the SQL query which counts the matches of the query.
+     * @return the SQL count query, or <code>null</code> if the query cannot
+     * be compiled to SQL.
+     */
+    SQLQuery buildCountQuery() {
+        try {
+            init();
+            StringBuffer buf = new StringBuffer("SELECT COUNT(DISTINCT " + getColumn("id") + ") AS cnt");
+            for (QueryColumn col : query.getColumns()) {
+                if (col.getAggregateFunction() != null) {
+                    throw new UnsupportedQueryException("aggregate function " + col.getAggregateFunction());
+                }
+            }
+            appendFromAndWhere(buf);
+
+            SQLQuery ret = createQuery(buf.toString());
+            ret.addScalar("cnt", Hibernate.LONG);
+            return ret;
+        } catch (UnsupportedQueryException e) {
+            log.debug("Query cannot be compiled to SQL: " + e.getMessage());
+            return null;
+        } catch (HibernateException e) {
+            log.debug("Query cannot be compiled to SQL: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Returns the values of the named parameters of the query last built.
+     * @return the parameter values, keyed by name.
+     */
+    Map<String, Object> getParameters() {
+        return parameters;
+    }
+
+    private void init() {
+        aliases = new HashMap<String, String>();
+        persisters = new HashMap<String, AbstractEntityPersister>();
+        joins = new StringBuffer();
+        parameters = new HashMap<String, Object>();
+        parameterTypes = new HashMap<String, Type>();
+        EntityPersister persister = factory.getEntityPersister(query.getObjectClassName());
+        checkSingleTable(persister);
+        aliases.put("", "t0");
+        persisters.put("", (AbstractEntityPersister) persister);
+    }
+
+    private void appendFromAndWhere(StringBuffer buf) {
+        StringBuffer where = new StringBuffer();
+        if (query.getFilterCriterion() != null) {
+            appendRestriction(query.getFilterCriterion(), where);
+        }
+
+        /*
+         * Apply the mapped where clause, discriminator and any filters
+         * enabled on the session, as hibernate would for the HQL query.
+         */
+        String filter = persisters.get("").filterFragment("t0",
+                ((SessionImplementor) session).getEnabledFilters()).trim();
+        if (filter.startsWith("and ")) {
+            filter = filter.substring(4);
+        }
+        if (filter.length() > 0) {
+            if (where.length() > 0) {
+                where.insert(0, "( ").append(" ) AND ");
+            }
+            where.append(filter);
+        }
+
+        buf.append(" FROM " + persisters.get("").getTableName() + " t0");
+        buf.append(joins);
+        if (where.length() > 0) {
+            buf.append(" WHERE ");
+            buf.append(where);
+        }
+    }
+
+    /**
+     * Creates the SQL query and binds the parameters.  Unlike HQL, the SQL
+     * gives hibernate no property from which to infer the type of each
+     * parameter, so they are bound with the type of the restricted property,
+     * unless the value is of another class (for instance a LIKE pattern on a
+     * numeric property), in which case its type is guessed from the value.
+     */
+    private SQLQuery createQuery(String sql) {
+        log.debug(sql);
+        SQLQuery ret = session.createSQLQuery(sql);
+        for (Map.Entry<String, Object> entry : parameters.entrySet()) {
+            Object value = entry.getValue();
+            Type type = parameterTypes.get(entry.getKey());
+            if (value != null && value.getClass().isArray()) {
+                Object[] values = (Object[]) value;
+                if (isBindable(values, type)) {
+                    ret.setParameterList(entry.getKey(), values, type);
+                } else {
+                    ret.setParameterList(entry.getKey(), values);
+                }
+            } else if (value instanceof Collection) {
+                Collection<?> values = (Collection<?>) value;
+                if (isBindable(values.toArray(), type)) {
+                    ret.setParameterList(entry.getKey(), values, type);
+                } else {
+                    ret.setParameterList(entry.getKey(), values);
+                }
+            } else if (isBindable(new Object[] {value}, type)) {
+                ret.setParameter(entry.getKey(), value, type);
+            } else {
+                ret.setParameter(entry.getKey(), value);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Returns whether all the passed values may be bound with the passed
+     * property type.
+     */
+    private boolean isBindable(Object[] values, Type type) {
+        if (type == null) {
+            return false;
+        }
+        for (Object value : values) {
+            if (value != null && !type.getReturnedClass().isInstance(value)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void appendRestriction(Restriction crit, StringBuffer buf) {
+        if (crit instanceof SimpleRestriction) {
+            appendSimple((SimpleRestriction) crit, buf);
+        }
+        else if (crit instanceof AndRestriction || crit instanceof OrRestriction) {
+            String operator = crit instanceof AndRestriction ? " AND " : " OR ";
+            buf.append("( ");
+            boolean first = true;
+            for (Restriction subcrit : ((CompositeRestriction) crit).getRestrictions()) {
+                if (!first) {
+                    buf.append(operator);
+                }
+                appendRestriction(subcrit, buf);
+                first = false;
+            }
+            buf.append(" )");
+        }
+        else if (crit instanceof NotRestriction) {
+            buf.append("NOT( ");
+            appendRestriction(((NotRestriction) crit).getChild(), buf);
+            buf.append(" )");
+        }
+        else {
+            throw new UnsupportedQueryException("restriction " + crit);
+        }
+    }
+
+    private void appendSimple(SimpleRestriction crit, StringBuffer buf) {
+        if (crit.getOperator() == Operator.EMPTY || crit.getOperator() == Operator.NOT_EMPTY) {
+            throw new UnsupportedQueryException("collection operator " + crit.getOperator());
+        }
+
+        boolean upperCase = crit.getIgnoreCase() && crit.getValues() != null
+                && crit.getValues()[0] instanceof String;
+        String column = getColumn(crit.getAttributePath());
+        String valuePath = crit.getAttributePath();
+
+        CaseInsensitiveMatching.Strategy strategy = CaseInsensitiveMatching.Strategy.UPPER;
+        if (upperCase && caseInsensitiveMatching != null) {
+            strategy = caseInsensitiveMatching.getStrategy(query.getObjectClassName(), crit.getAttributePath());
+        }
+        if (strategy == CaseInsensitiveMatching.Strategy.SHADOW_PROPERTY) {
+            String shadowPath = caseInsensitiveMatching.getShadowPropertyName(
+                    query.getObjectClassName(), crit.getAttributePath());
+            if (QueryUtil.isRelatedColumn(crit.getAttributePath())) {
+                shadowPath = QueryUtil.getRelationName(crit.getAttributePath()) + "." + shadowPath;
+            }
+            buf.append(getColumn(shadowPath));
+            valuePath = shadowPath;
+        }
+        else if (strategy == CaseInsensitiveMatching.Strategy.COLLATION) {
+            buf.append(column);
+            upperCase = false;
+        }
+        else if (upperCase) {
+            buf.append("UPPER(" + column + ")");
+        }
+        else {
+            buf.append(column);
+        }
+
+        WhereClauseBuilder.renderOperator(crit, buf);
+
+        String parmName = "p" + parameters.size();
+        Type type = getType(valuePath);
+        Operator operator = crit.getOperator();
+        if (operator == Operator.BETWEEN || operator == Operator.NOT_BETWEEN) {
+            buf.append(":" + parmName + "a AND :" + parmName + "b");
+            putParameter(parmName + "a", QueryUtil.valueToParameter(crit.getAttributePath(),
+                    crit.getValues()[0], operator, query.getLocale(), upperCase), type);
+            putParameter(parmName + "b", QueryUtil.valueToParameter(crit.getAttributePath(),
+                    crit.getValues()[1], operator, query.getLocale(), upperCase), type);
+        }
+        else if (operator == Operator.IN || operator == Operator.NOT_IN) {
+            buf.append(":" + parmName + ")");
+            putParameter(parmName, crit.getValues(), type);
+        }
+        else if (crit.getValues() != null && crit.getValues()[0] != null) {
+            buf.append(":" + parmName);
+            putParameter(parmName, QueryUtil.valueToParameter(crit.getAttributePath(),
+                    crit.getValues()[0], operator, query.getLocale(), upperCase), type);
+        }
+    }
+
+    private void putParameter(String name, Object value, Type type) {
+        parameters.put(name, value);
+        parameterTypes.put(name, type);
+    }
+
+    /**
+     * Returns the qualified column for the passed attribute path, joining
+     * the tables of the relation path as necessary.
+     */
+    private String getColumn(String attributePath) {
+        String relationPath = QueryUtil.isRelatedColumn(attributePath)
+                ? QueryUtil.getRelationName(attributePath) : "";
+        String alias = join(relationPath);
+        AbstractEntityPersister persister = persisters.get(relationPath);
+        String name = QueryUtil.getFinalAttributeName(attributePath);
+
+        String[] columns;
+        if ("id".equals(name) || name.equals(persister.getIdentifierPropertyName())) {
+            columns = persister.getIdentifierColumnNames();
+        }
+        else {
+            Type type = persister.getPropertyType(name);
+            if (type.isAssociationType() || type.isComponentType()) {
+                throw new UnsupportedQueryException("property type of " + attributePath);
+            }
+            columns = persister.getPropertyColumnNames(name);
+        }
+        if (columns == null || columns.length != 1 || columns[0] == null) {
+            throw new UnsupportedQueryException("columns of " + attributePath);
+        }
+        return alias + "." + columns[0];
+    }
+
+    private Type getType(String attributePath) {
+        String relationPath = QueryUtil.isRelatedColumn(attributePath)
+                ? QueryUtil.getRelationName(attributePath) : "";
+        AbstractEntityPersister persister = persisters.get(relationPath);
+        String name = QueryUtil.getFinalAttributeName(attributePath);
+        if ("id".equals(name) || name.equals(persister.getIdentifierPropertyName())) {
+            return persister.getIdentifierType();
+        }
+        return persister.getPropertyType(name);
+    }
+
+    /**
+     * Left outer joins the table of the passed relation path (and of its
+     * parents) if not already joined, and returns its alias.
+     */
+    private String join(String relationPath) {
+        String ret = aliases.get(relationPath);
+        if (ret != null) {
+            return ret;
+        }
+
+        String parentPath = QueryUtil.isRelatedColumn(relationPath)
+                ? QueryUtil.getRelationName(relationPath) : "";
+        String parentAlias = join(parentPath);
+        AbstractEntityPersister parent = persisters.get(parentPath);
+        String propertyName = QueryUtil.getFinalAttributeName(relationPath);
+
+        Type type = parent.getPropertyType(propertyName);
+        if (!type.isEntityType() || !((EntityType) type).isReferenceToPrimaryKey()) {
+            throw new UnsupportedQueryException("association " + relationPath);
+        }
+        EntityPersister target = factory.getEntityPersister(
+                ((EntityType) type).getAssociatedEntityName());
+        checkSingleTable(target);
+        if (target.isInherited()) {
+            throw new UnsupportedQueryException("subclass association " + relationPath);
+        }
+
+        String[] foreignKeyColumns = parent.getPropertyColumnNames(propertyName);
+        String[] primaryKeyColumns = ((AbstractEntityPersister) target).getIdentifierColumnNames();
+        if (foreignKeyColumns.length != primaryKeyColumns.length) {
+            throw new UnsupportedQueryException("association " + relationPath);
+        }
+
+        ret = "t" + aliases.size();
+        joins.append(" LEFT OUTER JOIN " + ((AbstractEntityPersister) target).getTableName()
+                + " " + ret + " ON ");
+        for (int i = 0; i < foreignKeyColumns.length; i++) {
+            if (i > 0) {
+                joins.append(" AND ");
+            }
+            joins.append(parentAlias + "." + foreignKeyColumns[i] + " = "
+                    + ret + "." + primaryKeyColumns[i]);
+        }
+        aliases.put(relationPath, ret);
+        persisters.put(relationPath, (AbstractEntityPersister) target);
+        return ret;
+    }
+
+    private void checkSingleTable(EntityPersister persister) {
+        if (!(persister instanceof SingleTableEntityPersister)) {
+            throw new UnsupportedQueryException("persister " + persister.getEntityName());
+        }
+    }
+
+    /**
+     * Thrown when the query uses features which cannot be compiled to SQL.
+     */
+    @SuppressWarnings("serial")
+    private static class UnsupportedQueryException extends RuntimeException {
+        UnsupportedQueryException(String message) {
+            super(message);
+        }
+    }
+
+}
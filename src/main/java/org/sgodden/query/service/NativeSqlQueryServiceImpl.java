@@ -0,0 +1,72 @@
+package org.sgodden.query.service;
+
+import java.util.Iterator;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.SQLQuery;
+import org.hibernate.Session;
+import org.sgodden.query.Query;
+
+/**
+ * An implementation of the query service which compiles queries directly
+ * into SQL using the hibernate mapping metadata, avoiding the cost of HQL
+ * parsing and translation on every execution.
+ * <p>
+ * Paging is applied by hibernate using the native limit support of the
+ * dialect, and the result columns are read using the hibernate types of
+ * the selected properties.  Queries which cannot be compiled to SQL (see
+ * {@link NativeSqlBuilder}) are run as HQL, exactly as by
+ * {@link QueryServiceImpl}.
+ * </p>
+ * @author sgodden
+ */
+public class NativeSqlQueryServiceImpl extends QueryServiceImpl {
+
+    private static final long serialVersionUID = 20101019L;
+
+    private static final transient Log log = LogFactory
+            .getLog(NativeSqlQueryServiceImpl.class);
+
+    @Override
+    protected org.hibernate.Query buildQuery(Session session, Query query,
+            Map<String, Object> parameters) {
+        NativeSqlBuilder builder = new NativeSqlBuilder(session, query,
+                getCaseInsensitiveMatching());
+        org.hibernate.Query ret = builder.buildQuery();
+        if (ret == null) {
+            log.debug("Falling back to HQL");
+            ret = super.buildQuery(session, query, parameters);
+        } else {
+            parameters.putAll(builder.getParameters());
+        }
+        return ret;
+    }
+
+    @Override
+    protected org.hibernate.Query buildCountQuery(Session session, Query query,
+            Map<String, Object> parameters) {
+        NativeSqlBuilder builder = new NativeSqlBuilder(session, query,
+                getCaseInsensitiveMatching());
+        org.hibernate.Query ret = builder.buildCountQuery();
+        if (ret == null) {
+            log.debug("Falling back to HQL for the count query");
+            ret = super.buildCountQuery(session, query, parameters);
+        } else {
+            parameters.putAll(builder.getParameters());
+        }
+        return ret;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected Iterator iterate(org.hibernate.Query hq) {
+        // SQL queries cannot be iterated, but are read in a single pass anyway
+        if (hq instanceof SQLQuery) {
+            return hq.list().iterator();
+        }
+        return super.iterate(hq);
+    }
+
+}
@@ -0,0 +1,308 @@
+package org.sgodden.query.service;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.EntityMode;
+import org.hibernate.Hibernate;
+import org.hibernate.SQLQuery;
+import org.hibernate.Session;
+import org.hibernate.engine.QueryParameters;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.hibernate.engine.SessionImplementor;
+import org.hibernate.engine.TypedValue;
+import org.hibernate.engine.query.HQLQueryPlan;
+import org.hibernate.hql.QueryTranslator;
+import org.hibernate.hql.ast.QueryTranslatorImpl;
+import org.hibernate.jdbc.Work;
+import org.hibernate.param.NamedParameterSpecification;
+import org.hibernate.param.ParameterSpecification;
+import org.hibernate.type.Type;
+import org.hibernate.type.TypeFactory;
+import org.sgodden.query.QueryExplanation;
+
+/**
+ * Explains hibernate queries, by translating them to SQL and asking the
+ * database for the execution plan.
+ *
+ * @author sgodden
+ */
+class QueryExplainer {
+
+    private static final transient Log log = LogFactory.getLog(QueryExplainer.class);
+
+    private static final Pattern NAMED_PARAMETER = Pattern.compile(":([A-Za-z0-9_]+)");
+
+    private final Session session;
+    private final String explainPrefix;
+
+    /**
+     * Creates a new explainer.
+     * @param session the hibernate session.
+     * @param explainPrefix the prefix which turns a select statement into
+     * an explain statement, or <code>null</code> to choose one from the
+     * hibernate dialect.
+     */
+    QueryExplainer(Session session, String explainPrefix) {
+        this.session = session;
+        this.explainPrefix = explainPrefix != null ? explainPrefix
+                : getDefaultExplainPrefix(getSessionFactory().getDialect().getClass().getName());
+    }
+
+    /**
+     * Returns the explain prefix for the passed dialect, or <code>null</code>
+     * if the plan cannot be obtained with a single statement.
+     */
+    static String getDefaultExplainPrefix(String dialectClassName) {
+        if (dialectClassName.indexOf("MySQL") != -1
+                || dialectClassName.indexOf("PostgreSQL") != -1
+                || dialectClassName.indexOf("H2") != -1) {
+            return "EXPLAIN ";
+        }
+        else if (dialectClassName.indexOf("HSQL") != -1) {
+            return "EXPLAIN PLAN FOR ";
+        }
+        return null;
+    }
+
+    /**
+     * Explains the passed hibernate query, which may be an HQL query or one
+     * compiled directly into SQL.
+     * @param hq the hibernate query.
+     * @param parameters the values of its named parameters.
+     * @return the explanation.
+     */
+    QueryExplanation.Statement explain(org.hibernate.Query hq, Map<String, Object> parameters) {
+        if (hq instanceof SQLQuery) {
+            return explainSql(hq.getQueryString(), parameters);
+        }
+
+        QueryExplanation.Statement ret = new QueryExplanation.Statement();
+        ret.setHql(hq.getQueryString());
+        ret.setParameters(parameters);
+
+        Map<String, Object> values = new LinkedHashMap<String, Object>();
+        String hql = expandParameterLists(hq.getQueryString(), parameters, values);
+
+        HQLQueryPlan plan = getSessionFactory().getQueryPlanCache().getHQLQueryPlan(
+                hql, false, ((SessionImplementor) session).getEnabledFilters());
+        QueryTranslator[] translators = plan.getTranslators();
+
+        StringBuffer sql = new StringBuffer();
+        for (int i = 0; i < translators.length; i++) {
+            if (i > 0) {
+                sql.append(";\n");
+            }
+            sql.append(translators[i].getSQLString());
+        }
+        ret.setSql(sql.toString());
+
+        if (explainPrefix != null && translators.length == 1
+                && translators[0] instanceof QueryTranslatorImpl) {
+            try {
+                ret.setPlan(getPlan((QueryTranslatorImpl) translators[0], values));
+            } catch (Exception e) {
+                log.warn("Unable to obtain the execution plan for: " + sql, e);
+            }
+        }
+
+        return ret;
+    }
+
+    /**
+     * Explains a query which is already SQL, binding the expanded parameter
+     * values in the order in which they appear.
+     */
+    private QueryExplanation.Statement explainSql(String sql, Map<String, Object> parameters) {
+        QueryExplanation.Statement ret = new QueryExplanation.Statement();
+        ret.setParameters(parameters);
+
+        Map<String, Object> values = new LinkedHashMap<String, Object>();
+        String expanded = expandParameterLists(sql, parameters, values);
+        ret.setSql(expanded);
+
+        if (explainPrefix != null) {
+            final List<Object> positionalValues = new ArrayList<Object>();
+            final String positionalSql = toPositionalParameters(expanded, values, positionalValues);
+            final List<String> plan = new ArrayList<String>();
+            try {
+                session.doWork(new Work() {
+                    public void execute(Connection connection) throws SQLException {
+                        PreparedStatement ps = connection.prepareStatement(
+                                explainPrefix + positionalSql);
+                        try {
+                            for (int i = 0; i < positionalValues.size(); i++) {
+                                ps.setObject(i + 1, positionalValues.get(i));
+                            }
+                            readPlan(ps.executeQuery(), plan);
+                        } finally {
+                            ps.close();
+                        }
+                    }
+                });
+                ret.setPlan(plan);
+            } catch (Exception e) {
+                log.warn("Unable to obtain the execution plan for: " + expanded, e);
+            }
+        }
+
+        return ret;
+    }
+
+    /**
+     * Runs the explain statement for the passed translated query.
+     */
+    private List<String> getPlan(final QueryTranslatorImpl translator,
+            Map<String, Object> values) {
+        final SessionImplementor sessionImplementor = (SessionImplementor) session;
+        final List<ParameterSpecification> specifications = getParameterSpecifications(translator);
+
+        Map<String, TypedValue> namedParameters = new HashMap<String, TypedValue>();
+        for (ParameterSpecification specification : specifications) {
+            if (specification instanceof NamedParameterSpecification) {
+                String name = ((NamedParameterSpecification) specification).getName();
+                Object value = values.get(name);
+                namedParameters.put(name, new TypedValue(
+                        getType(specification, value), value, EntityMode.POJO));
+            }
+        }
+        final QueryParameters queryParameters = new QueryParameters();
+        queryParameters.setNamedParameters(namedParameters);
+
+        final List<String> ret = new ArrayList<String>();
+        session.doWork(new Work() {
+            public void execute(Connection connection) throws SQLException {
+                PreparedStatement ps = connection.prepareStatement(
+                        explainPrefix + translator.getSQLString());
+                try {
+                    int position = 1;
+                    for (ParameterSpecification specification : specifications) {
+                        position += specification.bind(ps, queryParameters,
+                                sessionImplementor, position);
+                    }
+                    readPlan(ps.executeQuery(), ret);
+                } finally {
+                    ps.close();
+                }
+            }
+        });
+        return ret;
+    }
+
+    /**
+     * Reads the rows of the explain statement into the plan, and closes the
+     * result set.
+     */
+    private static void readPlan(ResultSet rs, List<String> plan) throws SQLException {
+        int columnCount = rs.getMetaData().getColumnCount();
+        while (rs.next()) {
+            StringBuffer line = new StringBuffer();
+            for (int i = 1; i <= columnCount; i++) {
+                if (i > 1) {
+                    line.append('\t');
+                }
+                line.append(rs.getString(i));
+            }
+            plan.add(line.toString());
+        }
+        rs.close();
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<ParameterSpecification> getParameterSpecifications(
+            QueryTranslatorImpl translator) {
+        return translator.getCollectedParameterSpecifications();
+    }
+
+    private Type getType(ParameterSpecification specification, Object value) {
+        Type ret = specification.getExpectedType();
+        if (ret == null && value != null) {
+            ret = TypeFactory.heuristicType(value.getClass().getName());
+        }
+        return ret != null ? ret : Hibernate.STRING;
+    }
+
+    /**
+     * Expands array and collection parameter values in the same way as
+     * hibernate does when they are bound with
+     * {@link org.hibernate.Query#setParameterList(String, Collection)}, so
+     * that the translated SQL matches that which is actually run.
+     * @param hql the HQL query string.
+     * @param parameters the parameter values, keyed by name.
+     * @param values populated with the expanded parameter values.
+     * @return the expanded HQL.
+     */
+    @SuppressWarnings("unchecked")
+    static String expandParameterLists(String hql, Map<String, Object> parameters,
+            Map<String, Object> values) {
+        String ret = hql;
+        for (Map.Entry<String, Object> entry : parameters.entrySet()) {
+            Object value = entry.getValue();
+            Collection<Object> list = null;
+            if (value != null && value.getClass().isArray()) {
+                list = Arrays.asList((Object[]) value);
+            } else if (value instanceof Collection) {
+                list = (Collection<Object>) value;
+            }
+
+            if (list == null || list.isEmpty()) {
+                values.put(entry.getKey(), list == null ? value : null);
+                continue;
+            }
+
+            StringBuffer names = new StringBuffer();
+            int i = 0;
+            for (Object element : list) {
+                String name = entry.getKey() + i++ + '_';
+                if (names.length() > 0) {
+                    names.append(", ");
+                }
+                names.append(':').append(name);
+                values.put(name, element);
+            }
+            Matcher matcher = Pattern.compile(":" + Pattern.quote(entry.getKey())
+                    + "(?![A-Za-z0-9_])").matcher(ret);
+            ret = matcher.replaceAll(Matcher.quoteReplacement(names.toString()));
+        }
+        return ret;
+    }
+
+    /**
+     * Replaces the named parameters of the passed SQL with JDBC positional
+     * parameters.
+     * @param sql the SQL, whose parameter lists have been expanded.
+     * @param values the parameter values, keyed by name.
+     * @param positionalValues populated with the value of each positional
+     * parameter, in order.
+     * @return the SQL with positional parameters.
+     */
+    static String toPositionalParameters(String sql, Map<String, Object> values,
+            List<Object> positionalValues) {
+        Matcher matcher = NAMED_PARAMETER.matcher(sql);
+        StringBuffer ret = new StringBuffer();
+        while (matcher.find()) {
+            positionalValues.add(values.get(matcher.group(1)));
+            matcher.appendReplacement(ret, "?");
+        }
+        matcher.appendTail(ret);
+        return ret.toString();
+    }
+
+    private SessionFactoryImplementor getSessionFactory() {
+        return (SessionFactoryImplementor) session.getSessionFactory();
+    }
+
+}
@@ -16,8 +16,13 @@
 # ================================================================= */
 package org.sgodden.query.service;
 
+import java.util.List;
+import java.util.Map;
+
 import org.sgodden.query.Query;
+import org.sgodden.query.QueryExplanation;
 import org.sgodden.query.ResultSet;
+import org.sgodden.query.ResultSetRowHandler;
 
 /**
  * A service which runs queries and returns result sets.
@@ -32,4 +37,46 @@ public interface QueryService {
 	 * @return the results of the query.
 	 */
 	public ResultSet executeQuery(Query query);
+	
+	/**
+	 * Executes the passed query, passing each row to the handler as it is
+	 * read instead of holding the rows in the result set.
+	 * @param query the query to execute, which should not specify a fetch
+	 * size.
+	 * @param handler the handler of the rows.
+	 * @return a result set which holds no rows, but whose row count and
+	 * bail-out status are set as they would be by {@link #executeQuery(Query)}.
+	 */
+	public ResultSet executeQuery(Query query, ResultSetRowHandler handler);
+	
+	/**
+	 * Cancels the execution of the passed query, if it is being run by
+	 * another thread, which then gets an exception from
+	 * {@link #executeQuery(Query)}.  Does nothing if the query is not
+	 * running.
+	 * @param query the query, the same instance as was passed to
+	 * <code>executeQuery</code>.
+	 */
+	public void cancelQuery(Query query);
+	
+	/**
+	 * Explains how the passed query would be run, without running it.
+	 * @param query the query to explain.
+	 * @return the generated HQL and SQL, the bound parameters and the
+	 * database execution plan of the count and main queries.
+	 */
+	public QueryExplanation explain(Query query);
+	
+	/**
+	 * Returns, for each of the passed attribute paths, the number of objects
+	 * matching the query's filter which have each value of that attribute.
+	 * @param query the query whose filter is applied.
+	 * @param attributePaths the attribute paths to count values of.
+	 * @param topN the maximum number of values to return for each path, or
+	 * zero to return all values.
+	 * @return the counts, keyed by attribute path and then by value, with the
+	 * values in descending order of count.
+	 */
+	public Map<String, Map<Object, Long>> facetCounts(Query query,
+			List<String> attributePaths, int topN);
 }
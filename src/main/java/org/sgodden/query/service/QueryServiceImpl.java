@@ -14,20 +14,50 @@
  */
 package org.sgodden.query.service;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.text.DateFormat;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.RandomAccess;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.hibernate.Filter;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
 import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.engine.HibernateIterator;
+import org.hibernate.engine.SessionImplementor;
+import org.hibernate.impl.FilterImpl;
 import org.hibernate.type.BooleanType;
 import org.hibernate.type.CalendarDateType;
 import org.hibernate.type.CalendarType;
@@ -36,19 +66,28 @@ import org.hibernate.type.LongType;
 import org.hibernate.type.StringType;
 import org.hibernate.type.Type;
 import org.sgodden.query.AggregateFunction;
+import org.sgodden.query.AndRestriction;
 import org.sgodden.query.DataType;
+import org.sgodden.query.Operator;
 import org.sgodden.query.ObjectUtils;
 import org.sgodden.query.Query;
+import org.sgodden.query.QueryExplanation;
 import org.sgodden.query.QueryColumn;
+import org.sgodden.query.Restriction;
 import org.sgodden.query.ResultSet;
 import org.sgodden.query.ResultSetColumn;
+import org.sgodden.query.ResultSetCursor;
 import org.sgodden.query.ResultSetRow;
+import org.sgodden.query.ResultSetRowHandler;
+import org.sgodden.query.SimpleRestriction;
+import org.sgodden.query.SortData;
+import org.sgodden.query.SpillableRowList;
 
 /**
  * An implementation of the query service which uses hibernate.
  * @author goddens
  */
-public class QueryServiceImpl implements QueryService, Serializable {
+public class QueryServiceImpl implements BackgroundQueryService, Serializable {
 
 	private static final long serialVersionUID = 1L;
 
@@ -58,24 +97,245 @@ public class QueryServiceImpl implements QueryService, Serializable {
     private static final transient Log log = LogFactory
             .getLog(QueryServiceImpl.class);
 
+    /**
+     * The queries currently being run with coalescing enabled, shared by all
+     * instances so that the users of the same session provider share them.
+     */
+    private static final ConcurrentMap<QueryKey, FutureTask<ResultSet>> inFlightQueries =
+        new ConcurrentHashMap<QueryKey, FutureTask<ResultSet>>();
+
+    /**
+     * The sessions running each query, so that they can be cancelled.
+     */
+    private transient ConcurrentMap<Query, Session> runningQueries =
+        new ConcurrentHashMap<Query, Session>();
+
     /**
      * The provider of hibernate sessions.
      */
     //private SessionProvider sessionProvider;
     private transient QueryBasedSessionProvider queryBasedSessionProvider;
 
+    /**
+     * The session opened for the queries run on the current thread, in
+     * place of the session provider's.
+     */
+    private transient ThreadLocal<Session> boundSession = new ThreadLocal<Session>();
+
+    /**
+     * How case-insensitive restrictions are rendered for particular attribute
+     * paths.
+     */
+    private CaseInsensitiveMatching caseInsensitiveMatching;
+
+    /**
+     * Narrows CONTAINS and ENDS_WITH restrictions to candidate identifiers.
+     */
+    private transient TextSearchProvider textSearchProvider;
+
+    /**
+     * How LOCALE columns are resolved.
+     */
+    private LocaleResolution localeResolution = LocaleResolution.AGGREGATE;
+
+    /**
+     * The prefix which turns a select statement into an explain statement.
+     */
+    private String explainPrefix;
+
+    /**
+     * Whether identical queries run at the same time are run only once.
+     */
+    private boolean coalesceQueries;
+
+    /**
+     * The estimated size in bytes of the rows of a result, above which they
+     * are moved to a file, or zero to always hold them in memory.
+     */
+    private long spillThreshold = 0;
+
+    /**
+     * The directory in which spill files are created.
+     */
+    private File spillDirectory;
+
+    /**
+     * The times in milliseconds after which a held cursor is closed, if it
+     * has not been read, and in any case.
+     */
+    private long cursorIdleTimeout = 60 * 1000;
+    private long cursorMaxLifetime = 10 * 60 * 1000;
+
+    /**
+     * The number of facet paths counted at the same time.
+     */
+    private int facetConcurrency = 4;
+
+    /**
+     * Runs the queries counting facets at the same time.
+     */
+    private static final ExecutorService facetExecutor =
+        Executors.newCachedThreadPool(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread ret = new Thread(runnable, "facet-count");
+                ret.setDaemon(true);
+                return ret;
+            }
+        });
+
+    /**
+     * Closes held cursors once they time out.
+     */
+    private static final ScheduledExecutorService cursorTimer =
+        Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                // a daemon, so that open cursors do not prevent the application from stopping
+                Thread ret = new Thread(runnable, "held-cursor-timer");
+                ret.setDaemon(true);
+                return ret;
+            }
+        });
+
     /**
      * See
      * {@link org.sgodden.query.service.QueryService#executeQuery(org.sgodden.query.Query}.
      * @param query the query to execute.
      */
-    @SuppressWarnings("unchecked")
     public ResultSet executeQuery(Query query) {
+        // a held cursor cannot be shared
+        QueryKey key = coalesceQueries && !isHoldCursor(query) ? makeQueryKey(query) : null;
+        if (key == null) {
+            return fetchRows(query);
+        }
+        return copyResultSet(executeCoalesced(key, query), query);
+    }
+
+    /**
+     * Executes the passed query, holding its rows in the result set.
+     */
+    private ResultSet fetchRows(Query query) {
+        if (spillThreshold > 0) {
+            SpillableRowList rows = new SpillableRowList(spillThreshold, spillDirectory);
+            ResultSet ret = streamRows(query, rows);
+            rows.complete();
+            // nothing more is appended, and the mapped rows outlive the file
+            rows.release();
+            ret.setCachedPageRows(rows);
+            return ret;
+        }
+        final List < ResultSetRow > rows = new ArrayList < ResultSetRow >();
+        ResultSet ret = streamRows(query, new ResultSetRowHandler() {
+            public boolean handleRow(ResultSetRow row) {
+                rows.add(row);
+                return true;
+            }
+        });
+        ret.setCachedPageRows(rows);
+        return ret;
+    }
+
+    /**
+     * See
+     * {@link org.sgodden.query.service.QueryService#executeQuery(org.sgodden.query.Query, org.sgodden.query.ResultSetRowHandler}.
+     * @param query the query to execute.
+     * @param handler the handler of the rows.
+     */
+    public ResultSet executeQuery(Query query, ResultSetRowHandler handler) {
+        /*
+         * Only limited queries are coalesced, since the shared rows have to
+         * be held before they are passed to the handlers.
+         */
+        QueryKey key = null;
+        if (coalesceQueries && !isHoldCursor(query)
+                && (query.getFetchSize() > 0 || query.getMaxRows() > 0)) {
+            key = makeQueryKey(query);
+        }
+        if (key == null) {
+            return streamRows(query, handler);
+        }
+        ResultSet shared = executeCoalesced(key, query);
+        int rowCount = 0;
+        for (ResultSetRow row : shared.getCachedPageRows()) {
+            rowCount++;
+            if (!handler.handleRow(copyRow(row))) {
+                break;
+            }
+        }
+        ResultSet ret = copyResultSet(shared, query);
+        ret.setCachedPageRows(new ArrayList<ResultSetRow>());
+        if (!query.getCalculateRowCount()) {
+            ret.setRowCount(rowCount);
+        }
+        return ret;
+    }
+
+    /**
+     * See
+     * {@link org.sgodden.query.service.BackgroundQueryService#prepareBackgroundQuery(Query)}.
+     * <p>
+     * The query is run in a session opened now, since the session
+     * provider's session may be bound to the calling thread.  The session
+     * has the interceptor and enabled filters of the provider's session, so
+     * that it selects the same rows, but not its transaction, so changes
+     * which have not been committed are not seen.
+     * </p>
+     * @param query the query.
+     * @return the prepared query.
+     */
+    public PreparedQuery prepareBackgroundQuery(final Query query) {
+        if (queryBasedSessionProvider == null) {
+            throw new NullPointerException("The session provider is null - did you forget to set it?");
+        }
+        final Session session = openSession(getSession(query));
+        return new PreparedQuery() {
+            public ResultSet execute() {
+                try {
+                    return callInSession(session, new Callable<ResultSet>() {
+                        public ResultSet call() {
+                            return executeQuery(query);
+                        }
+                    });
+                } catch (RuntimeException e) {
+                    throw e;
+                } catch (Exception e) {
+                    // not thrown by the call
+                    throw new IllegalStateException(e);
+                }
+            }
+
+            public void discard() {
+                session.close();
+            }
+        };
+    }
+
+    /**
+     * Executes the passed query, passing each row to the handler as it is
+     * read.
+     */
+    private ResultSet streamRows(Query query, ResultSetRowHandler handler) {
         
         if (queryBasedSessionProvider == null) {
             throw new NullPointerException("The session provider is null - did you forget to set it?");
         }
 
+        Session session = getSession(query);
+        getRunningQueries().put(query, session);
+        try {
+            return runQuery(query, handler);
+        } finally {
+            getRunningQueries().remove(query, session);
+        }
+    }
+
+    /**
+     * Executes the passed query, which has been registered as running.
+     */
+    @SuppressWarnings("unchecked")
+    private ResultSet runQuery(Query query, ResultSetRowHandler handler) {
+
+        // the query may be replaced by an optimized copy, but is registered as itself
+        Query runningQuery = query;
         Date startTime = null;
 
         if (log.isDebugEnabled()) {
@@ -85,9 +345,39 @@ public class QueryServiceImpl implements QueryService, Serializable {
         ResultSet ret = new ResultSet();
         ret.setQueryService(this);
         ret.setQuery(query);
+        ret.setCachedPageRows(new ArrayList<ResultSetRow>());
 
-        // calculate the result set size, and total size
-        if (query.getCalculateRowCount() || query.getBailOutSize() > 0) {
+        /*
+         * Simplify the filter, and don't go to the database at all if it
+         * can be shown that there are no matches.  The result set keeps
+         * the original query so that further pages are optimized again.
+         */
+        Restriction filter = makeRestrictionOptimizer(query).optimize(query.getFilterCriterion());
+        if (filter == RestrictionOptimizer.NO_MATCH) {
+            log.debug("Filter criteria can never match, so not running any query");
+            ret.setRowCount(0);
+            return ret;
+        }
+        if (filter != query.getFilterCriterion()) {
+            query = query.makeClone().setFilterCriterion(filter);
+        }
+
+        /*
+         * Capture the ids of all the rows for snapshot paging, which also
+         * gives the row count.
+         */
+        List<Object> snapshotIds = isSnapshotPaging(query) ? selectSnapshotIds(query) : null;
+        if (snapshotIds != null) {
+            ret.setSnapshotIds(toLongs(snapshotIds),
+                    !snapshotIds.isEmpty() && snapshotIds.get(0) instanceof Integer);
+            ret.setRowCount(snapshotIds.size());
+            if (snapshotIds.isEmpty()) {
+                log.debug("No ids were captured, so not running the main query");
+                return ret;
+            }
+        }
+        else if (query.getCalculateRowCount() || query.getBailOutSize() > 0) {
+            // calculate the result set size, and total size
             int totalRowCount = (int) getRowCount(query);
             ret.setRowCount(totalRowCount);
             if (query.getMaxRows() > 0 && query.getMaxRows() < totalRowCount) {
@@ -117,54 +407,98 @@ public class QueryServiceImpl implements QueryService, Serializable {
             return ret;
         }
 
-        org.hibernate.Query hq = new QueryStringBuilder().buildQuery(getSession(query), query);
-        log.debug(hq.getQueryString());
-        
         if (query.getFetchSize() > 0 && query.getMaxRows() > 0) {
             throw new IllegalArgumentException(
                     "Setting fetch size and max rows is contradictory");
         }
 
-        if (query.getRowOffset() > 0) {
-            log.debug("Setting offset: " + query.getRowOffset());
-            hq.setFirstResult(query.getRowOffset());
-        }
-        if (query.getFetchSize() > 0) {
-            log.debug("Setting fetch limit to " + query.getFetchSize());
-            hq.setMaxResults(query.getFetchSize() + 1);
-        }
-        else if (query.getMaxRows() > 0) {
-            log.debug("Setting max rows to " + query.getMaxRows());
-            hq.setMaxResults(query.getMaxRows());
-        }
-
-        List < ResultSetRow > rows = new ArrayList < ResultSetRow >();
+        int rowCount = 0;
 
         Date hqStartTime = new Date();
 
-        Iterator it = hq.iterate();
+        Iterator it;
+        if (snapshotIds != null) {
+            it = iterateSnapshotPage(query, snapshotIds);
+        }
+        else if (isHoldCursor(query)) {
+            HeldCursor cursor = new HeldCursor(query, runningQuery);
+            ret.setCursor(cursor);
+            it = cursor.readResults(query.getRowOffset(), query.getFetchSize() + 1).iterator();
+        }
+        else if (isIdFirstPaging(query)) {
+            it = iterateIdFirst(query);
+        }
+        else {
+            org.hibernate.Query hq = buildQuery(getSession(query), query);
+            log.debug(hq.getQueryString());
+            setPaging(hq, query);
+            it = iterate(hq);
+        }
 
         if (log.isDebugEnabled()) {
             log.debug("Hibernate query took "
                     + (new Date().getTime() - hqStartTime.getTime()) + " ms");
         }
 
-        Locale locale = null;
-        if (query.getLocale() != null) {
-            locale = query.getLocale();
+        RowReader reader = new RowReader(query);
+        while (it.hasNext()) {
+            ResultSetRow rsRow = reader.read(it.next());
+            rowCount++;
+            if (!handler.handleRow(rsRow)) {
+                log.debug("Row handler stopped reading after " + rowCount + " rows");
+                if (it instanceof HibernateIterator) {
+                    ((HibernateIterator) it).close();
+                }
+                break;
+            }
+        }
+
+        if (!query.getCalculateRowCount() && snapshotIds == null) {
+            ret.setRowCount(rowCount);
         }
-        else {
-            locale = Locale.getDefault();
+
+        if (log.isDebugEnabled()) {
+            log.debug("Query took "
+                    + (new Date().getTime() - startTime.getTime()) + " ms");
         }
 
-        DateFormat timestampformat = DateFormat.getDateTimeInstance(
-                DateFormat.SHORT, DateFormat.SHORT, locale);
+        return ret;
+    }
 
-        DateFormat dateformat = DateFormat.getDateInstance(
-                DateFormat.SHORT, locale);
-        Map<String, Type> cachedPropertyTypes = new HashMap<String, Type>();
-        while (it.hasNext()) {
-            Object[] row = (Object[]) it.next();
+    /**
+     * Converts the rows read by hibernate for a query into result set rows.
+     */
+    private class RowReader {
+
+        private final Query query;
+        private final SessionFactory sessionFactory;
+        private final DateFormat timestampformat;
+        private final DateFormat dateformat;
+        private final Map<String, Type> cachedPropertyTypes = new HashMap<String, Type>();
+
+        RowReader(Query query) {
+            this.query = query;
+            // looked up now, since a held cursor's rows may be read on another thread
+            sessionFactory = getSession(query).getSessionFactory();
+
+            Locale locale = null;
+            if (query.getLocale() != null) {
+                locale = query.getLocale();
+            }
+            else {
+                locale = Locale.getDefault();
+            }
+
+            timestampformat = DateFormat.getDateTimeInstance(
+                    DateFormat.SHORT, DateFormat.SHORT, locale);
+
+            dateformat = DateFormat.getDateInstance(
+                    DateFormat.SHORT, locale);
+        }
+
+        ResultSetRow read(Object next) {
+            // a single selected column is not returned as an array
+            Object[] row = next instanceof Object[] ? (Object[]) next : new Object[] {next};
             ResultSetRow rsRow = new ResultSetRow();
             if (query.getIncludeId())
                 rsRow.setId(row[0].toString());
@@ -189,7 +523,7 @@ public class QueryServiceImpl implements QueryService, Serializable {
                 }else{
                     propertyType = ObjectUtils.getPropertyClass(query
                         .getObjectClassName(), queryCol.getAttributePath(),
-                        queryBasedSessionProvider.get(query).getSessionFactory());
+                        sessionFactory);
                     cachedPropertyTypes.put(queryCol.getAttributePath(), propertyType);
                 }
                 if (propertyType instanceof StringType) {
@@ -243,88 +577,1182 @@ public class QueryServiceImpl implements QueryService, Serializable {
             }
 
             rsRow.setColumns(remainingColumns);
-            rows.add(rsRow);
-        }
-
-        ret.setCachedPageRows(rows);
-        if (!query.getCalculateRowCount()) {
-            ret.setRowCount(rows.size());
-        }
-
-        if (log.isDebugEnabled()) {
-            log.debug("Query took "
-                    + (new Date().getTime() - startTime.getTime()) + " ms");
+            return rsRow;
         }
 
-        return ret;
     }
 
     /**
-     * Executes a count query for the specified query and returns the result.
-     * @param query the query.
-     * @return the total number of matches (the count) for the query.
+     * A cursor held open on the rows of a query, on a session of its own,
+     * which is closed once it has been read to the end, or when it times
+     * out.
+     * <p>
+     * The session has the interceptor and enabled filters of the query's
+     * session, so that it selects the same rows, but not its transaction,
+     * so changes which have not been committed are not seen.  While the
+     * cursor is open its session is registered as the running session of
+     * the query, so that cancelling the query cancels the cursor's
+     * statement.
+     * </p>
      */
-    private long getRowCount(Query query) {
+    private class HeldCursor implements ResultSetCursor, Runnable {
 
-        long ret = 0;
-        
-        org.hibernate.Query hq = new QueryStringBuilder().buildCountQuery(getSession(query), query);
+        private final RowReader reader;
+        private final Query runningQuery;
+        private final long openedAt = System.currentTimeMillis();
+        private long lastReadAt = openedAt;
 
-        log.debug("Calculating total rows with query: " + hq.getQueryString());
+        private Session session;
+        private ScrollableResults results;
 
-        Date start = null;
-        if (log.isDebugEnabled()) {
-            start = new Date();
+        /**
+         * The rows read from the results which may be read again, and the
+         * index of the first of them, or of the next row if there are none.
+         */
+        private final LinkedList<Object[]> bufferedRows = new LinkedList<Object[]>();
+        private int bufferedIndex;
+
+        private boolean closed = false;
+
+        HeldCursor(Query query, Query runningQuery) {
+            this.runningQuery = runningQuery;
+            reader = new RowReader(query);
+            bufferedIndex = query.getRowOffset();
+            session = openSession(getSession(query));
+            getRunningQueries().put(runningQuery, session);
+            try {
+                org.hibernate.Query hq = buildQuery(session, query);
+                log.debug("Holding a cursor open on " + hq.getQueryString());
+                if (query.getRowOffset() > 0) {
+                    hq.setFirstResult(query.getRowOffset());
+                }
+                hq.setFetchSize(query.getFetchSize());
+                results = scroll(hq);
+            } catch (RuntimeException e) {
+                getRunningQueries().remove(runningQuery, session);
+                session.close();
+                throw e;
+            }
+            schedule(Math.min(cursorIdleTimeout, cursorMaxLifetime));
         }
 
-        ret = (Long) hq.uniqueResult();
+        public synchronized List<ResultSetRow> readRows(int firstRow, int rowCount) {
+            List<Object[]> rows = readResults(firstRow, rowCount);
+            if (rows == null) {
+                return null;
+            }
+            List<ResultSetRow> ret = new ArrayList<ResultSetRow>(rows.size());
+            for (Object[] row : rows) {
+                ret.add(reader.read(row));
+            }
+            return ret;
+        }
 
-        log.debug("There are " + ret + " total rows");
-        if (log.isDebugEnabled()) {
-            log.debug("Count query took: "
-                    + (new Date().getTime() - start.getTime()) + " ms");
+        /**
+         * As {@link #readRows(int, int)}, returning the rows as read by
+         * hibernate.
+         */
+        synchronized List<Object[]> readResults(int firstRow, int rowCount) {
+            if (closed || firstRow < bufferedIndex) {
+                return null;
+            }
+            lastReadAt = System.currentTimeMillis();
+            while (bufferedIndex < firstRow && (!bufferedRows.isEmpty() || readNext())) {
+                bufferedRows.removeFirst();
+                bufferedIndex++;
+            }
+            if (bufferedIndex < firstRow) {
+                // the rows ran out before the first row
+                return new ArrayList<Object[]>();
+            }
+            while (bufferedRows.size() < rowCount && readNext()) {
+                // read until there are enough rows
+            }
+            return new ArrayList<Object[]>(bufferedRows.subList(0,
+                    Math.min(rowCount, bufferedRows.size())));
         }
 
-        return ret;
-    }
-    
-    private Session getSession(Query query) {
-        return queryBasedSessionProvider.get(query);
-    }
-    
-    public void setSessionProvider(QueryBasedSessionProvider qbsp) {
-        if (qbsp == null) {
-            throw new NullPointerException("QueryBasedSessionProvider must not be null");
+        /**
+         * Reads the next row into the buffer, releasing the session once
+         * there are no more.
+         */
+        private boolean readNext() {
+            if (results == null) {
+                return false;
+            }
+            if (results.next()) {
+                bufferedRows.add(results.get());
+                return true;
+            }
+            log.debug("Held cursor exhausted at row " + (bufferedIndex + bufferedRows.size()));
+            release();
+            return false;
         }
-        this.queryBasedSessionProvider = qbsp;
-    }
-    
-    public void setSessionProvider(SessionProvider sessionProvider) {
-        if (sessionProvider == null) {
-            throw new NullPointerException("SessionProvider must not be null");
+
+        public synchronized void close() {
+            closed = true;
+            bufferedRows.clear();
+            release();
         }
-        if (queryBasedSessionProvider == null) { 
-            queryBasedSessionProvider = new DefaultSessionProvider(sessionProvider);
+
+        /**
+         * Closes the cursor if it has timed out, and otherwise checks again
+         * when it next could.
+         */
+        public synchronized void run() {
+            if (closed || results == null) {
+                return;
+            }
+            long wait = Math.min(lastReadAt + cursorIdleTimeout, openedAt + cursorMaxLifetime)
+                    - System.currentTimeMillis();
+            if (wait <= 0) {
+                log.debug("Closing a held cursor which has timed out");
+                close();
+            }
+            else {
+                schedule(wait);
+            }
         }
-    }
-    
-    // wrapper for standard SessionProvider
-    private static class DefaultSessionProvider implements QueryBasedSessionProvider {
-        
-        private SessionProvider sessionProvider;
-        
-        public DefaultSessionProvider(SessionProvider sessionProvider) {
-            this.sessionProvider = sessionProvider;
+
+        private void schedule(long delayMillis) {
+            cursorTimer.schedule(this, delayMillis, TimeUnit.MILLISECONDS);
         }
 
-        // maintain backward compatibility by calling the SessionProvider
-        public Session get(Query query) {                    
-            return get();
+        private void release() {
+            if (session == null) {
+                return;
+            }
+            getRunningQueries().remove(runningQuery, session);
+            try {
+                results.close();
+            } catch (RuntimeException e) {
+                log.warn("Error closing a held cursor", e);
+            }
+            try {
+                session.close();
+            } catch (RuntimeException e) {
+                log.warn("Error closing the session of a held cursor", e);
+            }
+            results = null;
+            session = null;
         }
 
-		public Session get() {                  
-            return sessionProvider.get();
-		}
+    }
+
+    /**
+     * Limits the passed hibernate query to the page of rows of the passed
+     * query.
+     */
+    private void setPaging(org.hibernate.Query hq, Query query) {
+        if (query.getRowOffset() > 0) {
+            log.debug("Setting offset: " + query.getRowOffset());
+            hq.setFirstResult(query.getRowOffset());
+        }
+        if (query.getFetchSize() > 0) {
+            log.debug("Setting fetch limit to " + query.getFetchSize());
+            hq.setMaxResults(query.getFetchSize() + 1);
+        }
+        else if (query.getMaxRows() > 0) {
+            log.debug("Setting max rows to " + query.getMaxRows());
+            hq.setMaxResults(query.getMaxRows());
+        }
+    }
+
+    /**
+     * Returns whether the passed query should be run as an id query
+     * followed by a query for the columns, see
+     * {@link Query#setIdFirstPaging(boolean)}.
+     */
+    private boolean isIdFirstPaging(Query query) {
+        return query.getIdFirstPaging()
+                && query.getIncludeId()
+                && query.getSortData() != null
+                && query.getSortData().length > 0
+                && (query.getRowOffset() > 0 || query.getFetchSize() > 0
+                        || query.getMaxRows() > 0);
+    }
+
+    /**
+     * Returns whether a cursor should be held open on the rows of the
+     * passed query, see {@link Query#setHoldCursor(boolean)}.
+     */
+    private boolean isHoldCursor(Query query) {
+        return query.getHoldCursor() && query.getFetchSize() > 0;
+    }
+
+    /**
+     * Returns whether the ids of all the rows of the passed query should be
+     * captured, see {@link Query#setSnapshotPaging(boolean)}.
+     */
+    private boolean isSnapshotPaging(Query query) {
+        return query.getSnapshotPaging()
+                && query.getIncludeId()
+                && query.getFetchSize() > 0;
+    }
+
+    /**
+     * Selects the ids of the page of rows of the passed query, and then the
+     * columns of just those rows, returning them in the order of the ids.
+     */
+    private Iterator iterateIdFirst(Query query) {
+        Session session = getSession(query);
+
+        org.hibernate.Query idQuery = buildQuery(session, makeIdQuery(query));
+        log.debug("Selecting the ids of the page: " + idQuery.getQueryString());
+        setPaging(idQuery, query);
+        List<Object> ids = selectIds(idQuery);
+        if (ids.isEmpty()) {
+            return ids.iterator();
+        }
+
+        /*
+         * The filter is kept so that aggregates are calculated over the same
+         * joins as in the single query, which is cheap as the database only
+         * has to check the rows with the ids.
+         */
+        Restriction idRestriction = new SimpleRestriction("id", Operator.IN, ids.toArray());
+        Query columnQuery = query.makeClone()
+                .setFilterCriterion(query.getFilterCriterion() == null ? idRestriction
+                        : new AndRestriction(query.getFilterCriterion(), idRestriction))
+                .setRowOffset(0)
+                .setFetchSize(0)
+                .setMaxRows(0);
+        // rows deleted since their id was selected are left out
+        return iterateByIds(session, columnQuery, ids, false);
+    }
+
+    /**
+     * Selects the ids of all the rows of the passed query, in order, or
+     * returns <code>null</code> if they are not all integers or all longs.
+     */
+    private List<Object> selectSnapshotIds(Query query) {
+        org.hibernate.Query idQuery = buildQuery(getSession(query), makeIdQuery(query));
+        log.debug("Capturing the ids of all the rows: " + idQuery.getQueryString());
+        List<Object> ret = selectIds(idQuery);
+        Class<?> idClass = ret.isEmpty() ? Long.class : ret.get(0).getClass();
+        if (idClass != Long.class && idClass != Integer.class) {
+            log.debug("Ids of type " + idClass.getName() + " cannot be captured");
+            return null;
+        }
+        for (Object id : ret) {
+            if (id.getClass() != idClass) {
+                log.debug("Ids of mixed types cannot be captured");
+                return null;
+            }
+        }
+        log.debug("Captured " + ret.size() + " ids");
+        return ret;
+    }
+
+    /**
+     * Selects the page of rows of the passed query from the captured ids,
+     * in the order of the ids.
+     */
+    private Iterator iterateSnapshotPage(Query query, List<Object> snapshotIds) {
+        int from = Math.min(snapshotIds.size(), query.getRowOffset());
+        List<Object> ids = snapshotIds.subList(from,
+                Math.min(snapshotIds.size(), from + query.getFetchSize()));
+        if (ids.isEmpty()) {
+            return ids.iterator();
+        }
+        // the ids already satisfy the filter, so it is not checked again
+        Query pageQuery = query.makeClone()
+                .setFilterCriterion(new SimpleRestriction("id", Operator.IN, ids.toArray()))
+                .setRowOffset(0)
+                .setFetchSize(0);
+        return iterateByIds(getSession(query), pageQuery, ids, true);
+    }
+
+    /**
+     * Returns the ids selected by the passed hibernate query, which is
+     * either of ids alone or of rows starting with the id.
+     */
+    @SuppressWarnings("unchecked")
+    private List<Object> selectIds(org.hibernate.Query idQuery) {
+        List<Object> ret = new ArrayList<Object>();
+        for (Iterator it = iterate(idQuery); it.hasNext();) {
+            Object next = it.next();
+            ret.add(next instanceof Object[] ? ((Object[]) next)[0] : next);
+        }
+        return ret;
+    }
+
+    /**
+     * Runs the passed query, which is restricted to the passed ids, and
+     * returns its rows in the order of the ids.
+     * @param placeholders whether rows which are missing, having been
+     * deleted since their ids were selected, are returned with just the id
+     * rather than left out.
+     */
+    private Iterator iterateByIds(Session session, Query query, List<Object> ids,
+            boolean placeholders) {
+        org.hibernate.Query hq = buildQuery(session, query);
+        log.debug("Selecting the columns of the page: " + hq.getQueryString());
+
+        // an id may have more than one row where a joined collection is selected
+        Map<Object, List<Object[]>> rowsById = new HashMap<Object, List<Object[]>>();
+        for (Iterator it = iterate(hq); it.hasNext();) {
+            Object[] row = (Object[]) it.next();
+            List<Object[]> rows = rowsById.get(row[0]);
+            if (rows == null) {
+                rows = new ArrayList<Object[]>();
+                rowsById.put(row[0], rows);
+            }
+            rows.add(row);
+        }
+        List<Object[]> ret = new ArrayList<Object[]>(ids.size());
+        for (Object id : ids) {
+            List<Object[]> rows = rowsById.get(id);
+            if (rows != null && !rows.isEmpty()) {
+                ret.add(rows.remove(0));
+            }
+            else if (placeholders) {
+                Object[] row = new Object[query.getColumns().size() + 1];
+                row[0] = id;
+                ret.add(row);
+            }
+        }
+        return ret.iterator();
+    }
+
+    private static long[] toLongs(List<Object> ids) {
+        long[] ret = new long[ids.size()];
+        for (int i = 0; i < ret.length; i++) {
+            ret[i] = ((Number) ids.get(i)).longValue();
+        }
+        return ret;
+    }
+
+    /**
+     * Returns a copy of the passed query which selects just the id and the
+     * sorted columns, in the same order.  Without sort data the rows are
+     * ordered by all the columns, so all of them are selected.
+     */
+    private Query makeIdQuery(Query query) {
+        if (query.getSortData() == null || query.getSortData().length == 0) {
+            return query.makeClone();
+        }
+        List<QueryColumn> columns = new ArrayList<QueryColumn>();
+        SortData[] sortData = new SortData[query.getSortData().length];
+        for (int i = 0; i < sortData.length; i++) {
+            SortData sort = query.getSortData()[i];
+            columns.add(query.getColumns().get(sort.getColumnIndex()));
+            sortData[i] = new SortData(i, sort.getAscending());
+        }
+        Query ret = query.makeClone()
+                .setColumns(columns)
+                .setSortDatas(sortData);
+        // the columns query is grouped by id, so each id is selected once
+        for (QueryColumn col : query.getColumns()) {
+            if (col.getAggregateFunction() != null) {
+                ret.setDistinctId(true);
+                break;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Runs the passed query, or if an identical query for the same session
+     * provider, session filters and configuration is already running, waits
+     * for that to finish instead.
+     * @param key the key of the query.
+     * @param query the query.
+     * @return the result set of whichever call ran the query, whose rows
+     * must not be modified.
+     */
+    private ResultSet executeCoalesced(QueryKey key, final Query query) {
+        FutureTask<ResultSet> task = new FutureTask<ResultSet>(new Callable<ResultSet>() {
+            public ResultSet call() {
+                // a copy, so that cancelling the caller's query does not affect the others
+                ResultSet ret = fetchRows(query.makeClone());
+                if (!(ret.getCachedPageRows() instanceof SpillableRowList)) {
+                    ret.setCachedPageRows(Collections.unmodifiableList(ret.getCachedPageRows()));
+                }
+                return ret;
+            }
+        });
+        FutureTask<ResultSet> running = inFlightQueries.putIfAbsent(key, task);
+        if (running == null) {
+            try {
+                task.run();
+            } finally {
+                inFlightQueries.remove(key, task);
+            }
+            running = task;
+        }
+        else {
+            log.debug("Waiting for the same query already running");
+        }
+
+        try {
+            return running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the same query", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Returns the key under which the passed query is coalesced with
+     * identical ones, or <code>null</code> if it cannot be, because the
+     * filters enabled on its session cannot be read.
+     * @param query the query.
+     * @return the key, or <code>null</code>.
+     */
+    QueryKey makeQueryKey(Query query) {
+        if (queryBasedSessionProvider == null) {
+            throw new NullPointerException("The session provider is null - did you forget to set it?");
+        }
+        Session session = getSession(query);
+        if (!(session instanceof SessionImplementor)) {
+            log.debug("Not coalescing the query, as the filters of its session are not known");
+            return null;
+        }
+        return new QueryKey(this, query, getEnabledFilters((SessionImplementor) session));
+    }
+
+    /**
+     * Returns the parameters of each filter enabled on the passed session,
+     * keyed by filter name and then parameter name.
+     */
+    private static Map<String, Map<String, Object>> getEnabledFilters(SessionImplementor session) {
+        Map<String, Map<String, Object>> ret = new HashMap<String, Map<String, Object>>();
+        for (Object value : session.getEnabledFilters().values()) {
+            FilterImpl filter = (FilterImpl) value;
+            Map<String, Object> parameters = new HashMap<String, Object>();
+            for (Object param : filter.getParameters().entrySet()) {
+                Map.Entry<?, ?> entry = (Map.Entry<?, ?>) param;
+                parameters.put((String) entry.getKey(), entry.getValue());
+            }
+            ret.put(filter.getName(), parameters);
+        }
+        return ret;
+    }
+
+    /**
+     * Returns a result set for the passed caller's query, with its own
+     * copies of the rows of the passed shared result set.
+     */
+    private ResultSet copyResultSet(ResultSet shared, Query query) {
+        ResultSet ret = new ResultSet();
+        ret.setQueryService(this);
+        ret.setQuery(query);
+        ret.setCachedPageRows(copyRows(shared.getCachedPageRows()));
+        ret.setRowCount(shared.getRowCount());
+        ret.setQueryBailedOut(shared.getQueryBailedOut());
+        ret.setSnapshotIds(shared.getSnapshotIds(), shared.getSnapshotIntegerIds());
+        return ret;
+    }
+
+    /**
+     * Copies the shared rows of a coalesced query for one of its callers.
+     * Rows which have been spilled to a file are copied as they are read,
+     * rather than being brought back onto the heap all at once.
+     */
+    private static List<ResultSetRow> copyRows(final List<ResultSetRow> rows) {
+        if (rows instanceof SpillableRowList && ((SpillableRowList) rows).isSpilled()) {
+            return new CopyingRowList(rows);
+        }
+        List<ResultSetRow> ret = new ArrayList<ResultSetRow>(rows.size());
+        for (ResultSetRow row : rows) {
+            ret.add(copyRow(row));
+        }
+        return ret;
+    }
+
+    private static ResultSetRow copyRow(ResultSetRow row) {
+        ResultSetRow ret = new ResultSetRow();
+        ret.setId(row.getId());
+        if (row.getColumns() != null) {
+            ResultSetColumn[] columns = new ResultSetColumn[row.getColumns().length];
+            for (int i = 0; i < columns.length; i++) {
+                ResultSetColumn col = row.getColumns()[i];
+                if (col != null) {
+                    columns[i] = new ResultSetColumn();
+                    columns[i].setDataType(col.getDataType());
+                    columns[i].setValue(col.getValue());
+                }
+            }
+            ret.setColumns(columns);
+        }
+        return ret;
+    }
+
+    /**
+     * A read-only view of shared rows which returns a copy of each row as
+     * it is read.
+     */
+    private static class CopyingRowList extends AbstractList<ResultSetRow> implements RandomAccess {
+
+        private final List<ResultSetRow> rows;
+
+        CopyingRowList(List<ResultSetRow> rows) {
+            this.rows = rows;
+        }
+
+        @Override
+        public ResultSetRow get(int index) {
+            return copyRow(rows.get(index));
+        }
+
+        @Override
+        public int size() {
+            return rows.size();
+        }
+    }
+
+    /**
+     * See
+     * {@link org.sgodden.query.service.QueryService#cancelQuery(org.sgodden.query.Query}.
+     * Queries coalesced with others are not cancelled, since the others are
+     * waiting for them.
+     * @param query the query to cancel.
+     */
+    public void cancelQuery(Query query) {
+        Session session = getRunningQueries().get(query);
+        if (session != null) {
+            log.debug("Cancelling query");
+            session.cancelQuery();
+        }
+    }
+
+    private ConcurrentMap<Query, Session> getRunningQueries() {
+        // not serialized, as the queries run in the original instance
+        if (runningQueries == null) {
+            runningQueries = new ConcurrentHashMap<Query, Session>();
+        }
+        return runningQueries;
+    }
+
+    /**
+     * See
+     * {@link org.sgodden.query.service.QueryService#explain(org.sgodden.query.Query}.
+     * @param query the query to explain.
+     */
+    public QueryExplanation explain(Query query) {
+        QueryExplanation ret = new QueryExplanation();
+
+        Restriction filter = makeRestrictionOptimizer(query).optimize(query.getFilterCriterion());
+        if (filter == RestrictionOptimizer.NO_MATCH) {
+            log.debug("Filter criteria can never match, so there is nothing to explain");
+            return ret;
+        }
+        if (filter != query.getFilterCriterion()) {
+            query = query.makeClone().setFilterCriterion(filter);
+        }
+
+        Session session = getSession(query);
+        QueryExplainer explainer = new QueryExplainer(session, explainPrefix);
+
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        ret.setCountStatement(explainer.explain(
+                buildCountQuery(session, query, parameters), parameters));
+
+        parameters = new HashMap<String, Object>();
+        ret.setMainStatement(explainer.explain(
+                buildQuery(session, query, parameters), parameters));
+
+        return ret;
+    }
+
+    /**
+     * See
+     * {@link org.sgodden.query.service.QueryService#facetCounts(Query, List, int)}.
+     * <p>
+     * Each path is counted by its own query, grouping by that path alone, so
+     * that the number of rows returned is the number of distinct values of
+     * the path, rather than the product of those of all the paths.  Paths
+     * through locale data are not supported.
+     * </p>
+     * <p>
+     * The paths cannot be counted in a single scan with GROUPING SETS, since
+     * HQL has no such clause, so unless the facet concurrency is one the
+     * queries are instead run at the same time, each on a session opened
+     * with the interceptor and enabled filters of the query's session.
+     * </p>
+     */
+    public Map<String, Map<Object, Long>> facetCounts(Query query,
+            List<String> attributePaths, int topN) {
+        for (String attributePath : attributePaths) {
+            if (attributePath.contains("localeData")) {
+                throw new IllegalArgumentException(
+                        "Facet counts are not supported for locale data: " + attributePath);
+            }
+        }
+
+        Map<String, Map<Object, Long>> counts;
+        if (facetConcurrency > 1 && attributePaths.size() > 1) {
+            counts = countFacetsConcurrently(query, attributePaths);
+        }
+        else {
+            counts = new HashMap<String, Map<Object, Long>>();
+            for (String attributePath : attributePaths) {
+                counts.put(attributePath, countFacets(query, attributePath));
+            }
+        }
+
+        Map<String, Map<Object, Long>> ret = new LinkedHashMap<String, Map<Object, Long>>();
+        for (String attributePath : attributePaths) {
+            ret.put(attributePath, getTopCounts(counts.get(attributePath), topN));
+        }
+        return ret;
+    }
+
+    /**
+     * Counts the facets of the passed paths on up to the facet concurrency
+     * threads, each taking the next path to count until there are none
+     * left.
+     */
+    private Map<String, Map<Object, Long>> countFacetsConcurrently(final Query query,
+            List<String> attributePaths) {
+        final Map<String, Map<Object, Long>> ret =
+            new ConcurrentHashMap<String, Map<Object, Long>>();
+        final LinkedList<String> remainingPaths = new LinkedList<String>(attributePaths);
+
+        // the sessions are opened here, as the provider's may be bound to this thread
+        Session querySession = getSession(query);
+        List<Session> sessions = new ArrayList<Session>();
+        List<Future<Object>> futures = new ArrayList<Future<Object>>();
+        try {
+            for (int i = 0; i < Math.min(facetConcurrency, attributePaths.size()); i++) {
+                sessions.add(openSession(querySession));
+            }
+            for (final Session session : sessions) {
+                futures.add(facetExecutor.submit(new Callable<Object>() {
+                    public Object call() throws Exception {
+                        return callInSession(session, new Callable<Object>() {
+                            public Object call() {
+                                String attributePath;
+                                while ((attributePath = pollPath(remainingPaths)) != null) {
+                                    ret.put(attributePath, countFacets(query, attributePath));
+                                }
+                                return null;
+                            }
+                        });
+                    }
+                }));
+            }
+        } catch (RuntimeException e) {
+            // close the sessions which were not handed to a thread
+            for (Session session : sessions.subList(futures.size(), sessions.size())) {
+                session.close();
+            }
+            throw e;
+        }
+
+        try {
+            for (Future<Object> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            // the threads close their sessions once they see that there is no more to do
+            synchronized (remainingPaths) {
+                remainingPaths.clear();
+            }
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while counting facets", e);
+        } catch (ExecutionException e) {
+            synchronized (remainingPaths) {
+                remainingPaths.clear();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+        return ret;
+    }
+
+    private static String pollPath(LinkedList<String> remainingPaths) {
+        synchronized (remainingPaths) {
+            return remainingPaths.poll();
+        }
+    }
+
+    /**
+     * Counts the distinct objects matching the query for each value of the
+     * passed path.
+     */
+    private Map<Object, Long> countFacets(Query query, String attributePath) {
+        Query q = new Query();
+        q.setObjectClassName(query.getObjectClassName());
+        q.setLocale(query.getLocale());
+        q.setFilterCriterion(query.getFilterCriterion());
+        q.setExistsForCollections(query.getExistsForCollections());
+        q.addColumn(attributePath);
+        q.addColumn("id", AggregateFunction.COUNT_DISTINCT);
+        q.setIncludeId(false);
+
+        Map<Object, Long> ret = new HashMap<Object, Long>();
+        for (ResultSetRow row : executeQuery(q).getCachedPageRows()) {
+            ResultSetColumn[] cols = row.getColumns();
+            ret.put(cols[0].getValue(), ((Number) cols[1].getValue()).longValue());
+        }
+        return ret;
+    }
+
+    private Map<Object, Long> getTopCounts(Map<Object, Long> counts, int topN) {
+        List<Map.Entry<Object, Long>> entries = new ArrayList<Map.Entry<Object, Long>>(
+                counts.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<Object, Long>>() {
+            public int compare(Map.Entry<Object, Long> o1, Map.Entry<Object, Long> o2) {
+                return o2.getValue().compareTo(o1.getValue());
+            }
+        });
+        Map<Object, Long> ret = new LinkedHashMap<Object, Long>();
+        for (Map.Entry<Object, Long> entry : entries) {
+            if (topN > 0 && ret.size() == topN) {
+                break;
+            }
+            ret.put(entry.getKey(), entry.getValue());
+        }
+        return ret;
+    }
+
+    /**
+     * Executes a count query for the specified query and returns the result.
+     * @param query the query.
+     * @return the total number of matches (the count) for the query.
+     */
+    private long getRowCount(Query query) {
+
+        long ret = 0;
+        
+        org.hibernate.Query hq = buildCountQuery(getSession(query), query);
+
+        log.debug("Calculating total rows with query: " + hq.getQueryString());
+
+        Date start = null;
+        if (log.isDebugEnabled()) {
+            start = new Date();
+        }
+
+        ret = (Long) hq.uniqueResult();
+
+        log.debug("There are " + ret + " total rows");
+        if (log.isDebugEnabled()) {
+            log.debug("Count query took: "
+                    + (new Date().getTime() - start.getTime()) + " ms");
+        }
+
+        return ret;
+    }
+    
+    /**
+     * Builds the hibernate query which selects the rows of the passed query.
+     * @param session the hibernate session.
+     * @param query the query.
+     * @return the hibernate query.
+     */
+    protected org.hibernate.Query buildQuery(Session session, Query query) {
+        return buildQuery(session, query, new HashMap<String, Object>());
+    }
+
+    /**
+     * As {@link #buildQuery(Session, Query)}, additionally putting the values
+     * of the named parameters into the passed map, so that the query can be
+     * explained.  Subclasses which build the query differently should
+     * override this method, so that the query they run is the one explained.
+     * @param session the hibernate session.
+     * @param query the query.
+     * @param parameters populated with the parameter values, keyed by name.
+     * @return the hibernate query.
+     */
+    protected org.hibernate.Query buildQuery(Session session, Query query,
+            Map<String, Object> parameters) {
+        return makeQueryStringBuilder().buildQuery(session, query, parameters);
+    }
+
+    /**
+     * Builds the hibernate query which counts the matches of the passed query.
+     * @param session the hibernate session.
+     * @param query the query.
+     * @return the hibernate count query.
+     */
+    protected org.hibernate.Query buildCountQuery(Session session, Query query) {
+        return buildCountQuery(session, query, new HashMap<String, Object>());
+    }
+
+    /**
+     * As {@link #buildCountQuery(Session, Query)}, additionally putting the
+     * values of the named parameters into the passed map, so that the query
+     * can be explained.  Subclasses which build the query differently should
+     * override this method, so that the query they run is the one explained.
+     * @param session the hibernate session.
+     * @param query the query.
+     * @param parameters populated with the parameter values, keyed by name.
+     * @return the hibernate count query.
+     */
+    protected org.hibernate.Query buildCountQuery(Session session, Query query,
+            Map<String, Object> parameters) {
+        return makeQueryStringBuilder().buildCountQuery(session, query, parameters);
+    }
+
+    /**
+     * Executes the passed hibernate query and returns an iterator over the
+     * result rows.
+     * @param hq the hibernate query.
+     * @return the iterator over the result rows.
+     */
+    @SuppressWarnings("unchecked")
+    protected Iterator iterate(org.hibernate.Query hq) {
+        return hq.iterate();
+    }
+
+    /**
+     * Executes the passed hibernate query and returns a forward-only cursor
+     * over the result rows.
+     * @param hq the hibernate query.
+     * @return the cursor over the result rows.
+     */
+    protected ScrollableResults scroll(org.hibernate.Query hq) {
+        return hq.scroll(ScrollMode.FORWARD_ONLY);
+    }
+
+    private RestrictionOptimizer makeRestrictionOptimizer(Query query) {
+        RestrictionOptimizer ret = new RestrictionOptimizer();
+        if (query.getExistsForCollections()) {
+            ret.setCollectionPathResolver(new CollectionPathResolver(query,
+                    getSession(query).getSessionFactory()));
+        }
+        return ret;
+    }
+
+    private QueryStringBuilder makeQueryStringBuilder() {
+        QueryStringBuilder ret = new QueryStringBuilder();
+        ret.setCaseInsensitiveMatching(caseInsensitiveMatching);
+        ret.setTextSearchProvider(textSearchProvider);
+        ret.setLocaleResolution(localeResolution);
+        return ret;
+    }
+
+    /**
+     * Sets how case-insensitive restrictions are rendered for particular
+     * attribute paths.  If this is not set, the column and value are both
+     * upper-cased, which prevents the use of ordinary indexes.
+     * @param caseInsensitiveMatching the case-insensitive matching configuration.
+     */
+    public void setCaseInsensitiveMatching(CaseInsensitiveMatching caseInsensitiveMatching) {
+        this.caseInsensitiveMatching = caseInsensitiveMatching;
+    }
+
+    /**
+     * @see #setCaseInsensitiveMatching(CaseInsensitiveMatching)
+     * @return the case-insensitive matching configuration, or <code>null</code>.
+     */
+    public CaseInsensitiveMatching getCaseInsensitiveMatching() {
+        return caseInsensitiveMatching;
+    }
+    
+    /**
+     * Sets the provider used to narrow CONTAINS and ENDS_WITH restrictions,
+     * which otherwise require the database to scan the whole table, to a set
+     * of candidate identifiers.
+     * @param textSearchProvider the text search provider.
+     */
+    public void setTextSearchProvider(TextSearchProvider textSearchProvider) {
+        this.textSearchProvider = textSearchProvider;
+    }
+    
+    /**
+     * Sets how columns with the LOCALE aggregate function are resolved to
+     * the value for the nearest locale.  {@link LocaleResolution#RANKED}
+     * avoids grouping the whole result, and is recommended for large
+     * queries.  Defaults to {@link LocaleResolution#AGGREGATE}.
+     * @param localeResolution the locale resolution.
+     */
+    public void setLocaleResolution(LocaleResolution localeResolution) {
+        this.localeResolution = localeResolution;
+    }
+    
+    /**
+     * Sets the prefix which turns a select statement into a statement
+     * returning the database execution plan, as used by
+     * {@link #explain(Query)}; for instance <code>EXPLAIN </code>.  If
+     * this is not set, one is chosen for MySQL, PostgreSQL, H2 and HSQLDB
+     * dialects, and no plan is returned for other databases.
+     * @param explainPrefix the explain prefix.
+     */
+    public void setExplainPrefix(String explainPrefix) {
+        this.explainPrefix = explainPrefix;
+    }
+    
+    /**
+     * Sets whether identical queries run at the same time, by this or any
+     * other instance of the same class with an equal session provider and
+     * the same matching, text search and spill settings, and on sessions
+     * with the same filters and filter parameters enabled, are run only
+     * once, with the callers which arrive while it is running waiting for
+     * it and each given copies of its rows.  This suits lists which many
+     * users open at once, but callers then no longer see the changes made
+     * in their own uncommitted transaction, so it should only be enabled
+     * where the queries are read-only.  Streamed queries without a fetch
+     * size or maximum number of rows, and queries on sessions whose
+     * filters cannot be read, are never coalesced.  Defaults to
+     * <code>false</code>.
+     * @param coalesceQueries whether to coalesce identical queries.
+     */
+    public void setCoalesceQueries(boolean coalesceQueries) {
+        this.coalesceQueries = coalesceQueries;
+    }
+
+    /**
+     * @see #setCoalesceQueries(boolean)
+     * @return whether identical queries are coalesced.
+     */
+    public boolean getCoalesceQueries() {
+        return coalesceQueries;
+    }
+    
+    /**
+     * Sets the estimated size of the rows of a result above which they are
+     * moved to a memory-mapped temporary file rather than held in memory,
+     * so that results too large for the heap can be read without limiting
+     * the number of rows.  Rows passed to a handler are not affected.
+     * Defaults to zero, which always holds the rows in memory.
+     * @param spillThreshold the threshold in bytes, or zero.
+     * @see SpillableRowList
+     */
+    public void setSpillThreshold(long spillThreshold) {
+        this.spillThreshold = spillThreshold;
+    }
+
+    /**
+     * Sets the directory in which the files of spilled results are
+     * created, which defaults to the temporary directory.
+     * @param spillDirectory the directory, or <code>null</code>.
+     * @see #setSpillThreshold(long)
+     */
+    public void setSpillDirectory(File spillDirectory) {
+        this.spillDirectory = spillDirectory;
+    }
+
+    /**
+     * Sets the time after which a cursor held open for a query (see
+     * {@link Query#setHoldCursor(boolean)}) is closed if it has not been
+     * read.  Defaults to one minute.
+     * @param millis the idle timeout in milliseconds.
+     */
+    public void setCursorIdleTimeout(long millis) {
+        this.cursorIdleTimeout = millis;
+    }
+
+    /**
+     * Sets the time after which a cursor held open for a query is closed
+     * even if it is still being read, so that its session and connection
+     * are not held indefinitely.  Defaults to ten minutes.
+     * @param millis the maximum lifetime in milliseconds.
+     */
+    public void setCursorMaxLifetime(long millis) {
+        this.cursorMaxLifetime = millis;
+    }
+
+    /**
+     * Sets the number of attribute paths whose facets are counted at the
+     * same time, each on a session of its own.  Since those sessions do
+     * not share the transaction of the query's session, changes which have
+     * not been committed are not counted; a concurrency of one counts the
+     * paths one after another on the query's session.  Defaults to four.
+     * @param facetConcurrency the number of paths counted at once.
+     */
+    public void setFacetConcurrency(int facetConcurrency) {
+        this.facetConcurrency = facetConcurrency;
+    }
+
+    /**
+     * Returns the number of attribute paths whose facets are counted at the
+     * same time.
+     * @return the number of paths counted at once.
+     */
+    public int getFacetConcurrency() {
+        return facetConcurrency;
+    }
+    
+    /**
+     * Returns the session in which to run the passed query: the one opened
+     * for the current thread by {@link #callInSession(Session, Callable)},
+     * if any, or else that of the session provider.
+     */
+    private Session getSession(Query query) {
+        Session ret = getBoundSession().get();
+        if (ret != null) {
+            return ret;
+        }
+        return queryBasedSessionProvider.get(query);
+    }
+
+    private ThreadLocal<Session> getBoundSession() {
+        // not serialized, as sessions are only bound while a call runs
+        if (boundSession == null) {
+            boundSession = new ThreadLocal<Session>();
+        }
+        return boundSession;
+    }
+
+    /**
+     * Runs the passed call with the passed session used for all queries
+     * run by this service on the current thread, and then closes the
+     * session.
+     */
+    private <T> T callInSession(Session session, Callable<T> call) throws Exception {
+        getBoundSession().set(session);
+        try {
+            return call.call();
+        } finally {
+            getBoundSession().remove();
+            session.close();
+        }
+    }
+
+    /**
+     * Opens a session on the factory of the passed one, with its
+     * interceptor and a copy of its enabled filters.
+     */
+    private Session openSession(Session querySession) {
+        SessionFactory sessionFactory = querySession.getSessionFactory();
+        if (!(querySession instanceof SessionImplementor)) {
+            return sessionFactory.openSession();
+        }
+        SessionImplementor implementor = (SessionImplementor) querySession;
+        Session ret = sessionFactory.openSession(implementor.getInterceptor());
+        for (Map.Entry<String, Map<String, Object>> filter
+                : getEnabledFilters(implementor).entrySet()) {
+            Filter copy = ret.enableFilter(filter.getKey());
+            for (Map.Entry<String, Object> param : filter.getValue().entrySet()) {
+                if (param.getValue() instanceof Collection) {
+                    copy.setParameterList(param.getKey(), (Collection<?>) param.getValue());
+                }
+                else {
+                    copy.setParameter(param.getKey(), param.getValue());
+                }
+            }
+        }
+        return ret;
+    }
+    
+    public void setSessionProvider(QueryBasedSessionProvider qbsp) {
+        if (qbsp == null) {
+            throw new NullPointerException("QueryBasedSessionProvider must not be null");
+        }
+        this.queryBasedSessionProvider = qbsp;
+    }
+    
+    public void setSessionProvider(SessionProvider sessionProvider) {
+        if (sessionProvider == null) {
+            throw new NullPointerException("SessionProvider must not be null");
+        }
+        if (queryBasedSessionProvider == null) { 
+            queryBasedSessionProvider = new DefaultSessionProvider(sessionProvider);
+        }
+    }
+    
+    // wrapper for standard SessionProvider
+    private static class DefaultSessionProvider implements QueryBasedSessionProvider {
+        
+        private SessionProvider sessionProvider;
+        
+        public DefaultSessionProvider(SessionProvider sessionProvider) {
+            this.sessionProvider = sessionProvider;
+        }
+
+        // maintain backward compatibility by calling the SessionProvider
+        public Session get(Query query) {                    
+            return get();
+        }
+
+		public Session get() {                  
+            return sessionProvider.get();
+		}
+
+        // instances wrapping the same provider share coalesced queries
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof DefaultSessionProvider
+                    && ((DefaultSessionProvider) obj).sessionProvider.equals(sessionProvider);
+        }
+
+        @Override
+        public int hashCode() {
+            return sessionProvider.hashCode();
+        }
+
+    }
+
+    /**
+     * Identifies a query for coalescing, by its serialized form, the
+     * service settings which change the statement run or the result
+     * returned, and the filters enabled on its session, so that services
+     * configured differently, or sessions seeing different rows, never
+     * share a result.
+     */
+    static class QueryKey {
+
+        private final Class<?> serviceClass;
+        private final QueryBasedSessionProvider sessionProvider;
+        private final LocaleResolution localeResolution;
+        private final CaseInsensitiveMatching caseInsensitiveMatching;
+        private final TextSearchProvider textSearchProvider;
+        private final long spillThreshold;
+        private final Map<String, Map<String, Object>> enabledFilters;
+        private final byte[] queryBytes;
+        private final int hashCode;
+
+        QueryKey(QueryServiceImpl service, Query query,
+                Map<String, Map<String, Object>> enabledFilters) {
+            this.serviceClass = service.getClass();
+            this.sessionProvider = service.queryBasedSessionProvider;
+            this.localeResolution = service.localeResolution;
+            this.caseInsensitiveMatching = service.caseInsensitiveMatching;
+            this.textSearchProvider = service.textSearchProvider;
+            this.spillThreshold = service.spillThreshold;
+            this.enabledFilters = enabledFilters;
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                ObjectOutputStream out = new ObjectOutputStream(bytes);
+                out.writeObject(query);
+                out.close();
+                queryBytes = bytes.toByteArray();
+            } catch (IOException e) {
+                throw new Error(e);
+            }
+            hashCode = 31 * (31 * (31 * (31 * serviceClass.hashCode() + sessionProvider.hashCode())
+                    + localeResolution.hashCode()) + enabledFilters.hashCode())
+                    + Arrays.hashCode(queryBytes);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof QueryKey)) {
+                return false;
+            }
+            QueryKey other = (QueryKey) obj;
+            return hashCode == other.hashCode
+                    && serviceClass == other.serviceClass
+                    && sessionProvider.equals(other.sessionProvider)
+                    && localeResolution == other.localeResolution
+                    && caseInsensitiveMatching == other.caseInsensitiveMatching
+                    && textSearchProvider == other.textSearchProvider
+                    && spillThreshold == other.spillThreshold
+                    && enabledFilters.equals(other.enabledFilters)
+                    && Arrays.equals(queryBytes, other.queryBytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
 
     }
 
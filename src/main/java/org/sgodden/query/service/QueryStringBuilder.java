@@ -29,6 +29,56 @@ public class QueryStringBuilder {
 
     private static Logger LOG = Logger.getLogger(QueryStringBuilder.class);
 
+    /**
+     * Determines the restrictions to render as EXISTS sub-queries, or
+     * <code>null</code> if all restriction paths are joined.
+     */
+    private CollectionPathResolver collectionPathResolver;
+
+    /**
+     * How case-insensitive restrictions are rendered for particular attribute
+     * paths.
+     */
+    private CaseInsensitiveMatching caseInsensitiveMatching;
+
+    /**
+     * How LOCALE columns are resolved.
+     */
+    private LocaleResolution localeResolution = LocaleResolution.AGGREGATE;
+
+    /**
+     * Sets how columns with the LOCALE aggregate function are resolved to
+     * the value for the nearest locale.  Defaults to
+     * {@link LocaleResolution#AGGREGATE}.
+     * @param localeResolution the locale resolution.
+     */
+    public void setLocaleResolution(LocaleResolution localeResolution) {
+        this.localeResolution = localeResolution;
+    }
+
+    /**
+     * Narrows CONTAINS and ENDS_WITH restrictions to candidate identifiers.
+     */
+    private TextSearchProvider textSearchProvider;
+
+    /**
+     * Sets the provider used to narrow CONTAINS and ENDS_WITH restrictions
+     * to a set of candidate identifiers.
+     * @param textSearchProvider the text search provider, or <code>null</code>.
+     */
+    public void setTextSearchProvider(TextSearchProvider textSearchProvider) {
+        this.textSearchProvider = textSearchProvider;
+    }
+
+    /**
+     * Sets how case-insensitive restrictions are rendered for particular
+     * attribute paths, or <code>null</code> to always use <code>UPPER</code>.
+     * @param caseInsensitiveMatching the case-insensitive matching configuration.
+     */
+    public void setCaseInsensitiveMatching(CaseInsensitiveMatching caseInsensitiveMatching) {
+        this.caseInsensitiveMatching = caseInsensitiveMatching;
+    }
+
     /**
      * Builds a HQL query string to determine the number of matching rows of the
      * passed query.
@@ -36,11 +86,22 @@ public class QueryStringBuilder {
      * @param query - the query.
      * @return An HQL query string to determine the number of matching rows.
      */
-    @SuppressWarnings("unchecked")
 	public org.hibernate.Query buildCountQuery(Session session, Query query) {
+        return buildCountQuery(session, query, null);
+    }
+
+    /**
+     * As {@link #buildCountQuery(Session, Query)}, additionally putting the
+     * values of the named parameters into the passed map.
+     */
+    @SuppressWarnings("unchecked")
+	public org.hibernate.Query buildCountQuery(Session session, Query query, Map<String, Object> parameters) {
+        initCollectionPathResolver(session, query);
         if (!query.getIncludeId()) {
         	Map<String, Object> parameterMap = new HashMap<String, Object>();
         	org.hibernate.Query normalHQLQuery = buildQuery(session, query, parameterMap);
+        	if (parameters != null)
+        	    parameters.putAll(parameterMap);
         	String normalQuery = normalHQLQuery.getQueryString();
         	if (normalQuery.indexOf("GROUP BY") > -1)
         		normalQuery = normalQuery.substring(normalQuery.indexOf(" FROM ") + 6, normalQuery.indexOf("GROUP BY"));
@@ -76,10 +137,12 @@ public class QueryStringBuilder {
             LOG.debug("No filter criteria specified for the query");
         }
 
-        Map<String, Object> parameters = appendWhereClause(query, buf);
+        Map<String, Object> whereParameters = appendWhereClause(query, buf);
+        if (parameters != null)
+            parameters.putAll(whereParameters);
         
         org.hibernate.Query q = session.createQuery(buf.toString());
-        for (Map.Entry<String, Object> entry : parameters.entrySet()) {
+        for (Map.Entry<String, Object> entry : whereParameters.entrySet()) {
         	if (entry.getValue() != null && entry.getValue().getClass().isArray()) {
         		q.setParameterList((String)entry.getKey(), (Object[])entry.getValue());
         	} else if (entry.getValue() != null && Collection.class.isAssignableFrom(entry.getValue().getClass())) { 
@@ -99,6 +162,7 @@ public class QueryStringBuilder {
     }
 
     public org.hibernate.Query buildQuery(Session session, Query query, Map<String, Object> parameterMap) {
+        initCollectionPathResolver(session, query);
 
         StringBuffer buf = getSelectClause(query);
 
@@ -135,6 +199,14 @@ public class QueryStringBuilder {
         return q;
     }
 
+    private void initCollectionPathResolver(Session session, Query query) {
+        if (query.getExistsForCollections()) {
+            collectionPathResolver = new CollectionPathResolver(query, session.getSessionFactory());
+        } else {
+            collectionPathResolver = null;
+        }
+    }
+
     /**
      * Returns the FROM clause for the passed query.
      * 
@@ -220,11 +292,24 @@ public class QueryStringBuilder {
             SimpleRestriction crit, StringBuffer buf, Set<String> aliases) {
         // if the attribute comes from a related table
         if (QueryUtil.isRelatedColumn(crit.getAttributePath())) {
+            String relationPath = QueryUtil.getRelationName(crit.getAttributePath());
+            if (collectionPathResolver != null) {
+                String collectionPath = collectionPathResolver.getCollectionPath(crit.getAttributePath());
+                if (collectionPath != null) {
+                    /*
+                     * The collection and anything beyond it is joined in an
+                     * EXISTS sub-query by the where clause builder, so we only
+                     * join the path leading to the collection.
+                     */
+                    if (!QueryUtil.isRelatedColumn(collectionPath)) {
+                        return;
+                    }
+                    relationPath = QueryUtil.getRelationName(collectionPath);
+                }
+            }
             // if we haven't seen this path before
-            if (!aliases.contains(QueryUtil.getClassAlias(crit
-                    .getAttributePath()))) {
+            if (!aliases.contains(relationPath.replaceAll("\\.", ""))) {
                 
-                String relationPath = QueryUtil.getRelationName(crit.getAttributePath());
                 String[] relationPaths= null;
                 if (relationPath.contains(".")) {
                     relationPaths = relationPath.split("\\.");
@@ -260,7 +345,7 @@ public class QueryStringBuilder {
          */
         boolean anyAggregateFunctions = false;
         for (QueryColumn col : query.getColumns()) {
-            if (col.getAggregateFunction() != null) {
+            if (isAggregate(col)) {
                 anyAggregateFunctions = true;
                 break;
             }
@@ -275,7 +360,7 @@ public class QueryStringBuilder {
             }
             
             for (QueryColumn col : query.getColumns()) {
-                if (col.getAggregateFunction() == null) {
+                if (!isAggregate(col)) {
 
                     if (!buf.toString().endsWith(" GROUP BY "))
                         buf.append(", ");
@@ -286,9 +371,24 @@ public class QueryStringBuilder {
 
                 }
             }
+
+            // only aggregates are selected, so there is a single group
+            if (buf.toString().endsWith(" GROUP BY ")) {
+                buf.setLength(buf.length() - " GROUP BY ".length());
+            }
         }
     }
 
+    /**
+     * Returns whether the passed column is selected using an aggregate
+     * function, requiring the query to be grouped.
+     */
+    private boolean isAggregate(QueryColumn col) {
+        return col.getAggregateFunction() != null
+                && !(col.getAggregateFunction() == AggregateFunction.LOCALE
+                        && localeResolution == LocaleResolution.RANKED);
+    }
+
     /**
      * Appends a locale-dependant entity where clause.
      * @param query
@@ -334,6 +434,9 @@ public class QueryStringBuilder {
                 buf.append(qualifiedAttributeIdentifier);
                 buf.append(" IS NULL) ");
                 
+                if (localeResolution == LocaleResolution.RANKED) {
+                    appendBestLocaleRestriction(col, buf, namedParameterValues, localeStrings);
+                }
             }
         }
         
@@ -344,6 +447,54 @@ public class QueryStringBuilder {
         return namedParameterValues;
     }
 
+    /**
+     * Appends a restriction that there is no locale data for the passed
+     * LOCALE column with a better ranked locale than the joined one.
+     */
+    private void appendBestLocaleRestriction(QueryColumn col, StringBuffer buf,
+            Map<String, Object> namedParameterValues, String[] localeStrings) {
+        String relationName = QueryUtil.getRelationName(col.getAttributePath());
+        String parentAlias = "obj";
+        if (QueryUtil.isRelatedColumn(relationName)) {
+            parentAlias = QueryUtil.getRelationName(relationName).replaceAll("\\.", "");
+        }
+        String alias = QueryUtil.getClassAlias(col.getAttributePath());
+        String betterAlias = alias + "better";
+
+        buf.append(" AND NOT EXISTS (SELECT ");
+        buf.append(betterAlias);
+        buf.append(" FROM ");
+        buf.append(parentAlias + "." + QueryUtil.getFinalAttributeName(relationName));
+        buf.append(" AS ");
+        buf.append(betterAlias);
+        buf.append(" WHERE ");
+        appendLocaleRank(betterAlias, buf, namedParameterValues, localeStrings);
+        buf.append(" < ");
+        appendLocaleRank(alias, buf, namedParameterValues, localeStrings);
+        buf.append(") ");
+    }
+
+    /**
+     * Appends an expression ranking the locale of the passed locale data
+     * alias by its position in the locale hierarchy, the most specific
+     * locale being zero.
+     */
+    private void appendLocaleRank(String alias, StringBuffer buf,
+            Map<String, Object> namedParameterValues, String[] localeStrings) {
+        buf.append("CASE");
+        int rank = 0;
+        for (String localeString : localeStrings) {
+            if (localeString != null) {
+                String parmName = "localerank" + rank;
+                namedParameterValues.put(parmName, localeString);
+                buf.append(" WHEN " + alias + ".locale = :" + parmName + " THEN " + rank);
+                rank++;
+            }
+        }
+        buf.append(" WHEN " + alias + ".locale IS NULL THEN " + rank);
+        buf.append(" ELSE " + (rank + 1) + " END");
+    }
+
     private boolean appendLocaleWhereClauseForFilterCriterion(
 			Restriction crit, StringBuffer buf, boolean whereAppended, Map<String, Object> namedParameterValues, String[] localeStrings) {
         if (crit instanceof ArbitraryRestriction) {
@@ -404,7 +555,7 @@ public class QueryStringBuilder {
      * @param buf
      *            the buffer containing the query string.
      */
-    private void appendOrderByClause(Query query, StringBuffer buf) {
+    static void appendOrderByClause(Query query, StringBuffer buf) {
         /*
          * We'll just order by the selection columns for the moment
          */
@@ -516,7 +667,11 @@ public class QueryStringBuilder {
 
     private Map<String, Object> appendWhereClause(Query query, StringBuffer buf) {
     	Map<String, Object> ret = new HashMap<String, Object>();
-        buf.append(new WhereClauseBuilder().buildWhereClause(query, ret));
+    	WhereClauseBuilder whereClauseBuilder = new WhereClauseBuilder();
+    	whereClauseBuilder.setCollectionPathResolver(collectionPathResolver);
+    	whereClauseBuilder.setCaseInsensitiveMatching(caseInsensitiveMatching);
+    	whereClauseBuilder.setTextSearchProvider(textSearchProvider);
+        buf.append(whereClauseBuilder.buildWhereClause(query, ret));
         // if any of the columns had the LOCALE aggregate function then we need
         // to select only the valid locales for the locale in the query
         Map<String, Object> localeParms = appendLocaleWhereClause(query, buf);
@@ -560,7 +715,12 @@ public class QueryStringBuilder {
 
             AggregateFunction func = col.getAggregateFunction();
 
-            if (AggregateFunction.LOCALE == func) { 
+            if (AggregateFunction.LOCALE == func
+                    && localeResolution == LocaleResolution.RANKED) {
+                // the where clause only joins the best ranked locale data
+                ret.append(QueryUtil.getQualifiedAttributeIdentifier(col
+                        .getAttributePath()));
+            } else if (AggregateFunction.LOCALE == func) { 
             	// LOCALE* is a really special case
                 ret.append(makeLocaleAggregateSelect(query, col));
             } else {
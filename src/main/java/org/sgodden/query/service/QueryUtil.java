@@ -1,5 +1,6 @@
 package org.sgodden.query.service;
 
+import java.lang.reflect.Array;
 import java.lang.reflect.InvocationTargetException;
 import java.util.Locale;
 import java.util.Map;
@@ -125,4 +126,20 @@ public class QueryUtil {
     static int getRelationDepth(String attributePath) {
         return attributePath.split("\\.").length - 1;
     }
+
+    /**
+     * Returns a copy of the passed array of event listeners with the passed
+     * listener appended.
+     * @param listeners the existing listeners.
+     * @param listener the listener to append.
+     * @return the new array of listeners.
+     */
+    @SuppressWarnings("unchecked")
+    static <T> T[] appendListener(T[] listeners, T listener) {
+        T[] ret = (T[]) Array.newInstance(listeners.getClass().getComponentType(),
+                listeners.length + 1);
+        System.arraycopy(listeners, 0, ret, 0, listeners.length);
+        ret[listeners.length] = listener;
+        return ret;
+    }
 }
@@ -0,0 +1,345 @@
+package org.sgodden.query.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.sgodden.query.AndRestriction;
+import org.sgodden.query.NotRestriction;
+import org.sgodden.query.Operator;
+import org.sgodden.query.OrRestriction;
+import org.sgodden.query.Restriction;
+import org.sgodden.query.SimpleRestriction;
+
+/**
+ * Simplifies a restriction tree before the where clause is built.
+ * <p>
+ * The optimizer:
+ * <ul>
+ * <li>flattens nested and / or restrictions of the same kind;</li>
+ * <li>removes null and duplicate sub-restrictions;</li>
+ * <li>merges or'ed EQUALS and IN restrictions on the same path into a
+ * single IN;</li>
+ * <li>folds restrictions which can never match (e.g. an empty IN list, or
+ * two different EQUALS values for the same path in an and) and
+ * restrictions which always match (e.g. an empty NOT IN list).</li>
+ * </ul>
+ * The passed restrictions are never modified.
+ * </p>
+ * <p>
+ * When the restrictions through collections are rendered as EXISTS
+ * sub-queries, each may be matched by a different collection element, so
+ * contradictions are not folded on those paths.
+ * </p>
+ * @author sgodden
+ */
+public class RestrictionOptimizer {
+
+    /**
+     * Returned by {@link #optimize(Restriction)} when it is provable that no
+     * rows can match, in which case there is no need to run the query at all.
+     */
+    public static final Restriction NO_MATCH = new NoMatchRestriction();
+
+    private CollectionPathResolver collectionPathResolver;
+
+    /**
+     * Sets the resolver used to determine which restriction paths are
+     * rendered as EXISTS sub-queries, or <code>null</code> if all
+     * restriction paths are joined into the main query.
+     * @param resolver the collection path resolver.
+     */
+    void setCollectionPathResolver(CollectionPathResolver resolver) {
+        this.collectionPathResolver = resolver;
+    }
+
+    /**
+     * Returns the optimized form of the passed restriction.
+     * @param restriction the restriction, which may be <code>null</code>.
+     * @return the optimized restriction, <code>null</code> if the restriction
+     * always matches, or {@link #NO_MATCH} if it never matches.
+     */
+    public Restriction optimize(Restriction restriction) {
+        if (restriction == null) {
+            return null;
+        }
+        else if (restriction instanceof SimpleRestriction) {
+            return optimizeSimple((SimpleRestriction) restriction);
+        }
+        else if (restriction instanceof AndRestriction) {
+            return optimizeAnd((AndRestriction) restriction);
+        }
+        else if (restriction instanceof OrRestriction) {
+            return optimizeOr((OrRestriction) restriction);
+        }
+        else if (restriction instanceof NotRestriction) {
+            return optimizeNot((NotRestriction) restriction);
+        }
+        // arbitrary restrictions are opaque
+        return restriction;
+    }
+
+    private Restriction optimizeSimple(SimpleRestriction crit) {
+        Object[] values = crit.getValues();
+        boolean empty = values == null || values.length == 0;
+        if (crit.getOperator() == Operator.IN && empty) {
+            return NO_MATCH;
+        }
+        else if (crit.getOperator() == Operator.NOT_IN && empty) {
+            return null;
+        }
+        return crit;
+    }
+
+    private Restriction optimizeNot(NotRestriction crit) {
+        Restriction child = optimize(crit.getChild());
+        if (child == null) {
+            return NO_MATCH;
+        }
+        else if (child == NO_MATCH) {
+            return null;
+        }
+        else if (child instanceof NotRestriction) {
+            return ((NotRestriction) child).getChild();
+        }
+        else if (child == crit.getChild()) {
+            return crit;
+        }
+        return new NotRestriction(child);
+    }
+
+    private Restriction optimizeAnd(AndRestriction crit) {
+        List<Restriction> children = new ArrayList<Restriction>();
+        for (Restriction subcrit : crit.getRestrictions()) {
+            Restriction optimized = optimize(subcrit);
+            if (optimized == NO_MATCH) {
+                return NO_MATCH;
+            }
+            else if (optimized instanceof AndRestriction) {
+                children.addAll(((AndRestriction) optimized).getRestrictions());
+            }
+            else if (optimized != null) {
+                children.add(optimized);
+            }
+        }
+        children = removeDuplicates(children);
+        if (isContradiction(children)) {
+            return NO_MATCH;
+        }
+
+        if (children.size() == 0) {
+            return null;
+        }
+        else if (children.size() == 1) {
+            return children.get(0);
+        }
+        AndRestriction ret = new AndRestriction();
+        for (Restriction child : children) {
+            ret.and(child);
+        }
+        return ret;
+    }
+
+    private Restriction optimizeOr(OrRestriction crit) {
+        List<Restriction> children = new ArrayList<Restriction>();
+        for (Restriction subcrit : crit.getRestrictions()) {
+            if (subcrit == null) {
+                continue;
+            }
+            Restriction optimized = optimize(subcrit);
+            if (optimized == null) {
+                // one branch always matches, so the whole or does
+                return null;
+            }
+            else if (optimized instanceof OrRestriction) {
+                children.addAll(((OrRestriction) optimized).getRestrictions());
+            }
+            else if (optimized != NO_MATCH) {
+                children.add(optimized);
+            }
+        }
+        children = mergeEquals(removeDuplicates(children));
+
+        if (children.size() == 0) {
+            return NO_MATCH;
+        }
+        else if (children.size() == 1) {
+            return children.get(0);
+        }
+        OrRestriction ret = new OrRestriction();
+        for (Restriction child : children) {
+            ret.or(child);
+        }
+        return ret;
+    }
+
+    /**
+     * Merges or'ed EQUALS and IN restrictions on the same attribute path into
+     * a single IN restriction, in the position of the first of them.
+     */
+    private List<Restriction> mergeEquals(List<Restriction> children) {
+        Map<String, Set<Object>> valuesByPath = new LinkedHashMap<String, Set<Object>>();
+        Map<String, Integer> countsByPath = new LinkedHashMap<String, Integer>();
+        for (Restriction child : children) {
+            if (isMergeable(child)) {
+                SimpleRestriction simple = (SimpleRestriction) child;
+                Set<Object> values = valuesByPath.get(simple.getAttributePath());
+                if (values == null) {
+                    values = new LinkedHashSet<Object>();
+                    valuesByPath.put(simple.getAttributePath(), values);
+                    countsByPath.put(simple.getAttributePath(), 0);
+                }
+                if (simple.getOperator() == Operator.EQUALS) {
+                    values.add(simple.getValues()[0]);
+                }
+                else {
+                    values.addAll(Arrays.asList(simple.getValues()));
+                }
+                countsByPath.put(simple.getAttributePath(),
+                        countsByPath.get(simple.getAttributePath()) + 1);
+            }
+        }
+
+        List<Restriction> ret = new ArrayList<Restriction>();
+        Set<String> mergedPaths = new HashSet<String>();
+        for (Restriction child : children) {
+            if (!isMergeable(child)) {
+                ret.add(child);
+                continue;
+            }
+            String path = ((SimpleRestriction) child).getAttributePath();
+            if (countsByPath.get(path) < 2) {
+                ret.add(child);
+            }
+            else if (mergedPaths.add(path)) {
+                Set<Object> values = valuesByPath.get(path);
+                if (values.size() == 1) {
+                    ret.add(new SimpleRestriction(path, Operator.EQUALS, values.iterator().next()));
+                }
+                else {
+                    ret.add(new SimpleRestriction(path, Operator.IN, values.toArray()));
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Returns whether the passed restriction is an EQUALS or IN restriction
+     * on non-null values, which can be safely merged into an IN list.
+     */
+    private boolean isMergeable(Restriction restriction) {
+        if (!(restriction instanceof SimpleRestriction)) {
+            return false;
+        }
+        SimpleRestriction simple = (SimpleRestriction) restriction;
+        if (simple.getIgnoreCase() || simple.getValues() == null
+                || simple.getValues().length == 0) {
+            return false;
+        }
+        if (simple.getOperator() == Operator.EQUALS) {
+            return simple.getValues()[0] != null;
+        }
+        else if (simple.getOperator() == Operator.IN) {
+            return !Arrays.asList(simple.getValues()).contains(null);
+        }
+        return false;
+    }
+
+    /**
+     * Returns whether the passed and'ed restrictions contain an EQUALS
+     * restriction on a path which another EQUALS or NOT_EQUALS restriction
+     * contradicts.  Paths through collections rendered as EXISTS sub-queries
+     * are never contradictory, as each restriction may match a different
+     * element.
+     */
+    private boolean isContradiction(List<Restriction> children) {
+        Map<String, Object> equalValues = new LinkedHashMap<String, Object>();
+        for (Restriction child : children) {
+            Object value = getComparableValue(child, Operator.EQUALS);
+            if (value == null) {
+                continue;
+            }
+            String path = ((SimpleRestriction) child).getAttributePath();
+            if (isExistsPath(path)) {
+                continue;
+            }
+            Object other = equalValues.get(path);
+            if (other == null) {
+                equalValues.put(path, value);
+            }
+            else if (other.getClass().equals(value.getClass()) && !other.equals(value)) {
+                return true;
+            }
+        }
+        for (Restriction child : children) {
+            Object value = getComparableValue(child, Operator.NOT_EQUALS);
+            if (value != null
+                    && value.equals(equalValues.get(((SimpleRestriction) child).getAttributePath()))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isExistsPath(String attributePath) {
+        return collectionPathResolver != null
+                && collectionPathResolver.getCollectionPath(attributePath) != null;
+    }
+
+    /**
+     * Returns the single non-null value of a case sensitive simple restriction
+     * with the passed operator, or <code>null</code> if the restriction is not
+     * of that form.
+     */
+    private Object getComparableValue(Restriction restriction, Operator operator) {
+        if (!(restriction instanceof SimpleRestriction)) {
+            return null;
+        }
+        SimpleRestriction simple = (SimpleRestriction) restriction;
+        if (simple.getOperator() != operator || simple.getIgnoreCase()
+                || simple.getValues() == null || simple.getValues().length != 1) {
+            return null;
+        }
+        return simple.getValues()[0];
+    }
+
+    /**
+     * Removes duplicate simple restrictions, retaining the first occurrence.
+     */
+    private List<Restriction> removeDuplicates(List<Restriction> children) {
+        List<Restriction> ret = new ArrayList<Restriction>();
+        Set<Object> seen = new HashSet<Object>();
+        for (Restriction child : children) {
+            if (child instanceof SimpleRestriction) {
+                SimpleRestriction simple = (SimpleRestriction) child;
+                List<Object> key = Arrays.asList(new Object[] {
+                        simple.getAttributePath(), simple.getOperator(),
+                        simple.getIgnoreCase(),
+                        simple.getValues() == null ? null : Arrays.asList(simple.getValues())
+                });
+                if (!seen.add(key)) {
+                    continue;
+                }
+            }
+            ret.add(child);
+        }
+        return ret;
+    }
+
+    /**
+     * Marker restriction which never matches.
+     */
+    @SuppressWarnings("serial")
+    private static class NoMatchRestriction implements Restriction {
+        public String toString() {
+            return "no match";
+        }
+    }
+
+}
@@ -0,0 +1,35 @@
+package org.sgodden.query.service;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Locale;
+
+import org.sgodden.query.Operator;
+
+/**
+ * A provider of text searches which can resolve {@link Operator#CONTAINS}
+ * and {@link Operator#ENDS_WITH} restrictions to the set of matching object
+ * identifiers, so that the database does not need to scan the whole table
+ * with a <code>LIKE '%value%'</code>.
+ * @author sgodden
+ */
+public interface TextSearchProvider {
+
+    /**
+     * Returns the identifiers of the objects whose attribute matches the
+     * passed value.
+     * @param className the name of the class against which the query is run.
+     * @param attributePath the (potentially nested) attribute path.
+     * @param operator the operator, either CONTAINS or ENDS_WITH.
+     * @param value the value to search for, which is matched literally.
+     * @param ignoreCase whether case is to be ignored.
+     * @param locale the locale of the query, with which the value is
+     * upper-cased when case is to be ignored.
+     * @return the matching identifiers, or <code>null</code> if this provider
+     * cannot answer the search, in which case the restriction is applied
+     * by the database as normal.
+     */
+    public Collection<Serializable> findIds(String className, String attributePath,
+            Operator operator, String value, boolean ignoreCase, Locale locale);
+
+}
@@ -0,0 +1,284 @@
+package org.sgodden.query.service;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.Session;
+import org.hibernate.cfg.Configuration;
+import org.hibernate.event.EventListeners;
+import org.hibernate.event.PostDeleteEvent;
+import org.hibernate.event.PostDeleteEventListener;
+import org.hibernate.event.PostInsertEvent;
+import org.hibernate.event.PostInsertEventListener;
+import org.hibernate.event.PostUpdateEvent;
+import org.hibernate.event.PostUpdateEventListener;
+import org.hibernate.persister.entity.EntityPersister;
+import org.sgodden.query.Operator;
+
+/**
+ * An in-memory text search provider, which maintains a trigram index of the
+ * values of selected string properties.
+ * <p>
+ * The index is kept up to date by registering this object as a hibernate
+ * post-commit-insert, post-commit-update and post-commit-delete event
+ * listener, for instance using {@link #register(Configuration)}, after
+ * populating it using {@link #load(Session, String, String)}.  Only
+ * committed changes are applied, so that the index never holds values
+ * which are rolled back, or which other transactions cannot yet see.  Only
+ * direct properties of the queried class may be indexed.
+ * </p>
+ * <p>
+ * Searches for fewer than three characters, or which match more than
+ * {@link #setMaxCandidates(int)} objects, are left to the database.
+ * </p>
+ * @author sgodden
+ */
+public class TrigramTextSearchProvider implements TextSearchProvider,
+        PostInsertEventListener, PostUpdateEventListener, PostDeleteEventListener {
+
+    private static final long serialVersionUID = 20101019L;
+
+    private static final transient Log log = LogFactory.getLog(TrigramTextSearchProvider.class);
+
+    /**
+     * The indexes, keyed by class name and property name.
+     */
+    private Map<String, PropertyIndex> indexes = new HashMap<String, PropertyIndex>();
+
+    private ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private int maxCandidates = 1000;
+
+    /**
+     * Sets the maximum number of matching identifiers which will be
+     * returned, above which the search is left to the database.
+     * @param maxCandidates the maximum number of matches.
+     */
+    public void setMaxCandidates(int maxCandidates) {
+        this.maxCandidates = maxCandidates;
+    }
+
+    /**
+     * Registers this object as a post-commit insert, update and delete
+     * listener in the passed configuration, before the session factory is
+     * built.
+     * @param configuration the hibernate configuration.
+     */
+    public void register(Configuration configuration) {
+        EventListeners listeners = configuration.getEventListeners();
+        listeners.setPostCommitInsertEventListeners(QueryUtil.appendListener(
+                listeners.getPostCommitInsertEventListeners(), (PostInsertEventListener) this));
+        listeners.setPostCommitUpdateEventListeners(QueryUtil.appendListener(
+                listeners.getPostCommitUpdateEventListeners(), (PostUpdateEventListener) this));
+        listeners.setPostCommitDeleteEventListeners(QueryUtil.appendListener(
+                listeners.getPostCommitDeleteEventListeners(), (PostDeleteEventListener) this));
+    }
+
+    /**
+     * (Re)builds the index for the specified property from the database.
+     * @param session the hibernate session.
+     * @param className the name of the entity class.
+     * @param propertyName the name of the string property to index.
+     */
+    @SuppressWarnings("unchecked")
+    public void load(Session session, String className, String propertyName) {
+        PropertyIndex index = new PropertyIndex();
+        Iterator it = session.createQuery("SELECT obj.id, obj." + propertyName
+                + " FROM " + className + " AS obj").iterate();
+        while (it.hasNext()) {
+            Object[] row = (Object[]) it.next();
+            index.put((Serializable) row[0], (String) row[1]);
+        }
+        log.debug("Indexed " + index.values.size() + " values of "
+                + className + "." + propertyName);
+
+        lock.writeLock().lock();
+        try {
+            indexes.put(makeKey(className, propertyName), index);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * See {@link TextSearchProvider#findIds(String, String, Operator, String, boolean, Locale)}.
+     * <p>
+     * Values containing the LIKE wildcards <code>%</code> or <code>_</code>
+     * are left to the database.
+     * </p>
+     */
+    public Collection<Serializable> findIds(String className, String attributePath,
+            Operator operator, String value, boolean ignoreCase, Locale locale) {
+        if (value.indexOf('%') != -1 || value.indexOf('_') != -1) {
+            return null;
+        }
+        lock.readLock().lock();
+        try {
+            PropertyIndex index = indexes.get(makeKey(className, attributePath));
+            if (index == null) {
+                return null;
+            }
+            return index.find(operator, value, ignoreCase,
+                    locale == null ? Locale.getDefault() : locale, maxCandidates);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void onPostInsert(PostInsertEvent event) {
+        update(event.getPersister(), event.getId(), event.getState());
+    }
+
+    public void onPostUpdate(PostUpdateEvent event) {
+        update(event.getPersister(), event.getId(), event.getState());
+    }
+
+    public void onPostDelete(PostDeleteEvent event) {
+        String prefix = makeKey(event.getPersister().getEntityName(), "");
+        lock.writeLock().lock();
+        try {
+            for (Map.Entry<String, PropertyIndex> entry : indexes.entrySet()) {
+                if (entry.getKey().startsWith(prefix)) {
+                    entry.getValue().remove(event.getId());
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void update(EntityPersister persister, Serializable id, Object[] state) {
+        String[] propertyNames = persister.getPropertyNames();
+        lock.writeLock().lock();
+        try {
+            for (int i = 0; i < propertyNames.length; i++) {
+                PropertyIndex index = indexes.get(makeKey(persister.getEntityName(), propertyNames[i]));
+                if (index != null) {
+                    index.remove(id);
+                    index.put(id, (String) state[i]);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private String makeKey(String className, String propertyName) {
+        return className + '#' + propertyName;
+    }
+
+    /**
+     * The trigram index of a single property.
+     */
+    private static class PropertyIndex implements Serializable {
+
+        private static final long serialVersionUID = 20101019L;
+
+        private Map<Serializable, String> values = new HashMap<Serializable, String>();
+        private Map<String, Set<Serializable>> trigrams = new HashMap<String, Set<Serializable>>();
+
+        void put(Serializable id, String value) {
+            if (value == null) {
+                return;
+            }
+            values.put(id, value);
+            for (String trigram : getTrigrams(value)) {
+                Set<Serializable> ids = trigrams.get(trigram);
+                if (ids == null) {
+                    ids = new HashSet<Serializable>();
+                    trigrams.put(trigram, ids);
+                }
+                ids.add(id);
+            }
+        }
+
+        void remove(Serializable id) {
+            String value = values.remove(id);
+            if (value == null) {
+                return;
+            }
+            for (String trigram : getTrigrams(value)) {
+                Set<Serializable> ids = trigrams.get(trigram);
+                ids.remove(id);
+                if (ids.isEmpty()) {
+                    trigrams.remove(trigram);
+                }
+            }
+        }
+
+        Collection<Serializable> find(Operator operator, String value,
+                boolean ignoreCase, Locale locale, int maxCandidates) {
+            if (value.length() < 3) {
+                return null;
+            }
+
+            // start from the rarest trigram
+            Set<String> searchTrigrams = getTrigrams(value);
+            Set<Serializable> smallest = null;
+            for (String trigram : searchTrigrams) {
+                Set<Serializable> ids = trigrams.get(trigram);
+                if (ids == null) {
+                    return new ArrayList<Serializable>();
+                }
+                if (smallest == null || ids.size() < smallest.size()) {
+                    smallest = ids;
+                }
+            }
+
+            // upper-case in the same way as the value passed to the database
+            String upperValue = value.toUpperCase(locale);
+            List<Serializable> ret = new ArrayList<Serializable>();
+            for (Serializable id : smallest) {
+                String candidate = values.get(id);
+                boolean matches;
+                if (ignoreCase) {
+                    candidate = candidate.toUpperCase(locale);
+                    matches = operator == Operator.ENDS_WITH ? candidate.endsWith(upperValue)
+                            : candidate.indexOf(upperValue) != -1;
+                } else {
+                    matches = operator == Operator.ENDS_WITH ? candidate.endsWith(value)
+                            : candidate.indexOf(value) != -1;
+                }
+                if (matches) {
+                    if (ret.size() == maxCandidates) {
+                        return null;
+                    }
+                    ret.add(id);
+                }
+            }
+            return ret;
+        }
+
+        /**
+         * Returns the case-insensitive trigrams of the passed value.  Each
+         * character is folded independently of any locale, so that the
+         * trigrams of the index find a superset of the values matching in
+         * the locale of any query, which are then checked in that locale.
+         */
+        private Set<String> getTrigrams(String value) {
+            char[] folded = new char[value.length()];
+            for (int i = 0; i < folded.length; i++) {
+                folded[i] = Character.toUpperCase(Character.toLowerCase(value.charAt(i)));
+            }
+            String foldedValue = new String(folded);
+            Set<String> ret = new HashSet<String>();
+            for (int i = 0; i + 3 <= foldedValue.length(); i++) {
+                ret.add(foldedValue.substring(i, i + 3));
+            }
+            return ret;
+        }
+    }
+
+}
@@ -1,7 +1,16 @@
 package org.sgodden.query.service;
 
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 
 import org.sgodden.query.AndRestriction;
 import org.sgodden.query.ArbitraryRestriction;
@@ -26,10 +35,44 @@ public class WhereClauseBuilder {
     
     private Query query;
     private Map<String, Object> parameterMap;
+    private CollectionPathResolver collectionPathResolver;
+    private CaseInsensitiveMatching caseInsensitiveMatching;
+    private TextSearchProvider textSearchProvider;
+    private int existsCount = 0;
+    
+    /**
+     * Sets the resolver used to determine which restrictions should be
+     * rendered as EXISTS sub-queries, or <code>null</code> to join all
+     * restriction paths into the main query.
+     * @param resolver the collection path resolver.
+     */
+    void setCollectionPathResolver(CollectionPathResolver resolver) {
+        this.collectionPathResolver = resolver;
+    }
+    
+    /**
+     * Sets how case-insensitive restrictions are rendered for particular
+     * attribute paths, or <code>null</code> to always use <code>UPPER</code>.
+     * @param caseInsensitiveMatching the case-insensitive matching configuration.
+     */
+    public void setCaseInsensitiveMatching(CaseInsensitiveMatching caseInsensitiveMatching) {
+        this.caseInsensitiveMatching = caseInsensitiveMatching;
+    }
+    
+    /**
+     * Sets the provider used to narrow CONTAINS and ENDS_WITH restrictions
+     * to a set of candidate identifiers, or <code>null</code> to leave them
+     * entirely to the database.
+     * @param textSearchProvider the text search provider.
+     */
+    public void setTextSearchProvider(TextSearchProvider textSearchProvider) {
+        this.textSearchProvider = textSearchProvider;
+    }
     
     public StringBuffer buildWhereClause(Query query, Map<String, Object> parameterMap) {
         this.query = query;
         this.parameterMap = parameterMap;
+        this.existsCount = 0;
         StringBuffer buf = new StringBuffer();
         if (query.getFilterCriterion() != null) {
             buf.append(" WHERE ");
@@ -82,18 +125,72 @@ public class WhereClauseBuilder {
         if (crit.getRestrictions().size() < 2) {
             throw new IllegalArgumentException("An and filter criterion must have at least two sub-criteria");
         }
+        Map<String, List<SimpleRestriction>> existsGroups = groupByCollectionPath(crit);
         StringBuffer clauseBuf = new StringBuffer();
         clauseBuf.append("( ");
         for (Restriction subcrit : crit.getRestrictions()) {
+            List<SimpleRestriction> group = null;
+            if (subcrit instanceof SimpleRestriction) {
+                group = existsGroups.get(getCollectionPath((SimpleRestriction) subcrit));
+                if (group != null && group.get(0) != subcrit) {
+                    // already rendered in the sub-query of the first in the group
+                    continue;
+                }
+            }
             if (!"( ".equals(clauseBuf.toString())) {
                 clauseBuf.append(" AND ");
             }
-            append(subcrit, clauseBuf);
+            if (group != null) {
+                appendExists(group, getCollectionPath(group.get(0)), clauseBuf);
+            }
+            else {
+                append(subcrit, clauseBuf);
+            }
         }
         clauseBuf.append(" )");
         buf.append(clauseBuf);
     }
     
+    /**
+     * Groups the simple restrictions directly beneath an and by the
+     * collection path they go through, so that each group is rendered as a
+     * single EXISTS sub-query whose restrictions must all hold for the same
+     * collection element, rather than each being matched by any element.
+     * Only collection paths with more than one restriction are returned.
+     */
+    private Map<String, List<SimpleRestriction>> groupByCollectionPath(AndRestriction crit) {
+        Map<String, List<SimpleRestriction>> ret = new HashMap<String, List<SimpleRestriction>>();
+        if (collectionPathResolver == null) {
+            return ret;
+        }
+        for (Restriction subcrit : crit.getRestrictions()) {
+            if (subcrit instanceof SimpleRestriction) {
+                String collectionPath = getCollectionPath((SimpleRestriction) subcrit);
+                if (collectionPath != null) {
+                    List<SimpleRestriction> group = ret.get(collectionPath);
+                    if (group == null) {
+                        group = new ArrayList<SimpleRestriction>();
+                        ret.put(collectionPath, group);
+                    }
+                    group.add((SimpleRestriction) subcrit);
+                }
+            }
+        }
+        for (Iterator<List<SimpleRestriction>> it = ret.values().iterator(); it.hasNext();) {
+            if (it.next().size() < 2) {
+                it.remove();
+            }
+        }
+        return ret;
+    }
+    
+    private String getCollectionPath(SimpleRestriction crit) {
+        if (collectionPathResolver == null) {
+            return null;
+        }
+        return collectionPathResolver.getCollectionPath(crit.getAttributePath());
+    }
+    
     /**
      * Renders an operator into a stringbuffer
      * @param crit
@@ -167,6 +264,17 @@ public class WhereClauseBuilder {
      * @param buf
      */
     public void renderValues(SimpleRestriction crit, StringBuffer buf, Locale locale) {
+        renderValues(crit, buf, locale, crit.getIgnoreCase());
+    }
+    
+    /**
+     * Renders a simple restriction's values into the buffer
+     * @param crit
+     * @param buf
+     * @param locale
+     * @param upperCase whether string values should be upper-cased.
+     */
+    public void renderValues(SimpleRestriction crit, StringBuffer buf, Locale locale, boolean upperCase) {
         String parmName = QueryUtil.getQualifiedAttributeIdentifier(crit
                 .getAttributePath()).replace(".", "") + parameterMap.size();
         if (crit.getOperator() == Operator.EMPTY || crit.getOperator() == Operator.NOT_EMPTY){
@@ -181,9 +289,9 @@ public class WhereClauseBuilder {
             buf.append("2");
             
             parameterMap.put(parmName + "1", QueryUtil.valueToParameter(crit.getAttributePath(), crit
-                    .getValues()[0], crit.getOperator(), locale, crit.getIgnoreCase()));
+                    .getValues()[0], crit.getOperator(), locale, upperCase));
             parameterMap.put(parmName + "2", QueryUtil.valueToParameter(crit.getAttributePath(), crit
-                    .getValues()[1], crit.getOperator(), locale, crit.getIgnoreCase()));
+                    .getValues()[1], crit.getOperator(), locale, upperCase));
         }
         else if (crit.getOperator() == Operator.IN
                 || crit.getOperator() == Operator.NOT_IN) {
@@ -196,7 +304,7 @@ public class WhereClauseBuilder {
                 buf.append(":");
                 buf.append(parmName);
                 parameterMap.put(parmName, QueryUtil.valueToParameter(crit.getAttributePath(), crit
-                        .getValues()[0], crit.getOperator(), locale, crit.getIgnoreCase()));
+                        .getValues()[0], crit.getOperator(), locale, upperCase));
             }
         }
 
@@ -207,6 +315,138 @@ public class WhereClauseBuilder {
     }
     
     private void appendSimple(SimpleRestriction crit, StringBuffer buf) {
+        Collection<Serializable> textSearchIds = findTextSearchIds(crit);
+        if (textSearchIds != null) {
+            if (textSearchIds.isEmpty()) {
+                // the text search provider knows there are no matches
+                buf.append("1 = 0");
+                return;
+            }
+            /*
+             * Restrict to the candidates found by the text search, and keep
+             * the original restriction so that the database has the final say,
+             * which is cheap as it only needs to check the candidate rows.
+             */
+            buf.append("( ");
+            appendTextSearchIds(textSearchIds, buf);
+            appendSimpleOrExists(crit, buf);
+            buf.append(" )");
+        }
+        else {
+            appendSimpleOrExists(crit, buf);
+        }
+    }
+    
+    /**
+     * Restricts the root object to the candidates found by the text search.
+     */
+    private void appendTextSearchIds(Collection<Serializable> textSearchIds, StringBuffer buf) {
+        String parmName = "objid" + parameterMap.size();
+        parameterMap.put(parmName, textSearchIds);
+        buf.append("obj.id IN (:");
+        buf.append(parmName);
+        buf.append(") AND ");
+    }
+    
+    /**
+     * Returns the identifiers found by the text search provider for a CONTAINS
+     * or ENDS_WITH restriction, or <code>null</code> if the text search
+     * provider is not used.  Values containing LIKE wildcards are left to the
+     * database, as the provider matches values literally.
+     */
+    private Collection<Serializable> findTextSearchIds(SimpleRestriction crit) {
+        if (textSearchProvider == null
+                || (crit.getOperator() != Operator.CONTAINS && crit.getOperator() != Operator.ENDS_WITH)
+                || crit.getValues() == null || !(crit.getValues()[0] instanceof String)) {
+            return null;
+        }
+        String value = (String) crit.getValues()[0];
+        if (value.indexOf('%') != -1 || value.indexOf('_') != -1) {
+            return null;
+        }
+        return textSearchProvider.findIds(query.getObjectClassName(), crit.getAttributePath(),
+                crit.getOperator(), value, crit.getIgnoreCase(), query.getLocale());
+    }
+    
+    private void appendSimpleOrExists(SimpleRestriction crit, StringBuffer buf) {
+        String collectionPath = getCollectionPath(crit);
+        if (collectionPath != null) {
+            appendExists(Collections.singletonList(crit), collectionPath, buf);
+        }
+        else {
+            appendSimple(crit, QueryUtil.getQualifiedAttributeIdentifier(crit
+                    .getAttributePath()), buf);
+        }
+    }
+    
+    /**
+     * Renders restrictions on paths through a collection as a correlated
+     * sub-query, so that the collection is not joined into the main query.
+     * All of the restrictions must hold for the same collection element.
+     * @param crits the restrictions, which all go through the collection.
+     * @param collectionPath the path up to and including the collection.
+     * @param buf the buffer.
+     */
+    private void appendExists(List<SimpleRestriction> crits, String collectionPath, StringBuffer buf) {
+        int collectionIndex = collectionPath.split("\\.").length - 1;
+        String collectionName = collectionPath.substring(collectionPath.lastIndexOf('.') + 1);
+        
+        String parentAlias = "obj";
+        if (collectionIndex > 0) {
+            parentAlias = QueryUtil.getRelationName(collectionPath).replaceAll("\\.", "");
+        }
+        String collectionAlias = "ex" + existsCount++ + collectionName;
+        
+        buf.append("EXISTS (SELECT ");
+        buf.append(collectionAlias);
+        buf.append(" FROM ");
+        buf.append(parentAlias + "." + collectionName);
+        buf.append(" AS ");
+        buf.append(collectionAlias);
+        
+        // join each relation beyond the collection once, in order of first use
+        Set<String> joinedAliases = new HashSet<String>();
+        String[] qualifiedIdentifiers = new String[crits.size()];
+        for (int c = 0; c < crits.size(); c++) {
+            SimpleRestriction crit = crits.get(c);
+            String[] pathElements = QueryUtil.getRelationName(crit.getAttributePath()).split("\\.");
+            String alias = collectionAlias;
+            for (int i = collectionIndex + 1; i < pathElements.length; i++) {
+                String nextAlias = alias + pathElements[i];
+                if (joinedAliases.add(nextAlias)) {
+                    buf.append(" LEFT OUTER JOIN ");
+                    buf.append(alias + "." + pathElements[i]);
+                    buf.append(" AS ");
+                    buf.append(nextAlias);
+                }
+                alias = nextAlias;
+            }
+            qualifiedIdentifiers[c] = alias + "." + QueryUtil.getFinalAttributeName(crit.getAttributePath());
+        }
+        
+        buf.append(" WHERE ");
+        for (int c = 0; c < crits.size(); c++) {
+            if (c > 0) {
+                buf.append(" AND ");
+            }
+            SimpleRestriction crit = crits.get(c);
+            if (crits.size() > 1) {
+                // a lone restriction had its text search applied around the sub-query
+                Collection<Serializable> textSearchIds = findTextSearchIds(crit);
+                if (textSearchIds != null && textSearchIds.isEmpty()) {
+                    buf.append("1 = 0");
+                    continue;
+                }
+                if (textSearchIds != null) {
+                    appendTextSearchIds(textSearchIds, buf);
+                }
+            }
+            appendSimple(crit, qualifiedIdentifiers[c], buf);
+        }
+        buf.append(")");
+    }
+    
+    private void appendSimple(SimpleRestriction crit, String qualifiedAttributeIdentifier, StringBuffer buf) {
     	
     	boolean upperCasingOfValueRequired = false;
 
@@ -216,18 +456,34 @@ public class WhereClauseBuilder {
         	upperCasingOfValueRequired = true;
         }
         
-        if (upperCasingOfValueRequired)
-            buf.append("UPPER(");
-        
-        buf.append(QueryUtil.getQualifiedAttributeIdentifier(crit
-                .getAttributePath()));
+        CaseInsensitiveMatching.Strategy strategy = CaseInsensitiveMatching.Strategy.UPPER;
+        if (upperCasingOfValueRequired && caseInsensitiveMatching != null) {
+            strategy = caseInsensitiveMatching.getStrategy(query.getObjectClassName(), crit.getAttributePath());
+        }
         
-        if (upperCasingOfValueRequired) {
-            buf.append(")");
+        if (strategy == CaseInsensitiveMatching.Strategy.SHADOW_PROPERTY) {
+            // the shadow property already holds the upper-cased value
+            buf.append(qualifiedAttributeIdentifier.substring(0, qualifiedAttributeIdentifier.lastIndexOf('.') + 1));
+            buf.append(caseInsensitiveMatching.getShadowPropertyName(query.getObjectClassName(), crit.getAttributePath()));
+        }
+        else if (strategy == CaseInsensitiveMatching.Strategy.COLLATION) {
+            // the database collation ignores case, so compare the column as-is
+            buf.append(qualifiedAttributeIdentifier);
+        }
+        else {
+            if (upperCasingOfValueRequired)
+                buf.append("UPPER(");
+
+            buf.append(qualifiedAttributeIdentifier);
+
+            if (upperCasingOfValueRequired) {
+                buf.append(")");
+            }
         }
 
         renderOperator(crit, buf);
-        renderValues(crit, buf, query.getLocale());
+        renderValues(crit, buf, query.getLocale(), crit.getIgnoreCase()
+                && strategy != CaseInsensitiveMatching.Strategy.COLLATION);
     }
     
     private void appendArbitrary(ArbitraryRestriction crit, StringBuffer buf) {
@@ -0,0 +1,117 @@
+package org.sgodden.query;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+@Test
+public class OffHeapRowListTest {
+
+    private static ResultSetColumn makeColumn(DataType dataType, Object value) {
+        ResultSetColumn ret = new ResultSetColumn();
+        ret.setDataType(dataType);
+        ret.setValue(value);
+        return ret;
+    }
+
+    /**
+     * Returns rows whose strings repeat across the blocks, with null values
+     * and columns, and a row with no columns.
+     */
+    private static List<ResultSetRow> makeRows(int rowCount) {
+        List<ResultSetRow> ret = new ArrayList<ResultSetRow>();
+        for (int i = 0; i < rowCount; i++) {
+            ResultSetRow row = new ResultSetRow();
+            row.setId(i == 70 ? null : String.valueOf(i));
+            if (i != 100) {
+                row.setColumns(new ResultSetColumn[] {
+                    makeColumn(DataType.STRING, "value " + (i % 10)),
+                    makeColumn(DataType.BOOLEAN, i % 3 == 0 ? null : Boolean.valueOf(i % 2 == 0)),
+                    i % 9 == 0 ? null : makeColumn(DataType.INTEGER, Integer.valueOf(i))
+                });
+            }
+            ret.add(row);
+        }
+        return ret;
+    }
+
+    private static void assertSameRow(ResultSetRow actual, ResultSetRow expected) {
+        assertEquals(actual.getId(), expected.getId());
+        if (expected.getColumns() == null) {
+            assertNull(actual.getColumns());
+            return;
+        }
+        assertEquals(actual.getColumns().length, expected.getColumns().length);
+        for (int i = 0; i < expected.getColumns().length; i++) {
+            ResultSetColumn col = expected.getColumns()[i];
+            if (col == null) {
+                assertNull(actual.getColumns()[i]);
+            }
+            else {
+                assertEquals(actual.getColumns()[i].getDataType(), col.getDataType());
+                assertEquals(actual.getColumns()[i].getValue(), col.getValue());
+            }
+        }
+    }
+
+    /**
+     * Tests that rows spread over several blocks read back the same, in
+     * order, in reverse and jumping between blocks.
+     */
+    public void testRoundTrip() {
+        List<ResultSetRow> rows = makeRows(200);
+        OffHeapRowList list = new OffHeapRowList(rows);
+
+        assertEquals(list.size(), 200);
+        assertTrue(list.getEncodedSize() > 0);
+        for (int i = 0; i < rows.size(); i++) {
+            assertSameRow(list.get(i), rows.get(i));
+        }
+        for (int i = rows.size() - 1; i >= 0; i--) {
+            assertSameRow(list.get(i), rows.get(i));
+        }
+        for (int i : new int[] {199, 0, 128, 63, 64, 127, 192}) {
+            assertSameRow(list.get(i), rows.get(i));
+        }
+        assertNull(list.get(70).getId());
+        assertNull(list.get(100).getColumns());
+    }
+
+    /**
+     * Tests that a list with no rows, or a single partial block, reads back.
+     */
+    public void testShortLists() {
+        assertEquals(new OffHeapRowList(new ArrayList<ResultSetRow>()).size(), 0);
+        List<ResultSetRow> rows = makeRows(5);
+        OffHeapRowList list = new OffHeapRowList(rows);
+        assertEquals(list.size(), 5);
+        assertSameRow(list.get(4), rows.get(4));
+    }
+
+    /**
+     * Tests that a result set holding its pages off the heap encodes the
+     * rows set, but does not encode them again.
+     */
+    public void testResultSetPages() {
+        List<ResultSetRow> rows = makeRows(130);
+        ResultSet rs = new ResultSet();
+        rs.setQuery(new Query().setObjectClassName("org.example.Order"));
+        rs.setOffHeapPages(true);
+        rs.setCachedPageRows(rows);
+
+        assertTrue(rs.getCachedPageRows() instanceof OffHeapRowList);
+        for (int i = 0; i < rows.size(); i++) {
+            assertSameRow(rs.getRow(i), rows.get(i));
+        }
+        List<ResultSetRow> encoded = rs.getCachedPageRows();
+        rs.setCachedPageRows(encoded);
+        assertSame(rs.getCachedPageRows(), encoded);
+    }
+
+}
@@ -0,0 +1,60 @@
+package org.sgodden.query;
+
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import org.testng.annotations.Test;
+
+@Test
+public class RestrictionEvaluatorTest {
+
+    private static final DataType[] TYPES = new DataType[] {
+        DataType.STRING, DataType.INTEGER, DataType.STRING };
+
+    private Query makeQuery() {
+        return new Query().setObjectClassName("org.example.Order")
+                .addColumn("code").addColumn("quantity").addColumn("customer.name");
+    }
+
+    /**
+     * Like patterns, ignore case and SQL null semantics.
+     */
+    public void testMatches() {
+        Restriction r = new AndRestriction(
+                new SimpleRestriction("code", Operator.CONTAINS, "b_c").setIgnoreCase(true),
+                new NotRestriction(new SimpleRestriction("quantity", Operator.BETWEEN,
+                        new Object[] {1, 5L})));
+        RestrictionEvaluator evaluator = RestrictionEvaluator.compile(r, makeQuery(), TYPES);
+
+        assertTrue(evaluator.matches(new Object[] {"aBxCd", 7, null}));
+        assertFalse(evaluator.matches(new Object[] {"aBxCd", 3, null}));
+        assertFalse(evaluator.matches(new Object[] {"aBxCd", null, null}));
+        assertFalse(evaluator.matches(new Object[] {"abcd", 7, null}));
+    }
+
+    /**
+     * Restrictions whose result depends on the database are not compiled.
+     */
+    public void testNotEvaluable() {
+        assertNull(RestrictionEvaluator.compile(new SimpleRestriction(
+                "customer.name", Operator.GREATER_THAN, "A"), makeQuery(), TYPES));
+        assertNull(RestrictionEvaluator.compile(new SimpleRestriction(
+                "reference", Operator.EQUALS, "A"), makeQuery(), TYPES));
+        assertNull(RestrictionEvaluator.compile(new BooleanRestriction(true),
+                makeQuery(), TYPES));
+    }
+
+    public void testImplies() {
+        Restriction previous = new SimpleRestriction("code", Operator.STARTS_WITH, "AB");
+
+        assertTrue(RestrictionEvaluator.implies(
+                new SimpleRestriction("code", Operator.STARTS_WITH, "ABC"), previous));
+        assertTrue(RestrictionEvaluator.implies(new AndRestriction(previous,
+                new SimpleRestriction("quantity", Operator.EQUALS, 1)), previous));
+        assertFalse(RestrictionEvaluator.implies(
+                new SimpleRestriction("code", Operator.STARTS_WITH, "A"), previous));
+        assertFalse(RestrictionEvaluator.implies(null, previous));
+    }
+
+}
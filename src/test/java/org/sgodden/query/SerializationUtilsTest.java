@@ -0,0 +1,286 @@
+package org.sgodden.query;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.sgodden.query.service.QueryService;
+import org.testng.annotations.Test;
+
+@Test
+public class SerializationUtilsTest {
+
+    @SuppressWarnings("unchecked")
+    private static <T> T roundTrip(T object) throws IOException, ClassNotFoundException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(object);
+        out.close();
+        return (T) new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))
+                .readObject();
+    }
+
+    private static ResultSetColumn makeColumn(DataType dataType, Object value) {
+        ResultSetColumn ret = new ResultSetColumn();
+        ret.setDataType(dataType);
+        ret.setValue(value);
+        return ret;
+    }
+
+    private static ResultSetRow makeRow(String id, ResultSetColumn... columns) {
+        ResultSetRow ret = new ResultSetRow();
+        ret.setId(id);
+        ret.setColumns(columns);
+        return ret;
+    }
+
+    private static void assertSameRow(ResultSetRow actual, ResultSetRow expected) {
+        assertEquals(actual.getId(), expected.getId());
+        if (expected.getColumns() == null) {
+            assertNull(actual.getColumns());
+            return;
+        }
+        assertEquals(actual.getColumns().length, expected.getColumns().length);
+        for (int i = 0; i < expected.getColumns().length; i++) {
+            ResultSetColumn col = expected.getColumns()[i];
+            if (col == null) {
+                assertNull(actual.getColumns()[i]);
+            }
+            else {
+                assertEquals(actual.getColumns()[i].getDataType(), col.getDataType());
+                assertEquals(actual.getColumns()[i].getValue(), col.getValue());
+            }
+        }
+    }
+
+    private static List<ResultSetRow> makeRows() {
+        List<ResultSetRow> ret = new ArrayList<ResultSetRow>();
+        ret.add(makeRow("1",
+                makeColumn(DataType.STRING, "A"),
+                makeColumn(DataType.INTEGER, Integer.MIN_VALUE),
+                makeColumn(DataType.LONG, Long.MAX_VALUE),
+                makeColumn(DataType.BOOLEAN, Boolean.TRUE)));
+        ret.add(makeRow("007",
+                makeColumn(DataType.STRING, "A"),
+                makeColumn(DataType.INTEGER, null),
+                null,
+                makeColumn(null, Boolean.FALSE)));
+        ret.add(makeRow(null,
+                makeColumn(DataType.UNKNOWN, new BigDecimal("-1.50")),
+                makeColumn(DataType.UNKNOWN, "\u00e9t\u00e9"),
+                makeColumn(DataType.LONG, -1L),
+                makeColumn(DataType.UNKNOWN, 7)));
+        ret.add(makeRow("-9223372036854775808"));
+        ret.get(3).setColumns(null);
+        return ret;
+    }
+
+    /**
+     * Tests that variable length longs round trip at the boundaries of their
+     * encoded lengths.
+     */
+    public void testVarLong() throws Exception {
+        long[] values = new long[] {0, 1, -1, 63, -64, 64, 8191, -8192, 8192,
+            Integer.MAX_VALUE, Integer.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE};
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        for (long value : values) {
+            SerializationUtils.writeVarLong(out, value);
+        }
+        out.close();
+
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        for (long value : values) {
+            assertEquals(SerializationUtils.readVarLong(in), value);
+        }
+    }
+
+    /**
+     * Tests that rows round trip with nulls, mixed value types, numeric and
+     * non-numeric ids, and no columns.
+     */
+    public void testResultSetRow() throws Exception {
+        for (ResultSetRow row : makeRows()) {
+            assertSameRow(roundTrip(row), row);
+        }
+    }
+
+    /**
+     * Returns the passed rows for every query, recording the queries.
+     */
+    private static class StubQueryService implements QueryService {
+
+        private final List<ResultSetRow> rows;
+        private final List<Query> queries = new ArrayList<Query>();
+
+        StubQueryService(List<ResultSetRow> rows) {
+            this.rows = rows;
+        }
+
+        public ResultSet executeQuery(Query query) {
+            queries.add(query);
+            ResultSet ret = new ResultSet();
+            ret.setQuery(query);
+            ret.setCachedPageRows(new ArrayList<ResultSetRow>(rows));
+            return ret;
+        }
+
+        public ResultSet executeQuery(Query query, ResultSetRowHandler handler) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void cancelQuery(Query query) {
+        }
+
+        public QueryExplanation explain(Query query) {
+            throw new UnsupportedOperationException();
+        }
+
+        public Map<String, Map<Object, Long>> facetCounts(Query query,
+                List<String> attributePaths, int limit) {
+            throw new UnsupportedOperationException();
+        }
+
+    }
+
+    /**
+     * Tests that a result set round trips with its query, flags and
+     * snapshot ids, which need not be in ascending order.
+     */
+    public void testResultSet() throws Exception {
+        ResultSet rs = new ResultSet();
+        rs.setQuery(new Query().setObjectClassName("org.example.Order").addColumn("code")
+                .setFetchSize(10));
+        rs.setCachedPageRows(makeRows());
+        rs.setRowCount(25);
+        rs.setQueryBailedOut(true);
+        rs.setSnapshotIds(new long[] {5, 3, 1000000000000L, -2, 0}, false);
+
+        ResultSet copy = roundTrip(rs);
+
+        assertEquals(copy.getRowCount(), 25);
+        assertTrue(copy.getQueryBailedOut());
+        assertFalse(copy.getOffHeapPages());
+        assertFalse(copy.getSnapshotIntegerIds());
+        assertEquals(Arrays.toString(copy.getSnapshotIds()),
+                Arrays.toString(new long[] {5, 3, 1000000000000L, -2, 0}));
+        assertEquals(copy.getQuery().getObjectClassName(), "org.example.Order");
+
+        ResultSet empty = new ResultSet();
+        empty.setSnapshotIds(new long[] {1, 2}, true);
+        ResultSet emptyCopy = roundTrip(empty);
+        assertNull(emptyCopy.getCachedPageRows());
+        assertNull(emptyCopy.getQuery());
+        assertTrue(emptyCopy.getSnapshotIntegerIds());
+        assertEquals(emptyCopy.getSnapshotIds().length, 2);
+    }
+
+    /**
+     * Tests that the rows of the current page are not written, and are
+     * fetched again from the query service when first read.
+     */
+    public void testResultSetPageRefetched() throws Exception {
+        List<ResultSetRow> rows = makeRows();
+        ResultSet rs = new ResultSet();
+        rs.setQuery(new Query().setObjectClassName("org.example.Order").addColumn("code")
+                .setFetchSize(10));
+        rs.setQueryService(new StubQueryService(rows));
+        rs.setCachedPageRows(new ArrayList<ResultSetRow>());
+        rs.setRowCount(25);
+        // move to the second page
+        rs.getRow(12);
+        rs.setQueryService(null);
+
+        ResultSet copy = roundTrip(rs);
+        StubQueryService service = new StubQueryService(rows);
+        copy.setQueryService(service);
+        assertTrue(service.queries.isEmpty());
+
+        assertEquals(copy.getCachedRowCount(), rows.size());
+        assertEquals(service.queries.size(), 1);
+        assertEquals(service.queries.get(0).getRowOffset(), 10);
+        assertFalse(service.queries.get(0).getCalculateRowCount());
+        for (int i = 0; i < rows.size(); i++) {
+            assertSameRow(copy.getCachedPageRows().get(i), rows.get(i));
+        }
+        assertSameRow(copy.getRow(11), rows.get(1));
+        assertEquals(service.queries.size(), 1);
+    }
+
+    /**
+     * Tests that a query round trips with its columns, restriction tree,
+     * sort data and flags.
+     */
+    public void testQuery() throws Exception {
+        Query query = new Query().setObjectClassName("org.example.Order")
+                .addColumn("code").addColumn("lines.quantity", AggregateFunction.SUM)
+                .setFilterCriterion(new AndRestriction(
+                        new SimpleRestriction("code", Operator.STARTS_WITH, "A").setIgnoreCase(true),
+                        new NotRestriction(new OrRestriction(
+                                new SimpleRestriction("status", Operator.IN,
+                                        new Object[] {"OPEN", null, 3L}),
+                                new SimpleRestriction("customer", Operator.EQUALS, (Object) null)))))
+                .setLocale(Locale.FRANCE)
+                .setFetchSize(50).setMaxRows(1000).setRowOffset(7).setBailOutSize(200)
+                .setCalculateRowCount(true)
+                .setSortDatas(new SortData[] {new SortData(1, false), null})
+                .setExistsForCollections(true)
+                .setSnapshotPaging(true);
+        query.setIncludeId(false);
+
+        Query copy = roundTrip(query);
+
+        assertEquals(copy.getObjectClassName(), "org.example.Order");
+        assertEquals(copy.getColumns().size(), 2);
+        assertEquals(copy.getColumns().get(1).getAttributePath(), "lines.quantity");
+        assertEquals(copy.getColumns().get(1).getAggregateFunction(), AggregateFunction.SUM);
+        assertNull(copy.getColumns().get(0).getAggregateFunction());
+        assertEquals(copy.getLocale(), Locale.FRANCE);
+        assertEquals(copy.getFetchSize(), 50);
+        assertEquals(copy.getMaxRows(), 1000);
+        assertEquals(copy.getRowOffset(), 7);
+        assertEquals(copy.getBailOutSize(), 200);
+        assertEquals(copy.getSortData().length, 2);
+        assertEquals(copy.getSortData()[0].getColumnIndex(), 1);
+        assertFalse(copy.getSortData()[0].getAscending());
+        assertNull(copy.getSortData()[1]);
+        assertTrue(copy.getCalculateRowCount());
+        assertFalse(copy.getIncludeId());
+        assertFalse(copy.getDistinctId());
+        assertTrue(copy.getExistsForCollections());
+        assertFalse(copy.getIdFirstPaging());
+        assertTrue(copy.getSnapshotPaging());
+        assertFalse(copy.getHoldCursor());
+
+        AndRestriction and = (AndRestriction) copy.getFilterCriterion();
+        assertEquals(and.getRestrictions().size(), 2);
+        SimpleRestriction code = (SimpleRestriction) and.getRestrictions().get(0);
+        assertEquals(code.getAttributePath(), "code");
+        assertEquals(code.getOperator(), Operator.STARTS_WITH);
+        assertTrue(code.getIgnoreCase());
+        OrRestriction or = (OrRestriction) ((NotRestriction) and.getRestrictions().get(1)).getChild();
+        SimpleRestriction status = (SimpleRestriction) or.getRestrictions().get(0);
+        assertEquals(Arrays.asList(status.getValues()), Arrays.asList(new Object[] {"OPEN", null, 3L}));
+        assertNull(((SimpleRestriction) or.getRestrictions().get(1)).getValues()[0]);
+
+        Query empty = roundTrip(new Query());
+        assertNull(empty.getObjectClassName());
+        assertNull(empty.getFilterCriterion());
+        assertNull(empty.getSortData());
+        assertTrue(empty.getIncludeId());
+    }
+
+}
@@ -0,0 +1,154 @@
+package org.sgodden.query;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.NotSerializableException;
+import java.io.ObjectOutputStream;
+
+import org.testng.annotations.Test;
+
+@Test
+public class SpillableRowListTest {
+
+    private static ResultSetColumn makeColumn(DataType dataType, Object value) {
+        ResultSetColumn ret = new ResultSetColumn();
+        ret.setDataType(dataType);
+        ret.setValue(value);
+        return ret;
+    }
+
+    /**
+     * Returns a row whose strings repeat across rows, and whose every
+     * seventh row has null values.
+     */
+    private static ResultSetRow makeRow(int i) {
+        ResultSetRow ret = new ResultSetRow();
+        ret.setId(String.valueOf(i));
+        ret.setColumns(new ResultSetColumn[] {
+            makeColumn(DataType.STRING, i % 3 == 0 ? "A" : "value " + i),
+            makeColumn(DataType.INTEGER, i % 7 == 0 ? null : Integer.valueOf(i)),
+            i % 7 == 0 ? null : makeColumn(DataType.LONG, Long.valueOf(-i))
+        });
+        return ret;
+    }
+
+    private static void assertRow(ResultSetRow row, int i) {
+        ResultSetRow expected = makeRow(i);
+        assertEquals(row.getId(), expected.getId());
+        assertEquals(row.getColumns()[0].getValue(), expected.getColumns()[0].getValue());
+        assertEquals(row.getColumns()[0].getDataType(), DataType.STRING);
+        assertEquals(row.getColumns()[1].getValue(), expected.getColumns()[1].getValue());
+        if (expected.getColumns()[2] == null) {
+            assertNull(row.getColumns()[2]);
+        }
+        else {
+            assertEquals(row.getColumns()[2].getValue(), expected.getColumns()[2].getValue());
+        }
+    }
+
+    /**
+     * Tests that rows spilled at once are read back from full blocks and
+     * from the rows not yet encoded, before and after completion, in any
+     * order.
+     */
+    public void testSpillAtOnce() {
+        SpillableRowList rows = new SpillableRowList(0, null);
+        for (int i = 0; i < 150; i++) {
+            assertTrue(rows.handleRow(makeRow(i)));
+        }
+        assertTrue(rows.isSpilled());
+        assertEquals(rows.size(), 150);
+        // the last 22 rows are not yet encoded
+        assertRow(rows.get(140), 140);
+        assertRow(rows.get(3), 3);
+        assertRow(rows.get(127), 127);
+
+        rows.complete();
+        assertEquals(rows.size(), 150);
+        assertTrue(rows.getEncodedSize() > 0);
+        for (int i = 149; i >= 0; i--) {
+            assertRow(rows.get(i), i);
+        }
+        int i = 0;
+        for (ResultSetRow row : rows) {
+            assertRow(row, i++);
+        }
+        assertEquals(i, 150);
+        rows.release();
+    }
+
+    /**
+     * Tests that rows are held on the heap until they exceed the threshold,
+     * and that those appended before and after they are spilled are all
+     * read back.
+     */
+    public void testSpillMidFill() {
+        SpillableRowList rows = new SpillableRowList(2000, null);
+        rows.handleRow(makeRow(0));
+        assertFalse(rows.isSpilled());
+        assertRow(rows.get(0), 0);
+
+        for (int i = 1; i < 200; i++) {
+            rows.handleRow(makeRow(i));
+        }
+        assertTrue(rows.isSpilled());
+        assertRow(rows.get(199), 199);
+        rows.complete();
+        for (int i = 0; i < 200; i++) {
+            assertRow(rows.get(i), i);
+        }
+        rows.release();
+    }
+
+    /**
+     * Tests that rows within the threshold are never spilled.
+     */
+    public void testNotSpilled() {
+        SpillableRowList rows = new SpillableRowList(1024 * 1024, null);
+        for (int i = 0; i < 100; i++) {
+            rows.handleRow(makeRow(i));
+        }
+        rows.complete();
+        assertFalse(rows.isSpilled());
+        assertEquals(rows.size(), 100);
+        assertRow(rows.get(99), 99);
+        rows.release();
+    }
+
+    /**
+     * Tests that spilled rows may still be read once the file is released.
+     */
+    public void testReadAfterRelease() {
+        SpillableRowList rows = new SpillableRowList(0, null);
+        for (int i = 0; i < 130; i++) {
+            rows.handleRow(makeRow(i));
+        }
+        rows.complete();
+        rows.release();
+        for (int i = 0; i < 130; i++) {
+            assertRow(rows.get(i), i);
+        }
+    }
+
+    /**
+     * Tests that the rows are not copied onto the heap to be serialized.
+     */
+    public void testNotSerializable() throws Exception {
+        SpillableRowList rows = new SpillableRowList(0, null);
+        rows.handleRow(makeRow(1));
+        rows.complete();
+        try {
+            new ObjectOutputStream(new ByteArrayOutputStream()).writeObject(rows);
+            fail("Expected the spilled rows not to be serializable");
+        } catch (NotSerializableException e) {
+            // expected
+        }
+        rows.release();
+    }
+
+}
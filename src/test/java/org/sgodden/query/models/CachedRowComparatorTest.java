@@ -0,0 +1,179 @@
+package org.sgodden.query.models;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+import org.sgodden.query.DataType;
+import org.sgodden.query.ResultSetColumn;
+import org.sgodden.query.ResultSetRow;
+import org.sgodden.query.SortData;
+import org.testng.annotations.Test;
+
+@Test
+public class CachedRowComparatorTest {
+
+    private static final DataType[] TYPES = new DataType[] {
+        DataType.STRING, DataType.INTEGER };
+
+    private static List<ResultSetRow> makeRows(DataType[] types, Object[][] values) {
+        List<ResultSetRow> ret = new ArrayList<ResultSetRow>();
+        for (Object[] rowValues : values) {
+            ResultSetColumn[] cols = new ResultSetColumn[rowValues.length - 1];
+            for (int i = 0; i < cols.length; i++) {
+                cols[i] = new ResultSetColumn();
+                cols[i].setDataType(types[i]);
+                cols[i].setValue(rowValues[i + 1]);
+            }
+            ResultSetRow row = new ResultSetRow();
+            row.setId((String) rowValues[0]);
+            row.setColumns(cols);
+            ret.add(row);
+        }
+        return ret;
+    }
+
+    private static ColumnarCache makeCache(List<ResultSetRow> rows) {
+        ColumnarCache ret = new ColumnarCache(rows.get(0).getColumns().length, rows.size(), 0);
+        for (ResultSetRow row : rows) {
+            ret.handleRow(row);
+        }
+        ret.complete();
+        return ret;
+    }
+
+    private static int[] sort(List<ResultSetRow> rows, SortData... sortData) {
+        ColumnarCache cache = makeCache(rows);
+        int[] ret = CachedRowComparator.create(cache, sortData, Locale.UK).sort(rows.size());
+        cache.release();
+        return ret;
+    }
+
+    private static void assertOrder(int[] actual, int... expected) {
+        assertEquals(Arrays.toString(actual), Arrays.toString(expected));
+    }
+
+    /**
+     * Tests that a single sorted column is followed by the other columns and
+     * the id, with nulls first when ascending and last when descending.
+     */
+    public void testSingleColumn() {
+        List<ResultSetRow> rows = makeRows(TYPES, new Object[][] {
+            {"10", "b", 2},
+            {"9", "a", null},
+            {"2", "b", 1},
+            {"1", "a", 2},
+            {"3", "a", 2}});
+
+        assertOrder(sort(rows, new SortData(1, true)), 1, 2, 3, 4, 0);
+        assertOrder(sort(rows, new SortData(1, false)), 3, 4, 0, 2, 1);
+    }
+
+    /**
+     * Tests that strings are collated for the locale rather than compared
+     * by character code, and that several sorted columns are used alone.
+     */
+    public void testCollationAndSeveralColumns() {
+        List<ResultSetRow> rows = makeRows(TYPES, new Object[][] {
+            {"1", "b", 1},
+            {"2", "B", 2},
+            {"3", "a", 2},
+            {"4", "\u00e1", 1}});
+
+        assertOrder(sort(rows, new SortData(0, true)), 2, 3, 0, 1);
+        assertOrder(sort(rows, new SortData(1, false), new SortData(0, false)), 1, 2, 0, 3);
+    }
+
+    /**
+     * Tests that non-numeric ids are compared as strings.
+     */
+    public void testStringIds() {
+        List<ResultSetRow> rows = makeRows(TYPES, new Object[][] {
+            {"b", "x", 1},
+            {"10", "x", 1},
+            {"a", "x", 1}});
+
+        assertOrder(sort(rows, new SortData(0, true)), 1, 2, 0);
+    }
+
+    private static Date makeDate(int year, int month, int day, int hour, int minute) {
+        Calendar ret = Calendar.getInstance(Locale.UK);
+        ret.clear();
+        ret.set(year, month, day, hour, minute);
+        return ret.getTime();
+    }
+
+    /**
+     * Tests that formatted dates and timestamps are compared as the dates
+     * they format, and date values by their time.
+     */
+    public void testDates() {
+        // formatted as the query service formats them
+        DateFormat date = DateFormat.getDateInstance(DateFormat.SHORT, Locale.UK);
+        DateFormat timestamp = DateFormat.getDateTimeInstance(DateFormat.SHORT,
+                DateFormat.SHORT, Locale.UK);
+        List<ResultSetRow> dates = makeRows(new DataType[] {DataType.DATE, DataType.TIMESTAMP},
+                new Object[][] {
+                    {"1", date.format(makeDate(2010, 0, 2, 0, 0)),
+                        timestamp.format(makeDate(2010, 1, 1, 9, 30))},
+                    {"2", date.format(makeDate(2009, 11, 15, 0, 0)),
+                        timestamp.format(makeDate(2010, 1, 1, 10, 15))},
+                    {"3", null, timestamp.format(makeDate(2010, 0, 31, 23, 59))},
+                    {"4", date.format(makeDate(2010, 1, 1, 0, 0)), null}});
+        assertOrder(sort(dates, new SortData(0, true)), 2, 1, 0, 3);
+        assertOrder(sort(dates, new SortData(1, false)), 1, 0, 2, 3);
+
+        List<ResultSetRow> values = makeRows(new DataType[] {DataType.DATE},
+                new Object[][] {{"1", new Date(2000L)}, {"2", new Date(1000L)}});
+        assertOrder(sort(values, new SortData(0, true)), 1, 0);
+    }
+
+    /**
+     * Tests that rows which cannot be sorted in memory are not.
+     */
+    public void testNotSortable() {
+        ColumnarCache dates = makeCache(makeRows(new DataType[] {DataType.DATE},
+                new Object[][] {{"1", "not a date"}}));
+        assertNull(CachedRowComparator.create(dates, new SortData[0], Locale.UK));
+        dates.release();
+
+        ColumnarCache mixed = makeCache(makeRows(new DataType[] {DataType.UNKNOWN},
+                new Object[][] {{"1", 1}, {"2", "a"}}));
+        assertNull(CachedRowComparator.create(mixed, new SortData[] {new SortData(0, true)},
+                Locale.UK));
+        mixed.release();
+    }
+
+    /**
+     * Tests that the sort is stable and correct for enough rows to be
+     * merged, with repeated strings sharing their dictionary codes.
+     */
+    public void testManyRows() {
+        Object[][] values = new Object[100][];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = new Object[] {String.valueOf(i), "v" + (i * 7 % 10), i % 3};
+        }
+        int[] order = sort(makeRows(TYPES, values), new SortData(0, true), new SortData(1, false));
+        for (int i = 1; i < order.length; i++) {
+            Object[] previous = values[order[i - 1]];
+            Object[] next = values[order[i]];
+            int compare = ((String) previous[1]).compareTo((String) next[1]);
+            if (compare == 0) {
+                compare = ((Integer) next[2]).compareTo((Integer) previous[2]);
+            }
+            if (compare == 0) {
+                compare = order[i - 1] < order[i] ? -1 : 1;
+            }
+            assertTrue(compare < 0, "Row " + i);
+        }
+    }
+
+}
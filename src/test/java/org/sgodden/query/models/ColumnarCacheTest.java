@@ -0,0 +1,154 @@
+package org.sgodden.query.models;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.math.BigDecimal;
+
+import org.sgodden.query.DataType;
+import org.sgodden.query.ResultSetColumn;
+import org.sgodden.query.ResultSetRow;
+import org.testng.annotations.Test;
+
+@Test
+public class ColumnarCacheTest {
+
+    private static ResultSetRow makeRow(String id, Object... values) {
+        ResultSetColumn[] cols = new ResultSetColumn[values.length];
+        for (int i = 0; i < values.length; i++) {
+            cols[i] = new ResultSetColumn();
+            cols[i].setDataType(DataType.UNKNOWN);
+            cols[i].setValue(values[i]);
+        }
+        ResultSetRow ret = new ResultSetRow();
+        ret.setId(id);
+        ret.setColumns(cols);
+        return ret;
+    }
+
+    /**
+     * Tests that a column holding values of mixed types is widened to hold
+     * boxed values, keeping the values and nulls appended before it was
+     * widened, and that the cache grows past its expected row count.
+     */
+    public void testMixedTypeWidening() {
+        ColumnarCache cache = new ColumnarCache(3, 1, 0);
+        for (int i = 0; i < 20; i++) {
+            assertTrue(cache.handleRow(makeRow(String.valueOf(i), null, i % 2 == 0, "A")));
+        }
+        assertTrue(cache.handleRow(makeRow("20", 1, null, "B")));
+        assertTrue(cache.handleRow(makeRow("21", 2L, true, null)));
+        assertTrue(cache.handleRow(makeRow("x22", "three", false, "A")));
+        assertTrue(cache.complete());
+
+        assertEquals(cache.getRowCount(), 23);
+        assertNull(cache.getValue(0, 19));
+        assertEquals(cache.getValue(0, 20), Integer.valueOf(1));
+        assertEquals(cache.getValue(0, 21), Long.valueOf(2));
+        assertEquals(cache.getValue(0, 22), "three");
+        assertEquals(cache.getValue(1, 0), Boolean.TRUE);
+        assertEquals(cache.getValue(1, 1), Boolean.FALSE);
+        assertNull(cache.getValue(1, 20));
+        assertEquals(cache.getValue(2, 20), "B");
+        assertNull(cache.getValue(2, 21));
+        assertEquals(cache.getId(7), "7");
+        assertEquals(cache.getId(22), "x22");
+
+        ResultSetRow row = cache.getRow(21);
+        assertEquals(row.getId(), "21");
+        assertEquals(row.getColumns()[1].getValue(), Boolean.TRUE);
+        assertEquals(row.getColumns()[0].getDataType(), DataType.UNKNOWN);
+        cache.release();
+    }
+
+    /**
+     * Tests that a cache whose values have been moved off the heap can be
+     * serialized, and reads back the same values and ids.
+     */
+    public void testSerializeOffHeap() throws Exception {
+        ColumnarCache cache = new ColumnarCache(4, 4, 0, true);
+        cache.handleRow(makeRow("1", 10, 100L, "A", null));
+        cache.handleRow(makeRow("2", null, 200L, "B", new BigDecimal("1.5")));
+        cache.handleRow(makeRow("3", 30, null, "A", null));
+        assertTrue(cache.complete());
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(cache);
+        out.close();
+        ColumnarCache copy = (ColumnarCache) new ObjectInputStream(
+                new ByteArrayInputStream(bytes.toByteArray())).readObject();
+
+        assertEquals(copy.getRowCount(), 3);
+        Object[][] values = cache.toArray();
+        Object[][] copied = copy.toArray();
+        for (int i = 0; i < values.length; i++) {
+            assertEquals(copied[i], values[i]);
+        }
+        assertEquals(copy.getValue(0, 2), Integer.valueOf(30));
+        assertNull(copy.getValue(0, 1));
+        assertEquals(copy.getValue(2, 2), "A");
+        assertEquals(copy.getId(1), "2");
+        cache.release();
+        copy.release();
+    }
+
+    /**
+     * Tests that a cache moved off the heap reads back the same values,
+     * nulls and ids as one left on the heap, across many rows.
+     */
+    public void testOffHeap() {
+        ColumnarCache onHeap = new ColumnarCache(4, 16, 0);
+        ColumnarCache offHeap = new ColumnarCache(4, 16, 0, true);
+        for (int i = 0; i < 300; i++) {
+            ResultSetRow row = makeRow(i == 150 ? "x150" : String.valueOf(i),
+                    i % 5 == 0 ? null : i,
+                    i % 7 == 0 ? null : (long) i * 1000000000L,
+                    i % 11 == 0 ? null : "value " + (i % 13),
+                    i % 2 == 0);
+            assertTrue(onHeap.handleRow(row));
+            assertTrue(offHeap.handleRow(row));
+        }
+        assertTrue(onHeap.complete());
+        assertTrue(offHeap.complete());
+
+        assertEquals(offHeap.getRowCount(), 300);
+        for (int i = 299; i >= 0; i--) {
+            assertEquals(offHeap.getId(i), onHeap.getId(i));
+            for (int col = 0; col < 4; col++) {
+                assertEquals(offHeap.getValue(col, i), onHeap.getValue(col, i));
+            }
+        }
+        assertNull(offHeap.getValue(0, 5));
+        assertEquals(offHeap.getValue(1, 3), Long.valueOf(3000000000L));
+        assertEquals(offHeap.getValue(2, 14), "value 1");
+        assertEquals(offHeap.getId(150), "x150");
+        onHeap.release();
+        offHeap.release();
+    }
+
+    /**
+     * Tests that filling stops once the cache exceeds its own budget.
+     */
+    public void testOverBudget() {
+        ColumnarCache cache = new ColumnarCache(1, 16, 1);
+        boolean within = true;
+        int i = 0;
+        while (within && i < 5000) {
+            within = cache.handleRow(makeRow(String.valueOf(i), i));
+            i++;
+        }
+        assertFalse(within);
+        assertTrue(cache.isOverBudget());
+        assertFalse(cache.handleRow(makeRow("x", 1)));
+        assertFalse(cache.complete());
+        cache.release();
+    }
+
+}
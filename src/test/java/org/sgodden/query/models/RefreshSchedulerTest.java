@@ -0,0 +1,265 @@
+package org.sgodden.query.models;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.sgodden.query.Query;
+import org.sgodden.query.QueryExplanation;
+import org.sgodden.query.QueryServiceProvider;
+import org.sgodden.query.Restriction;
+import org.sgodden.query.ResultSet;
+import org.sgodden.query.ResultSetRowHandler;
+import org.sgodden.query.SortData;
+import org.sgodden.query.service.BackgroundQueryService;
+import org.sgodden.query.service.QueryService;
+import org.testng.annotations.Test;
+
+@Test
+public class RefreshSchedulerTest {
+
+    /**
+     * Runs the queries, holding the first one until it is released.
+     */
+    private static class StubQueryService implements QueryService {
+
+        private final BlockingQueue<Query> started = new LinkedBlockingQueue<Query>();
+        private final List<Query> cancelled = Collections.synchronizedList(new ArrayList<Query>());
+        final CountDownLatch release = new CountDownLatch(1);
+        private boolean first = true;
+
+        public ResultSet executeQuery(Query query) {
+            boolean hold;
+            synchronized (this) {
+                hold = first;
+                first = false;
+            }
+            started.add(query);
+            if (hold) {
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new Error(e);
+                }
+            }
+            ResultSet ret = new ResultSet();
+            ret.setQuery(query);
+            return ret;
+        }
+
+        public ResultSet executeQuery(Query query, ResultSetRowHandler handler) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void cancelQuery(Query query) {
+            cancelled.add(query);
+        }
+
+        public QueryExplanation explain(Query query) {
+            throw new UnsupportedOperationException();
+        }
+
+        public Map<String, Map<Object, Long>> facetCounts(Query query,
+                List<String> attributePaths, int limit) {
+            throw new UnsupportedOperationException();
+        }
+
+    }
+
+    /**
+     * Records the threads which prepare the queries, and the prepared
+     * queries executed and discarded.
+     */
+    private static class PreparingQueryService extends StubQueryService
+            implements BackgroundQueryService {
+
+        private final List<Thread> preparingThreads = new ArrayList<Thread>();
+        private final List<Query> executed = Collections.synchronizedList(new ArrayList<Query>());
+        private final List<Query> discarded = Collections.synchronizedList(new ArrayList<Query>());
+
+        public PreparedQuery prepareBackgroundQuery(final Query query) {
+            preparingThreads.add(Thread.currentThread());
+            return new PreparedQuery() {
+                public ResultSet execute() {
+                    executed.add(query);
+                    return executeQuery(query);
+                }
+
+                public void discard() {
+                    discarded.add(query);
+                }
+            };
+        }
+
+    }
+
+    /**
+     * Records the refreshes completed.
+     */
+    private static class RecordingModel extends AbstractQueryTableModel {
+
+        private final Query query = new Query().setObjectClassName("org.example.Order")
+                .addColumn("code");
+        private final List<SortData[]> sorts = new ArrayList<SortData[]>();
+        private final List<ResultSet> results = new ArrayList<ResultSet>();
+
+        RecordingModel(final QueryService service) {
+            super(new QueryServiceProvider() {
+                public QueryService get() {
+                    return service;
+                }
+            });
+        }
+
+        @Override
+        protected Query getQuery() {
+            return query;
+        }
+
+        @Override
+        protected void completeRefresh(SortData[] sortData, ResultSet rs) {
+            sorts.add(sortData);
+            results.add(rs);
+        }
+
+        @Override
+        public Object[] getColumnIdentifiers() {
+            return new Object[] {"code"};
+        }
+
+        @Override
+        public void setColumnIdentifiers(Object[] columnIdentifiers) {
+        }
+
+        public void replaceQueryRestriction(Restriction r) {
+            query.setFilterCriterion(r);
+        }
+
+    }
+
+    /**
+     * Queues the tasks which apply results, to be run by the test thread as
+     * the thread which owns the model.
+     */
+    private static class QueueExecutor implements Executor {
+
+        private final BlockingQueue<Runnable> tasks = new LinkedBlockingQueue<Runnable>();
+
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        void runNext() throws InterruptedException {
+            Runnable task = tasks.poll(5, TimeUnit.SECONDS);
+            assertNotNull(task);
+            task.run();
+        }
+
+    }
+
+    /**
+     * Tests that requests made within the debounce delay run a single
+     * query, with the sort of the last request.
+     */
+    public void testDebounce() throws Exception {
+        StubQueryService service = new StubQueryService();
+        service.release.countDown();
+        RecordingModel model = new RecordingModel(service);
+        QueueExecutor executor = new QueueExecutor();
+        RefreshScheduler scheduler = new RefreshScheduler(model, 200, executor);
+
+        scheduler.requestRefresh(new SortData(0, true));
+        scheduler.requestRefresh(new SortData(0, false));
+        scheduler.requestRefresh();
+        SortData last = new SortData(1, true);
+        scheduler.requestRefresh(last);
+
+        executor.runNext();
+        Query query = service.started.poll(5, TimeUnit.SECONDS);
+        assertSame(query.getSortData()[0], last);
+        assertEquals(model.sorts.size(), 1);
+        assertSame(model.sorts.get(0)[0], last);
+        assertSame(model.results.get(0).getQuery(), query);
+
+        Thread.sleep(400);
+        assertTrue(service.started.isEmpty());
+        assertTrue(executor.tasks.isEmpty());
+        assertTrue(service.cancelled.isEmpty());
+        // the model's own query is not changed until the refresh completes
+        assertNull(model.getQuery().getSortData());
+    }
+
+    /**
+     * Tests that a request made while the query of an earlier one is running
+     * cancels that query, and that only the results of the latest request
+     * are applied, even if the earlier query then returns.
+     */
+    public void testLastRequestWins() throws Exception {
+        StubQueryService service = new StubQueryService();
+        RecordingModel model = new RecordingModel(service);
+        QueueExecutor executor = new QueueExecutor();
+        RefreshScheduler scheduler = new RefreshScheduler(model, 0, executor);
+
+        scheduler.requestRefresh(new SortData(0, true));
+        Query first = service.started.poll(5, TimeUnit.SECONDS);
+        assertNotNull(first);
+
+        SortData last = new SortData(0, false);
+        scheduler.requestRefresh(last);
+        assertEquals(service.cancelled, Collections.singletonList(first));
+
+        Query second = service.started.poll(5, TimeUnit.SECONDS);
+        assertSame(second.getSortData()[0], last);
+        executor.runNext();
+        service.release.countDown();
+
+        Thread.sleep(200);
+        while (!executor.tasks.isEmpty()) {
+            executor.runNext();
+        }
+        assertEquals(model.results.size(), 1);
+        assertSame(model.results.get(0).getQuery(), second);
+        assertSame(model.sorts.get(0)[0], last);
+    }
+
+    /**
+     * Tests that the queries of a background query service are prepared in
+     * the thread which requests the refresh, and that those superseded
+     * before they start are discarded rather than executed.
+     */
+    public void testPreparedQueries() throws Exception {
+        PreparingQueryService service = new PreparingQueryService();
+        service.release.countDown();
+        RecordingModel model = new RecordingModel(service);
+        QueueExecutor executor = new QueueExecutor();
+        RefreshScheduler scheduler = new RefreshScheduler(model, 200, executor);
+
+        SortData first = new SortData(0, true);
+        scheduler.requestRefresh(first);
+        SortData last = new SortData(0, false);
+        scheduler.requestRefresh(last);
+        assertEquals(service.preparingThreads.size(), 2);
+        assertSame(service.preparingThreads.get(0), Thread.currentThread());
+        assertSame(service.preparingThreads.get(1), Thread.currentThread());
+
+        executor.runNext();
+        assertEquals(service.discarded.size(), 1);
+        assertSame(service.discarded.get(0).getSortData()[0], first);
+        assertEquals(service.executed.size(), 1);
+        assertSame(service.executed.get(0).getSortData()[0], last);
+        assertSame(model.results.get(0).getQuery(), service.executed.get(0));
+    }
+
+}
@@ -0,0 +1,135 @@
+package org.sgodden.query.models;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.sgodden.query.ResultSetColumn;
+import org.sgodden.query.ResultSetRow;
+import org.testng.annotations.Test;
+
+@Test
+public class RowDiffTest {
+
+    private static ResultSetRow makeRow(String id, Object value) {
+        ResultSetColumn col = new ResultSetColumn();
+        col.setValue(value);
+        ResultSetRow ret = new ResultSetRow();
+        ret.setId(id);
+        ret.setColumns(new ResultSetColumn[] {col});
+        return ret;
+    }
+
+    private static List<ResultSetRow> makeRows(String... idsAndValues) {
+        List<ResultSetRow> ret = new ArrayList<ResultSetRow>();
+        for (int i = 0; i < idsAndValues.length; i += 2) {
+            ret.add(makeRow(idsAndValues[i], idsAndValues[i + 1]));
+        }
+        return ret;
+    }
+
+    /**
+     * Applies the ranges to the old rows in the documented order.
+     */
+    private static List<ResultSetRow> apply(RowDiff diff, List<ResultSetRow> oldRows,
+            List<ResultSetRow> newRows) {
+        List<ResultSetRow> ret = new ArrayList<ResultSetRow>(oldRows);
+        for (int[] range : diff.getDeletedRanges()) {
+            for (int i = range[1]; i >= range[0]; i--) {
+                ret.remove(i);
+            }
+        }
+        for (int[] range : diff.getInsertedRanges()) {
+            for (int i = range[0]; i <= range[1]; i++) {
+                ret.add(i, newRows.get(i));
+            }
+        }
+        for (int[] range : diff.getUpdatedRanges()) {
+            for (int i = range[0]; i <= range[1]; i++) {
+                ret.set(i, newRows.get(i));
+            }
+        }
+        return ret;
+    }
+
+    private static void assertSameRows(List<ResultSetRow> actual, List<ResultSetRow> expected) {
+        assertEquals(actual.size(), expected.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(actual.get(i).getId(), expected.get(i).getId());
+            assertEquals(actual.get(i).getColumns()[0].getValue(),
+                    expected.get(i).getColumns()[0].getValue());
+        }
+    }
+
+    private static void assertRange(int[] range, int first, int last) {
+        assertEquals(range[0], first);
+        assertEquals(range[1], last);
+    }
+
+    /**
+     * Tests the ranges for rows deleted, inserted, updated and moved.
+     */
+    public void testRanges() {
+        List<ResultSetRow> oldRows = makeRows("1", "a", "2", "b", "3", "c", "4", "d", "5", "e");
+        List<ResultSetRow> newRows = makeRows("1", "a", "6", "f", "7", "g", "3", "C", "5", "e", "2", "b");
+        RowDiff diff = RowDiff.compute(oldRows, newRows);
+
+        // 4 is deleted, and 2 moves to the end, so it is deleted and re-inserted
+        assertEquals(diff.getDeletedRanges().size(), 2);
+        assertRange(diff.getDeletedRanges().get(0), 3, 3);
+        assertRange(diff.getDeletedRanges().get(1), 1, 1);
+        assertEquals(diff.getInsertedRanges().size(), 2);
+        assertRange(diff.getInsertedRanges().get(0), 1, 2);
+        assertRange(diff.getInsertedRanges().get(1), 5, 5);
+        assertEquals(diff.getUpdatedRanges().size(), 1);
+        assertRange(diff.getUpdatedRanges().get(0), 3, 3);
+        assertEquals(diff.getRangeCount(), 5);
+        assertSameRows(apply(diff, oldRows, newRows), newRows);
+    }
+
+    /**
+     * Tests that applying the ranges to the old rows yields the new rows,
+     * for random changes to a list of rows.
+     */
+    public void testApplyYieldsNewRows() {
+        Random random = new Random(20101019L);
+        for (int n = 0; n < 200; n++) {
+            List<ResultSetRow> oldRows = new ArrayList<ResultSetRow>();
+            int size = random.nextInt(12);
+            for (int i = 0; i < size; i++) {
+                oldRows.add(makeRow(String.valueOf(i), "v" + i));
+            }
+
+            List<ResultSetRow> newRows = new ArrayList<ResultSetRow>();
+            for (ResultSetRow row : oldRows) {
+                int change = random.nextInt(4);
+                if (change == 0) {
+                    continue;
+                }
+                newRows.add(change == 1 ? makeRow(row.getId(), "u" + n) : row);
+            }
+            for (int i = random.nextInt(4); i > 0; i--) {
+                newRows.add(random.nextInt(newRows.size() + 1), makeRow("n" + i, "w" + i));
+            }
+            if (random.nextBoolean()) {
+                Collections.shuffle(newRows, random);
+            }
+
+            assertSameRows(apply(RowDiff.compute(oldRows, newRows), oldRows, newRows), newRows);
+        }
+    }
+
+    /**
+     * Tests that rows without distinct ids are not matched.
+     */
+    public void testDuplicateIds() {
+        assertNull(RowDiff.compute(makeRows("1", "a", "1", "b"), makeRows("1", "a")));
+        assertNull(RowDiff.compute(makeRows("1", "a"), makeRows("2", "a", "2", "b")));
+        assertNull(RowDiff.compute(makeRows("1", "a"), makeRows(null, "a")));
+    }
+
+}
@@ -0,0 +1,155 @@
+package org.sgodden.query.models;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.sgodden.query.DataType;
+import org.sgodden.query.Query;
+import org.sgodden.query.QueryExplanation;
+import org.sgodden.query.ResultSet;
+import org.sgodden.query.ResultSetColumn;
+import org.sgodden.query.ResultSetRow;
+import org.sgodden.query.ResultSetRowHandler;
+import org.sgodden.query.service.QueryService;
+import org.testng.annotations.Test;
+
+@Test
+public class WindowedRowCacheTest {
+
+    /**
+     * Returns the rows of the window of the query, recording the row offset
+     * of each query run.
+     */
+    private static class StubQueryService implements QueryService {
+
+        private final int rowCount;
+        private final List<Integer> offsets = new ArrayList<Integer>();
+
+        StubQueryService(int rowCount) {
+            this.rowCount = rowCount;
+        }
+
+        public ResultSet executeQuery(Query query) {
+            throw new UnsupportedOperationException();
+        }
+
+        public ResultSet executeQuery(Query query, ResultSetRowHandler handler) {
+            offsets.add(query.getRowOffset());
+            int end = Math.min(query.getRowOffset() + query.getMaxRows(), rowCount);
+            for (int i = query.getRowOffset(); i < end; i++) {
+                ResultSetColumn col = new ResultSetColumn();
+                col.setDataType(DataType.STRING);
+                col.setValue("row " + i);
+                ResultSetRow row = new ResultSetRow();
+                row.setId(String.valueOf(i));
+                row.setColumns(new ResultSetColumn[] {col});
+                if (!handler.handleRow(row)) {
+                    break;
+                }
+            }
+            ResultSet ret = new ResultSet();
+            ret.setQuery(query);
+            return ret;
+        }
+
+        public void cancelQuery(Query query) {
+        }
+
+        public QueryExplanation explain(Query query) {
+            throw new UnsupportedOperationException();
+        }
+
+        public Map<String, Map<Object, Long>> facetCounts(Query query,
+                List<String> attributePaths, int limit) {
+            throw new UnsupportedOperationException();
+        }
+
+    }
+
+    private static Query makeQuery() {
+        return new Query().setObjectClassName("org.example.Order").addColumn("code");
+    }
+
+    /**
+     * Tests that each block is fetched once, with the offset and maximum
+     * rows of the block, and that the last block may be short.
+     */
+    public void testBlocks() {
+        StubQueryService service = new StubQueryService(45);
+        WindowedRowCache window = new WindowedRowCache(service, makeQuery(), 45, 10, 3);
+
+        assertEquals(window.getValue(0, 5), "row 5");
+        assertEquals(window.getId(3), "3");
+        assertEquals(window.getValue(0, 44), "row 44");
+        assertEquals(service.offsets, Arrays.asList(new Integer[] {0, 40}));
+
+        try {
+            window.getValue(0, 45);
+            fail("Expected an exception reading beyond the last row");
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+        window.release();
+    }
+
+    /**
+     * Tests that reading the last quarter of a block while scrolling fetches
+     * the next block in the direction of scrolling.
+     */
+    public void testPrefetch() {
+        StubQueryService service = new StubQueryService(45);
+        WindowedRowCache window = new WindowedRowCache(service, makeQuery(), 45, 8, 3);
+
+        window.getValue(0, 5);
+        window.getValue(0, 6);
+        assertEquals(service.offsets, Arrays.asList(new Integer[] {0, 8}));
+
+        window.getValue(0, 25);
+        window.getValue(0, 24);
+        assertEquals(service.offsets, Arrays.asList(new Integer[] {0, 8, 24, 16}));
+        window.release();
+    }
+
+    /**
+     * Tests that the blocks furthest from the one read are evicted once
+     * more than the maximum are held, and are fetched again when read.
+     */
+    public void testEviction() {
+        StubQueryService service = new StubQueryService(100);
+        WindowedRowCache window = new WindowedRowCache(service, makeQuery(), 100, 10, 3);
+
+        window.getValue(0, 5);
+        window.getValue(0, 15);
+        window.getValue(0, 25);
+        window.getValue(0, 35);
+        // block 0 was evicted, as the furthest from block 3
+        assertEquals(window.getValue(0, 14), "row 14");
+        assertEquals(service.offsets, Arrays.asList(new Integer[] {0, 10, 20, 30}));
+        assertEquals(window.getValue(0, 5), "row 5");
+        assertEquals(service.offsets, Arrays.asList(new Integer[] {0, 10, 20, 30, 0}));
+        window.release();
+    }
+
+    /**
+     * Tests that the blocks are cached in full even when the global budget
+     * of the columnar caches has been exceeded.
+     */
+    public void testGlobalBudgetExempt() {
+        ColumnarCache.setGlobalMemoryBudget(1);
+        try {
+            StubQueryService service = new StubQueryService(3000);
+            WindowedRowCache window = new WindowedRowCache(service, makeQuery(), 3000, 2000, 3);
+            assertEquals(window.getValue(0, 1999), "row 1999");
+            assertEquals(window.getId(1500), "1500");
+            window.release();
+        } finally {
+            ColumnarCache.setGlobalMemoryBudget(0);
+        }
+    }
+
+}
@@ -0,0 +1,127 @@
+package org.sgodden.query.service;
+
+import static org.easymock.EasyMock.aryEq;
+import static org.easymock.EasyMock.eq;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.classextension.EasyMock.createMock;
+import static org.easymock.classextension.EasyMock.createNiceMock;
+import static org.easymock.classextension.EasyMock.replay;
+import static org.easymock.classextension.EasyMock.verify;
+
+import java.util.HashMap;
+import java.util.Locale;
+
+import org.hibernate.Hibernate;
+import org.hibernate.SQLQuery;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.hibernate.event.EventSource;
+import org.hibernate.persister.entity.SingleTableEntityPersister;
+import org.hibernate.type.EntityType;
+import org.sgodden.query.AndRestriction;
+import org.sgodden.query.Operator;
+import org.sgodden.query.Query;
+import org.sgodden.query.SimpleRestriction;
+import org.testng.annotations.Test;
+
+@Test
+public class NativeSqlBuilderTest {
+
+    /**
+     * Tests the SQL for selected columns through a many-to-one association,
+     * and that parameters are bound with the types of their properties.
+     */
+    public void testQuery() {
+        Query query = new Query().setObjectClassName("org.example.Order")
+                .addColumn("code").addColumn("customer.name")
+                .setFilterCriterion(new AndRestriction(
+                        new SimpleRestriction("code", Operator.EQUALS, "A"),
+                        new SimpleRestriction("customer.name", Operator.STARTS_WITH, "b")
+                                .setIgnoreCase(true)))
+                .setLocale(Locale.UK);
+
+        EventSource s = createMock(EventSource.class);
+        SQLQuery q = createNiceMock(SQLQuery.class);
+        mockMetadata(s);
+
+        expect(s.createSQLQuery(eq("SELECT t0.ID AS c0, t0.CODE AS c1, t1.NAME AS c2 "
+                + "FROM ORDERS t0 LEFT OUTER JOIN CUSTOMERS t1 ON t0.CUSTOMER_ID = t1.ID "
+                + "WHERE ( t0.CODE = :p0 AND UPPER(t1.NAME) LIKE :p1 ) ORDER BY 2, 3, 1"))).andReturn(q);
+        expect(q.setParameter("p0", "A", Hibernate.STRING)).andReturn(q);
+        expect(q.setParameter("p1", "B%", Hibernate.STRING)).andReturn(q);
+
+        replay(s, q);
+
+        new NativeSqlBuilder(s, query, null).buildQuery();
+
+        verify(s, q);
+    }
+
+    /**
+     * Tests that parameter lists are bound with the type of their property,
+     * and that values of another class are bound by their own class.
+     */
+    public void testCountQueryParameters() {
+        Query query = new Query().setObjectClassName("org.example.Order")
+                .addColumn("code")
+                .setFilterCriterion(new AndRestriction(
+                        new SimpleRestriction("code", Operator.IN, new Object[] {"A", "B"}),
+                        new SimpleRestriction("number", Operator.CONTAINS, "12")))
+                .setLocale(Locale.UK);
+
+        EventSource s = createMock(EventSource.class);
+        SQLQuery q = createNiceMock(SQLQuery.class);
+        mockMetadata(s);
+
+        expect(s.createSQLQuery(eq("SELECT COUNT(DISTINCT t0.ID) AS cnt FROM ORDERS t0 "
+                + "WHERE ( t0.CODE IN (:p0) AND t0.NUMBER LIKE :p1 )"))).andReturn(q);
+        expect(q.setParameterList(eq("p0"), aryEq(new Object[] {"A", "B"}), eq(Hibernate.STRING))).andReturn(q);
+        expect(q.setParameter("p1", "%12%")).andReturn(q);
+
+        replay(s, q);
+
+        new NativeSqlBuilder(s, query, null).buildCountQuery();
+
+        verify(s, q);
+    }
+
+    /**
+     * Sets up the mapping of orders, with a code, a number and a customer,
+     * and of customers, with a name.
+     */
+    private void mockMetadata(EventSource s) {
+        SessionFactoryImplementor sf = createNiceMock(SessionFactoryImplementor.class);
+        SingleTableEntityPersister orders = createNiceMock(SingleTableEntityPersister.class);
+        SingleTableEntityPersister customers = createNiceMock(SingleTableEntityPersister.class);
+        EntityType customer = createNiceMock(EntityType.class);
+
+        expect(s.getSessionFactory()).andReturn(sf);
+        expect(s.getEnabledFilters()).andReturn(new HashMap<String, Object>()).anyTimes();
+        expect(sf.getEntityPersister("org.example.Order")).andReturn(orders).anyTimes();
+        expect(sf.getEntityPersister("org.example.Customer")).andReturn(customers).anyTimes();
+
+        expect(orders.getTableName()).andReturn("ORDERS").anyTimes();
+        expect(orders.getIdentifierPropertyName()).andReturn("id").anyTimes();
+        expect(orders.getIdentifierColumnNames()).andReturn(new String[] {"ID"}).anyTimes();
+        expect(orders.getIdentifierType()).andReturn(Hibernate.LONG).anyTimes();
+        expect(orders.filterFragment(eq("t0"), eq(new HashMap<String, Object>()))).andReturn("").anyTimes();
+        expect(orders.getPropertyType("code")).andReturn(Hibernate.STRING).anyTimes();
+        expect(orders.getPropertyColumnNames("code")).andReturn(new String[] {"CODE"}).anyTimes();
+        expect(orders.getPropertyType("number")).andReturn(Hibernate.LONG).anyTimes();
+        expect(orders.getPropertyColumnNames("number")).andReturn(new String[] {"NUMBER"}).anyTimes();
+        expect(orders.getPropertyType("customer")).andReturn(customer).anyTimes();
+        expect(orders.getPropertyColumnNames("customer")).andReturn(new String[] {"CUSTOMER_ID"}).anyTimes();
+
+        expect(customer.isEntityType()).andReturn(true).anyTimes();
+        expect(customer.isReferenceToPrimaryKey()).andReturn(true).anyTimes();
+        expect(customer.getAssociatedEntityName()).andReturn("org.example.Customer").anyTimes();
+
+        expect(customers.getTableName()).andReturn("CUSTOMERS").anyTimes();
+        expect(customers.getIdentifierPropertyName()).andReturn("id").anyTimes();
+        expect(customers.getIdentifierColumnNames()).andReturn(new String[] {"ID"}).anyTimes();
+        expect(customers.getPropertyType("name")).andReturn(Hibernate.STRING).anyTimes();
+        expect(customers.getPropertyColumnNames("name")).andReturn(new String[] {"NAME"}).anyTimes();
+
+        replay(sf, orders, customers, customer);
+    }
+
+}
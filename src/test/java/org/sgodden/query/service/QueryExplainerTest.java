@@ -0,0 +1,65 @@
+package org.sgodden.query.service;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.testng.annotations.Test;
+
+@Test
+public class QueryExplainerTest {
+
+    /**
+     * Tests that array and collection parameters are expanded into one
+     * parameter per element, without touching parameters whose names start
+     * with the same characters, and that empty lists are left alone.
+     */
+    public void testExpandParameterLists() {
+        Map<String, Object> parameters = new LinkedHashMap<String, Object>();
+        parameters.put("objcode0", new Object[] {"A", "B"});
+        parameters.put("objcode01", "C");
+        parameters.put("objid2", Arrays.asList(new Object[] {1L}));
+        parameters.put("objname3", new Object[0]);
+
+        Map<String, Object> values = new LinkedHashMap<String, Object>();
+        String hql = QueryExplainer.expandParameterLists("SELECT obj.id FROM Order AS obj "
+                + "WHERE obj.code IN (:objcode0) AND obj.code = :objcode01 "
+                + "AND obj.id IN (:objid2) AND obj.name IN (:objname3)", parameters, values);
+
+        assertEquals(hql, "SELECT obj.id FROM Order AS obj "
+                + "WHERE obj.code IN (:objcode00_, :objcode01_) AND obj.code = :objcode01 "
+                + "AND obj.id IN (:objid20_) AND obj.name IN (:objname3)");
+        assertEquals(values.get("objcode00_"), "A");
+        assertEquals(values.get("objcode01_"), "B");
+        assertEquals(values.get("objcode01"), "C");
+        assertEquals(values.get("objid20_"), 1L);
+        assertNull(values.get("objname3"));
+        assertEquals(values.size(), 5);
+    }
+
+    /**
+     * Tests that the named parameters of SQL are replaced by positional
+     * parameters, with their values in order.
+     */
+    public void testToPositionalParameters() {
+        Map<String, Object> parameters = new LinkedHashMap<String, Object>();
+        parameters.put("p0", new Object[] {"A", "B"});
+        parameters.put("p1", "%X%");
+
+        Map<String, Object> values = new LinkedHashMap<String, Object>();
+        String sql = QueryExplainer.expandParameterLists(
+                "SELECT t0.ID AS c0 FROM ORDERS t0 WHERE ( t0.CODE IN (:p0) AND t0.NAME LIKE :p1 )",
+                parameters, values);
+
+        List<Object> positionalValues = new ArrayList<Object>();
+        assertEquals(QueryExplainer.toPositionalParameters(sql, values, positionalValues),
+                "SELECT t0.ID AS c0 FROM ORDERS t0 WHERE ( t0.CODE IN (?, ?) AND t0.NAME LIKE ? )");
+        assertEquals(positionalValues, Arrays.asList(new Object[] {"A", "B", "%X%"}));
+    }
+
+}
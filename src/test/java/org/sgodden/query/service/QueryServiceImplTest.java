@@ -0,0 +1,434 @@
+package org.sgodden.query.service;
+
+import static org.easymock.EasyMock.anyObject;
+import static org.easymock.EasyMock.eq;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.classextension.EasyMock.createMock;
+import static org.easymock.classextension.EasyMock.createNiceMock;
+import static org.easymock.classextension.EasyMock.replay;
+import static org.easymock.classextension.EasyMock.verify;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hibernate.Filter;
+import org.hibernate.Hibernate;
+import org.hibernate.Interceptor;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.event.EventSource;
+import org.hibernate.impl.FilterImpl;
+import org.hibernate.metadata.ClassMetadata;
+import org.sgodden.query.AggregateFunction;
+import org.sgodden.query.Query;
+import org.sgodden.query.ResultSet;
+import org.sgodden.query.ResultSetColumn;
+import org.sgodden.query.ResultSetRow;
+import org.sgodden.query.SortData;
+import org.testng.annotations.Test;
+
+@Test
+public class QueryServiceImplTest {
+
+    /**
+     * Returns canned rows for the hibernate queries it builds.
+     */
+    private static class StubbedQueryService extends QueryServiceImpl {
+
+        private static final long serialVersionUID = 20101019L;
+
+        private final Map<org.hibernate.Query, List<?>> results =
+            new HashMap<org.hibernate.Query, List<?>>();
+
+        private ScrollableResults scrollableResults;
+
+        @Override
+        protected Iterator iterate(org.hibernate.Query hq) {
+            return results.get(hq).iterator();
+        }
+
+        @Override
+        protected ScrollableResults scroll(org.hibernate.Query hq) {
+            return scrollableResults;
+        }
+
+    }
+
+    /**
+     * Returns a service whose sessions are the passed one, whose objects
+     * have string properties.
+     */
+    private static StubbedQueryService makeStubbedService(Session s) {
+        return makeStubbedService(s, createNiceMock(SessionFactory.class));
+    }
+
+    /**
+     * As {@link #makeStubbedService(Session)}, with the passed session
+     * factory, which is replayed.
+     */
+    private static StubbedQueryService makeStubbedService(Session s, SessionFactory sf) {
+        ClassMetadata md = createNiceMock(ClassMetadata.class);
+        QueryBasedSessionProvider provider = createNiceMock(QueryBasedSessionProvider.class);
+
+        expect(provider.get((Query) anyObject())).andReturn(s).anyTimes();
+        expect(s.getSessionFactory()).andReturn(sf).anyTimes();
+        expect(sf.getClassMetadata(String.class)).andReturn(md).anyTimes();
+        expect(md.getPropertyType("code")).andReturn(Hibernate.STRING).anyTimes();
+        expect(md.getPropertyType("name")).andReturn(Hibernate.STRING).anyTimes();
+        replay(provider, sf, md);
+
+        StubbedQueryService ret = new StubbedQueryService();
+        ret.setSessionProvider(provider);
+        return ret;
+    }
+
+    private static Query makePagedQuery() {
+        return new Query().setObjectClassName(String.class.getName())
+                .addColumn("code").addColumn("name")
+                .setSortData(new SortData(1, false))
+                .setFetchSize(3);
+    }
+
+    /**
+     * Tests that id-first paging selects the ids of the page with just the
+     * sorted column, and then returns the rows of the columns query in the
+     * order of the ids, leaving out rows deleted in between.
+     */
+    public void testIdFirstPaging() {
+        Session s = createMock(Session.class);
+        org.hibernate.Query idQuery = createNiceMock(org.hibernate.Query.class);
+        org.hibernate.Query columnQuery = createNiceMock(org.hibernate.Query.class);
+        StubbedQueryService service = makeStubbedService(s);
+
+        expect(s.createQuery(eq("SELECT obj.id, obj.name FROM java.lang.String AS obj "
+                + "ORDER BY  2 DESC, 1"))).andReturn(idQuery);
+        expect(s.createQuery(eq("SELECT obj.id, obj.code, obj.name FROM java.lang.String AS obj "
+                + "WHERE obj.id IN (:objid0) ORDER BY  3 DESC, 2, 1"))).andReturn(columnQuery);
+        replay(s, idQuery, columnQuery);
+
+        service.results.put(idQuery, Arrays.asList(new Object[] {
+            new Object[] {3L, "c"}, new Object[] {1L, "b"}, new Object[] {2L, "a"}}));
+        service.results.put(columnQuery, Arrays.asList(new Object[] {
+            new Object[] {1L, "B", "b"}, new Object[] {3L, "C", "c"}}));
+
+        ResultSet rs = service.executeQuery(makePagedQuery().setIdFirstPaging(true));
+
+        verify(s);
+        assertEquals(rs.getCachedPageRows().size(), 2);
+        assertEquals(rs.getCachedPageRows().get(0).getId(), "3");
+        assertEquals(rs.getCachedPageRows().get(0).getColumns()[0].getValue(), "C");
+        assertEquals(rs.getCachedPageRows().get(1).getId(), "1");
+    }
+
+    /**
+     * Tests that snapshot paging captures the ids of all the rows, returns
+     * the first page in their order with a placeholder for a row deleted
+     * since, and fetches the next page by the captured ids.
+     */
+    public void testSnapshotPaging() {
+        Session s = createMock(Session.class);
+        org.hibernate.Query idQuery = createNiceMock(org.hibernate.Query.class);
+        org.hibernate.Query pageQuery = createNiceMock(org.hibernate.Query.class);
+        org.hibernate.Query nextPageQuery = createNiceMock(org.hibernate.Query.class);
+        StubbedQueryService service = makeStubbedService(s);
+
+        expect(s.createQuery(eq("SELECT obj.id, obj.name FROM java.lang.String AS obj "
+                + "ORDER BY  2 DESC, 1"))).andReturn(idQuery);
+        String pageHql = "SELECT obj.id, obj.code, obj.name FROM java.lang.String AS obj "
+                + "WHERE obj.id IN (:objid0) ORDER BY  3 DESC, 2, 1";
+        expect(s.createQuery(eq(pageHql))).andReturn(pageQuery);
+        expect(s.createQuery(eq(pageHql))).andReturn(nextPageQuery);
+        replay(s, idQuery, pageQuery, nextPageQuery);
+
+        service.results.put(idQuery, Arrays.asList(new Object[] {
+            new Object[] {5L, "e"}, new Object[] {4L, "d"}, new Object[] {3L, "c"},
+            new Object[] {2L, "b"}, new Object[] {1L, "a"}}));
+        service.results.put(pageQuery, Arrays.asList(new Object[] {
+            new Object[] {3L, "C", "c"}, new Object[] {5L, "E", "e"}}));
+        service.results.put(nextPageQuery, Arrays.asList(new Object[] {
+            new Object[] {1L, "A", "a"}}));
+
+        ResultSet rs = service.executeQuery(makePagedQuery().setSnapshotPaging(true));
+
+        assertEquals(rs.getRowCount(), 5);
+        assertEquals(rs.getRow(0).getId(), "5");
+        assertEquals(rs.getRow(0).getColumns()[0].getValue(), "E");
+        assertEquals(rs.getRow(1).getId(), "4");
+        assertNull(rs.getRow(1).getColumns()[0].getValue());
+        assertEquals(rs.getRow(2).getColumns()[1].getValue(), "c");
+
+        assertEquals(rs.getRow(3).getId(), "2");
+        assertNull(rs.getRow(3).getColumns()[1].getValue());
+        assertEquals(rs.getRow(4).getId(), "1");
+        assertEquals(rs.getRow(4).getColumns()[0].getValue(), "A");
+        verify(s);
+    }
+
+    /**
+     * Tests that each facet path is counted by its own grouped query, and
+     * that the top counts are returned in descending order.
+     */
+    public void testFacetCounts() {
+        final List<Query> queries = new ArrayList<Query>();
+        QueryServiceImpl service = new QueryServiceImpl() {
+            @Override
+            public ResultSet executeQuery(Query query) {
+                queries.add(query);
+                if ("status".equals(query.getColumns().get(0).getAttributePath())) {
+                    return makeResultSet(new Object[][] {{"OPEN", 3L}, {"CLOSED", 5L}, {null, 1L}});
+                }
+                return makeResultSet(new Object[][] {{"UK", 7L}, {"FR", 2L}});
+            }
+        };
+        service.setFacetConcurrency(1);
+
+        Map<String, Map<Object, Long>> counts = service.facetCounts(
+                new Query().setObjectClassName("org.example.Order"),
+                Arrays.asList(new String[] {"status", "customer.country"}), 2);
+
+        assertEquals(queries.size(), 2);
+        for (Query query : queries) {
+            assertEquals(query.getColumns().size(), 2);
+            assertEquals(query.getColumns().get(1).getAggregateFunction(),
+                    AggregateFunction.COUNT_DISTINCT);
+        }
+        assertEquals(queries.get(1).getColumns().get(0).getAttributePath(), "customer.country");
+
+        Map<Object, Long> expected = new LinkedHashMap<Object, Long>();
+        expected.put("CLOSED", 5L);
+        expected.put("OPEN", 3L);
+        assertEquals(new ArrayList<Map.Entry<Object, Long>>(counts.get("status").entrySet()),
+                new ArrayList<Map.Entry<Object, Long>>(expected.entrySet()));
+        assertEquals(counts.get("customer.country").get("FR"), Long.valueOf(2));
+    }
+
+    /**
+     * Tests that facet paths are counted on as many threads as the facet
+     * concurrency, each with a session opened for it which is closed
+     * afterwards.
+     */
+    public void testConcurrentFacetCounts() {
+        Session querySession = createNiceMock(Session.class);
+        SessionFactory sf = createMock(SessionFactory.class);
+        Session s1 = createMock(Session.class);
+        Session s2 = createMock(Session.class);
+        QueryBasedSessionProvider provider = createNiceMock(QueryBasedSessionProvider.class);
+
+        expect(provider.get((Query) anyObject())).andReturn(querySession).anyTimes();
+        expect(querySession.getSessionFactory()).andReturn(sf).anyTimes();
+        expect(sf.openSession()).andReturn(s1);
+        expect(sf.openSession()).andReturn(s2);
+        expect(s1.close()).andReturn(null);
+        expect(s2.close()).andReturn(null);
+        replay(provider, querySession, sf, s1, s2);
+
+        final List<Thread> threads = Collections.synchronizedList(new ArrayList<Thread>());
+        QueryServiceImpl service = new QueryServiceImpl() {
+            @Override
+            public ResultSet executeQuery(Query query) {
+                threads.add(Thread.currentThread());
+                String path = query.getColumns().get(0).getAttributePath();
+                return makeResultSet(new Object[][] {{path.toUpperCase(), 1L}});
+            }
+        };
+        service.setSessionProvider(provider);
+        service.setFacetConcurrency(2);
+
+        Map<String, Map<Object, Long>> counts = service.facetCounts(
+                new Query().setObjectClassName("org.example.Order"),
+                Arrays.asList(new String[] {"status", "customer.country", "code"}), 0);
+
+        assertEquals(new ArrayList<String>(counts.keySet()),
+                Arrays.asList(new String[] {"status", "customer.country", "code"}));
+        assertEquals(counts.get("customer.country").get("CUSTOMER.COUNTRY"), Long.valueOf(1));
+        assertEquals(threads.size(), 3);
+        assertFalse(threads.contains(Thread.currentThread()));
+        verify(sf, s1, s2);
+    }
+
+    /**
+     * Tests that queries are only coalesced across services of the same
+     * class with the same session provider and rendering settings, and
+     * sessions with the same filters.
+     */
+    public void testQueryKey() {
+        QueryBasedSessionProvider provider = createMock(QueryBasedSessionProvider.class);
+        Query query = new Query().setObjectClassName("org.example.Order").addColumn("code");
+        Map<String, Map<String, Object>> filters = makeFilters(7L);
+        QueryServiceImpl.QueryKey key = new QueryServiceImpl.QueryKey(
+                makeService(new QueryServiceImpl(), provider), query, filters);
+
+        QueryServiceImpl same = makeService(new QueryServiceImpl(), provider);
+        assertEquals(new QueryServiceImpl.QueryKey(same, query.makeClone(), makeFilters(7L)), key);
+        assertEquals(new QueryServiceImpl.QueryKey(same, query, filters).hashCode(),
+                key.hashCode());
+
+        assertFalse(key.equals(new QueryServiceImpl.QueryKey(same, query, makeFilters(8L))));
+        assertFalse(key.equals(new QueryServiceImpl.QueryKey(same, query,
+                new HashMap<String, Map<String, Object>>())));
+
+        assertFalse(key.equals(new QueryServiceImpl.QueryKey(
+                makeService(new NativeSqlQueryServiceImpl(), provider), query, filters)));
+        assertFalse(key.equals(new QueryServiceImpl.QueryKey(
+                makeService(new QueryServiceImpl(), createMock(QueryBasedSessionProvider.class)),
+                query, filters)));
+
+        QueryServiceImpl matching = makeService(new QueryServiceImpl(), provider);
+        matching.setCaseInsensitiveMatching(new CaseInsensitiveMatching());
+        assertFalse(key.equals(new QueryServiceImpl.QueryKey(matching, query, filters)));
+
+        QueryServiceImpl spilling = makeService(new QueryServiceImpl(), provider);
+        spilling.setSpillThreshold(1024);
+        assertFalse(key.equals(new QueryServiceImpl.QueryKey(spilling, query, filters)));
+
+        QueryServiceImpl locale = makeService(new QueryServiceImpl(), provider);
+        locale.setLocaleResolution(LocaleResolution.RANKED);
+        assertFalse(key.equals(new QueryServiceImpl.QueryKey(locale, query, filters)));
+
+        assertFalse(key.equals(new QueryServiceImpl.QueryKey(same, new Query()
+                .setObjectClassName("org.example.Order").addColumn("code").addColumn("name"),
+                filters)));
+    }
+
+    /**
+     * Tests that the key of a query holds the parameters of the filters
+     * enabled on its session, and that there is none if they cannot be
+     * read.
+     */
+    public void testQueryKeyFilters() {
+        final Session[] current = new Session[1];
+        SessionProvider provider = new SessionProvider() {
+            public Session get() {
+                return current[0];
+            }
+        };
+        QueryServiceImpl service = new QueryServiceImpl();
+        service.setSessionProvider(provider);
+        QueryServiceImpl other = new QueryServiceImpl();
+        other.setSessionProvider(provider);
+        Query query = new Query().setObjectClassName("org.example.Order").addColumn("code");
+
+        current[0] = makeFilteredSession(7L);
+        QueryServiceImpl.QueryKey key = service.makeQueryKey(query);
+        current[0] = makeFilteredSession(7L);
+        assertEquals(other.makeQueryKey(query), key);
+        current[0] = makeFilteredSession(8L);
+        assertFalse(key.equals(other.makeQueryKey(query)));
+
+        current[0] = createNiceMock(Session.class);
+        assertNull(other.makeQueryKey(query));
+    }
+
+    private static Map<String, Map<String, Object>> makeFilters(long tenantId) {
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put("tenantId", tenantId);
+        params.put("regions", Arrays.asList(new Object[] {"EU", "US"}));
+        Map<String, Map<String, Object>> ret = new HashMap<String, Map<String, Object>>();
+        ret.put("tenant", params);
+        return ret;
+    }
+
+    /**
+     * Returns a session with the tenant filter enabled, with the passed
+     * tenant id.
+     */
+    private static Session makeFilteredSession(long tenantId) {
+        EventSource ret = createNiceMock(EventSource.class);
+        FilterImpl filter = createNiceMock(FilterImpl.class);
+        Map<String, Object> filters = new HashMap<String, Object>();
+        filters.put("tenant", filter);
+        expect(filter.getName()).andReturn("tenant").anyTimes();
+        expect(filter.getParameters()).andReturn(makeFilters(tenantId).get("tenant")).anyTimes();
+        expect(ret.getEnabledFilters()).andReturn(filters).anyTimes();
+        replay(ret, filter);
+        return ret;
+    }
+
+    private static QueryServiceImpl makeService(QueryServiceImpl service,
+            QueryBasedSessionProvider provider) {
+        service.setSessionProvider(provider);
+        return service;
+    }
+
+    /**
+     * Tests that a held cursor is opened on a session with the interceptor
+     * and enabled filters of the query's session, and that cancelling the
+     * query cancels the cursor's session until the cursor is closed.
+     */
+    public void testHeldCursorSession() {
+        EventSource s = createMock(EventSource.class);
+        Session cursorSession = createMock(Session.class);
+        Interceptor interceptor = createMock(Interceptor.class);
+        FilterImpl filter = createNiceMock(FilterImpl.class);
+        Filter copy = createMock(Filter.class);
+        org.hibernate.Query hq = createNiceMock(org.hibernate.Query.class);
+        ScrollableResults results = createMock(ScrollableResults.class);
+        SessionFactory sf = createNiceMock(SessionFactory.class);
+        expect(sf.openSession(interceptor)).andReturn(cursorSession);
+        StubbedQueryService service = makeStubbedService(s, sf);
+        service.scrollableResults = results;
+
+        Map<String, Object> filters = new HashMap<String, Object>();
+        filters.put("tenant", filter);
+        Map<String, Object> params = new LinkedHashMap<String, Object>();
+        params.put("tenantId", 7L);
+        params.put("regions", Arrays.asList(new Object[] {"EU", "US"}));
+        expect(filter.getName()).andReturn("tenant").anyTimes();
+        expect(filter.getParameters()).andReturn(params).anyTimes();
+
+        expect(s.getInterceptor()).andReturn(interceptor);
+        expect(s.getEnabledFilters()).andReturn(filters);
+        expect(cursorSession.enableFilter("tenant")).andReturn(copy);
+        expect(copy.setParameter("tenantId", 7L)).andReturn(copy);
+        expect(copy.setParameterList("regions", Arrays.asList(new Object[] {"EU", "US"})))
+                .andReturn(copy);
+        expect(cursorSession.createQuery(eq("SELECT obj.id, obj.code, obj.name "
+                + "FROM java.lang.String AS obj ORDER BY  3 DESC, 2, 1"))).andReturn(hq);
+        // the page and one more row, which shows that there are more
+        expect(results.next()).andReturn(true).times(4);
+        expect(results.get()).andReturn(new Object[] {1L, "A", "a"}).times(4);
+        cursorSession.cancelQuery();
+        results.close();
+        expect(cursorSession.close()).andReturn(null);
+        replay(s, cursorSession, interceptor, filter, copy, hq, results);
+
+        Query query = makePagedQuery().setHoldCursor(true);
+        ResultSet rs = service.executeQuery(query);
+        assertEquals(rs.getCachedPageRows().size(), 4);
+
+        service.cancelQuery(query);
+        rs.closeCursor();
+        service.cancelQuery(query);
+
+        verify(s, sf, cursorSession, copy, results);
+    }
+
+    private static ResultSet makeResultSet(Object[][] values) {
+        List<ResultSetRow> rows = new ArrayList<ResultSetRow>();
+        for (Object[] rowValues : values) {
+            ResultSetColumn[] cols = new ResultSetColumn[rowValues.length];
+            for (int i = 0; i < rowValues.length; i++) {
+                cols[i] = new ResultSetColumn();
+                cols[i].setValue(rowValues[i]);
+            }
+            ResultSetRow row = new ResultSetRow();
+            row.setColumns(cols);
+            rows.add(row);
+        }
+        ResultSet ret = new ResultSet();
+        ret.setCachedPageRows(rows);
+        ret.setRowCount(rows.size());
+        return ret;
+    }
+
+}
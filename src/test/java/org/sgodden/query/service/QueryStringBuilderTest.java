@@ -7,8 +7,13 @@ import static org.easymock.classextension.EasyMock.createNiceMock;
 import static org.easymock.classextension.EasyMock.replay;
 import static org.easymock.classextension.EasyMock.verify;
 
+import java.util.Locale;
+
 import org.easymock.Capture;
 import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.metadata.ClassMetadata;
+import org.hibernate.type.Type;
 import org.sgodden.query.AggregateFunction;
 import org.sgodden.query.AndRestriction;
 import org.sgodden.query.Operator;
@@ -205,6 +210,83 @@ public class QueryStringBuilderTest {
         verify(q);
     }
 
+    /**
+     * Tests that restrictions through a collection are rendered as EXISTS
+     * sub-queries rather than joined.
+     */
+    public void testExistsForCollections() {
+        Query query = new Query().setObjectClassName(String.class.getName())
+                .addColumn("code").setFilterCriterion(
+                        new SimpleRestriction("orders.lines.sku",
+                                Operator.EQUALS, "ABC"))
+                .setExistsForCollections(true);
+
+        Session s = createMock(Session.class);
+        SessionFactory sf = createMock(SessionFactory.class);
+        ClassMetadata md = createMock(ClassMetadata.class);
+        Type type = createMock(Type.class);
+        org.hibernate.Query q = createNiceMock(org.hibernate.Query.class);
+
+        expect(s.getSessionFactory()).andReturn(sf);
+        expect(sf.getClassMetadata(String.class)).andReturn(md);
+        expect(md.getPropertyType("orders")).andReturn(type);
+        expect(type.isCollectionType()).andReturn(true);
+        expect(s.createQuery(eq("SELECT obj.id, obj.code FROM java.lang.String AS obj " +
+                "WHERE EXISTS (SELECT ex0orders FROM obj.orders AS ex0orders " +
+                "LEFT OUTER JOIN ex0orders.lines AS ex0orderslines " +
+                "WHERE ex0orderslines.sku = :orderslinessku0) ORDER BY 2, 1"))).andReturn(q);
+
+        replay(s, sf, md, type);
+        replay(q);
+
+        new QueryStringBuilder().buildQuery(s, query);
+
+        verify(s, sf, md, type);
+        verify(q);
+    }
+
+    /**
+     * Tests that and'ed restrictions through the same collection are
+     * rendered as a single EXISTS sub-query, so that they must all hold for
+     * the same collection element.
+     */
+    public void testExistsGroupsRestrictionsOnSameCollection() {
+        Query query = new Query().setObjectClassName(String.class.getName())
+                .addColumn("code").setFilterCriterion(new AndRestriction(
+                        new SimpleRestriction("orders.lines.sku", Operator.EQUALS, "ABC"),
+                        new SimpleRestriction("code", Operator.EQUALS, "X"),
+                        new SimpleRestriction("orders.lines.quantity", Operator.GREATER_THAN, 5),
+                        new SimpleRestriction("orders.status.code", Operator.EQUALS, "OPEN")))
+                .setExistsForCollections(true);
+
+        Session s = createMock(Session.class);
+        SessionFactory sf = createMock(SessionFactory.class);
+        ClassMetadata md = createMock(ClassMetadata.class);
+        Type type = createMock(Type.class);
+        org.hibernate.Query q = createNiceMock(org.hibernate.Query.class);
+
+        expect(s.getSessionFactory()).andReturn(sf);
+        expect(sf.getClassMetadata(String.class)).andReturn(md).times(3);
+        expect(md.getPropertyType("orders")).andReturn(type).times(3);
+        expect(type.isCollectionType()).andReturn(true).times(3);
+        expect(s.createQuery(eq("SELECT obj.id, obj.code FROM java.lang.String AS obj " +
+                "WHERE ( EXISTS (SELECT ex0orders FROM obj.orders AS ex0orders " +
+                "LEFT OUTER JOIN ex0orders.lines AS ex0orderslines " +
+                "LEFT OUTER JOIN ex0orders.status AS ex0ordersstatus " +
+                "WHERE ex0orderslines.sku = :orderslinessku0 " +
+                "AND ex0orderslines.quantity > :orderslinesquantity1 " +
+                "AND ex0ordersstatus.code = :ordersstatuscode2) " +
+                "AND obj.code = :objcode3 ) ORDER BY 2, 1"))).andReturn(q);
+
+        replay(s, sf, md, type);
+        replay(q);
+
+        new QueryStringBuilder().buildQuery(s, query);
+
+        verify(s, sf, md, type);
+        verify(q);
+    }
+
     public void testCountQueryWithLocaleFunctions() {
         Query query = new Query().setObjectClassName("org.sgodden.example.Site");
         query.addColumn("name");
@@ -242,6 +324,55 @@ public class QueryStringBuilderTest {
         verify(q);
     }
 
+    /**
+     * Tests that ranked locale resolution selects the single best locale row
+     * rather than aggregating.
+     */
+    public void testRankedLocaleResolution() {
+        Query query = new Query().setObjectClassName("org.sgodden.example.Site");
+        query.setLocale(Locale.UK);
+        query.addColumn("name");
+        query.addColumn("status.localeData.description", AggregateFunction.LOCALE);
+
+        Session s = createMock(Session.class);
+        org.hibernate.Query q = createNiceMock(org.hibernate.Query.class);
+
+        expect(s.createQuery(eq("SELECT obj.id, obj.name, statuslocaleData.description FROM org.sgodden.example.Site AS obj LEFT OUTER JOIN obj.status AS status LEFT OUTER JOIN status.localeData AS statuslocaleData WHERE (statuslocaleData.locale IN( :statuslocaleDatalocale ) OR statuslocaleData.locale IS NULL)  AND NOT EXISTS (SELECT statuslocaleDatabetter FROM status.localeData AS statuslocaleDatabetter WHERE CASE WHEN statuslocaleDatabetter.locale = :localerank0 THEN 0 WHEN statuslocaleDatabetter.locale = :localerank1 THEN 1 WHEN statuslocaleDatabetter.locale IS NULL THEN 2 ELSE 3 END < CASE WHEN statuslocaleData.locale = :localerank0 THEN 0 WHEN statuslocaleData.locale = :localerank1 THEN 1 WHEN statuslocaleData.locale IS NULL THEN 2 ELSE 3 END)  ORDER BY 2, 3, 1"))).andReturn(q);
+
+        replay(s);
+        replay(q);
+
+        QueryStringBuilder builder = new QueryStringBuilder();
+        builder.setLocaleResolution(LocaleResolution.RANKED);
+        builder.buildQuery(s, query);
+
+        verify(s);
+        verify(q);
+    }
+
+    /**
+     * Tests that no GROUP BY clause is generated when only aggregates are
+     * selected.
+     */
+    public void testOnlyAggregates() {
+        Query query = new Query().setObjectClassName("org.sgodden.example.Site");
+        query.addColumn("version", AggregateFunction.MAXIMUM);
+        query.setIncludeId(false);
+
+        Session s = createMock(Session.class);
+        org.hibernate.Query q = createNiceMock(org.hibernate.Query.class);
+
+        expect(s.createQuery(eq("SELECT MAX(obj.version) FROM org.sgodden.example.Site AS obj ORDER BY 1"))).andReturn(q);
+
+        replay(s);
+        replay(q);
+
+        new QueryStringBuilder().buildQuery(s, query);
+
+        verify(s);
+        verify(q);
+    }
+
     /**
      * Tests that the GROUP_CONCAT aggregate function is inserted properly and the column is detected as a grouping
      */
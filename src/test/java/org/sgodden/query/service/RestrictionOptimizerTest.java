@@ -0,0 +1,112 @@
+package org.sgodden.query.service;
+
+import static org.easymock.EasyMock.expect;
+import static org.easymock.classextension.EasyMock.createMock;
+import static org.easymock.classextension.EasyMock.replay;
+import static org.easymock.classextension.EasyMock.verify;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+
+import java.util.HashMap;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.metadata.ClassMetadata;
+import org.hibernate.type.Type;
+
+import org.sgodden.query.AndRestriction;
+import org.sgodden.query.NotRestriction;
+import org.sgodden.query.Operator;
+import org.sgodden.query.OrRestriction;
+import org.sgodden.query.Query;
+import org.sgodden.query.Restriction;
+import org.sgodden.query.SimpleRestriction;
+import org.testng.annotations.Test;
+
+@Test
+public class RestrictionOptimizerTest {
+
+    /**
+     * Nested ands are flattened and duplicates removed.
+     */
+    public void testFlattenAndRemoveDuplicates() {
+        Restriction r = new AndRestriction(
+                new SimpleRestriction("code", Operator.EQUALS, "A"),
+                new AndRestriction(
+                        new SimpleRestriction("code", Operator.EQUALS, "A"),
+                        new SimpleRestriction("name", Operator.STARTS_WITH, "B")));
+
+        assertEquals(render(new RestrictionOptimizer().optimize(r)),
+                " WHERE ( obj.code = :objcode0 AND obj.name LIKE :objname1 )");
+    }
+
+    /**
+     * Or'ed equals on the same path become a single IN.
+     */
+    public void testMergeEqualsIntoIn() {
+        Restriction r = new OrRestriction(
+                new SimpleRestriction("code", Operator.EQUALS, "A"),
+                new OrRestriction(
+                        new SimpleRestriction("code", Operator.EQUALS, "B"),
+                        new SimpleRestriction("name", Operator.EQUALS, "C")),
+                new SimpleRestriction("code", Operator.IN, new Object[] {"B", "D"}));
+
+        SimpleRestriction in = (SimpleRestriction) ((OrRestriction) new RestrictionOptimizer()
+                .optimize(r)).getRestrictions().get(0);
+        assertEquals(in.getOperator(), Operator.IN);
+        assertEquals(in.getValues(), new Object[] {"A", "B", "D"});
+    }
+
+    /**
+     * Empty IN lists and contradictory equals never match.
+     */
+    public void testNoMatch() {
+        RestrictionOptimizer optimizer = new RestrictionOptimizer();
+        assertSame(optimizer.optimize(new AndRestriction(
+                new SimpleRestriction("name", Operator.EQUALS, "C"),
+                new SimpleRestriction("code", Operator.IN, new Object[0]))),
+                RestrictionOptimizer.NO_MATCH);
+        assertSame(optimizer.optimize(new AndRestriction(
+                new SimpleRestriction("code", Operator.EQUALS, "A"),
+                new SimpleRestriction("code", Operator.EQUALS, "B"))),
+                RestrictionOptimizer.NO_MATCH);
+        assertNull(optimizer.optimize(new NotRestriction(
+                new SimpleRestriction("code", Operator.IN, new Object[0]))));
+    }
+
+    /**
+     * Equals on a path rendered as an EXISTS sub-query may each be matched
+     * by a different collection element, so are not contradictory.
+     */
+    public void testNoContradictionThroughExistsCollection() {
+        Query query = new Query().setObjectClassName(String.class.getName())
+                .setExistsForCollections(true);
+
+        SessionFactory sf = createMock(SessionFactory.class);
+        ClassMetadata md = createMock(ClassMetadata.class);
+        Type type = createMock(Type.class);
+
+        expect(sf.getClassMetadata(String.class)).andReturn(md);
+        expect(md.getPropertyType("orderLines")).andReturn(type);
+        expect(type.isCollectionType()).andReturn(true);
+
+        replay(sf, md, type);
+
+        RestrictionOptimizer optimizer = new RestrictionOptimizer();
+        optimizer.setCollectionPathResolver(new CollectionPathResolver(query, sf));
+        Restriction r = new AndRestriction(
+                new SimpleRestriction("orderLines.sku", Operator.EQUALS, "A"),
+                new SimpleRestriction("orderLines.sku", Operator.EQUALS, "B"),
+                new SimpleRestriction("code", Operator.EQUALS, "C"));
+        assertEquals(((AndRestriction) optimizer.optimize(r)).getRestrictions().size(), 3);
+
+        verify(sf, md, type);
+    }
+
+    private String render(Restriction r) {
+        Query query = new Query().setFilterCriterion(r);
+        return new WhereClauseBuilder().buildWhereClause(query,
+                new HashMap<String, Object>()).toString();
+    }
+
+}
@@ -2,7 +2,12 @@ package org.sgodden.query.service;
 
 import static org.testng.Assert.assertEquals;
 
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
 
 import org.sgodden.query.AndRestriction;
 import org.sgodden.query.Operator;
@@ -42,4 +47,71 @@ public class WhereClauseBuilderTest {
                 " WHERE ( ( obj.code = :objcode0 AND contact.code = :contactcode1 ) OR ( obj.code = :objcode2 AND obj.code = :objcode3 ) )");
     }
 
+    /**
+     * Tests the shadow property and collation case-insensitive strategies.
+     */
+    public void testCaseInsensitiveMatching() {
+        Query query = new Query().setObjectClassName("org.example.Order");
+        query.setFilterCriterion(new AndRestriction(
+                new SimpleRestriction("customer.name", Operator.STARTS_WITH, "Abc").setIgnoreCase(true),
+                new SimpleRestriction("code", Operator.EQUALS, "Abc").setIgnoreCase(true),
+                new SimpleRestriction("reference", Operator.EQUALS, "Abc").setIgnoreCase(true)));
+
+        WhereClauseBuilder builder = new WhereClauseBuilder();
+        builder.setCaseInsensitiveMatching(new CaseInsensitiveMatching()
+                .useShadowProperty("org.example.Order", "customer.name", "nameUpper")
+                .useCollation("org.example.Order", "code"));
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        StringBuffer sb = builder.buildWhereClause(query, parameters);
+
+        assertEquals(
+                sb.toString(),
+                " WHERE ( customer.nameUpper LIKE :customername0 AND obj.code = :objcode1 AND UPPER(obj.reference) = :objreference2 )");
+        assertEquals(parameters.get("customername0"), "ABC%");
+        assertEquals(parameters.get("objcode1"), "Abc");
+        assertEquals(parameters.get("objreference2"), "ABC");
+    }
+
+    /**
+     * Tests that contains restrictions are narrowed to the identifiers found
+     * by the text search provider.
+     */
+    public void testTextSearchProvider() {
+        Query query = new Query().setObjectClassName("org.example.Order");
+        query.setFilterCriterion(new SimpleRestriction("name", Operator.CONTAINS, "abc"));
+
+        WhereClauseBuilder builder = new WhereClauseBuilder();
+        builder.setTextSearchProvider(new TextSearchProvider() {
+            public Collection<Serializable> findIds(String className, String attributePath,
+                    Operator operator, String value, boolean ignoreCase, Locale locale) {
+                return Arrays.asList(new Serializable[] { 1L, 2L });
+            }
+        });
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        StringBuffer sb = builder.buildWhereClause(query, parameters);
+
+        assertEquals(sb.toString(), " WHERE ( obj.id IN (:objid0) AND obj.name LIKE :objname1 )");
+        assertEquals(parameters.get("objname1"), "%abc%");
+    }
+
+    /**
+     * Tests that values containing LIKE wildcards are not passed to the text
+     * search provider, which matches values literally.
+     */
+    public void testTextSearchProviderSkipsWildcards() {
+        Query query = new Query().setObjectClassName("org.example.Order");
+        query.setFilterCriterion(new SimpleRestriction("name", Operator.CONTAINS, "a_c"));
+
+        WhereClauseBuilder builder = new WhereClauseBuilder();
+        builder.setTextSearchProvider(new TextSearchProvider() {
+            public Collection<Serializable> findIds(String className, String attributePath,
+                    Operator operator, String value, boolean ignoreCase, Locale locale) {
+                throw new IllegalStateException("Should not be called for " + value);
+            }
+        });
+        StringBuffer sb = builder.buildWhereClause(query, new HashMap<String, Object>());
+
+        assertEquals(sb.toString(), " WHERE obj.name LIKE :objname0");
+    }
+
 }